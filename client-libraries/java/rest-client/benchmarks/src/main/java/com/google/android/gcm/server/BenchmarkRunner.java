@@ -0,0 +1,53 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}, which runs the JMH benchmarks with
+ * the GC profiler, so every result comes with its allocation rate
+ * ({@code gc.alloc.rate.norm} is the number of bytes allocated per
+ * operation).
+ *
+ * <p>
+ * Build with {@code mvn package} in the {@code benchmarks} directory, then
+ * run all benchmarks with {@code java -jar target/benchmarks.jar}, or some of
+ * them with the usual JMH options, for instance
+ * {@code java -jar target/benchmarks.jar MulticastSend -p recipients=1000}.
+ * Add {@code -rf json -rff results.json} to keep the results, so they can be
+ * compared across releases.
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+    throw new UnsupportedOperationException();
+  }
+
+  public static void main(String[] args)
+      throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
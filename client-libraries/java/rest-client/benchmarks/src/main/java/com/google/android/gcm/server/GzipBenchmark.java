@@ -0,0 +1,139 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Compares the CPU time of encoding a request to many devices with the bytes
+ * it takes on the wire, plain and compressed with gzip at the level used by
+ * {@link Sender#setGzipThreshold(int)} and at higher ones.
+ *
+ * <p>
+ * The number of bytes of each request is printed when the benchmark starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GzipBenchmark {
+
+  private static final String ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  @Param({"100", "1000"})
+  int recipients;
+
+  private Message message;
+  private List<String> registrationIds;
+
+  /**
+   * Deflater of each level, as the ones pooled by {@link Gzip}.
+   */
+  @State(Scope.Thread)
+  public static class Deflaters {
+    Deflater defaultLevel;
+    Deflater bestLevel;
+
+    @Setup
+    public void setUp() {
+      defaultLevel = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      bestLevel = new Deflater(Deflater.BEST_COMPRESSION, true);
+    }
+
+    @TearDown
+    public void tearDown() {
+      defaultLevel.end();
+      bestLevel.end();
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    message = new Message.Builder()
+        .collapseKey("news")
+        .timeToLive(3600)
+        .addData("title", "Breaking news")
+        .build();
+    // registration ids look like random base64url text
+    Random random = new Random(42);
+    registrationIds = new ArrayList<String>(recipients);
+    for (int i = 0; i < recipients; i++) {
+      StringBuilder regId = new StringBuilder();
+      for (int j = 0; j < 152; j++) {
+        regId.append(j == 11 ? ":APA91b"
+            : ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+      registrationIds.add(regId.toString());
+    }
+    byte[] body = MessageEncoder.encode(message, registrationIds);
+    Deflaters deflaters = new Deflaters();
+    deflaters.setUp();
+    System.out.println("bytes per request: plain " + body.length
+        + ", gzip " + Gzip.compress(body).length
+        + ", gzip default level " + compress(deflaters.defaultLevel).length
+        + ", gzip best level " + compress(deflaters.bestLevel).length);
+    deflaters.tearDown();
+  }
+
+  @Benchmark
+  public byte[] plain() {
+    return MessageEncoder.encode(message, registrationIds);
+  }
+
+  @Benchmark
+  public byte[] gzip() {
+    return Gzip.compress(MessageEncoder.encode(message, registrationIds));
+  }
+
+  @Benchmark
+  public byte[] gzipDefaultLevel(Deflaters deflaters) {
+    return compress(deflaters.defaultLevel);
+  }
+
+  @Benchmark
+  public byte[] gzipBestLevel(Deflaters deflaters) {
+    return compress(deflaters.bestLevel);
+  }
+
+  private byte[] compress(Deflater deflater) {
+    try {
+      return Gzip.compress(MessageEncoder.encode(message, registrationIds),
+          deflater);
+    } finally {
+      deflater.reset();
+    }
+  }
+}
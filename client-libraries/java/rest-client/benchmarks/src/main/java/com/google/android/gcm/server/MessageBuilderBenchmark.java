@@ -0,0 +1,78 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building {@link Message} and {@link Notification} instances, as
+ * applications do for every send.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBuilderBenchmark {
+
+  private String title = "Breaking news";
+  private String url = "https://example.com/articles/108";
+
+  @Benchmark
+  public Notification notification() {
+    return new Notification.Builder("ic_news")
+        .title(title)
+        .body("Something happened, tap to read more")
+        .badge(1)
+        .clickAction("OPEN_ARTICLE")
+        .titleLocArgs(Arrays.asList(title))
+        .build();
+  }
+
+  @Benchmark
+  public Message message() {
+    return new Message.Builder()
+        .collapseKey("news")
+        .timeToLive(3600)
+        .priority(Message.Priority.HIGH)
+        .addData("title", title)
+        .addData("url", url)
+        .addData("id", "108")
+        .build();
+  }
+
+  @Benchmark
+  public Message messageWithNotification() {
+    return new Message.Builder()
+        .collapseKey("news")
+        .timeToLive(3600)
+        .addData("url", url)
+        .notification(notification())
+        .build();
+  }
+}
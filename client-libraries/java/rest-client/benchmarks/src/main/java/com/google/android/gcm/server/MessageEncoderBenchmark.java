@@ -0,0 +1,108 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of encoding a multicast request with json-simple, as
+ * {@link Sender} used to, with {@link MessageEncoder}, and from a
+ * {@link PreparedMessage}, as done for each chunk or retry of a message.
+ *
+ *
+ * @see BenchmarkRunner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncoderBenchmark {
+
+  @Param({"1", "100", "1000"})
+  int recipients;
+
+  private Message message;
+  private PreparedMessage prepared;
+  private List<String> registrationIds;
+
+  @Setup
+  public void setUp() {
+    message = new Message.Builder()
+        .collapseKey("news")
+        .timeToLive(3600)
+        .priority(Message.Priority.HIGH)
+        .addData("title", "Breaking news")
+        .addData("url", "https://example.com/articles/108")
+        .notification(new Notification.Builder("ic_news")
+            .title("Breaking news")
+            .body("Something happened, tap to read more")
+            .build())
+        .build();
+    prepared = new PreparedMessage(message);
+    registrationIds = new ArrayList<String>(recipients);
+    for (int i = 0; i < recipients; i++) {
+      registrationIds.add(String.format("APA91bH%0145d", i));
+    }
+  }
+
+  @Benchmark
+  public byte[] jsonSimple() {
+    Map<Object, Object> request = new HashMap<Object, Object>();
+    request.put(Constants.PARAM_PRIORITY, message.getPriority());
+    request.put(Constants.PARAM_TIME_TO_LIVE, message.getTimeToLive());
+    request.put(Constants.PARAM_COLLAPSE_KEY, message.getCollapseKey());
+    request.put(Constants.JSON_PAYLOAD, message.getData());
+    Notification notification = message.getNotification();
+    Map<Object, Object> nMap = new HashMap<Object, Object>();
+    nMap.put(Constants.JSON_NOTIFICATION_BODY, notification.getBody());
+    nMap.put(Constants.JSON_NOTIFICATION_ICON, notification.getIcon());
+    nMap.put(Constants.JSON_NOTIFICATION_SOUND, notification.getSound());
+    nMap.put(Constants.JSON_NOTIFICATION_TITLE, notification.getTitle());
+    request.put(Constants.JSON_NOTIFICATION, nMap);
+    request.put(Constants.JSON_REGISTRATION_IDS, registrationIds);
+    return JSONValue.toJSONString(request).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] streaming() {
+    return MessageEncoder.encode(message, registrationIds);
+  }
+
+  @Benchmark
+  public byte[] prepared() {
+    return prepared.encode(registrationIds);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the bookkeeping of multicast retries keyed by registration id, as
+ * {@link Sender} used to, with {@link MulticastAttempts}, over many retry
+ * rounds where 90% of the messages left are unavailable each round.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MulticastAttemptsBenchmark {
+
+  @Param({"100", "1000"})
+  int recipients;
+
+  @Param({"10"})
+  int rounds;
+
+  private List<String> registrationIds;
+  // result of each round, sized for the registration ids left
+  private List<MulticastResult> results;
+
+  @Setup
+  public void setUp() {
+    registrationIds = new ArrayList<String>(recipients);
+    for (int i = 0; i < recipients; i++) {
+      registrationIds.add(String.format("APA91bH%0145d", i));
+    }
+    Result unavailable = new Result.Builder()
+        .errorCode(Constants.ERROR_UNAVAILABLE)
+        .build();
+    Result sent = new Result.Builder()
+        .messageId("0:1432741%921c249a")
+        .build();
+    results = new ArrayList<MulticastResult>(rounds);
+    int left = recipients;
+    for (int round = 0; round < rounds; round++) {
+      MulticastResult.Builder builder =
+          new MulticastResult.Builder(0, 0, 0, round);
+      int next = 0;
+      for (int i = 0; i < left; i++) {
+        // every message is sent on the last round
+        boolean retry = round < rounds - 1 && i % 10 != 0;
+        builder.addResult(retry ? unavailable : sent);
+        if (retry) {
+          next++;
+        }
+      }
+      results.add(builder.build());
+      left = next;
+    }
+  }
+
+  @Benchmark
+  public MulticastResult hashMap() {
+    Map<String, Result> byRegId = new HashMap<String, Result>();
+    List<String> unsent = new ArrayList<String>(registrationIds);
+    for (MulticastResult multicast : results) {
+      List<Result> newResults = multicast.getResults();
+      List<String> newUnsent = new ArrayList<String>();
+      for (int i = 0; i < unsent.size(); i++) {
+        String regId = unsent.get(i);
+        Result result = newResults.get(i);
+        byRegId.put(regId, result);
+        if (Constants.ERROR_UNAVAILABLE.equals(result.getErrorCodeName())) {
+          newUnsent.add(regId);
+        }
+      }
+      unsent = newUnsent;
+    }
+    MulticastResult.Builder builder = new MulticastResult.Builder(0, 0, 0, 0);
+    for (String regId : registrationIds) {
+      builder.addResult(byRegId.get(regId));
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public MulticastResult indexed() {
+    MulticastAttempts attempts = new MulticastAttempts(registrationIds);
+    for (MulticastResult multicast : results) {
+      // as the send of each attempt does
+      attempts.getUnsentRegIds().size();
+      attempts.update(multicast);
+    }
+    return attempts.build();
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing a multicast response with json-simple, as {@link Sender}
+ * used to, and with {@link MulticastResponseParser}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MulticastResponseParserBenchmark {
+
+  @Param({"1", "100", "1000"})
+  int results;
+
+  private byte[] response;
+
+  @Setup
+  public void setUp() {
+    StringBuilder json = new StringBuilder("{\"multicast_id\":"
+        + " 5783497923425829872, \"success\": " + results
+        + ", \"failure\": 0, \"canonical_ids\": 0, \"results\": [");
+    for (int i = 0; i < results; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      if (i % 10 == 9) {
+        json.append("{\"error\": \"NotRegistered\"}");
+      } else {
+        json.append("{\"message_id\": \"0:14327418" + i
+            + "%921c249a40c1af35\"}");
+      }
+    }
+    json.append("]}");
+    response = json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public MulticastResult jsonSimple() throws IOException, ParseException {
+    String body = Sender.getString(new ByteArrayInputStream(response));
+    JSONObject json = (JSONObject) new JSONParser().parse(body);
+    MulticastResult.Builder builder = new MulticastResult.Builder(
+        ((Number) json.get(Constants.JSON_SUCCESS)).intValue(),
+        ((Number) json.get(Constants.JSON_FAILURE)).intValue(),
+        ((Number) json.get(Constants.JSON_CANONICAL_IDS)).intValue(),
+        ((Number) json.get(Constants.JSON_MULTICAST_ID)).longValue());
+    for (Map<String, Object> item
+        : (List<Map<String, Object>>) json.get(Constants.JSON_RESULTS)) {
+      builder.addResult(new Result.Builder()
+          .messageId((String) item.get(Constants.JSON_MESSAGE_ID))
+          .canonicalRegistrationId(
+              (String) item.get(Constants.TOKEN_CANONICAL_REG_ID))
+          .errorCode((String) item.get(Constants.JSON_ERROR))
+          .build());
+    }
+    return builder.build();
+  }
+
+  @Benchmark
+  public MulticastResult streaming() throws IOException {
+    return MulticastResponseParser.parse(new ByteArrayInputStream(response));
+  }
+}
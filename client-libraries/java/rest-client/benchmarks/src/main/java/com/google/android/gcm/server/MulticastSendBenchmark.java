@@ -0,0 +1,134 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Sender#send(Message, List, int)} end to end, without the
+ * network: encoding, response parsing and the aggregation of a first attempt
+ * where 10% of the messages are unavailable with the retry that sends them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MulticastSendBenchmark {
+
+  @Param({"1", "100", "1000"})
+  int recipients;
+
+  private Sender sender;
+  private Message message;
+  private PreparedMessage prepared;
+  private List<String> registrationIds;
+
+  @Setup
+  public void setUp() {
+    message = new Message.Builder()
+        .collapseKey("news")
+        .timeToLive(3600)
+        .addData("title", "Breaking news")
+        .build();
+    prepared = new PreparedMessage(message);
+    registrationIds = new ArrayList<String>(recipients);
+    for (int i = 0; i < recipients; i++) {
+      registrationIds.add(String.format("APA91bH%0145d", i));
+    }
+    // every 10th message is unavailable on the first attempt
+    int unavailable = (recipients + 9) / 10;
+    StringBuilder first = new StringBuilder("{\"multicast_id\": 100,"
+        + " \"success\": " + (recipients - unavailable) + ", \"failure\": "
+        + unavailable + ", \"canonical_ids\": 0, \"results\": [");
+    for (int i = 0; i < recipients; i++) {
+      first.append(i > 0 ? "," : "").append(i % 10 == 0
+          ? "{\"error\": \"Unavailable\"}"
+          : "{\"message_id\": \"0:1432741" + i + "%921c249a\"}");
+    }
+    StringBuilder second = new StringBuilder("{\"multicast_id\": 200,"
+        + " \"success\": " + unavailable
+        + ", \"failure\": 0, \"canonical_ids\": 0, \"results\": [");
+    for (int i = 0; i < unavailable; i++) {
+      second.append(i > 0 ? "," : "")
+          .append("{\"message_id\": \"0:2432741" + i + "%921c249a\"}");
+    }
+    final byte[][] responses = {
+      first.append("]}").toString().getBytes(StandardCharsets.UTF_8),
+      second.append("]}").toString().getBytes(StandardCharsets.UTF_8)
+    };
+    sender = new Sender("benchmark") {
+      @Override
+      void sleep(long millis) {
+        // retry right away
+      }
+    };
+    sender.setTransport(new Transport() {
+      private int posts;
+
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        // each send makes two posts: the first attempt and the retry
+        final byte[] body = responses[posts++ % 2];
+        return new TransportResponse() {
+          @Override
+          public int getStatus() {
+            return 200;
+          }
+
+          @Override
+          public String getHeader(String name) {
+            return null;
+          }
+
+          @Override
+          public InputStream getBody() {
+            return new ByteArrayInputStream(body);
+          }
+        };
+      }
+    });
+  }
+
+  @Benchmark
+  public MulticastResult send() throws IOException {
+    return sender.send(message, registrationIds, 1);
+  }
+
+  @Benchmark
+  public MulticastResult sendPrepared() throws IOException {
+    return sender.send(prepared, registrationIds, 1);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures appending messages to the write-ahead log of an
+ * {@link OutboundQueue}, in a temporary directory, and acknowledging them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteAheadLogBenchmark {
+
+  private File directory;
+  private WriteAheadLog log;
+  private PreparedMessage message;
+  private String[] regIds;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("wal-benchmark").toFile();
+    log = new WriteAheadLog(directory, 64 * 1024 * 1024);
+    message = new PreparedMessage(new Message.Builder()
+        .collapseKey("news")
+        .addData("title", "Breaking news")
+        .build());
+    regIds = new String[1024];
+    for (int i = 0; i < regIds.length; i++) {
+      regIds[i] = String.format("APA91bH%0145d", i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    log.close();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Benchmark
+  public WriteAheadLog.Entry append() throws IOException {
+    return log.append(message, regIds[next++ & (regIds.length - 1)]);
+  }
+
+  @Benchmark
+  public void appendAndAck() throws IOException {
+    log.ack(log.append(message, regIds[next++ & (regIds.length - 1)]));
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.TOPIC_PREFIX;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends messages to one device each, coalescing the messages with the same
+ * content sent at about the same time in multicast requests.
+ *
+ * <p>
+ * Each message is held for at most {@link Builder#lingerMillis(int)}, or
+ * until {@link Builder#maxBatchSize(int)} registration ids are waiting for a
+ * message with the same content and number of retries; the batch is then
+ * sent with {@link Sender#sendAsync(PreparedMessage, List, int)} and each
+ * caller gets the result for its own device. When many threads send the same
+ * message to different devices, this makes one request instead of up to
+ * {@link Constants#MULTICAST_SIZE_LIMIT}, at the cost of the linger delay.
+ *
+ * <p>
+ * Messages sent to a topic are not batched, as multicast requests only take
+ * registration ids; messages to a device group should be sent with the
+ * {@link Sender} directly, since their notification keys cannot be told
+ * apart from registration ids.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * BatchingSender batching = new BatchingSender.Builder(sender)
+ *    .lingerMillis(20)
+ *    .build();
+ * // on any number of threads
+ * Result result = batching.send(message, regId, 5);
+ * </pre></code>
+ */
+public final class BatchingSender {
+
+  private final Sender sender;
+  private final int lingerMillis;
+  private final int maxBatchSize;
+  // batches waiting to be sent, guarded by itself
+  private final Map<BatchKey, Batch> batches = new HashMap<BatchKey, Batch>();
+
+  public static final class Builder {
+
+    // required parameters
+    private final Sender sender;
+
+    // optional parameters
+    private int lingerMillis = 10;
+    private int maxBatchSize = Constants.MULTICAST_SIZE_LIMIT;
+
+    public Builder(Sender sender) {
+      this.sender = Sender.nonNull(sender);
+    }
+
+    /**
+     * Sets how long a message waits for others with the same content before
+     * it is sent (default value is {@literal 10}). The delay is measured by
+     * the timer used for retries, so it is rounded up to its tick.
+     */
+    public Builder lingerMillis(int value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("lingerMillis cannot be negative");
+      }
+      lingerMillis = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of registration ids that makes a batch be sent right
+     * away (default and maximum value is
+     * {@link Constants#MULTICAST_SIZE_LIMIT}).
+     */
+    public Builder maxBatchSize(int value) {
+      if (value < 1 || value > Constants.MULTICAST_SIZE_LIMIT) {
+        throw new IllegalArgumentException("maxBatchSize must be between 1 and "
+            + Constants.MULTICAST_SIZE_LIMIT);
+      }
+      maxBatchSize = value;
+      return this;
+    }
+
+    public BatchingSender build() {
+      return new BatchingSender(this);
+    }
+  }
+
+  private BatchingSender(Builder builder) {
+    sender = builder.sender;
+    lingerMillis = builder.lingerMillis;
+    maxBatchSize = builder.maxBatchSize;
+  }
+
+  /**
+   * Sends a message to one device, blocking until the batch it was added to
+   * was sent.
+   *
+   * @param message message to be sent.
+   * @param to registration id of the device, or topic.
+   * @param retries number of retries of the batch in case of service
+   *        unavailability errors.
+   *
+   * @return result of the message for this device.
+   *
+   * @throws IllegalArgumentException if message or to is {@literal null}.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws IOException if the message could not be sent.
+   *
+   * @see Sender#send(Message, String, int)
+   */
+  public Result send(Message message, String to, int retries)
+      throws IOException {
+    try {
+      return sendAsync(message, to, retries).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted sending message");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Could not send message", cause);
+    }
+  }
+
+  /**
+   * Sends a message to one device asynchronously.
+   *
+   * <p>
+   * If the batch could not be sent, the futures of all its messages are
+   * completed exceptionally with the same exception.
+   *
+   * @see #send(Message, String, int)
+   */
+  public CompletableFuture<Result> sendAsync(Message message, String to,
+      int retries) {
+    Sender.nonNull(to);
+    return sendAsync(new PreparedMessage(message), to, retries);
+  }
+
+  /**
+   * Sends a prepared message to one device asynchronously. See
+   * {@link #sendAsync(Message, String, int)} for more info.
+   */
+  public CompletableFuture<Result> sendAsync(PreparedMessage message,
+      String to, int retries) {
+    Sender.nonNull(message);
+    Sender.nonNull(to);
+    if (to.startsWith(TOPIC_PREFIX)) {
+      return sender.sendAsync(message, to, retries);
+    }
+    CompletableFuture<Result> future = new CompletableFuture<Result>();
+    BatchKey key = new BatchKey(message, retries);
+    Batch full = null;
+    Batch created = null;
+    synchronized (batches) {
+      Batch batch = batches.get(key);
+      if (batch == null) {
+        batch = new Batch(key);
+        batches.put(key, batch);
+        created = batch;
+      }
+      batch.regIds.add(to);
+      batch.futures.add(future);
+      if (batch.regIds.size() >= maxBatchSize) {
+        batches.remove(key);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      full.send();
+    } else if (created != null) {
+      scheduleFlush(created);
+    }
+    return future;
+  }
+
+  /**
+   * Sends the batches waiting for their linger delay right away.
+   */
+  public void flush() {
+    List<Batch> pending;
+    synchronized (batches) {
+      pending = new ArrayList<Batch>(batches.values());
+      batches.clear();
+    }
+    for (Batch batch : pending) {
+      batch.send();
+    }
+  }
+
+  /**
+   * Gets the number of messages waiting for their batch to be sent.
+   */
+  public int getPendingCount() {
+    int count = 0;
+    synchronized (batches) {
+      for (Batch batch : batches.values()) {
+        count += batch.regIds.size();
+      }
+    }
+    return count;
+  }
+
+  private void scheduleFlush(final Batch batch) {
+    Runnable flush = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (batches) {
+          if (batches.get(batch.key) != batch) {
+            // already sent because it was full, or flushed
+            return;
+          }
+          batches.remove(batch.key);
+        }
+        // encoding up to 1000 ids is too long for the timer thread
+        try {
+          sender.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+              batch.send();
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          batch.fail(e);
+        }
+      }
+    };
+    try {
+      sender.schedule(flush, lingerMillis);
+    } catch (RejectedExecutionException e) {
+      flush.run();
+    }
+  }
+
+  /**
+   * Identifies the messages that can be sent in the same request.
+   */
+  private static final class BatchKey {
+    final PreparedMessage message;
+    final int retries;
+
+    BatchKey(PreparedMessage message, int retries) {
+      this.message = message;
+      this.retries = retries;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BatchKey)) {
+        return false;
+      }
+      BatchKey other = (BatchKey) obj;
+      return retries == other.retries && message.equals(other.message);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * message.hashCode() + retries;
+    }
+  }
+
+  /**
+   * Messages waiting to be sent in the same request; the lists are guarded by
+   * the map of batches until the batch is removed from it.
+   */
+  private final class Batch {
+    final BatchKey key;
+    final List<String> regIds = new ArrayList<String>();
+    final List<CompletableFuture<Result>> futures =
+        new ArrayList<CompletableFuture<Result>>();
+
+    Batch(BatchKey key) {
+      this.key = key;
+    }
+
+    void send() {
+      CompletableFuture<MulticastResult> multicast;
+      try {
+        multicast = sender.sendAsync(key.message, regIds, key.retries);
+      } catch (RuntimeException e) {
+        fail(e);
+        return;
+      }
+      multicast.whenComplete(new BiConsumer<MulticastResult, Throwable>() {
+        @Override
+        public void accept(MulticastResult result, Throwable error) {
+          if (error != null) {
+            if (error instanceof CompletionException
+                && error.getCause() != null) {
+              error = error.getCause();
+            }
+            fail(error);
+            return;
+          }
+          List<Result> results = result.getResults();
+          if (results.size() != futures.size()) {
+            fail(new IOException("Expected " + futures.size()
+                + " results, got " + results.size()));
+            return;
+          }
+          for (int i = 0; i < results.size(); i++) {
+            futures.get(i).complete(results.get(i));
+          }
+        }
+      });
+    }
+
+    void fail(Throwable error) {
+      for (CompletableFuture<Result> future : futures) {
+        future.completeExceptionally(error);
+      }
+    }
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends large numbers of messages with the blocking methods of a
+ * {@link Sender}, each on its own virtual thread.
+ *
+ * <p>
+ * A send spends nearly all its time waiting for the response or for the
+ * back-off before a retry, which only parks a virtual thread, so hundreds of
+ * thousands of sends can be in flight on a few carrier threads. At most
+ * {@link Builder#maxConcurrency(int)} sends run at once; the methods of this
+ * class block the calling thread until a send finishes when there are more.
+ *
+ * <p>
+ * Virtual threads need Java 21. On older JVMs, or when
+ * {@link Builder#virtualThreads(boolean)} is {@literal false}, sends run on
+ * the bounded pool of platform threads used for the asynchronous sends (see
+ * {@link Sender#setExecutor}), so the limit should be kept much lower.
+ *
+ * <p>
+ * {@link Sender} only holds monitors for short computations, so its sends do
+ * not pin their carrier thread while they wait; a custom {@link Transport}
+ * should not wait inside {@code synchronized} either.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * BulkSender bulk = new BulkSender.Builder(sender)
+ *    .maxConcurrency(100000)
+ *    .build();
+ * for (String regId : regIds) {
+ *   bulk.sendAsync(message, regId, 5).whenComplete(callback);
+ * }
+ * </pre></code>
+ */
+public final class BulkSender {
+
+  /**
+   * Default maximum number of sends in flight on virtual threads.
+   */
+  public static final int DEFAULT_MAX_CONCURRENCY = 10000;
+
+  /**
+   * Default maximum number of sends in flight on platform threads.
+   */
+  public static final int DEFAULT_MAX_PLATFORM_CONCURRENCY = 256;
+
+  private final Sender sender;
+  private final ExecutorService executor;
+  private final boolean virtual;
+  private final int maxConcurrency;
+  private final Semaphore permits;
+
+  public static final class Builder {
+
+    // required parameters
+    private final Sender sender;
+
+    // optional parameters
+    private int maxConcurrency;
+    private boolean virtualThreads = true;
+
+    public Builder(Sender sender) {
+      this.sender = Sender.nonNull(sender);
+    }
+
+    /**
+     * Sets the maximum number of sends in flight (default value is
+     * {@link #DEFAULT_MAX_CONCURRENCY} on virtual threads, and
+     * {@link #DEFAULT_MAX_PLATFORM_CONCURRENCY} otherwise).
+     */
+    public Builder maxConcurrency(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxConcurrency must be positive");
+      }
+      maxConcurrency = value;
+      return this;
+    }
+
+    /**
+     * Sets whether sends run on virtual threads when the JVM has them
+     * (default value is {@literal true}).
+     */
+    public Builder virtualThreads(boolean value) {
+      virtualThreads = value;
+      return this;
+    }
+
+    public BulkSender build() {
+      return new BulkSender(this);
+    }
+  }
+
+  private BulkSender(Builder builder) {
+    sender = builder.sender;
+    ExecutorService virtualExecutor = builder.virtualThreads
+        ? SharedExecutors.newVirtualThreadExecutor("gcm-sender-bulk")
+        : null;
+    virtual = virtualExecutor != null;
+    executor = virtual ? virtualExecutor : SharedExecutors.io();
+    if (builder.maxConcurrency > 0) {
+      maxConcurrency = builder.maxConcurrency;
+    } else {
+      maxConcurrency = virtual ? DEFAULT_MAX_CONCURRENCY
+          : DEFAULT_MAX_PLATFORM_CONCURRENCY;
+    }
+    permits = new Semaphore(maxConcurrency);
+  }
+
+  /**
+   * Checks whether sends run on virtual threads.
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Gets the maximum number of sends in flight.
+   */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Gets the number of sends in flight.
+   */
+  public int getInFlightCount() {
+    return maxConcurrency - permits.availablePermits();
+  }
+
+  /**
+   * Sends a message to one device with {@link Sender#send(Message, String,
+   * int)}, blocking while the maximum number of sends are in flight.
+   *
+   * @return future completed with the result of the send, or completed
+   *         exceptionally with the exception it threw. If the calling thread
+   *         is interrupted while waiting, the future is completed with an
+   *         {@link InterruptedIOException}.
+   *
+   * @throws IllegalArgumentException if message or to is {@literal null}.
+   */
+  public CompletableFuture<Result> sendAsync(final Message message,
+      final String to, final int retries) {
+    Sender.nonNull(message);
+    Sender.nonNull(to);
+    return submit(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        return sender.send(message, to, retries);
+      }
+    });
+  }
+
+  /**
+   * Sends a prepared message to one device with
+   * {@link Sender#send(PreparedMessage, String, int)}. See
+   * {@link #sendAsync(Message, String, int)} for more info.
+   */
+  public CompletableFuture<Result> sendAsync(final PreparedMessage message,
+      final String to, final int retries) {
+    Sender.nonNull(message);
+    Sender.nonNull(to);
+    return submit(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        return sender.send(message, to, retries);
+      }
+    });
+  }
+
+  /**
+   * Sends a message to one device with
+   * {@link Sender#sendNoRetry(Message, String)}. See
+   * {@link #sendAsync(Message, String, int)} for more info.
+   */
+  public CompletableFuture<Result> sendNoRetryAsync(final Message message,
+      final String to) {
+    Sender.nonNull(message);
+    Sender.nonNull(to);
+    return submit(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        return sender.sendNoRetry(message, to);
+      }
+    });
+  }
+
+  /**
+   * Sends a prepared message to one device with
+   * {@link Sender#sendNoRetry(PreparedMessage, String)}. See
+   * {@link #sendAsync(Message, String, int)} for more info.
+   */
+  public CompletableFuture<Result> sendNoRetryAsync(
+      final PreparedMessage message, final String to) {
+    Sender.nonNull(message);
+    Sender.nonNull(to);
+    return submit(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        return sender.sendNoRetry(message, to);
+      }
+    });
+  }
+
+  /**
+   * Sends a message to many devices with
+   * {@link Sender#send(Message, List, int)}. See
+   * {@link #sendAsync(Message, String, int)} for more info.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(final Message message,
+      final List<String> regIds, final int retries) {
+    Sender.nonNull(message);
+    Sender.nonNull(regIds);
+    return submit(new Callable<MulticastResult>() {
+      @Override
+      public MulticastResult call() throws Exception {
+        return sender.send(message, regIds, retries);
+      }
+    });
+  }
+
+  /**
+   * Sends a prepared message to many devices with
+   * {@link Sender#send(PreparedMessage, List, int)}. See
+   * {@link #sendAsync(Message, String, int)} for more info.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(
+      final PreparedMessage message, final List<String> regIds,
+      final int retries) {
+    Sender.nonNull(message);
+    Sender.nonNull(regIds);
+    return submit(new Callable<MulticastResult>() {
+      @Override
+      public MulticastResult call() throws Exception {
+        return sender.send(message, regIds, retries);
+      }
+    });
+  }
+
+  private <T> CompletableFuture<T> submit(final Callable<T> send) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.completeExceptionally(
+          new InterruptedIOException("interrupted waiting to send message"));
+      return future;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          T result = null;
+          Throwable error = null;
+          try {
+            result = send.call();
+          } catch (Throwable e) {
+            error = e;
+          }
+          // callbacks of the future run after the next send can start
+          permits.release();
+          if (error != null) {
+            future.completeExceptionally(error);
+          } else {
+            future.complete(result);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+}
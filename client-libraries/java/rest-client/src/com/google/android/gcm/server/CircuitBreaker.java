@@ -0,0 +1,427 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker that stops a {@link Sender} from posting requests to an
+ * endpoint that is failing, so retries do not add to the load of an outage.
+ *
+ * <p>
+ * Each endpoint has its own circuit, which counts the requests made in a
+ * sliding window: a request fails when it got no response or a {@literal 5xx}
+ * status, and is slow when its response took longer than
+ * {@link Builder#slowCallMillis(long)}. Once the window has
+ * {@link Builder#minimumRequests(int)} requests and the rate of failed or of
+ * slow requests reaches its threshold, the circuit opens: requests fail right
+ * away with a {@link CircuitOpenException}, and retry loops give up. After
+ * {@link Builder#openMillis(long)}, the circuit is half-open and lets
+ * {@link Builder#halfOpenRequests(int)} probe requests through: it closes
+ * if they all succeed, and opens again as soon as one fails or is slow.
+ *
+ * <p>
+ * State transitions are logged and reported to the {@link SenderMetrics} of
+ * the sender. The same circuit breaker can be shared by many senders.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * CircuitBreaker breaker = new CircuitBreaker.Builder()
+ *    .failureRateThreshold(0.5)
+ *    .slowCallMillis(5000)
+ *    .build();
+ * sender.setCircuitBreaker(breaker);
+ * </pre></code>
+ */
+public final class CircuitBreaker {
+
+  private static final Logger logger =
+      Logger.getLogger(CircuitBreaker.class.getName());
+
+  private static final int BUCKETS = 10;
+
+  /**
+   * State of the circuit of an endpoint.
+   */
+  public enum State {
+    /** Requests are posted, and their outcome is counted. */
+    CLOSED,
+    /** Requests fail right away. */
+    OPEN,
+    /** A few requests are posted to probe whether the endpoint recovered. */
+    HALF_OPEN
+  }
+
+  private final RetryScheduler.Ticker ticker;
+  private final double failureRateThreshold;
+  private final double slowCallRateThreshold;
+  private final long slowCallNanos;
+  private final int minimumRequests;
+  private final long bucketNanos;
+  private final long openNanos;
+  private final int halfOpenRequests;
+  private final ConcurrentMap<String, Circuit> circuits =
+      new ConcurrentHashMap<String, Circuit>();
+
+  public static final class Builder {
+
+    // optional parameters
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 1;
+    private long slowCallMillis = 60000;
+    private int minimumRequests = 20;
+    private long windowMillis = 10000;
+    private long openMillis = 30000;
+    private int halfOpenRequests = 3;
+    private RetryScheduler.Ticker ticker = RetryScheduler.SYSTEM_TICKER;
+
+    /**
+     * Sets the fraction of failed requests that opens the circuit (default
+     * value is {@literal 0.5}).
+     */
+    public Builder failureRateThreshold(double value) {
+      failureRateThreshold = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Sets the fraction of slow requests that opens the circuit (default
+     * value is {@literal 1}).
+     */
+    public Builder slowCallRateThreshold(double value) {
+      slowCallRateThreshold = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Sets how long a response can take before the request counts as slow,
+     * in milliseconds (default value is {@literal 60000}).
+     */
+    public Builder slowCallMillis(long value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("slowCallMillis must be positive");
+      }
+      slowCallMillis = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of requests the window must have before the rates are
+     * checked (default value is {@literal 20}).
+     */
+    public Builder minimumRequests(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("minimumRequests must be positive");
+      }
+      minimumRequests = value;
+      return this;
+    }
+
+    /**
+     * Sets the duration of the sliding window the rates are computed on, in
+     * milliseconds (default value is {@literal 10000}).
+     */
+    public Builder windowMillis(long value) {
+      if (value < BUCKETS) {
+        throw new IllegalArgumentException("windowMillis must be at least "
+            + BUCKETS);
+      }
+      windowMillis = value;
+      return this;
+    }
+
+    /**
+     * Sets how long the circuit stays open before probing the endpoint, in
+     * milliseconds (default value is {@literal 30000}).
+     */
+    public Builder openMillis(long value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("openMillis must be positive");
+      }
+      openMillis = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of probe requests that must succeed to close the
+     * circuit (default value is {@literal 3}).
+     */
+    public Builder halfOpenRequests(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("halfOpenRequests must be positive");
+      }
+      halfOpenRequests = value;
+      return this;
+    }
+
+    Builder ticker(RetryScheduler.Ticker value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    public CircuitBreaker build() {
+      return new CircuitBreaker(this);
+    }
+
+    private static double checkRate(double value) {
+      if (!(value > 0 && value <= 1)) {
+        throw new IllegalArgumentException(
+            "threshold must be above 0 and at most 1");
+      }
+      return value;
+    }
+  }
+
+  private CircuitBreaker(Builder builder) {
+    ticker = builder.ticker;
+    failureRateThreshold = builder.failureRateThreshold;
+    slowCallRateThreshold = builder.slowCallRateThreshold;
+    slowCallNanos = TimeUnit.MILLISECONDS.toNanos(builder.slowCallMillis);
+    minimumRequests = builder.minimumRequests;
+    bucketNanos =
+        TimeUnit.MILLISECONDS.toNanos(builder.windowMillis) / BUCKETS;
+    openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openMillis);
+    halfOpenRequests = builder.halfOpenRequests;
+  }
+
+  /**
+   * Gets the state of the circuit of an endpoint.
+   */
+  public State getState(String endpoint) {
+    Circuit circuit = circuits.get(endpoint);
+    return circuit == null ? State.CLOSED : circuit.getState();
+  }
+
+  /**
+   * Asks to post a request to an endpoint.
+   *
+   * @param metrics notified of state transitions, can be {@literal null}.
+   *
+   * @return permit whose outcome must be reported once the request completed.
+   *
+   * @throws CircuitOpenException if the circuit is open.
+   */
+  Permit acquire(String endpoint, SenderMetrics metrics)
+      throws CircuitOpenException {
+    Circuit circuit = circuits.get(endpoint);
+    if (circuit == null) {
+      Circuit newCircuit = new Circuit(endpoint);
+      circuit = circuits.putIfAbsent(endpoint, newCircuit);
+      if (circuit == null) {
+        circuit = newCircuit;
+      }
+    }
+    return circuit.acquire(metrics);
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreaker(circuits=" + circuits.values() + ")";
+  }
+
+  /**
+   * Right to post one request, whose outcome is counted by the circuit.
+   */
+  static final class Permit {
+    private final Circuit circuit;
+    private final long generation;
+    private final long start;
+
+    private Permit(Circuit circuit, long generation, long start) {
+      this.circuit = circuit;
+      this.generation = generation;
+      this.start = start;
+    }
+
+    /**
+     * Reports the outcome of the request.
+     *
+     * @param failed whether the request got no response or a {@literal 5xx}
+     *        status.
+     * @param metrics notified of state transitions, can be {@literal null}.
+     */
+    void release(boolean failed, SenderMetrics metrics) {
+      circuit.release(this, failed, metrics);
+    }
+  }
+
+  /**
+   * Circuit of one endpoint.
+   */
+  private final class Circuit {
+    private final String endpoint;
+    // guarded by this
+    private State state = State.CLOSED;
+    // incremented on each transition, so requests started in a previous
+    // state are not counted
+    private long generation;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+    private final long[] bucketStarts = new long[BUCKETS];
+    private final int[] requests = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowCalls = new int[BUCKETS];
+
+    Circuit(String endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    synchronized State getState() {
+      return state;
+    }
+
+    Permit acquire(SenderMetrics metrics) throws CircuitOpenException {
+      long now = ticker.nanoTime();
+      State from;
+      State to;
+      Permit permit;
+      synchronized (this) {
+        from = state;
+        if (state == State.OPEN) {
+          long remaining = openedAt + openNanos - now;
+          if (remaining > 0) {
+            rejected(metrics,
+                TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+          }
+          transition(State.HALF_OPEN);
+          probes = 0;
+          probeSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+          if (probes >= halfOpenRequests) {
+            rejected(metrics, 0);
+          }
+          probes++;
+        }
+        permit = new Permit(this, generation, now);
+        to = state;
+      }
+      if (from != to) {
+        notify(metrics, from, to);
+      }
+      return permit;
+    }
+
+    void release(Permit permit, boolean failed, SenderMetrics metrics) {
+      long now = ticker.nanoTime();
+      boolean slow = now - permit.start >= slowCallNanos;
+      State from;
+      State to;
+      synchronized (this) {
+        if (permit.generation != generation) {
+          return;
+        }
+        from = state;
+        if (state == State.HALF_OPEN) {
+          if (failed || slow) {
+            open(now);
+          } else if (++probeSuccesses >= halfOpenRequests) {
+            transition(State.CLOSED);
+            resetWindow();
+          }
+        } else if (state == State.CLOSED && record(now, failed, slow)) {
+          open(now);
+        }
+        to = state;
+      }
+      if (from != to) {
+        notify(metrics, from, to);
+      }
+    }
+
+    private void rejected(SenderMetrics metrics, long retryAfter)
+        throws CircuitOpenException {
+      if (metrics != null) {
+        metrics.onCircuitRejected(endpoint);
+      }
+      throw new CircuitOpenException(endpoint, retryAfter);
+    }
+
+    /**
+     * Counts a request in the window.
+     *
+     * @return whether a threshold was reached.
+     */
+    private boolean record(long now, boolean failed, boolean slow) {
+      long bucketStart = now - Math.floorMod(now, bucketNanos);
+      int bucket = (int) Math.floorMod(now / bucketNanos, (long) BUCKETS);
+      if (bucketStarts[bucket] != bucketStart) {
+        bucketStarts[bucket] = bucketStart;
+        requests[bucket] = 0;
+        failures[bucket] = 0;
+        slowCalls[bucket] = 0;
+      }
+      requests[bucket]++;
+      if (failed) {
+        failures[bucket]++;
+      }
+      if (slow) {
+        slowCalls[bucket]++;
+      }
+      long windowStart = bucketStart - (BUCKETS - 1) * bucketNanos;
+      int total = 0;
+      int failedTotal = 0;
+      int slowTotal = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        if (bucketStarts[i] - windowStart >= 0) {
+          total += requests[i];
+          failedTotal += failures[i];
+          slowTotal += slowCalls[i];
+        }
+      }
+      return total >= minimumRequests
+          && (failedTotal >= failureRateThreshold * total
+              || slowTotal >= slowCallRateThreshold * total);
+    }
+
+    private void open(long now) {
+      transition(State.OPEN);
+      openedAt = now;
+      resetWindow();
+    }
+
+    private void resetWindow() {
+      for (int i = 0; i < BUCKETS; i++) {
+        requests[i] = 0;
+        failures[i] = 0;
+        slowCalls[i] = 0;
+      }
+    }
+
+    private void transition(State to) {
+      logger.info("Circuit breaker for " + endpoint + " is now " + to
+          + " (was " + state + ")");
+      state = to;
+      generation++;
+    }
+
+    private void notify(SenderMetrics metrics, State from, State to) {
+      if (metrics != null) {
+        metrics.onCircuitStateChange(endpoint, from, to);
+      }
+    }
+
+    @Override
+    public synchronized String toString() {
+      return endpoint + "=" + state;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a request was not posted because the
+ * {@link CircuitBreaker} of its endpoint is open.
+ * <p>
+ * Retry loops give up right away on this exception, instead of retrying
+ * until the circuit closes.
+ */
+public final class CircuitOpenException extends IOException {
+
+  private final String endpoint;
+  private final long retryAfter;
+
+  CircuitOpenException(String endpoint, long retryAfter) {
+    super("Circuit breaker is open for " + endpoint);
+    this.endpoint = endpoint;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Gets the endpoint of the circuit.
+   */
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Gets how long until the circuit lets requests probe the endpoint again,
+   * in milliseconds; {@literal 0} if probes are already in flight.
+   */
+  public long getRetryAfterMillis() {
+    return retryAfter;
+  }
+}
@@ -96,6 +96,12 @@ public final class Constants {
    */
   public static final String MESSAGE_PRIORITY_HIGH = "high";
 
+  /**
+   * Maximum number of registration ids that can be sent in one multicast
+   * request.
+   */
+  public static final int MULTICAST_SIZE_LIMIT = 1000;
+
   /**
    * Too many messages sent by the sender. Retry after a while.
    */
@@ -108,6 +114,13 @@ public final class Constants {
   public static final String ERROR_DEVICE_QUOTA_EXCEEDED =
       "DeviceQuotaExceeded";
 
+  /**
+   * Too many messages sent by the sender to a specific device, as reported by
+   * FCM. Retry after a while, at a lower rate.
+   */
+  public static final String ERROR_DEVICE_MESSAGE_RATE_EXCEEDED =
+      "DeviceMessageRateExceeded";
+
   /**
    * Missing registration_id.
    * Sender should always add the registration_id to the request.
@@ -0,0 +1,82 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which a send must be done, including all its attempts
+ * and the back-off between them.
+ *
+ * <p>
+ * The same deadline can be passed to many sends, so they share the time
+ * budget of the caller.
+ *
+ * @see Sender#send(Message, java.util.List, int, Deadline)
+ */
+public final class Deadline {
+
+  private final RetryScheduler.Ticker ticker;
+  private final long deadlineNanos;
+
+  private Deadline(RetryScheduler.Ticker ticker, long deadlineNanos) {
+    this.ticker = ticker;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * Gets a deadline that expires after the given duration from now.
+   */
+  public static Deadline after(long duration, TimeUnit unit) {
+    return after(duration, unit, RetryScheduler.SYSTEM_TICKER);
+  }
+
+  static Deadline after(long duration, TimeUnit unit,
+      RetryScheduler.Ticker ticker) {
+    if (duration < 0) {
+      throw new IllegalArgumentException("duration cannot be negative");
+    }
+    return new Deadline(ticker, ticker.nanoTime() + unit.toNanos(duration));
+  }
+
+  /**
+   * Gets the time left before the deadline, in nanoseconds; it is negative
+   * once the deadline expired.
+   */
+  public long getRemainingNanos() {
+    return deadlineNanos - ticker.nanoTime();
+  }
+
+  /**
+   * Gets the time left before the deadline, in milliseconds, or
+   * {@literal 0} if it expired.
+   */
+  public long getRemainingMillis() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(getRemainingNanos()));
+  }
+
+  /**
+   * Checks whether the deadline expired.
+   */
+  public boolean isExpired() {
+    return getRemainingNanos() <= 0;
+  }
+
+  @Override
+  public String toString() {
+    return "Deadline(remainingMillis=" + getRemainingMillis() + ")";
+  }
+}
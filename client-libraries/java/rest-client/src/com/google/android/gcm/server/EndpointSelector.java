@@ -0,0 +1,188 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the endpoint each request is posted to, among equivalent endpoints
+ * given in order of preference.
+ *
+ * <p>
+ * Each endpoint has a moving average of the latency and of the error rate of
+ * its requests, which make up its cost: the first endpoint whose cost is
+ * within {@link #TOLERANCE} of the cheapest one is picked, so traffic stays
+ * on the preferred endpoint until another one is clearly healthier. The cost
+ * of the errors decays while the endpoint is not used, down to its latency,
+ * so endpoints that failed are probed again over time. Endpoints never used
+ * cost as much as the preferred endpoint, so they only get traffic once a
+ * request fails over to them.
+ */
+final class EndpointSelector {
+
+  // weight of each request in the moving averages
+  private static final double ALPHA = 0.3;
+  // cost added by an error rate of 1, as if requests took that long
+  private static final double FAILURE_PENALTY_NANOS =
+      TimeUnit.SECONDS.toNanos(5);
+  // the cost of the errors of an idle endpoint is divided by e each time
+  // this elapses
+  private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+  // how much an endpoint can cost over the cheapest one and still be picked
+  static final double TOLERANCE = 1.25;
+
+  private final RetryScheduler.Ticker ticker;
+  private final List<String> urls;
+  // guarded by this
+  private final double[] latencies;
+  private final double[] errorRates;
+  private final long[] updatedAt;
+  private final boolean[] used;
+
+  /**
+   * Creates a selector.
+   *
+   * @param urls endpoints, in order of preference; duplicates are ignored.
+   *
+   * @throws IllegalArgumentException if urls is {@literal null}, empty, or
+   *         has {@literal null} elements.
+   */
+  EndpointSelector(List<String> urls, RetryScheduler.Ticker ticker) {
+    if (Sender.nonNull(urls).isEmpty()) {
+      throw new IllegalArgumentException("endpoints cannot be empty");
+    }
+    for (String url : urls) {
+      Sender.nonNull(url);
+    }
+    this.urls = Collections.unmodifiableList(
+        new ArrayList<String>(new LinkedHashSet<String>(urls)));
+    this.ticker = Sender.nonNull(ticker);
+    int size = this.urls.size();
+    latencies = new double[size];
+    errorRates = new double[size];
+    updatedAt = new long[size];
+    used = new boolean[size];
+  }
+
+  /**
+   * Gets the endpoints, in order of preference.
+   */
+  List<String> getUrls() {
+    return urls;
+  }
+
+  /**
+   * Picks the endpoint the next request should be posted to.
+   *
+   * @param excluded endpoints that must not be picked, such as the ones a
+   *        request already failed on.
+   *
+   * @return the endpoint, or {@literal null} if they are all excluded.
+   */
+  synchronized String select(Collection<String> excluded) {
+    long now = ticker.nanoTime();
+    double[] costs = new double[urls.size()];
+    // cost of the first endpoint that can be picked and was used
+    double preferred = -1;
+    for (int i = 0; i < costs.length; i++) {
+      if (excluded.contains(urls.get(i))) {
+        costs[i] = Double.MAX_VALUE;
+      } else if (used[i]) {
+        costs[i] = getCost(i, now);
+        if (preferred < 0) {
+          preferred = costs[i];
+        }
+      } else {
+        costs[i] = -1;
+      }
+    }
+    double cheapest = Double.MAX_VALUE;
+    for (int i = 0; i < costs.length; i++) {
+      if (costs[i] < 0) {
+        costs[i] = Math.max(preferred, 0);
+      }
+      cheapest = Math.min(cheapest, costs[i]);
+    }
+    for (int i = 0; i < costs.length; i++) {
+      if (costs[i] != Double.MAX_VALUE && costs[i] <= cheapest * TOLERANCE) {
+        return urls.get(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the current time of the clock latencies are measured with, in
+   * nanoseconds.
+   */
+  long nanoTime() {
+    return ticker.nanoTime();
+  }
+
+  /**
+   * Records the outcome of a request.
+   *
+   * @param latency time it took to get the response status or the error, in
+   *        nanoseconds.
+   * @param failed whether the request got no response or a {@literal 5xx}
+   *        status.
+   */
+  synchronized void record(String url, long latency, boolean failed) {
+    int i = urls.indexOf(url);
+    if (i < 0) {
+      return;
+    }
+    double error = failed ? 1 : 0;
+    if (used[i]) {
+      latencies[i] += ALPHA * (latency - latencies[i]);
+      errorRates[i] += ALPHA * (error - errorRates[i]);
+    } else {
+      latencies[i] = latency;
+      errorRates[i] = error;
+      used[i] = true;
+    }
+    updatedAt[i] = ticker.nanoTime();
+  }
+
+  private double getCost(int i, long now) {
+    return latencies[i] + errorRates[i] * FAILURE_PENALTY_NANOS
+        * Math.exp(-(now - updatedAt[i]) / DECAY_NANOS);
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder("EndpointSelector(");
+    for (int i = 0; i < urls.size(); i++) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append(urls.get(i));
+      if (used[i]) {
+        builder.append("=[latencyMillis=")
+            .append(Math.round(latencies[i] / 1e6))
+            .append(", errorRate=")
+            .append(Math.round(errorRates[i] * 100) / 100.0)
+            .append("]");
+      }
+    }
+    return builder.append(")").toString();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Error of a message sent to one device, with what should be done about it.
+ *
+ * <p>
+ * Results are parsed into these codes once, so they can be checked with
+ * {@code switch} statements and counted in an {@link java.util.EnumMap}.
+ * Note that a registration id that should be replaced is not reported by an
+ * error, but by {@link Result#getCanonicalRegistrationId()}.
+ *
+ * @see Result#getErrorCode()
+ */
+public enum ErrorCode {
+
+  /** See {@link Constants#ERROR_QUOTA_EXCEEDED}. */
+  QUOTA_EXCEEDED(Constants.ERROR_QUOTA_EXCEEDED, false, true, false),
+
+  /** See {@link Constants#ERROR_DEVICE_QUOTA_EXCEEDED}. */
+  DEVICE_QUOTA_EXCEEDED(Constants.ERROR_DEVICE_QUOTA_EXCEEDED, false, true,
+      false),
+
+  /** See {@link Constants#ERROR_DEVICE_MESSAGE_RATE_EXCEEDED}. */
+  DEVICE_MESSAGE_RATE_EXCEEDED(Constants.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+      false, true, false),
+
+  /** See {@link Constants#ERROR_MISSING_REGISTRATION}. */
+  MISSING_REGISTRATION(Constants.ERROR_MISSING_REGISTRATION, false, false,
+      false),
+
+  /** See {@link Constants#ERROR_INVALID_REGISTRATION}. */
+  INVALID_REGISTRATION(Constants.ERROR_INVALID_REGISTRATION, false, false,
+      true),
+
+  /** See {@link Constants#ERROR_MISMATCH_SENDER_ID}. */
+  MISMATCH_SENDER_ID(Constants.ERROR_MISMATCH_SENDER_ID, false, false, false),
+
+  /** See {@link Constants#ERROR_NOT_REGISTERED}. */
+  NOT_REGISTERED(Constants.ERROR_NOT_REGISTERED, false, false, true),
+
+  /** See {@link Constants#ERROR_MESSAGE_TOO_BIG}. */
+  MESSAGE_TOO_BIG(Constants.ERROR_MESSAGE_TOO_BIG, false, false, false),
+
+  /** See {@link Constants#ERROR_MISSING_COLLAPSE_KEY}. */
+  MISSING_COLLAPSE_KEY(Constants.ERROR_MISSING_COLLAPSE_KEY, false, false,
+      false),
+
+  /** See {@link Constants#ERROR_UNAVAILABLE}. */
+  UNAVAILABLE(Constants.ERROR_UNAVAILABLE, true, false, false),
+
+  /** See {@link Constants#ERROR_INTERNAL_SERVER_ERROR}. */
+  INTERNAL_SERVER_ERROR(Constants.ERROR_INTERNAL_SERVER_ERROR, true, false,
+      false),
+
+  /** See {@link Constants#ERROR_INVALID_TTL}. */
+  INVALID_TTL(Constants.ERROR_INVALID_TTL, false, false, false),
+
+  /**
+   * Error this library does not know about; its name is returned by
+   * {@link Result#getErrorCodeName()}.
+   */
+  UNKNOWN(null, false, false, false);
+
+  private static final Map<String, ErrorCode> BY_NAME =
+      new HashMap<String, ErrorCode>();
+
+  static {
+    for (ErrorCode code : values()) {
+      if (code.name != null) {
+        BY_NAME.put(code.name, code);
+      }
+    }
+  }
+
+  private final String name;
+  private final boolean retriable;
+  private final boolean throttling;
+  private final boolean removeRegistrationId;
+
+  private ErrorCode(String name, boolean retriable, boolean throttling,
+      boolean removeRegistrationId) {
+    this.name = name;
+    this.retriable = retriable;
+    this.throttling = throttling;
+    this.removeRegistrationId = removeRegistrationId;
+  }
+
+  /**
+   * Gets the code of an error returned by GCM.
+   *
+   * @return the code, {@link #UNKNOWN} if the error is not known, or
+   *         {@literal null} if there is no error.
+   */
+  public static ErrorCode of(String name) {
+    if (name == null) {
+      return null;
+    }
+    ErrorCode code = BY_NAME.get(name);
+    return code != null ? code : UNKNOWN;
+  }
+
+  /**
+   * Gets the error as returned by GCM, or {@literal null} for
+   * {@link #UNKNOWN}.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Checks whether the message could be sent by retrying it after a
+   * back-off, as the retry loops of {@link Sender} do.
+   */
+  public boolean isRetriable() {
+    return retriable;
+  }
+
+  /**
+   * Checks whether too many messages were sent, so they should be sent at a
+   * lower rate.
+   *
+   * @see RateLimiter
+   */
+  public boolean isThrottling() {
+    return throttling;
+  }
+
+  /**
+   * Checks whether the registration id will never be valid again, so it
+   * should be removed.
+   */
+  public boolean shouldRemoveRegistrationId() {
+    return removeRegistrationId;
+  }
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the last requests posted by a {@link Sender} with their responses,
+ * so they can be looked at after something went wrong.
+ *
+ * <p>
+ * Only a sample of the requests is recorded, and requests that are not
+ * sampled cost a random number. Recorded bodies are redacted: registration
+ * ids are shortened, and the data and notification payloads are left out.
+ * The recorder is a ring buffer that does not lock: once it is full, each
+ * request recorded replaces the oldest one.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * FlightRecorder recorder = new FlightRecorder.Builder()
+ *    .capacity(256)
+ *    .sampleRate(0.01)
+ *    .build();
+ * sender.setFlightRecorder(recorder);
+ * ...
+ * recorder.dump(System.err);
+ * </pre></code>
+ */
+public final class FlightRecorder {
+
+  // characters of a registration id kept by the redaction
+  private static final int REDACTED_PREFIX = 8;
+  private static final String REDACTED = "\"...\"";
+  private static final Set<String> REGISTRATION_ID_KEYS =
+      new HashSet<String>(Arrays.asList(Constants.PARAM_TO,
+          Constants.JSON_REGISTRATION_IDS, Constants.TOKEN_CANONICAL_REG_ID,
+          "failed_registration_ids"));
+  private static final Set<String> PAYLOAD_KEYS =
+      new HashSet<String>(Arrays.asList(Constants.JSON_PAYLOAD,
+          Constants.JSON_NOTIFICATION));
+
+  private final double sampleRate;
+  private final int maxBodyLength;
+  private final RetryScheduler.Ticker ticker;
+  private final AtomicReferenceArray<Entry> entries;
+  private final int mask;
+  private final AtomicLong sequence = new AtomicLong();
+
+  public static final class Builder {
+
+    // optional parameters
+    private int capacity = 128;
+    private double sampleRate = 0.01;
+    private int maxBodyLength = 4096;
+    private RetryScheduler.Ticker ticker = RetryScheduler.SYSTEM_TICKER;
+
+    /**
+     * Sets the number of requests kept, which is rounded up to a power of two
+     * (default value is {@literal 128}).
+     */
+    public Builder capacity(int value) {
+      if (value < 1 || value > 1 << 20) {
+        throw new IllegalArgumentException(
+            "capacity must be between 1 and " + (1 << 20));
+      }
+      capacity = value;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of requests that are recorded, from {@literal 0} to
+     * {@literal 1} (default value is {@literal 0.01}).
+     */
+    public Builder sampleRate(double value) {
+      if (!(value >= 0 && value <= 1)) {
+        throw new IllegalArgumentException(
+            "sampleRate must be between 0 and 1");
+      }
+      sampleRate = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of characters of each body that are kept once redacted
+     * (default value is {@literal 4096}).
+     */
+    public Builder maxBodyLength(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxBodyLength must be positive");
+      }
+      maxBodyLength = value;
+      return this;
+    }
+
+    Builder ticker(RetryScheduler.Ticker value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    public FlightRecorder build() {
+      return new FlightRecorder(this);
+    }
+  }
+
+  private FlightRecorder(Builder builder) {
+    sampleRate = builder.sampleRate;
+    maxBodyLength = builder.maxBodyLength;
+    ticker = builder.ticker;
+    int capacity = Integer.highestOneBit(builder.capacity);
+    if (capacity < builder.capacity) {
+      capacity <<= 1;
+    }
+    entries = new AtomicReferenceArray<Entry>(capacity);
+    mask = capacity - 1;
+  }
+
+  /**
+   * Gets the number of requests kept.
+   */
+  public int getCapacity() {
+    return entries.length();
+  }
+
+  /**
+   * Gets the requests recorded, from the oldest to the most recent.
+   */
+  public List<Entry> getEntries() {
+    long last = sequence.get();
+    long first = Math.max(0, last - entries.length());
+    List<Entry> list = new ArrayList<Entry>((int) (last - first));
+    for (long i = first; i < last; i++) {
+      Entry entry = entries.get((int) (i & mask));
+      // skips entries replaced since, or not written yet
+      if (entry != null && entry.sequence == i) {
+        list.add(entry);
+      }
+    }
+    return Collections.unmodifiableList(list);
+  }
+
+  /**
+   * Writes the requests recorded, from the oldest to the most recent, one per
+   * line.
+   */
+  public void dump(Appendable out) throws IOException {
+    for (Entry entry : getEntries()) {
+      out.append(entry.toString()).append('\n');
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FlightRecorder(capacity=" + entries.length() + ", sampleRate="
+        + sampleRate + ", recorded=" + sequence.get() + ")";
+  }
+
+  /**
+   * Starts recording a request, if it is sampled.
+   *
+   * @return the recording, or {@literal null} if the request is not
+   *         sampled.
+   */
+  Recording start(String url, byte[] body, int attempt) {
+    if (sampleRate < 1
+        && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return null;
+    }
+    return new Recording(url, body, attempt);
+  }
+
+  private void add(Entry entry) {
+    entry.sequence = sequence.getAndIncrement();
+    entries.set((int) (entry.sequence & mask), entry);
+  }
+
+  /**
+   * Request being recorded, which is added to the recorder once its response
+   * was read or it failed.
+   */
+  final class Recording {
+    private final long timestamp = System.currentTimeMillis();
+    private final long start = ticker.nanoTime();
+    private final String url;
+    private final String request;
+    private final int attempt;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private Recording(String url, byte[] body, int attempt) {
+      this.url = url;
+      this.request = redact(new String(body, StandardCharsets.UTF_8));
+      this.attempt = attempt;
+    }
+
+    /**
+     * Records that the request got no response.
+     */
+    void failed(Throwable error) {
+      finish(0, ticker.nanoTime() - start, null, String.valueOf(error));
+    }
+
+    /**
+     * Records the response once its body was read.
+     *
+     * @return the response to read instead.
+     */
+    TransportResponse responded(TransportResponse response) {
+      return new RecordedResponse(response, ticker.nanoTime() - start);
+    }
+
+    private void finish(int status, long latency, String response,
+        String error) {
+      if (done.compareAndSet(false, true)) {
+        add(new Entry(timestamp, url, attempt, status, latency, request,
+            response, error));
+      }
+    }
+
+    /**
+     * Response whose body is recorded as it is read.
+     */
+    private final class RecordedResponse implements TransportResponse {
+      private final TransportResponse response;
+      private final long latency;
+
+      RecordedResponse(TransportResponse response, long latency) {
+        this.response = response;
+        this.latency = latency;
+      }
+
+      @Override
+      public int getStatus() {
+        return response.getStatus();
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return response.getHeader(name);
+      }
+
+      @Override
+      public InputStream getBody() throws IOException {
+        InputStream body;
+        try {
+          body = response.getBody();
+        } catch (IOException e) {
+          finish(getStatus(), latency, null, String.valueOf(e));
+          throw e;
+        }
+        if (body == null) {
+          finish(getStatus(), latency, null, null);
+          return null;
+        }
+        return new FilterInputStream(body) {
+          private final ByteArrayOutputStream copy =
+              new ByteArrayOutputStream();
+
+          @Override
+          public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+              copy.write(b);
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] bytes, int offset, int length)
+              throws IOException {
+            int count = super.read(bytes, offset, length);
+            if (count > 0) {
+              copy.write(bytes, offset, count);
+            }
+            return count;
+          }
+
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              finish(getStatus(), latency,
+                  redact(new String(copy.toByteArray(),
+                      StandardCharsets.UTF_8)), null);
+            }
+          }
+        };
+      }
+    }
+  }
+
+  /**
+   * Shortens the registration ids of a JSON body and leaves out its payloads,
+   * then truncates it.
+   */
+  String redact(String json) {
+    StringBuilder out = new StringBuilder(Math.min(json.length(),
+        maxBodyLength + 3));
+    int i = 0;
+    while (i < json.length() && out.length() < maxBodyLength) {
+      char c = json.charAt(i);
+      if (c != '"') {
+        out.append(c);
+        i++;
+        continue;
+      }
+      int end = skipString(json, i);
+      out.append(json, i, end);
+      int colon = skipWhitespace(json, end);
+      if (colon >= json.length() || json.charAt(colon) != ':') {
+        i = end;
+        continue;
+      }
+      // a key, whose value might be redacted
+      String key = json.substring(i + 1, Math.max(i + 1, end - 1));
+      int value = skipWhitespace(json, colon + 1);
+      out.append(json, end, value);
+      if (REGISTRATION_ID_KEYS.contains(key)) {
+        i = redactIds(json, value, out);
+      } else if (PAYLOAD_KEYS.contains(key)) {
+        out.append(REDACTED);
+        i = skipValue(json, value);
+      } else {
+        i = value;
+      }
+    }
+    if (out.length() >= maxBodyLength) {
+      out.setLength(maxBodyLength);
+      out.append("...");
+    }
+    return out.toString();
+  }
+
+  /**
+   * Copies a registration id, or an array of them, shortening them.
+   *
+   * @return the position after the value.
+   */
+  private static int redactIds(String json, int i, StringBuilder out) {
+    if (i >= json.length()) {
+      return i;
+    }
+    if (json.charAt(i) == '"') {
+      int end = skipString(json, i);
+      String id = json.substring(i + 1, Math.max(i + 1, end - 1));
+      if (id.length() <= REDACTED_PREFIX
+          || id.startsWith(Constants.TOPIC_PREFIX)) {
+        out.append(json, i, end);
+      } else {
+        out.append('"').append(id, 0, REDACTED_PREFIX).append("...\"");
+      }
+      return end;
+    }
+    if (json.charAt(i) != '[') {
+      int end = skipValue(json, i);
+      out.append(json, i, end);
+      return end;
+    }
+    out.append('[');
+    i++;
+    while (i < json.length() && json.charAt(i) != ']') {
+      char c = json.charAt(i);
+      if (c == '"') {
+        i = redactIds(json, i, out);
+      } else {
+        out.append(c);
+        i++;
+      }
+    }
+    if (i < json.length()) {
+      out.append(']');
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Gets the position after the JSON value starting at the given position.
+   */
+  private static int skipValue(String json, int i) {
+    int depth = 0;
+    while (i < json.length()) {
+      char c = json.charAt(i);
+      if (c == '"') {
+        i = skipString(json, i);
+      } else {
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          if (depth == 0) {
+            return i;
+          }
+          depth--;
+        } else if (c == ',' && depth == 0) {
+          return i;
+        }
+        i++;
+      }
+      if (depth == 0 && (c == '"' || c == '}' || c == ']')) {
+        return i;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Gets the position after the JSON string starting at the given position.
+   */
+  private static int skipString(String json, int i) {
+    for (i++; i < json.length(); i++) {
+      char c = json.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '"') {
+        return i + 1;
+      }
+    }
+    return json.length();
+  }
+
+  private static int skipWhitespace(String json, int i) {
+    while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Request recorded with its response.
+   */
+  public static final class Entry {
+    private long sequence;
+    private final long timestamp;
+    private final String endpoint;
+    private final int attempt;
+    private final int status;
+    private final long latencyNanos;
+    private final String request;
+    private final String response;
+    private final String error;
+
+    private Entry(long timestamp, String endpoint, int attempt, int status,
+        long latencyNanos, String request, String response, String error) {
+      this.timestamp = timestamp;
+      this.endpoint = endpoint;
+      this.attempt = attempt;
+      this.status = status;
+      this.latencyNanos = latencyNanos;
+      this.request = request;
+      this.response = response;
+      this.error = error;
+    }
+
+    /**
+     * Gets the number of requests recorded before this one.
+     */
+    public long getSequence() {
+      return sequence;
+    }
+
+    /**
+     * Gets when the request was posted, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Gets the endpoint the request was posted to.
+     */
+    public String getEndpoint() {
+      return endpoint;
+    }
+
+    /**
+     * Gets the attempt of the send the request was posted by, starting at
+     * {@literal 1}.
+     */
+    public int getAttempt() {
+      return attempt;
+    }
+
+    /**
+     * Gets the HTTP status of the response, or {@literal 0} if there was no
+     * response.
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * Gets how long it took to get the response status or the error, in
+     * milliseconds.
+     */
+    public long getLatencyMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+    }
+
+    /**
+     * Gets the redacted body of the request.
+     */
+    public String getRequest() {
+      return request;
+    }
+
+    /**
+     * Gets the redacted body of the response, or {@literal null} if there
+     * was none.
+     */
+    public String getResponse() {
+      return response;
+    }
+
+    /**
+     * Gets the error that prevented getting the response, if any.
+     */
+    public String getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder("#").append(sequence)
+          .append(" at ").append(timestamp)
+          .append(" attempt ").append(attempt)
+          .append(" to ").append(endpoint)
+          .append(": status=").append(status)
+          .append(", latencyMillis=").append(getLatencyMillis())
+          .append(", request=").append(request);
+      if (response != null) {
+        builder.append(", response=").append(response);
+      }
+      if (error != null) {
+        builder.append(", error=").append(error);
+      }
+      return builder.toString();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compresses request bodies and decompresses response bodies with gzip.
+ *
+ * <p>
+ * {@link java.util.zip.GZIPOutputStream} creates a {@link Deflater}, with its
+ * native buffers, for every stream; requests are instead compressed by a
+ * small pool of deflaters, writing the gzip header and trailer around their
+ * output.
+ */
+final class Gzip {
+
+  static final String ENCODING = "gzip";
+
+  // registration ids look random, so only their alphabet and the JSON around
+  // them compress; higher levels barely find more for much more CPU
+  static final int LEVEL = Deflater.BEST_SPEED;
+
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+  private static final int TRAILER_LENGTH = 8;
+
+  private static final BlockingQueue<Deflater> DEFLATERS =
+      new ArrayBlockingQueue<Deflater>(
+          Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+  private Gzip() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Compresses data with a pooled deflater.
+   */
+  static byte[] compress(byte[] data) {
+    Deflater deflater = DEFLATERS.poll();
+    if (deflater == null) {
+      deflater = new Deflater(LEVEL, true);
+    }
+    try {
+      return compress(data, deflater);
+    } finally {
+      deflater.reset();
+      if (!DEFLATERS.offer(deflater)) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Compresses data with the given deflater, which must make raw deflate
+   * data (without the zlib wrapper) and be reset afterwards.
+   */
+  static byte[] compress(byte[] data, Deflater deflater) {
+    deflater.setInput(data);
+    deflater.finish();
+    // requests to many devices compress to about three quarters
+    byte[] out = new byte[HEADER.length + data.length / 8 * 7 + 64];
+    System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+    int length = HEADER.length;
+    while (!deflater.finished()) {
+      if (length == out.length) {
+        out = Arrays.copyOf(out, out.length * 2);
+      }
+      length += deflater.deflate(out, length, out.length - length);
+    }
+    if (out.length - length < TRAILER_LENGTH) {
+      out = Arrays.copyOf(out, length + TRAILER_LENGTH);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length);
+    length = writeInt(out, length, (int) crc.getValue());
+    length = writeInt(out, length, data.length);
+    return length == out.length ? out : Arrays.copyOf(out, length);
+  }
+
+  /**
+   * Gets a response whose body is decompressed if it was compressed with
+   * gzip.
+   */
+  static TransportResponse decoding(final TransportResponse response) {
+    if (!ENCODING.equalsIgnoreCase(response.getHeader("Content-Encoding"))) {
+      return response;
+    }
+    return new TransportResponse() {
+      @Override
+      public int getStatus() {
+        return response.getStatus();
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return response.getHeader(name);
+      }
+
+      @Override
+      public InputStream getBody() throws IOException {
+        InputStream body = response.getBody();
+        return body == null ? null : new GZIPInputStream(body);
+      }
+    };
+  }
+
+  // gzip numbers are little-endian
+  private static int writeInt(byte[] out, int offset, int value) {
+    out[offset] = (byte) value;
+    out[offset + 1] = (byte) (value >> 8);
+    out[offset + 2] = (byte) (value >> 16);
+    out[offset + 3] = (byte) (value >> 24);
+    return offset + 4;
+  }
+}
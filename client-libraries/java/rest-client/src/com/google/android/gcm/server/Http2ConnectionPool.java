@@ -0,0 +1,261 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of HTTP/2 connections used by {@link Http2Transport}.
+ *
+ * <p>
+ * Each pooled connection is backed by its own {@link HttpClient}, which keeps
+ * a single multiplexed connection per endpoint. New connections are only
+ * opened when all existing ones carry the maximum number of concurrent
+ * streams, up to the maximum number of connections; connections idle for
+ * longer than the idle timeout are evicted.
+ *
+ * <p>
+ * A request is counted as a hit when it goes to a connection that already
+ * completed an exchange (so DNS, TCP and TLS setup were already paid), and as
+ * a miss otherwise.
+ */
+final class Http2ConnectionPool {
+
+  private static final Logger logger =
+      Logger.getLogger(Http2ConnectionPool.class.getName());
+
+  /**
+   * Creates the client backing a new connection.
+   */
+  interface ClientFactory {
+    HttpClient newClient();
+  }
+
+  /**
+   * Source of the current time, in nanoseconds.
+   */
+  interface Ticker {
+    long nanoTime();
+  }
+
+  static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  /**
+   * A pooled connection.
+   */
+  static final class Connection {
+
+    final HttpClient client;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long lastUsedNanos;
+    private volatile boolean warm;
+
+    Connection(HttpClient client, long nowNanos) {
+      this.client = client;
+      this.lastUsedNanos = nowNanos;
+    }
+
+    int getInFlight() {
+      return inFlight.get();
+    }
+
+    boolean isWarm() {
+      return warm;
+    }
+  }
+
+  private final ClientFactory factory;
+  private final Ticker ticker;
+  private final int maxConnections;
+  private final int maxStreamsPerConnection;
+  private final long idleTimeoutNanos;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  // copy-on-write, so acquire() can scan it without holding the lock
+  private volatile List<Connection> connections = new ArrayList<Connection>();
+
+  Http2ConnectionPool(ClientFactory factory, Ticker ticker,
+      int maxConnections, int maxStreamsPerConnection, long idleTimeoutNanos) {
+    this.factory = factory;
+    this.ticker = ticker;
+    this.maxConnections = maxConnections;
+    this.maxStreamsPerConnection = maxStreamsPerConnection;
+    this.idleTimeoutNanos = idleTimeoutNanos;
+  }
+
+  /**
+   * Gets a connection for a new request, which must be given back through
+   * {@link #release(Connection, boolean)}.
+   */
+  Connection acquire() {
+    long now = ticker.nanoTime();
+    Connection best = leastLoaded(connections);
+    if (best == null || best.getInFlight() >= maxStreamsPerConnection
+        || isIdle(best, now)) {
+      best = acquireSlow(now);
+    }
+    best.inFlight.incrementAndGet();
+    best.lastUsedNanos = now;
+    if (best.warm) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    return best;
+  }
+
+  private synchronized Connection acquireSlow(long now) {
+    evictIdle(now);
+    List<Connection> current = connections;
+    Connection best = leastLoaded(current);
+    if (best == null || (best.getInFlight() >= maxStreamsPerConnection
+        && current.size() < maxConnections)) {
+      best = open(now);
+    }
+    return best;
+  }
+
+  /**
+   * Gives back a connection, marking it as warm if its request completed.
+   */
+  void release(Connection connection, boolean completed) {
+    if (completed) {
+      connection.warm = true;
+    }
+    connection.lastUsedNanos = ticker.nanoTime();
+    connection.inFlight.decrementAndGet();
+  }
+
+  /**
+   * Marks a connection as warm after a handshake made outside of
+   * {@link #acquire()}.
+   */
+  void markWarm(Connection connection) {
+    connection.warm = true;
+    connection.lastUsedNanos = ticker.nanoTime();
+  }
+
+  /**
+   * Opens new connections so the pool has at least the given number of them,
+   * without going above the maximum.
+   *
+   * @return the connections that were opened, which are not warm yet.
+   */
+  synchronized List<Connection> grow(int count) {
+    long now = ticker.nanoTime();
+    evictIdle(now);
+    List<Connection> opened = new ArrayList<Connection>();
+    int target = Math.min(count, maxConnections);
+    while (connections.size() < target) {
+      opened.add(open(now));
+    }
+    return opened;
+  }
+
+  /**
+   * Evicts connections that were idle for longer than the idle timeout.
+   */
+  synchronized void evictIdle() {
+    evictIdle(ticker.nanoTime());
+  }
+
+  private void evictIdle(long now) {
+    List<Connection> kept = null;
+    List<Connection> current = connections;
+    for (int i = 0; i < current.size(); i++) {
+      Connection connection = current.get(i);
+      if (isIdle(connection, now)) {
+        if (kept == null) {
+          kept = new ArrayList<Connection>(current.subList(0, i));
+        }
+        evictions.incrementAndGet();
+        close(connection);
+      } else if (kept != null) {
+        kept.add(connection);
+      }
+    }
+    if (kept != null) {
+      connections = kept;
+    }
+  }
+
+  private Connection open(long now) {
+    Connection connection = new Connection(factory.newClient(), now);
+    List<Connection> copy = new ArrayList<Connection>(connections);
+    copy.add(connection);
+    connections = copy;
+    return connection;
+  }
+
+  private boolean isIdle(Connection connection, long now) {
+    return connection.getInFlight() == 0
+        && now - connection.lastUsedNanos > idleTimeoutNanos;
+  }
+
+  private static Connection leastLoaded(List<Connection> connections) {
+    Connection best = null;
+    for (int i = 0; i < connections.size(); i++) {
+      Connection connection = connections.get(i);
+      if (best == null || connection.getInFlight() < best.getInFlight()) {
+        best = connection;
+      }
+    }
+    return best;
+  }
+
+  private static void close(Connection connection) {
+    // HttpClient is only closeable on newer JDKs; on older ones the
+    // connection is closed once the client is garbage collected
+    Object client = connection.client;
+    if (client instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) client).close();
+      } catch (Exception e) {
+        logger.log(Level.FINEST, "Exception closing connection", e);
+      }
+    }
+  }
+
+  int getOpenConnections() {
+    return connections.size();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getEvictions() {
+    return evictions.get();
+  }
+}
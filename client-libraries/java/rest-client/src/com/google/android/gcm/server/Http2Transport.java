@@ -0,0 +1,513 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link Transport} that multiplexes concurrent requests over a pool of HTTP/2
+ * connections, using the JDK {@link HttpClient}.
+ *
+ * <p>
+ * Each connection can carry many requests at the same time, so a handful of
+ * them is enough for thousands of concurrent sends. Each endpoint has its own
+ * pool of connections: requests go to the connection of their endpoint with
+ * less requests in flight, and a new connection is only opened when all of
+ * them carry {@link Builder#maxStreamsPerConnection(int)} requests.
+ * Connections idle for longer than {@link Builder#idleTimeout(long)} are
+ * closed. {@link #postAsync} does not block any thread while waiting for the
+ * response.
+ *
+ * <p>
+ * The first request on a new connection pays for DNS, TCP and TLS setup;
+ * {@link #prewarm(String, int)} (or {@link Sender#prewarm(int)}) opens and
+ * handshakes connections before traffic arrives, and
+ * {@link #getPoolHits()}/{@link #getPoolMisses()} tell how many requests found
+ * a warm connection.
+ *
+ * <p>
+ * Each request is bounded by the longest of its connect and read timeouts,
+ * so sends with a {@link Deadline} return by the deadline.
+ *
+ * <p>
+ * A stream opened by {@link #post(TransportRequest)} counts against
+ * {@link Builder#maxStreamsPerConnection(int)} until the body of its response
+ * is read to the end or closed.
+ *
+ * <p>
+ * When the endpoint does not support HTTP/2 (for instance a plain
+ * {@literal http://} stub that ignores the {@literal h2c} upgrade), requests
+ * fall back to HTTP/1.1.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * Sender sender = new Sender(key);
+ * sender.setTransport(new Http2Transport.Builder().maxConnections(4).build());
+ * sender.prewarm(2);
+ * </pre></code>
+ */
+public final class Http2Transport implements Transport {
+
+  private final Http2ConnectionPool.ClientFactory factory;
+  private final Http2ConnectionPool.Ticker ticker;
+  private final int maxConnections;
+  private final int maxStreamsPerConnection;
+  private final long idleTimeoutNanos;
+
+  // pools by scheme and authority of the endpoints
+  private final ConcurrentMap<String, Http2ConnectionPool> pools =
+      new ConcurrentHashMap<String, Http2ConnectionPool>();
+
+  public static final class Builder {
+
+    // optional parameters
+    private int maxConnections = 4;
+    private int maxStreamsPerConnection = 100;
+    private long idleTimeout = 300000;
+    private int connectTimeout;
+    private Executor executor;
+    private Http2ConnectionPool.Ticker ticker =
+        Http2ConnectionPool.SYSTEM_TICKER;
+
+    /**
+     * Sets the maximum number of connections to each endpoint (default value
+     * is {@literal 4}).
+     */
+    public Builder maxConnections(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxConnections must be positive");
+      }
+      maxConnections = value;
+      return this;
+    }
+
+    /**
+     * Sets how many concurrent requests a connection should carry before a
+     * new connection is opened (default value is {@literal 100}, the usual
+     * limit of concurrent streams advertised by servers).
+     */
+    public Builder maxStreamsPerConnection(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException(
+            "maxStreamsPerConnection must be positive");
+      }
+      maxStreamsPerConnection = value;
+      return this;
+    }
+
+    /**
+     * Sets how long (in milliseconds) a connection can be idle before it is
+     * closed (default value is 5 minutes).
+     */
+    public Builder idleTimeout(long value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("timeout can not be negative");
+      }
+      idleTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the connect timeout (in milliseconds), 0 means the system's
+     * default timeout.
+     */
+    public Builder connectTimeout(int value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("timeout can not be negative");
+      }
+      connectTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the executor used by the HTTP client to handle responses (default
+     * is the client's own pool).
+     */
+    public Builder executor(Executor value) {
+      executor = Sender.nonNull(value);
+      return this;
+    }
+
+    Builder ticker(Http2ConnectionPool.Ticker value) {
+      ticker = value;
+      return this;
+    }
+
+    public Http2Transport build() {
+      return new Http2Transport(this);
+    }
+  }
+
+  private Http2Transport(final Builder builder) {
+    final int connectTimeout = builder.connectTimeout;
+    final Executor executor = builder.executor;
+    factory = new Http2ConnectionPool.ClientFactory() {
+      @Override
+      public HttpClient newClient() {
+        HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NEVER);
+        if (connectTimeout > 0) {
+          clientBuilder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        if (executor != null) {
+          clientBuilder.executor(executor);
+        }
+        return clientBuilder.build();
+      }
+    };
+    ticker = builder.ticker;
+    maxConnections = builder.maxConnections;
+    maxStreamsPerConnection = builder.maxStreamsPerConnection;
+    idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.idleTimeout);
+  }
+
+  /**
+   * Gets the maximum number of connections to each endpoint.
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Gets the number of connections currently open, to all endpoints.
+   */
+  public int getOpenConnections() {
+    int open = 0;
+    for (Http2ConnectionPool pool : pools.values()) {
+      open += pool.getOpenConnections();
+    }
+    return open;
+  }
+
+  /**
+   * Gets the number of connections currently open to the endpoint of the
+   * given URL.
+   */
+  public int getOpenConnections(String url) {
+    Http2ConnectionPool pool = pools.get(getKey(URI.create(url)));
+    return pool == null ? 0 : pool.getOpenConnections();
+  }
+
+  /**
+   * Gets how many requests were sent on a warm connection.
+   */
+  public long getPoolHits() {
+    long hits = 0;
+    for (Http2ConnectionPool pool : pools.values()) {
+      hits += pool.getHits();
+    }
+    return hits;
+  }
+
+  /**
+   * Gets how many requests had to set up a new connection.
+   */
+  public long getPoolMisses() {
+    long misses = 0;
+    for (Http2ConnectionPool pool : pools.values()) {
+      misses += pool.getMisses();
+    }
+    return misses;
+  }
+
+  /**
+   * Gets how many connections were closed for being idle.
+   */
+  public long getPoolEvictions() {
+    long evictions = 0;
+    for (Http2ConnectionPool pool : pools.values()) {
+      evictions += pool.getEvictions();
+    }
+    return evictions;
+  }
+
+  /**
+   * Opens connections to the endpoint of the given URL until its pool has the
+   * given number of them, and makes a lightweight request on each so DNS,
+   * TCP, TLS and HTTP/2 setup happen before the first message is sent.
+   *
+   * <p>
+   * The handshake request is an {@literal OPTIONS} without credentials, so it
+   * is not counted against any quota; its response is ignored.
+   *
+   * @return number of connections that were warmed up.
+   *
+   * @throws IOException if a connection could not be opened.
+   */
+  @Override
+  public int prewarm(String url, int connections) throws IOException {
+    HttpRequest request;
+    try {
+      request = HttpRequest.newBuilder()
+          .uri(URI.create(url))
+          .method("OPTIONS", HttpRequest.BodyPublishers.noBody())
+          .build();
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid endpoint: " + url, e);
+    }
+    Http2ConnectionPool pool = getPool(request.uri());
+    List<Http2ConnectionPool.Connection> opened = pool.grow(connections);
+    if (opened.isEmpty()) {
+      return 0;
+    }
+    List<CompletableFuture<HttpResponse<Void>>> handshakes =
+        new ArrayList<CompletableFuture<HttpResponse<Void>>>();
+    for (Http2ConnectionPool.Connection connection : opened) {
+      handshakes.add(connection.client.sendAsync(request,
+          HttpResponse.BodyHandlers.discarding()));
+    }
+    IOException failure = null;
+    for (int i = 0; i < opened.size(); i++) {
+      boolean completed = false;
+      try {
+        handshakes.get(i).get();
+        completed = true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted warming up " + url);
+      } catch (ExecutionException e) {
+        failure = new IOException("Could not warm up connection to " + url,
+            e.getCause());
+      }
+      if (completed) {
+        pool.markWarm(opened.get(i));
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return opened.size();
+  }
+
+  @Override
+  public TransportResponse post(TransportRequest request) throws IOException {
+    HttpRequest httpRequest;
+    try {
+      httpRequest = newHttpRequest(request);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid request: " + request, e);
+    }
+    Http2ConnectionPool pool = getPool(httpRequest.uri());
+    Http2ConnectionPool.Connection connection = pool.acquire();
+    HttpResponse<InputStream> response = null;
+    try {
+      response = connection.client.send(httpRequest,
+          HttpResponse.BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted posting to " +
+          request.getUrl());
+    } finally {
+      if (response == null) {
+        pool.release(connection, false);
+      }
+    }
+    // the stream stays in use until its body is read
+    return new Http2Response(response.statusCode(), response.headers(),
+        new ReleasingInputStream(response.body(), pool, connection));
+  }
+
+  @Override
+  public CompletableFuture<TransportResponse> postAsync(
+      TransportRequest request, Executor executor) {
+    final CompletableFuture<TransportResponse> future =
+        new CompletableFuture<TransportResponse>();
+    HttpRequest httpRequest;
+    try {
+      httpRequest = newHttpRequest(request);
+    } catch (IllegalArgumentException e) {
+      future.completeExceptionally(
+          new IOException("Invalid request: " + request, e));
+      return future;
+    }
+    final Http2ConnectionPool pool = getPool(httpRequest.uri());
+    final Http2ConnectionPool.Connection connection = pool.acquire();
+    connection.client.sendAsync(httpRequest,
+        HttpResponse.BodyHandlers.ofByteArray()).whenComplete(
+        new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+          @Override
+          public void accept(HttpResponse<byte[]> response, Throwable error) {
+            pool.release(connection, error == null);
+            if (error != null) {
+              future.completeExceptionally(unwrap(error));
+            } else {
+              future.complete(new Http2Response(response.statusCode(),
+                  response.headers(),
+                  new ByteArrayInputStream(response.body())));
+            }
+          }
+        });
+    return future;
+  }
+
+  /**
+   * Gets the pool of connections to the endpoint of a URI, creating it the
+   * first time.
+   */
+  private Http2ConnectionPool getPool(URI uri) {
+    String key = getKey(uri);
+    Http2ConnectionPool pool = pools.get(key);
+    if (pool == null) {
+      pool = new Http2ConnectionPool(factory, ticker, maxConnections,
+          maxStreamsPerConnection, idleTimeoutNanos);
+      Http2ConnectionPool existing = pools.putIfAbsent(key, pool);
+      if (existing != null) {
+        pool = existing;
+      }
+    }
+    return pool;
+  }
+
+  private static String getKey(URI uri) {
+    return uri.getScheme() + "://" + uri.getRawAuthority();
+  }
+
+  private static HttpRequest newHttpRequest(TransportRequest request) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder()
+        .uri(URI.create(request.getUrl()))
+        .POST(HttpRequest.BodyPublishers.ofByteArray(request.getBody()));
+    int timeout = getTimeout(request);
+    if (timeout > 0) {
+      builder.timeout(Duration.ofMillis(timeout));
+    }
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      builder.header(header.getKey(), header.getValue());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Gets the timeout of the whole exchange, as {@link HttpClient} cannot
+   * bound the connect and the response of a request separately: requests
+   * mostly find an open connection, so the longest of the request timeouts
+   * is used, which is still within the deadline of the send they come from.
+   * When the read timeout is infinite, the connection setup is only bounded
+   * by {@link Builder#connectTimeout(int)}.
+   */
+  static int getTimeout(TransportRequest request) {
+    int readTimeout = request.getReadTimeout();
+    return readTimeout == 0 ? 0
+        : Math.max(readTimeout, request.getConnectTimeout());
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    return error;
+  }
+
+  /**
+   * Body of a blocking request, which gives its connection back to the pool
+   * when it is read to the end or closed.
+   */
+  private static final class ReleasingInputStream extends FilterInputStream {
+
+    private final Http2ConnectionPool pool;
+    private final Http2ConnectionPool.Connection connection;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    ReleasingInputStream(InputStream body, Http2ConnectionPool pool,
+        Http2ConnectionPool.Connection connection) {
+      super(body);
+      this.pool = pool;
+      this.connection = connection;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        release();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if (count == -1) {
+        release();
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      release();
+      super.close();
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        pool.release(connection, true);
+      }
+    }
+  }
+
+  private static final class Http2Response implements TransportResponse {
+
+    private final int status;
+    private final HttpHeaders headers;
+    private final InputStream body;
+
+    Http2Response(int status, HttpHeaders headers,
+        InputStream body) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    @Override
+    public int getStatus() {
+      return status;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return headers.firstValue(name).orElse(null);
+    }
+
+    @Override
+    public InputStream getBody() {
+      return body;
+    }
+  }
+}
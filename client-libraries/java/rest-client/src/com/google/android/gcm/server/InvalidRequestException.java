@@ -26,15 +26,21 @@ public final class InvalidRequestException extends IOException {
 
   private final int status;
   private final String description;
+  private final long retryAfter;
 
   public InvalidRequestException(int status) {
     this(status, null);
   }
 
   public InvalidRequestException(int status, String description) {
+    this(status, description, -1);
+  }
+
+  InvalidRequestException(int status, String description, long retryAfter) {
     super(getMessage(status, description));
     this.status = status;
     this.description = description;
+    this.retryAfter = retryAfter;
   }
 
   private static String getMessage(int status, String description) {
@@ -59,4 +65,13 @@ public final class InvalidRequestException extends IOException {
     return description;
   }
 
+  /**
+   * Gets how long GCM asked to wait before retrying, in milliseconds, or
+   * {@literal -1} if the response did not have a {@literal Retry-After}
+   * header.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, such as latencies in
+ * nanoseconds.
+ *
+ * <p>
+ * Like an HDR histogram, values are counted in buckets whose width grows with
+ * the value: each power of two is split in {@literal 32} buckets, so any value
+ * is reported with an error below 3.2%, from nanoseconds to days, in a fixed
+ * amount of memory.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(-1);
+
+  /**
+   * Records a value; negative values are recorded as {@literal 0}.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    long current;
+    while (value < (current = min.get())
+        && !min.compareAndSet(current, value)) {
+      // retry
+    }
+    while (value > (current = max.get())
+        && !max.compareAndSet(current, value)) {
+      // retry
+    }
+  }
+
+  /**
+   * Gets a copy of the values recorded so far.
+   *
+   * <p>
+   * Values recorded while the snapshot is taken might be partially included.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      total += copy[i];
+    }
+    return new Snapshot(copy, total, sum.sum(), min.get(), max.get());
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Gets the highest value counted in a bucket.
+   */
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    long next = lowest + (1L << shift);
+    // the last bucket ends at Long.MAX_VALUE
+    return next < 0 ? Long.MAX_VALUE : next - 1;
+  }
+
+  /**
+   * Immutable copy of a {@link LatencyHistogram}.
+   */
+  public static final class Snapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long min;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long min, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.min = count == 0 ? 0 : min;
+      this.max = count == 0 ? 0 : max;
+    }
+
+    /**
+     * Gets the number of values recorded.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Gets the smallest value recorded, or {@literal 0} if none was.
+     */
+    public long getMin() {
+      return min;
+    }
+
+    /**
+     * Gets the largest value recorded, or {@literal 0} if none was.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Gets the mean of the values recorded, or {@literal 0} if none was.
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Gets the value below which the given percentage of the values fall.
+     *
+     * @param percentile percentage between {@literal 0} and {@literal 100}.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException(
+            "percentile must be between 0 and 100");
+      }
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.max(min, Math.min(max, highestValue(i)));
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return "LatencyHistogram(count=" + count + ", min=" + min
+          + ", p50=" + getValueAtPercentile(50)
+          + ", p99=" + getValueAtPercentile(99)
+          + ", max=" + max + ")";
+    }
+  }
+}
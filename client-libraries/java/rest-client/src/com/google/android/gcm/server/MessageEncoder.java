@@ -0,0 +1,498 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BADGE;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_CLICK_ACTION;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_COLOR;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_ICON;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_SOUND;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TAG;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
+import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
+import static com.google.android.gcm.server.Constants.JSON_PAYLOAD;
+import static com.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
+import static com.google.android.gcm.server.Constants.JSON_TO;
+import static com.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
+import static com.google.android.gcm.server.Constants.PARAM_CONTENT_AVAILABLE;
+import static com.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
+import static com.google.android.gcm.server.Constants.PARAM_DRY_RUN;
+import static com.google.android.gcm.server.Constants.PARAM_PRIORITY;
+import static com.google.android.gcm.server.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
+import static com.google.android.gcm.server.Constants.PARAM_TIME_TO_LIVE;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes GCM JSON requests straight into UTF-8 bytes.
+ *
+ * <p>
+ * The output is identical to what json-simple produces for the request maps
+ * previously built by {@link Sender}, including the order of the fields and
+ * the escaping rules, but the request is written into a per-thread buffer
+ * instead of going through a map, a {@link String} and its bytes; the only
+ * allocation proportional to the payload is the returned array.
+ */
+final class MessageEncoder {
+
+  // fields of a request, in the order they were put in the request map
+  private static final int PRIORITY = 0;
+  private static final int CONTENT_AVAILABLE = 1;
+  private static final int TIME_TO_LIVE = 2;
+  private static final int COLLAPSE_KEY = 3;
+  private static final int RESTRICTED_PACKAGE_NAME = 4;
+  private static final int DELAY_WHILE_IDLE = 5;
+  private static final int DRY_RUN = 6;
+  private static final int PAYLOAD = 7;
+  private static final int NOTIFICATION = 8;
+  private static final int TO = 9;
+  private static final int REGISTRATION_IDS = 10;
+
+  private static final String[] REQUEST_FIELDS = {
+    PARAM_PRIORITY, PARAM_CONTENT_AVAILABLE, PARAM_TIME_TO_LIVE,
+    PARAM_COLLAPSE_KEY, PARAM_RESTRICTED_PACKAGE_NAME, PARAM_DELAY_WHILE_IDLE,
+    PARAM_DRY_RUN, JSON_PAYLOAD, JSON_NOTIFICATION, JSON_TO,
+    JSON_REGISTRATION_IDS
+  };
+
+  private static final String[] NOTIFICATION_FIELDS = {
+    JSON_NOTIFICATION_BADGE, JSON_NOTIFICATION_BODY,
+    JSON_NOTIFICATION_BODY_LOC_ARGS, JSON_NOTIFICATION_BODY_LOC_KEY,
+    JSON_NOTIFICATION_CLICK_ACTION, JSON_NOTIFICATION_COLOR,
+    JSON_NOTIFICATION_ICON, JSON_NOTIFICATION_SOUND, JSON_NOTIFICATION_TAG,
+    JSON_NOTIFICATION_TITLE, JSON_NOTIFICATION_TITLE_LOC_ARGS,
+    JSON_NOTIFICATION_TITLE_LOC_KEY
+  };
+
+  private static final int[] REQUEST_ORDER = hashMapOrder(REQUEST_FIELDS);
+  private static final int[] NOTIFICATION_ORDER =
+      hashMapOrder(NOTIFICATION_FIELDS);
+
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  // buffers bigger than this are not kept between requests
+  private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+  private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer(4096);
+    }
+  };
+
+  private MessageEncoder() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Encodes a request to send a message to one device, topic or group.
+   */
+  static byte[] encode(Message message, String to) {
+    Buffer buffer = acquire();
+    try {
+      Object[] values = getFields(message);
+      values[TO] = to;
+      writeRequest(buffer, values, -1);
+      return buffer.toByteArray();
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Encodes a request to send a message to many devices.
+   */
+  static byte[] encode(Message message, List<String> registrationIds) {
+    Buffer buffer = acquire();
+    try {
+      Object[] values = getFields(message);
+      values[REGISTRATION_IDS] = registrationIds;
+      writeRequest(buffer, values, -1);
+      return buffer.toByteArray();
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Encodes the parts of a request that come before and after the value of
+   * its recipient, which can later be spliced in with
+   * {@link #encode(byte[], Object, byte[])}.
+   *
+   * @param multicast whether the recipient is a list of registration ids or a
+   *        single {@literal to} value.
+   *
+   * @return the prefix and the suffix of the request.
+   */
+  static byte[][] encodeTemplate(Message message, boolean multicast) {
+    Buffer buffer = acquire();
+    try {
+      int mark = writeRequest(buffer, getFields(message),
+          multicast ? REGISTRATION_IDS : TO);
+      return new byte[][] {
+        buffer.toByteArray(0, mark), buffer.toByteArray(mark, buffer.size())
+      };
+    } finally {
+      release(buffer);
+    }
+  }
+
+  /**
+   * Encodes a request from a template and the value of its recipient.
+   */
+  static byte[] encode(byte[] prefix, Object recipient, byte[] suffix) {
+    Buffer buffer = acquire();
+    try {
+      buffer.write(prefix);
+      writeValue(buffer, recipient);
+      buffer.write(suffix);
+      return buffer.toByteArray();
+    } finally {
+      release(buffer);
+    }
+  }
+
+  private static Buffer acquire() {
+    Buffer buffer = BUFFERS.get();
+    buffer.reset();
+    return buffer;
+  }
+
+  private static void release(Buffer buffer) {
+    // a virtual thread would keep its buffer while it waits for the response
+    if (buffer.capacity() > MAX_POOLED_CAPACITY
+        || SharedExecutors.isVirtual(Thread.currentThread())) {
+      BUFFERS.remove();
+    }
+  }
+
+  /**
+   * Gets the value of each field of the request, indexed by field.
+   */
+  private static Object[] getFields(Message message) {
+    Object[] values = new Object[REQUEST_FIELDS.length];
+    if (message == null) {
+      return values;
+    }
+    values[PRIORITY] = message.getPriority();
+    values[CONTENT_AVAILABLE] = message.getContentAvailable();
+    values[TIME_TO_LIVE] = message.getTimeToLive();
+    values[COLLAPSE_KEY] = message.getCollapseKey();
+    values[RESTRICTED_PACKAGE_NAME] = message.getRestrictedPackageName();
+    values[DELAY_WHILE_IDLE] = message.isDelayWhileIdle();
+    values[DRY_RUN] = message.isDryRun();
+    if (!message.getData().isEmpty()) {
+      values[PAYLOAD] = message.getData();
+    }
+    values[NOTIFICATION] = message.getNotification();
+    return values;
+  }
+
+  /**
+   * Writes a request. When a slot is given, only its name is written, and the
+   * position where its value goes is returned.
+   */
+  private static int writeRequest(Buffer out, Object[] values, int slot) {
+    int mark = -1;
+    out.write('{');
+    boolean first = true;
+    for (int field : REQUEST_ORDER) {
+      if (field == slot) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeString(out, REQUEST_FIELDS[field]);
+        out.write(':');
+        mark = out.size();
+      } else if (values[field] != null) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeString(out, REQUEST_FIELDS[field]);
+        out.write(':');
+        if (field == NOTIFICATION) {
+          writeNotification(out, (Notification) values[field]);
+        } else {
+          writeValue(out, values[field]);
+        }
+      }
+    }
+    out.write('}');
+    return mark;
+  }
+
+  private static void writeNotification(Buffer out,
+      Notification notification) {
+    Object[] values = new Object[NOTIFICATION_FIELDS.length];
+    if (notification.getBadge() != null) {
+      values[0] = notification.getBadge().toString();
+    }
+    values[1] = notification.getBody();
+    values[2] = notification.getBodyLocArgs();
+    values[3] = notification.getBodyLocKey();
+    values[4] = notification.getClickAction();
+    values[5] = notification.getColor();
+    values[6] = notification.getIcon();
+    values[7] = notification.getSound();
+    values[8] = notification.getTag();
+    values[9] = notification.getTitle();
+    values[10] = notification.getTitleLocArgs();
+    values[11] = notification.getTitleLocKey();
+    out.write('{');
+    boolean first = true;
+    for (int field : NOTIFICATION_ORDER) {
+      if (values[field] != null) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeString(out, NOTIFICATION_FIELDS[field]);
+        out.write(':');
+        writeValue(out, values[field]);
+      }
+    }
+    out.write('}');
+  }
+
+  /**
+   * Writes a value the same way {@code JSONValue.toJSONString()} does.
+   */
+  private static void writeValue(Buffer out, Object value) {
+    if (value == null) {
+      out.writeAscii("null");
+    } else if (value instanceof String) {
+      writeString(out, (String) value);
+    } else if (value instanceof Double
+        && (((Double) value).isInfinite() || ((Double) value).isNaN())) {
+      out.writeAscii("null");
+    } else if (value instanceof Float
+        && (((Float) value).isInfinite() || ((Float) value).isNaN())) {
+      out.writeAscii("null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      out.writeAscii(value.toString());
+    } else if (value instanceof Map) {
+      out.write('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeString(out, String.valueOf(entry.getKey()));
+        out.write(':');
+        writeValue(out, entry.getValue());
+      }
+      out.write('}');
+    } else if (value instanceof List) {
+      out.write('[');
+      boolean first = true;
+      for (Object item : (List<?>) value) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        writeValue(out, item);
+      }
+      out.write(']');
+    } else {
+      writeString(out, value.toString());
+    }
+  }
+
+  /**
+   * Writes a quoted string, escaped like {@code JSONValue.escape()} and encoded
+   * like {@code String.getBytes("UTF-8")}.
+   */
+  private static void writeString(Buffer out, String value) {
+    out.ensureCapacity(value.length() + 2);
+    out.write('"');
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char ch = value.charAt(i);
+      switch (ch) {
+        case '"':
+          out.write('\\');
+          out.write('"');
+          break;
+        case '\\':
+          out.write('\\');
+          out.write('\\');
+          break;
+        case '\b':
+          out.write('\\');
+          out.write('b');
+          break;
+        case '\f':
+          out.write('\\');
+          out.write('f');
+          break;
+        case '\n':
+          out.write('\\');
+          out.write('n');
+          break;
+        case '\r':
+          out.write('\\');
+          out.write('r');
+          break;
+        case '\t':
+          out.write('\\');
+          out.write('t');
+          break;
+        case '/':
+          out.write('\\');
+          out.write('/');
+          break;
+        default:
+          if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F')
+              || (ch >= '\u2000' && ch <= '\u20FF')) {
+            out.write('\\');
+            out.write('u');
+            out.write(HEX[(ch >> 12) & 0xF]);
+            out.write(HEX[(ch >> 8) & 0xF]);
+            out.write(HEX[(ch >> 4) & 0xF]);
+            out.write(HEX[ch & 0xF]);
+          } else if (ch < 0x80) {
+            out.write(ch);
+          } else if (ch < 0x800) {
+            out.write(0xC0 | (ch >> 6));
+            out.write(0x80 | (ch & 0x3F));
+          } else if (Character.isSurrogate(ch)) {
+            if (Character.isHighSurrogate(ch) && i + 1 < length
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+              int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+              out.write(0xF0 | (codePoint >> 18));
+              out.write(0x80 | ((codePoint >> 12) & 0x3F));
+              out.write(0x80 | ((codePoint >> 6) & 0x3F));
+              out.write(0x80 | (codePoint & 0x3F));
+            } else {
+              // unpaired surrogate, replaced like String.getBytes() does
+              out.write('?');
+            }
+          } else {
+            out.write(0xE0 | (ch >> 12));
+            out.write(0x80 | ((ch >> 6) & 0x3F));
+            out.write(0x80 | (ch & 0x3F));
+          }
+      }
+    }
+    out.write('"');
+  }
+
+  /**
+   * Sorts field names in the order a {@link java.util.HashMap} with the
+   * default capacity iterates them: by bucket, then by insertion order.
+   *
+   * <p>
+   * json-simple serializes maps in their iteration order, and the request
+   * maps never hold more than 12 entries, so they were never resized.
+   */
+  private static int[] hashMapOrder(final String[] names) {
+    Integer[] order = new Integer[names.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    // stable sort, so fields in the same bucket keep their insertion order
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return bucket(names[a]) - bucket(names[b]);
+      }
+    });
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      result[i] = order[i];
+    }
+    return result;
+  }
+
+  private static int bucket(String name) {
+    int h = name.hashCode();
+    return (h ^ (h >>> 16)) & 15;
+  }
+
+  /**
+   * Growable byte buffer.
+   */
+  static final class Buffer {
+
+    private byte[] bytes;
+    private int size;
+
+    Buffer(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int capacity() {
+      return bytes.length;
+    }
+
+    void write(int b) {
+      if (size == bytes.length) {
+        ensureCapacity(1);
+      }
+      bytes[size++] = (byte) b;
+    }
+
+    void write(byte[] b) {
+      ensureCapacity(b.length);
+      System.arraycopy(b, 0, bytes, size, b.length);
+      size += b.length;
+    }
+
+    void writeAscii(String value) {
+      ensureCapacity(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        bytes[size++] = (byte) value.charAt(i);
+      }
+    }
+
+    /**
+     * Makes sure at least {@code extra} more bytes fit in the buffer.
+     */
+    void ensureCapacity(int extra) {
+      if (size + extra > bytes.length) {
+        bytes = Arrays.copyOf(bytes,
+            Math.max(bytes.length * 2, size + extra));
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+
+    byte[] toByteArray(int from, int to) {
+      return Arrays.copyOfRange(bytes, from, to);
+    }
+  }
+}
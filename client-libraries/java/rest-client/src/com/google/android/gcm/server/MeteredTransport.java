@@ -0,0 +1,167 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link Transport} reporting each request to a {@link SenderMetrics} once
+ * its response body was read or closed.
+ */
+final class MeteredTransport implements Transport {
+
+  private final Transport delegate;
+  private final SenderMetrics metrics;
+
+  MeteredTransport(Transport delegate, SenderMetrics metrics) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public TransportResponse post(TransportRequest request) throws IOException {
+    long start = System.nanoTime();
+    TransportResponse response;
+    try {
+      response = delegate.post(request);
+    } catch (IOException e) {
+      metrics.onRequest(0, System.nanoTime() - start,
+          request.getBody().length, 0);
+      throw e;
+    }
+    return new MeteredResponse(response, start, request.getBody().length);
+  }
+
+  @Override
+  public CompletableFuture<TransportResponse> postAsync(
+      final TransportRequest request, Executor executor) {
+    final long start = System.nanoTime();
+    final CompletableFuture<TransportResponse> future =
+        new CompletableFuture<TransportResponse>();
+    delegate.postAsync(request, executor).whenComplete(
+        new BiConsumer<TransportResponse, Throwable>() {
+          @Override
+          public void accept(TransportResponse response, Throwable error) {
+            if (error != null) {
+              metrics.onRequest(0, System.nanoTime() - start,
+                  request.getBody().length, 0);
+              future.completeExceptionally(error);
+            } else {
+              future.complete(new MeteredResponse(response, start,
+                  request.getBody().length));
+            }
+          }
+        });
+    return future;
+  }
+
+  @Override
+  public int prewarm(String url, int connections) throws IOException {
+    return delegate.prewarm(url, connections);
+  }
+
+  /**
+   * Response counting the bytes read from its body.
+   */
+  private final class MeteredResponse implements TransportResponse {
+
+    private final TransportResponse response;
+    private final long start;
+    private final long bytesSent;
+    private final AtomicBoolean reported = new AtomicBoolean();
+    private long bytesReceived;
+
+    MeteredResponse(TransportResponse response, long start, long bytesSent) {
+      this.response = response;
+      this.start = start;
+      this.bytesSent = bytesSent;
+    }
+
+    @Override
+    public int getStatus() {
+      return response.getStatus();
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return response.getHeader(name);
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      InputStream body;
+      try {
+        body = response.getBody();
+      } catch (IOException e) {
+        report();
+        throw e;
+      }
+      if (body == null) {
+        report();
+        return null;
+      }
+      return new FilterInputStream(body) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b == -1) {
+            report();
+          } else {
+            bytesReceived++;
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int count = super.read(b, off, len);
+          if (count == -1) {
+            report();
+          } else {
+            bytesReceived += count;
+          }
+          return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+          long count = super.skip(n);
+          bytesReceived += count;
+          return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+          report();
+          super.close();
+        }
+      };
+    }
+
+    private void report() {
+      if (reported.compareAndSet(false, true)) {
+        metrics.onRequest(response.getStatus(), System.nanoTime() - start,
+            bytesSent, bytesReceived);
+      }
+    }
+  }
+}
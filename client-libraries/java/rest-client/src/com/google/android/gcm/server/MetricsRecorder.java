@@ -0,0 +1,302 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link SenderMetrics} keeping lock-free counters and a latency histogram,
+ * whose values can be exported through {@link #snapshot()}.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * MetricsRecorder metrics = new MetricsRecorder();
+ * sender.setMetrics(metrics);
+ * ...
+ * MetricsRecorder.Snapshot snapshot = metrics.snapshot();
+ * long p99 = snapshot.getLatency().getValueAtPercentile(99);
+ * </pre></code>
+ */
+public final class MetricsRecorder implements SenderMetrics {
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder bytesReceived = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder results = new LongAdder();
+  private final LongAdder successes = new LongAdder();
+  private final LongAdder canonicalIds = new LongAdder();
+  private final LongAdder circuitRejections = new LongAdder();
+  private final ConcurrentMap<Integer, LongAdder> statuses =
+      new ConcurrentHashMap<Integer, LongAdder>();
+  private final ConcurrentMap<String, LongAdder> errors =
+      new ConcurrentHashMap<String, LongAdder>();
+  // by endpoint, then by name of the state entered
+  private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>>
+      circuitTransitions =
+          new ConcurrentHashMap<String, ConcurrentMap<String, LongAdder>>();
+
+  @Override
+  public void onRequest(int status, long latencyNanos, long bytesSent,
+      long bytesReceived) {
+    requests.increment();
+    latency.record(latencyNanos);
+    this.bytesSent.add(bytesSent);
+    this.bytesReceived.add(bytesReceived);
+    increment(statuses, status);
+  }
+
+  @Override
+  public void onResult(Result result) {
+    results.increment();
+    String error = result.getErrorCodeName();
+    if (error != null) {
+      increment(errors, error);
+      return;
+    }
+    if (result.getMessageId() != null) {
+      successes.increment();
+    }
+    if (result.getCanonicalRegistrationId() != null) {
+      canonicalIds.increment();
+    }
+  }
+
+  @Override
+  public void onRetry() {
+    retries.increment();
+  }
+
+  @Override
+  public void onCircuitStateChange(String endpoint, CircuitBreaker.State from,
+      CircuitBreaker.State to) {
+    ConcurrentMap<String, LongAdder> counters =
+        circuitTransitions.get(endpoint);
+    if (counters == null) {
+      ConcurrentMap<String, LongAdder> newCounters =
+          new ConcurrentHashMap<String, LongAdder>();
+      counters = circuitTransitions.putIfAbsent(endpoint, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    increment(counters, to.name());
+  }
+
+  @Override
+  public void onCircuitRejected(String endpoint) {
+    circuitRejections.increment();
+  }
+
+  /**
+   * Gets a copy of the values recorded so far.
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  private static <K> void increment(ConcurrentMap<K, LongAdder> counters,
+      K key) {
+    LongAdder counter = counters.get(key);
+    if (counter == null) {
+      LongAdder newCounter = new LongAdder();
+      counter = counters.putIfAbsent(key, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.increment();
+  }
+
+  private static <K> Map<K, Long> sums(Map<K, LongAdder> counters) {
+    Map<K, Long> sums = new TreeMap<K, Long>();
+    for (Map.Entry<K, LongAdder> entry : counters.entrySet()) {
+      sums.put(entry.getKey(), entry.getValue().sum());
+    }
+    return Collections.unmodifiableMap(sums);
+  }
+
+  /**
+   * Values of a {@link MetricsRecorder} at a point in time.
+   */
+  public static final class Snapshot {
+
+    private final LatencyHistogram.Snapshot latency;
+    private final long requests;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long retries;
+    private final long results;
+    private final long successes;
+    private final long canonicalIds;
+    private final Map<Integer, Long> statuses;
+    private final Map<String, Long> errors;
+    private final long circuitRejections;
+    private final Map<String, Long> circuitTransitions;
+    private final Map<String, Map<String, Long>> endpointCircuitTransitions;
+
+    private Snapshot(MetricsRecorder recorder) {
+      latency = recorder.latency.snapshot();
+      requests = recorder.requests.sum();
+      bytesSent = recorder.bytesSent.sum();
+      bytesReceived = recorder.bytesReceived.sum();
+      retries = recorder.retries.sum();
+      results = recorder.results.sum();
+      successes = recorder.successes.sum();
+      canonicalIds = recorder.canonicalIds.sum();
+      statuses = sums(recorder.statuses);
+      errors = sums(recorder.errors);
+      circuitRejections = recorder.circuitRejections.sum();
+      Map<String, Map<String, Long>> byEndpoint =
+          new TreeMap<String, Map<String, Long>>();
+      Map<String, Long> byState = new TreeMap<String, Long>();
+      for (Map.Entry<String, ConcurrentMap<String, LongAdder>> entry
+          : recorder.circuitTransitions.entrySet()) {
+        Map<String, Long> counts = sums(entry.getValue());
+        byEndpoint.put(entry.getKey(), counts);
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+          Long total = byState.get(count.getKey());
+          byState.put(count.getKey(),
+              total == null ? count.getValue() : total + count.getValue());
+        }
+      }
+      endpointCircuitTransitions = Collections.unmodifiableMap(byEndpoint);
+      circuitTransitions = Collections.unmodifiableMap(byState);
+    }
+
+    /**
+     * Gets the latency of HTTP requests, in nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getLatency() {
+      return latency;
+    }
+
+    /**
+     * Gets the number of HTTP requests made, including failed ones.
+     */
+    public long getRequests() {
+      return requests;
+    }
+
+    /**
+     * Gets the number of requests per HTTP status, where {@literal 0} counts
+     * requests that got no response.
+     */
+    public Map<Integer, Long> getStatusCounts() {
+      return statuses;
+    }
+
+    /**
+     * Gets the number of bytes of request bodies sent.
+     */
+    public long getBytesSent() {
+      return bytesSent;
+    }
+
+    /**
+     * Gets the number of bytes of response bodies received.
+     */
+    public long getBytesReceived() {
+      return bytesReceived;
+    }
+
+    /**
+     * Gets the number of retries.
+     */
+    public long getRetries() {
+      return retries;
+    }
+
+    /**
+     * Gets the number of message results received.
+     */
+    public long getResults() {
+      return results;
+    }
+
+    /**
+     * Gets the number of results with a message id.
+     */
+    public long getSuccesses() {
+      return successes;
+    }
+
+    /**
+     * Gets the number of results per error code, as returned by
+     * {@link Result#getErrorCodeName()}.
+     */
+    public Map<String, Long> getErrorCounts() {
+      return errors;
+    }
+
+    /**
+     * Gets the number of results with a canonical registration id.
+     */
+    public long getCanonicalIds() {
+      return canonicalIds;
+    }
+
+    /**
+     * Gets the fraction of results with a canonical registration id.
+     */
+    public double getCanonicalIdRate() {
+      return results == 0 ? 0 : (double) canonicalIds / results;
+    }
+
+    /**
+     * Gets the number of requests failed right away because a circuit was
+     * open.
+     */
+    public long getCircuitRejections() {
+      return circuitRejections;
+    }
+
+    /**
+     * Gets the number of circuit state transitions of all endpoints, by name
+     * of the state entered.
+     */
+    public Map<String, Long> getCircuitTransitionCounts() {
+      return circuitTransitions;
+    }
+
+    /**
+     * Gets the number of circuit state transitions by endpoint, then by name
+     * of the state entered.
+     */
+    public Map<String, Map<String, Long>>
+        getCircuitTransitionCountsByEndpoint() {
+      return endpointCircuitTransitions;
+    }
+
+    @Override
+    public String toString() {
+      return "MetricsRecorder.Snapshot(requests=" + requests
+          + ", statuses=" + statuses + ", latency=" + latency
+          + ", bytesSent=" + bytesSent + ", bytesReceived=" + bytesReceived
+          + ", retries=" + retries + ", results=" + results
+          + ", successes=" + successes + ", canonicalIds=" + canonicalIds
+          + ", errors=" + errors + ", circuitRejections=" + circuitRejections
+          + ", circuitTransitions=" + endpointCircuitTransitions + ")";
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Bookkeeping of a multicast message that might take several attempts to be
+ * sent.
+ *
+ * <p>
+ * Keeps the latest result of each position of the registration ids and the
+ * positions that should be retried, so the same logic can be shared by the
+ * blocking and the asynchronous retry loops of {@link Sender}. Positions are
+ * tracked rather than registration ids, so a registration id that appears
+ * more than once gets a result for each of its positions, and each attempt
+ * only allocates an array of the positions left.
+ */
+final class MulticastAttempts {
+
+  private final List<String> regIds;
+  // latest result of each position, updated after each attempt
+  private final Result[] results;
+  private final List<Long> multicastIds = new ArrayList<Long>();
+  // positions that should be sent on the next attempt, in ascending order
+  private UnsentRegIds unsentRegIds;
+
+  MulticastAttempts(List<String> regIds) {
+    // positions are looked up on each attempt
+    this.regIds = regIds instanceof RandomAccess ? regIds
+        : new ArrayList<String>(regIds);
+    results = new Result[regIds.size()];
+    int[] positions = new int[regIds.size()];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = i;
+    }
+    unsentRegIds = new UnsentRegIds(positions);
+  }
+
+  /**
+   * Gets the registration ids that should be sent on the next attempt.
+   *
+   * <p>
+   * The list is a view of the registration ids, which is not changed by
+   * later updates.
+   */
+  List<String> getUnsentRegIds() {
+    return unsentRegIds;
+  }
+
+  /**
+   * Checks whether there are registration ids that should be retried.
+   */
+  boolean hasUnsentRegIds() {
+    return !unsentRegIds.isEmpty();
+  }
+
+  /**
+   * Checks whether at least one attempt returned a multicast result.
+   */
+  boolean hasResults() {
+    return !multicastIds.isEmpty();
+  }
+
+  /**
+   * Updates the status of the messages sent to devices and the list of devices
+   * that should be retried.
+   *
+   * @param multicastResult result of the last multicast sent.
+   */
+  void update(MulticastResult multicastResult) {
+    multicastIds.add(multicastResult.getMulticastId());
+    List<Result> newResults = multicastResult.getResults();
+    int[] positions = unsentRegIds.positions;
+    if (newResults.size() != positions.length) {
+      // should never happen, unless there is a flaw in the algorithm
+      throw new RuntimeException("Internal error: sizes do not match. " +
+          "currentResults: " + newResults + "; unsentRegIds: " + unsentRegIds);
+    }
+    int unsent = 0;
+    for (int i = 0; i < positions.length; i++) {
+      Result result = newResults.get(i);
+      results[positions[i]] = result;
+      if (isRetriable(result)) {
+        unsent++;
+      }
+    }
+    int[] newPositions = new int[unsent];
+    unsent = 0;
+    for (int i = 0; i < positions.length; i++) {
+      if (isRetriable(newResults.get(i))) {
+        newPositions[unsent++] = positions[i];
+      }
+    }
+    unsentRegIds = new UnsentRegIds(newPositions);
+  }
+
+  private static boolean isRetriable(Result result) {
+    ErrorCode error = result.getErrorCode();
+    return error != null && error.isRetriable();
+  }
+
+  /**
+   * Builds the overall result of all attempts.
+   *
+   * <p>
+   * Must only be called when {@link #hasResults()} returns {@literal true}.
+   */
+  MulticastResult build() {
+    // calculate summary
+    int success = 0, failure = 0 , canonicalIds = 0;
+    for (Result result : results) {
+      if (result.getMessageId() != null) {
+        success++;
+        if (result.getCanonicalRegistrationId() != null) {
+          canonicalIds++;
+        }
+      } else {
+        failure++;
+      }
+    }
+    // build a new object with the overall result
+    List<Long> retryMulticastIds =
+        new ArrayList<Long>(multicastIds.subList(1, multicastIds.size()));
+    MulticastResult.Builder builder = new MulticastResult.Builder(success,
+        failure, canonicalIds, multicastIds.get(0))
+        .retryMulticastIds(retryMulticastIds);
+    // add results, in the same order as the input
+    for (Result result : results) {
+      builder.addResult(result);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Registration ids at some positions of the input.
+   */
+  private final class UnsentRegIds extends AbstractList<String>
+      implements RandomAccess {
+    final int[] positions;
+
+    UnsentRegIds(int[] positions) {
+      this.positions = positions;
+    }
+
+    @Override
+    public String get(int index) {
+      return regIds.get(positions[index]);
+    }
+
+    @Override
+    public int size() {
+      return positions.length;
+    }
+  }
+}
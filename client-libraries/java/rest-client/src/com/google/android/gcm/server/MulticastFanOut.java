@@ -0,0 +1,265 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends a message to any number of devices, splitting the registration ids in
+ * multicast requests of at most {@link Constants#MULTICAST_SIZE_LIMIT} ids that
+ * are sent concurrently.
+ *
+ * <p>
+ * At most {@link Builder#parallelism(int)} chunks are in flight at any time;
+ * each chunk is sent with {@link Sender#sendAsync(PreparedMessage, List, int)},
+ * so it is retried independently of the others and no thread is blocked while
+ * waiting for a retry. The message is serialized only once for all chunks.
+ *
+ * <p>
+ * The results of all chunks are merged in a single {@link MulticastResult},
+ * with results in the same order as the input. Its multicast id is the one of
+ * the first chunk; the ids of the other chunks and of all retries are returned
+ * by {@link MulticastResult#getRetryMulticastIds()}.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * MulticastFanOut fanOut = new MulticastFanOut.Builder(sender)
+ *    .parallelism(16)
+ *    .build();
+ * MulticastResult result = fanOut.send(message, regIds, 5);
+ * </pre></code>
+ */
+public final class MulticastFanOut {
+
+  private final Sender sender;
+  private final int chunkSize;
+  private final int parallelism;
+
+  public static final class Builder {
+
+    // required parameters
+    private final Sender sender;
+
+    // optional parameters
+    private int chunkSize = Constants.MULTICAST_SIZE_LIMIT;
+    private int parallelism = 8;
+
+    public Builder(Sender sender) {
+      this.sender = Sender.nonNull(sender);
+    }
+
+    /**
+     * Sets the maximum number of registration ids per request (default and
+     * maximum value is {@link Constants#MULTICAST_SIZE_LIMIT}).
+     */
+    public Builder chunkSize(int value) {
+      if (value < 1 || value > Constants.MULTICAST_SIZE_LIMIT) {
+        throw new IllegalArgumentException("chunkSize must be between 1 and "
+            + Constants.MULTICAST_SIZE_LIMIT);
+      }
+      chunkSize = value;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of chunks in flight (default value is
+     * {@literal 8}).
+     */
+    public Builder parallelism(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("parallelism must be positive");
+      }
+      parallelism = value;
+      return this;
+    }
+
+    public MulticastFanOut build() {
+      return new MulticastFanOut(this);
+    }
+  }
+
+  private MulticastFanOut(Builder builder) {
+    sender = builder.sender;
+    chunkSize = builder.chunkSize;
+    parallelism = builder.parallelism;
+  }
+
+  /**
+   * Sends a message to many devices, blocking until all chunks were sent.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive the
+   *        message, which can be more than
+   *        {@link Constants#MULTICAST_SIZE_LIMIT}.
+   * @param retries number of retries of each chunk in case of service
+   *        unavailability errors.
+   *
+   * @return combined result of all chunks.
+   *
+   * @throws IllegalArgumentException if message or regIds is {@literal null},
+   *         or if regIds is empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws IOException if a chunk could not be sent.
+   */
+  public MulticastResult send(Message message, List<String> regIds,
+      int retries) throws IOException {
+    try {
+      return sendAsync(message, regIds, retries).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted sending multicast");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Could not send multicast", cause);
+    }
+  }
+
+  /**
+   * Sends a message to many devices asynchronously.
+   *
+   * <p>
+   * If a chunk fails, the future is completed exceptionally with its
+   * exception and the chunks not started yet are not sent.
+   *
+   * @see #send(Message, List, int)
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries) {
+    if (Sender.nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    FanOut fanOut = new FanOut(new PreparedMessage(message),
+        new ArrayList<String>(regIds), retries);
+    fanOut.drain();
+    return fanOut.future;
+  }
+
+  /**
+   * State of one fan-out.
+   */
+  private final class FanOut {
+
+    final CompletableFuture<MulticastResult> future =
+        new CompletableFuture<MulticastResult>();
+    private final PreparedMessage message;
+    private final List<String> regIds;
+    private final int retries;
+    private final MulticastResult[] chunkResults;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger remaining;
+    // guards drain(), so completions that happen on the calling thread do not
+    // recurse once per chunk
+    private final AtomicInteger wip = new AtomicInteger();
+    private int nextChunk;
+
+    FanOut(PreparedMessage message, List<String> regIds, int retries) {
+      this.message = message;
+      this.regIds = regIds;
+      this.retries = retries;
+      int chunks = (regIds.size() + chunkSize - 1) / chunkSize;
+      chunkResults = new MulticastResult[chunks];
+      remaining = new AtomicInteger(chunks);
+    }
+
+    void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        while (nextChunk < chunkResults.length && !future.isDone()
+            && inFlight.get() < parallelism) {
+          inFlight.incrementAndGet();
+          send(nextChunk++);
+        }
+      } while (wip.decrementAndGet() != 0);
+    }
+
+    private void send(final int chunk) {
+      int from = chunk * chunkSize;
+      int to = Math.min(from + chunkSize, regIds.size());
+      CompletableFuture<MulticastResult> chunkFuture;
+      try {
+        chunkFuture = sender.sendAsync(message, regIds.subList(from, to),
+            retries);
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+        return;
+      }
+      chunkFuture.whenComplete(new BiConsumer<MulticastResult, Throwable>() {
+        @Override
+        public void accept(MulticastResult result, Throwable error) {
+          if (error != null) {
+            if (error instanceof CompletionException
+                && error.getCause() != null) {
+              error = error.getCause();
+            }
+            future.completeExceptionally(error);
+            return;
+          }
+          chunkResults[chunk] = result;
+          if (remaining.decrementAndGet() == 0) {
+            future.complete(merge());
+          } else {
+            inFlight.decrementAndGet();
+            drain();
+          }
+        }
+      });
+    }
+
+    private MulticastResult merge() {
+      int success = 0, failure = 0, canonicalIds = 0;
+      List<Long> retryMulticastIds = new ArrayList<Long>();
+      for (int i = 0; i < chunkResults.length; i++) {
+        MulticastResult result = chunkResults[i];
+        success += result.getSuccess();
+        failure += result.getFailure();
+        canonicalIds += result.getCanonicalIds();
+        if (i > 0) {
+          retryMulticastIds.add(result.getMulticastId());
+        }
+        retryMulticastIds.addAll(result.getRetryMulticastIds());
+      }
+      MulticastResult.Builder builder = new MulticastResult.Builder(success,
+          failure, canonicalIds, chunkResults[0].getMulticastId())
+          .retryMulticastIds(retryMulticastIds);
+      for (MulticastResult result : chunkResults) {
+        for (Result item : result.getResults()) {
+          builder.addResult(item);
+        }
+      }
+      return builder.build();
+    }
+  }
+}
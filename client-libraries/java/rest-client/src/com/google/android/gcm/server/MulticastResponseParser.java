@@ -0,0 +1,458 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
+import static com.google.android.gcm.server.Constants.JSON_ERROR;
+import static com.google.android.gcm.server.Constants.JSON_FAILURE;
+import static com.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
+import static com.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
+import static com.google.android.gcm.server.Constants.JSON_RESULTS;
+import static com.google.android.gcm.server.Constants.JSON_SUCCESS;
+import static com.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull parser for the response of a multicast request, reading UTF-8 JSON
+ * straight from the response stream into a {@link MulticastResult}.
+ *
+ * <p>
+ * Only the fields of the multicast response are decoded; anything else is
+ * skipped without being materialized. Like json-simple, which was used
+ * before, the parser tolerates missing or extra commas between members.
+ */
+final class MulticastResponseParser {
+
+  /**
+   * Thrown when the response is not valid JSON or does not have the fields
+   * of a multicast response.
+   */
+  static final class MalformedResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    MalformedResponseException(String message) {
+      super(message);
+    }
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  // bytes consumed before the current buffer, for error messages
+  private long offset;
+  private char[] chars = new char[64];
+
+  MulticastResponseParser(InputStream in) {
+    this.in = in;
+  }
+
+  /**
+   * Parses a multicast response.
+   *
+   * @throws MalformedResponseException if the response could not be parsed.
+   * @throws IOException if the stream could not be read.
+   */
+  static MulticastResult parse(InputStream in) throws IOException {
+    return new MulticastResponseParser(in).parse().build();
+  }
+
+  /**
+   * Parses the response into a builder, which can still be given what was
+   * not in the body.
+   */
+  MulticastResult.Builder parse() throws IOException {
+    Number success = null;
+    Number failure = null;
+    Number canonicalIds = null;
+    Number multicastId = null;
+    List<Result> results = null;
+    expect('{');
+    while (hasNext('}')) {
+      String name = readKey();
+      if (JSON_SUCCESS.equals(name)) {
+        success = readNumber(name);
+      } else if (JSON_FAILURE.equals(name)) {
+        failure = readNumber(name);
+      } else if (JSON_CANONICAL_IDS.equals(name)) {
+        canonicalIds = readNumber(name);
+      } else if (JSON_MULTICAST_ID.equals(name)) {
+        multicastId = readNumber(name);
+      } else if (JSON_RESULTS.equals(name)) {
+        results = readResults();
+      } else {
+        skipValue();
+      }
+    }
+    if (peek() != -1) {
+      throw malformed("Unexpected data after the response");
+    }
+    MulticastResult.Builder builder = new MulticastResult.Builder(
+        required(success, JSON_SUCCESS).intValue(),
+        required(failure, JSON_FAILURE).intValue(),
+        required(canonicalIds, JSON_CANONICAL_IDS).intValue(),
+        required(multicastId, JSON_MULTICAST_ID).longValue());
+    if (results != null) {
+      for (Result result : results) {
+        builder.addResult(result);
+      }
+    }
+    return builder;
+  }
+
+  private List<Result> readResults() throws IOException {
+    if (peek() == 'n') {
+      readLiteral("null");
+      return null;
+    }
+    expect('[');
+    List<Result> results = new ArrayList<Result>();
+    while (hasNext(']')) {
+      results.add(readResult());
+    }
+    return results;
+  }
+
+  private Result readResult() throws IOException {
+    String messageId = null;
+    String canonicalRegId = null;
+    String error = null;
+    expect('{');
+    while (hasNext('}')) {
+      String name = readKey();
+      if (JSON_MESSAGE_ID.equals(name)) {
+        messageId = readNullableString(name);
+      } else if (TOKEN_CANONICAL_REG_ID.equals(name)) {
+        canonicalRegId = readNullableString(name);
+      } else if (JSON_ERROR.equals(name)) {
+        error = readNullableString(name);
+      } else {
+        skipValue();
+      }
+    }
+    return new Result.Builder()
+        .messageId(messageId)
+        .canonicalRegistrationId(canonicalRegId)
+        .errorCode(error)
+        .build();
+  }
+
+  private Number required(Number value, String name)
+      throws MalformedResponseException {
+    if (value == null) {
+      throw malformed("Missing field: " + name);
+    }
+    return value;
+  }
+
+  /**
+   * Skips separators until the next member of the current object or array.
+   *
+   * @return {@literal false} if the end of the object or array was reached
+   *         (and consumed).
+   */
+  private boolean hasNext(char end) throws IOException {
+    while (true) {
+      int c = peek();
+      if (c == ',') {
+        position++;
+      } else if (c == end) {
+        position++;
+        return false;
+      } else if (c == -1) {
+        throw malformed("Unexpected end of response");
+      } else {
+        return true;
+      }
+    }
+  }
+
+  private String readKey() throws IOException {
+    expect('"');
+    String name = readString();
+    expect(':');
+    return name;
+  }
+
+  /**
+   * Reads a number (or {@literal null}) as json-simple would: integers as
+   * {@link Long}, anything else as {@link Double}.
+   */
+  private Number readNumber(String name) throws IOException {
+    int c = peek();
+    if (c == 'n') {
+      readLiteral("null");
+      return null;
+    }
+    if (c != '-' && (c < '0' || c > '9')) {
+      throw malformed("Field " + name + " does not contain a number");
+    }
+    int length = 0;
+    boolean integer = true;
+    while (true) {
+      c = position < limit || fill() ? buffer[position] : -1;
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+        // part of a number
+      } else if (c == '.' || c == 'e' || c == 'E') {
+        integer = false;
+      } else {
+        break;
+      }
+      position++;
+      append(length++, (char) c);
+    }
+    String text = new String(chars, 0, length);
+    try {
+      return integer ? (Number) Long.valueOf(text) : Double.valueOf(text);
+    } catch (NumberFormatException e) {
+      throw malformed("Invalid number in field " + name + ": " + text);
+    }
+  }
+
+  private String readNullableString(String name) throws IOException {
+    int c = peek();
+    if (c == 'n') {
+      readLiteral("null");
+      return null;
+    }
+    if (c != '"') {
+      throw malformed("Field " + name + " does not contain a string");
+    }
+    position++;
+    return readString();
+  }
+
+  /**
+   * Reads the rest of a string whose opening quote was already consumed.
+   */
+  private String readString() throws IOException {
+    int length = 0;
+    while (true) {
+      int b = read();
+      if (b == '"') {
+        return new String(chars, 0, length);
+      }
+      if (b == '\\') {
+        append(length++, readEscape());
+      } else if (b < 0x80) {
+        append(length++, (char) b);
+      } else {
+        int codePoint = readUtf8(b);
+        if (Character.isSupplementaryCodePoint(codePoint)) {
+          append(length++, Character.highSurrogate(codePoint));
+          append(length++, Character.lowSurrogate(codePoint));
+        } else {
+          append(length++, (char) codePoint);
+        }
+      }
+    }
+  }
+
+  private char readEscape() throws IOException {
+    int b = read();
+    switch (b) {
+      case '"':
+      case '\\':
+      case '/':
+        return (char) b;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw malformed("Invalid unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        throw malformed("Invalid escape sequence");
+    }
+  }
+
+  /**
+   * Decodes a multi-byte UTF-8 sequence, replacing invalid ones with
+   * {@literal U+FFFD}.
+   */
+  private int readUtf8(int first) throws IOException {
+    int count;
+    int codePoint;
+    if ((first & 0xE0) == 0xC0) {
+      count = 1;
+      codePoint = first & 0x1F;
+    } else if ((first & 0xF0) == 0xE0) {
+      count = 2;
+      codePoint = first & 0x0F;
+    } else if ((first & 0xF8) == 0xF0) {
+      count = 3;
+      codePoint = first & 0x07;
+    } else {
+      return 0xFFFD;
+    }
+    for (int i = 0; i < count; i++) {
+      int c = position < limit || fill() ? buffer[position] & 0xFF : -1;
+      if ((c & 0xC0) != 0x80) {
+        // leave the unexpected byte for the caller
+        return 0xFFFD;
+      }
+      position++;
+      codePoint = (codePoint << 6) | (c & 0x3F);
+    }
+    if (codePoint > Character.MAX_CODE_POINT
+        || (codePoint >= Character.MIN_SURROGATE
+            && codePoint <= Character.MAX_SURROGATE)) {
+      return 0xFFFD;
+    }
+    return codePoint;
+  }
+
+  private void skipValue() throws IOException {
+    int c = peek();
+    switch (c) {
+      case '{':
+        position++;
+        while (hasNext('}')) {
+          readKey();
+          skipValue();
+        }
+        break;
+      case '[':
+        position++;
+        while (hasNext(']')) {
+          skipValue();
+        }
+        break;
+      case '"':
+        position++;
+        skipString();
+        break;
+      case 't':
+        readLiteral("true");
+        break;
+      case 'f':
+        readLiteral("false");
+        break;
+      case 'n':
+        readLiteral("null");
+        break;
+      case -1:
+        throw malformed("Unexpected end of response");
+      default:
+        if (c != '-' && (c < '0' || c > '9')) {
+          throw malformed("Unexpected character '" + (char) c + "'");
+        }
+        readNumber(null);
+    }
+  }
+
+  private void skipString() throws IOException {
+    while (true) {
+      int b = read();
+      if (b == '"') {
+        return;
+      }
+      if (b == '\\') {
+        readEscape();
+      }
+    }
+  }
+
+  private void readLiteral(String literal) throws IOException {
+    for (int i = 0; i < literal.length(); i++) {
+      if (read() != literal.charAt(i)) {
+        throw malformed("Expected " + literal);
+      }
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    if (peek() != expected) {
+      throw malformed("Expected '" + expected + "'");
+    }
+    position++;
+  }
+
+  /**
+   * Gets the next non-whitespace byte without consuming it, or {@literal -1}
+   * at the end of the stream.
+   */
+  private int peek() throws IOException {
+    while (position < limit || fill()) {
+      int c = buffer[position] & 0xFF;
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return c;
+      }
+      position++;
+    }
+    return -1;
+  }
+
+  /**
+   * Consumes the next byte, failing at the end of the stream.
+   */
+  private int read() throws IOException {
+    if (position == limit && !fill()) {
+      throw malformed("Unexpected end of response");
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  private boolean fill() throws IOException {
+    if (in == null) {
+      return false;
+    }
+    offset += limit;
+    position = 0;
+    limit = 0;
+    int count = in.read(buffer, 0, buffer.length);
+    if (count <= 0) {
+      return false;
+    }
+    limit = count;
+    return true;
+  }
+
+  private void append(int index, char c) {
+    if (index == chars.length) {
+      char[] bigger = new char[chars.length * 2];
+      System.arraycopy(chars, 0, bigger, 0, chars.length);
+      chars = bigger;
+    }
+    chars[index] = c;
+  }
+
+  private MalformedResponseException malformed(String message) {
+    return new MalformedResponseException(message + " at byte "
+        + (offset + position));
+  }
+}
@@ -31,6 +31,7 @@ public final class MulticastResult implements Serializable {
   private final long multicastId;
   private final List<Result> results;
   private final List<Long> retryMulticastIds;
+  private final long retryAfter;
 
   public static final class Builder {
 
@@ -44,6 +45,7 @@ public final class MulticastResult implements Serializable {
 
     // optional parameters
     private List<Long> retryMulticastIds;
+    private long retryAfter = -1;
 
     public Builder(int success, int failure, int canonicalIds,
         long multicastId) {
@@ -63,6 +65,11 @@ public final class MulticastResult implements Serializable {
       return this;
     }
 
+    public Builder retryAfter(long retryAfter) {
+      this.retryAfter = retryAfter;
+      return this;
+    }
+
     public MulticastResult build() {
       return new MulticastResult(this);
     }
@@ -79,6 +86,7 @@ public final class MulticastResult implements Serializable {
       tmpList = Collections.emptyList();
     }
     retryMulticastIds = Collections.unmodifiableList(tmpList);
+    retryAfter = builder.retryAfter;
   }
 
   /**
@@ -131,6 +139,15 @@ public final class MulticastResult implements Serializable {
     return retryMulticastIds;
   }
 
+  /**
+   * Gets how long GCM asked to wait before retrying the messages that failed
+   * with {@link Constants#ERROR_UNAVAILABLE}, in milliseconds, or {@literal -1}
+   * if the response did not have a {@literal Retry-After} header.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("MulticastResult(")
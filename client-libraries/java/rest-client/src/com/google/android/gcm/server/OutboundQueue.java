@@ -0,0 +1,386 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue of messages to send to one device (or topic) each, which
+ * survives the process being restarted.
+ *
+ * <p>
+ * Messages are appended to a write-ahead log of memory-mapped segment files
+ * in a directory before being sent, and acknowledged in the log once their
+ * {@link Result} arrives, whether it is a success or an error that retrying
+ * would not fix. When a queue is built on a directory that has messages that
+ * were not acknowledged, they are sent again; messages are therefore sent at
+ * least once, and a message that was sent right before the process died may
+ * be sent twice.
+ *
+ * <p>
+ * Messages with the same content are sent in multicast requests through a
+ * {@link BatchingSender}. A message that could not be sent after all the
+ * retries, including one whose result is still an error such as
+ * {@link Constants#ERROR_UNAVAILABLE}, is sent again later, unless GCM
+ * rejected the request (with a {@literal 4xx} status other than
+ * {@literal 429}), in which case it is acknowledged and reported to
+ * {@link Listener#onFailure}.
+ *
+ * <p>
+ * Writes survive the process dying, as they are in the page cache; call
+ * {@link #sync()} to make them survive the machine crashing too.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * OutboundQueue queue = new OutboundQueue.Builder(sender, new File("queue"))
+ *    .listener(listener)
+ *    .build();
+ * for (String regId : regIds) {
+ *   queue.enqueue(prepared, regId);
+ * }
+ * </pre></code>
+ */
+public final class OutboundQueue implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(OutboundQueue.class.getName());
+
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  static final long REDELIVERY_DELAY_MILLIS = 30000;
+
+  /**
+   * Receives the outcome of the messages of a queue, on the thread that
+   * completed their request.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a message got its result, which can be an error such as
+     * {@link Constants#ERROR_NOT_REGISTERED}.
+     *
+     * @param id identifier returned by {@link OutboundQueue#enqueue}.
+     */
+    default void onResult(long id, String to, Result result) {
+    }
+
+    /**
+     * Called when a message was rejected by GCM and will not be sent again.
+     *
+     * @param id identifier returned by {@link OutboundQueue#enqueue}.
+     */
+    default void onFailure(long id, String to, Throwable error) {
+    }
+  }
+
+  private final Sender sender;
+  private final BatchingSender batching;
+  private final WriteAheadLog log;
+  private final Listener listener;
+  private final int retries;
+  private final int maxInFlight;
+  private final ConcurrentLinkedQueue<WriteAheadLog.Entry> ready =
+      new ConcurrentLinkedQueue<WriteAheadLog.Entry>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // guards drain(), so completions that happen on the calling thread do not
+  // recurse once per message
+  private final AtomicInteger wip = new AtomicInteger();
+  private volatile boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final Sender sender;
+    private final File directory;
+
+    // optional parameters
+    private int segmentSize = 64 * 1024 * 1024;
+    private int retries = 5;
+    private int maxInFlight = 10000;
+    private int lingerMillis = 10;
+    private Listener listener = new Listener() {};
+
+    /**
+     * Creates a builder.
+     *
+     * @param sender sender of the messages.
+     * @param directory directory of the segment files, which is created if
+     *        needed. It must not be used by another queue at the same time.
+     */
+    public Builder(Sender sender, File directory) {
+      this.sender = Sender.nonNull(sender);
+      this.directory = Sender.nonNull(directory);
+    }
+
+    /**
+     * Sets the size of the segment files, in bytes (default value is
+     * {@literal 64MiB}).
+     */
+    public Builder segmentSize(int value) {
+      if (value < WriteAheadLog.MIN_SEGMENT_SIZE) {
+        throw new IllegalArgumentException("segmentSize must be at least "
+            + WriteAheadLog.MIN_SEGMENT_SIZE);
+      }
+      segmentSize = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of retries of each request in case of service
+     * unavailability errors (default value is {@literal 5}).
+     */
+    public Builder retries(int value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("retries cannot be negative");
+      }
+      retries = value;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of messages being sent at any time (default
+     * value is {@literal 10000}); the others wait in the log.
+     */
+    public Builder maxInFlight(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxInFlight must be positive");
+      }
+      maxInFlight = value;
+      return this;
+    }
+
+    /**
+     * Sets how long messages wait for others with the same content to be
+     * sent in the same request (default value is {@literal 10}).
+     *
+     * @see BatchingSender.Builder#lingerMillis(int)
+     */
+    public Builder lingerMillis(int value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("lingerMillis cannot be negative");
+      }
+      lingerMillis = value;
+      return this;
+    }
+
+    public Builder listener(Listener value) {
+      listener = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Opens the queue, and starts sending the messages that were not
+     * acknowledged when it was last used.
+     *
+     * @throws IOException if the segment files could not be read or created.
+     */
+    public OutboundQueue build() throws IOException {
+      return new OutboundQueue(this);
+    }
+  }
+
+  private OutboundQueue(Builder builder) throws IOException {
+    sender = builder.sender;
+    batching = new BatchingSender.Builder(sender)
+        .lingerMillis(builder.lingerMillis)
+        .build();
+    listener = builder.listener;
+    retries = builder.retries;
+    maxInFlight = builder.maxInFlight;
+    log = new WriteAheadLog(builder.directory, builder.segmentSize);
+    if (!log.getRecovered().isEmpty()) {
+      logger.info("Sending " + log.getRecovered().size()
+          + " messages recovered from " + builder.directory);
+      ready.addAll(log.getRecovered());
+      drain();
+    }
+  }
+
+  /**
+   * Adds a message to the queue.
+   *
+   * @return identifier of the message, passed to the {@link Listener}.
+   *
+   * @throws IllegalArgumentException if message or to is {@literal null}.
+   * @throws IllegalStateException if the queue is closed.
+   * @throws IOException if the message could not be written to the log.
+   */
+  public long enqueue(Message message, String to) throws IOException {
+    Sender.nonNull(to);
+    return enqueue(new PreparedMessage(message), to);
+  }
+
+  /**
+   * Adds a prepared message to the queue; this is faster when the same
+   * message is sent to many devices. See {@link #enqueue(Message, String)}
+   * for more info.
+   */
+  public long enqueue(PreparedMessage message, String to) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("queue is closed");
+    }
+    WriteAheadLog.Entry entry = log.append(message, to);
+    ready.add(entry);
+    drain();
+    return entry.id;
+  }
+
+  /**
+   * Gets the number of messages that were not acknowledged yet.
+   */
+  public int getPendingCount() {
+    return log.getPendingCount();
+  }
+
+  /**
+   * Writes the messages and acknowledgments to the storage device.
+   */
+  public void sync() {
+    log.force();
+  }
+
+  /**
+   * Rewrites the messages not acknowledged yet in the current segment file,
+   * so the older ones can be deleted. This also happens automatically when
+   * the oldest segment has few messages left.
+   */
+  public void compact() throws IOException {
+    log.compact();
+  }
+
+  /**
+   * Stops sending messages and closes the log; messages that were not
+   * acknowledged yet, including the ones being sent, are sent again when the
+   * directory is used again.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    log.close();
+  }
+
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    do {
+      while (!closed && inFlight.get() < maxInFlight) {
+        WriteAheadLog.Entry entry = ready.poll();
+        if (entry == null) {
+          break;
+        }
+        inFlight.incrementAndGet();
+        send(entry);
+      }
+    } while (wip.decrementAndGet() != 0);
+  }
+
+  private void send(final WriteAheadLog.Entry entry) {
+    CompletableFuture<Result> future;
+    try {
+      future = batching.sendAsync(entry.message, entry.to, retries);
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<Result>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete(new BiConsumer<Result, Throwable>() {
+      @Override
+      public void accept(Result result, Throwable error) {
+        inFlight.decrementAndGet();
+        if (error instanceof CompletionException && error.getCause() != null) {
+          error = error.getCause();
+        }
+        if (error == null && !isRetriable(result)) {
+          ack(entry);
+          listener.onResult(entry.id, entry.to, result);
+        } else if (error != null && isRejected(error)) {
+          ack(entry);
+          listener.onFailure(entry.id, entry.to, error);
+        } else {
+          logger.log(Level.FINE, "Could not send message " + entry.id
+              + " (" + (error != null ? error : result.getErrorCodeName())
+              + "), sending it again in " + REDELIVERY_DELAY_MILLIS + "ms",
+              error);
+          redeliver(entry);
+        }
+        drain();
+      }
+    });
+  }
+
+  /**
+   * Sends a message again after {@link #REDELIVERY_DELAY_MILLIS}, or as soon
+   * as possible if the timer does not accept more tasks.
+   */
+  private void redeliver(final WriteAheadLog.Entry entry) {
+    try {
+      sender.schedule(new Runnable() {
+        @Override
+        public void run() {
+          ready.add(entry);
+          drain();
+        }
+      }, REDELIVERY_DELAY_MILLIS);
+    } catch (RejectedExecutionException e) {
+      ready.add(entry);
+    }
+  }
+
+  private void ack(WriteAheadLog.Entry entry) {
+    try {
+      log.ack(entry);
+    } catch (IOException e) {
+      // the message is sent again after a restart
+      logger.log(Level.WARNING, "Could not acknowledge message " + entry.id,
+          e);
+    }
+  }
+
+  /**
+   * Checks whether the result is an error that left the message undelivered
+   * after all the retries, such as {@link Constants#ERROR_UNAVAILABLE}.
+   */
+  private static boolean isRetriable(Result result) {
+    ErrorCode errorCode = result == null ? null : result.getErrorCode();
+    return errorCode != null && errorCode.isRetriable();
+  }
+
+  /**
+   * Checks whether GCM rejected the request, in which case sending it again
+   * would not help.
+   */
+  private static boolean isRejected(Throwable error) {
+    // multicast sends report the error of the last attempt as the cause
+    for (; error != null; error = error.getCause()) {
+      if (error instanceof InvalidRequestException) {
+        int status = ((InvalidRequestException) error).getHttpStatusCode();
+        return status >= 400 && status < 500
+            && status != HTTP_TOO_MANY_REQUESTS;
+      }
+    }
+    return false;
+  }
+}
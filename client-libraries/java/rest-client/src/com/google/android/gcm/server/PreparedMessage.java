@@ -0,0 +1,144 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * GCM message that was serialized once, so it can be sent many times.
+ *
+ * <p>
+ * Only the recipients are serialized on each request: this is useful when
+ * the same message is sent to many chunks of registration ids, or retried
+ * many times. Example:
+ * <pre><code>
+ * PreparedMessage prepared = new PreparedMessage(message);
+ * for (List&lt;String&gt; chunk : chunks) {
+ *   sender.send(prepared, chunk, 5);
+ * }
+ * </pre></code>
+ *
+ * <p>
+ * The message is serialized when the instance is created; changes made
+ * afterwards to the data or lists the message was built with are not sent.
+ * Two prepared messages are equal if their serialized forms are, even if
+ * they were created from different {@link Message} instances.
+ */
+public final class PreparedMessage {
+
+  private final Message message;
+  private final byte[] toPrefix;
+  private final byte[] toSuffix;
+  private final byte[] multicastPrefix;
+  private final byte[] multicastSuffix;
+  private final int hashCode;
+
+  /**
+   * Serializes a message.
+   *
+   * @throws IllegalArgumentException if message is {@literal null}.
+   */
+  public PreparedMessage(Message message) {
+    this(Sender.nonNull(message),
+        MessageEncoder.encodeTemplate(message, false),
+        MessageEncoder.encodeTemplate(message, true));
+  }
+
+  private PreparedMessage(Message message, byte[][] to, byte[][] multicast) {
+    this.message = message;
+    toPrefix = Sender.nonNull(to[0]);
+    toSuffix = Sender.nonNull(to[1]);
+    multicastPrefix = Sender.nonNull(multicast[0]);
+    multicastSuffix = Sender.nonNull(multicast[1]);
+    hashCode = 31 * Arrays.hashCode(multicastPrefix)
+        + Arrays.hashCode(multicastSuffix);
+  }
+
+  /**
+   * Restores a message from its serialized form, as returned by
+   * {@link #getTemplates()}.
+   */
+  static PreparedMessage restore(byte[][] templates) {
+    if (templates.length != 4) {
+      throw new IllegalArgumentException("expected 4 templates");
+    }
+    return new PreparedMessage(null,
+        new byte[][] {templates[0], templates[1]},
+        new byte[][] {templates[2], templates[3]});
+  }
+
+  /**
+   * Gets the message that was serialized, or {@literal null} if this
+   * instance was restored from its serialized form (for instance by an
+   * {@link OutboundQueue} after a restart).
+   */
+  public Message getMessage() {
+    return message;
+  }
+
+  /**
+   * Gets the serialized form of the message, which must not be modified.
+   */
+  byte[][] getTemplates() {
+    return new byte[][] {toPrefix, toSuffix, multicastPrefix, multicastSuffix};
+  }
+
+  /**
+   * Gets the request sending the message to one device, topic or group.
+   */
+  byte[] encode(String to) {
+    return MessageEncoder.encode(toPrefix, to, toSuffix);
+  }
+
+  /**
+   * Gets the request sending the message to many devices.
+   */
+  byte[] encode(List<String> registrationIds) {
+    return MessageEncoder.encode(multicastPrefix, registrationIds,
+        multicastSuffix);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof PreparedMessage)) {
+      return false;
+    }
+    PreparedMessage other = (PreparedMessage) obj;
+    // the single recipient template is derived from the same fields
+    return hashCode == other.hashCode
+        && Arrays.equals(multicastPrefix, other.multicastPrefix)
+        && Arrays.equals(multicastSuffix, other.multicastSuffix);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    if (message == null) {
+      return "PreparedMessage(" + new String(multicastPrefix,
+          StandardCharsets.UTF_8) + "...)";
+    }
+    return "Prepared" + message;
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket limiting the number of messages per second a {@link Sender}
+ * sends, which adapts its rate to the throttling errors returned by GCM.
+ *
+ * <p>
+ * Each message (each registration id of a multicast request) takes a token.
+ * When GCM answers with {@link Constants#ERROR_QUOTA_EXCEEDED},
+ * {@link Constants#ERROR_DEVICE_QUOTA_EXCEEDED},
+ * {@link Constants#ERROR_DEVICE_MESSAGE_RATE_EXCEEDED} or an HTTP 429
+ * status, the rate is halved (at most once per second, so a burst of errors
+ * counts as one), down to the minimum rate. It then grows back linearly
+ * while no more throttling errors are seen, up to the maximum rate.
+ *
+ * <p>
+ * Requests are not rejected: when there are not enough tokens, blocking sends
+ * wait for them and asynchronous sends are delayed on the retry timer.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * RateLimiter limiter = new RateLimiter.Builder(5000)
+ *    .minRate(100)
+ *    .build();
+ * sender.setRateLimiter(limiter);
+ * </pre></code>
+ */
+public final class RateLimiter {
+
+  private static final Logger logger =
+      Logger.getLogger(RateLimiter.class.getName());
+
+  private static final long DECREASE_INTERVAL_NANOS =
+      TimeUnit.SECONDS.toNanos(1);
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final RetryScheduler.Ticker ticker;
+  private final double maxRate;
+  private final double minRate;
+  private final double burst;
+  private final double recoveryPerSecond;
+
+  // guarded by this
+  private double rate;
+  private double tokens;
+  private long lastUpdate;
+  private long lastDecrease;
+  private long throttles;
+
+  public static final class Builder {
+
+    // required parameters
+    private final double maxRate;
+
+    // optional parameters
+    private double minRate;
+    private double burst;
+    private double recoveryPerSecond;
+    private RetryScheduler.Ticker ticker = RetryScheduler.SYSTEM_TICKER;
+
+    /**
+     * Creates a builder for a limiter that sends at most the given number of
+     * messages per second.
+     */
+    public Builder(double maxRate) {
+      if (!(maxRate > 0)) {
+        throw new IllegalArgumentException("maxRate must be positive");
+      }
+      this.maxRate = maxRate;
+      minRate = maxRate / 100;
+      burst = maxRate;
+      recoveryPerSecond = maxRate / 10;
+    }
+
+    /**
+     * Sets the rate the limiter never goes below, in messages per second
+     * (default value is 1% of the maximum rate).
+     */
+    public Builder minRate(double value) {
+      if (!(value > 0) || value > maxRate) {
+        throw new IllegalArgumentException(
+            "minRate must be positive and not above maxRate");
+      }
+      minRate = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of messages that can be sent at once after the limiter
+     * was idle (default value is one second worth of the maximum rate).
+     */
+    public Builder burst(double value) {
+      if (!(value >= 1)) {
+        throw new IllegalArgumentException("burst must be at least 1");
+      }
+      burst = value;
+      return this;
+    }
+
+    /**
+     * Sets how much the rate grows back per second without throttling errors,
+     * in messages per second (default value is 10% of the maximum rate, so
+     * the maximum rate is reached again in at most 10 seconds).
+     */
+    public Builder recoveryPerSecond(double value) {
+      if (!(value > 0)) {
+        throw new IllegalArgumentException(
+            "recoveryPerSecond must be positive");
+      }
+      recoveryPerSecond = value;
+      return this;
+    }
+
+    Builder ticker(RetryScheduler.Ticker value) {
+      ticker = Sender.nonNull(value);
+      return this;
+    }
+
+    public RateLimiter build() {
+      return new RateLimiter(this);
+    }
+  }
+
+  private RateLimiter(Builder builder) {
+    ticker = builder.ticker;
+    maxRate = builder.maxRate;
+    minRate = builder.minRate;
+    burst = builder.burst;
+    recoveryPerSecond = builder.recoveryPerSecond;
+    rate = maxRate;
+    tokens = burst;
+    lastUpdate = ticker.nanoTime();
+    lastDecrease = lastUpdate - DECREASE_INTERVAL_NANOS;
+  }
+
+  /**
+   * Gets the current rate, in messages per second.
+   */
+  public synchronized double getRate() {
+    update(ticker.nanoTime());
+    return rate;
+  }
+
+  /**
+   * Gets how long a message sent now would wait for a token, in
+   * milliseconds.
+   */
+  public synchronized long getWaitTime() {
+    update(ticker.nanoTime());
+    return tokens >= 0 ? 0 : toMillis(-tokens / rate);
+  }
+
+  /**
+   * Gets how long the given number of messages sent now would wait for their
+   * tokens, in milliseconds.
+   */
+  synchronized long getWaitTime(long permits) {
+    update(ticker.nanoTime());
+    return tokens >= permits ? 0 : toMillis((permits - tokens) / rate);
+  }
+
+  /**
+   * Gets how many messages could be sent now without waiting for a token.
+   */
+  synchronized long getAvailablePermits() {
+    update(ticker.nanoTime());
+    return tokens < 1 ? 0 : (long) tokens;
+  }
+
+  /**
+   * Gets how many times the rate was decreased because of throttling errors.
+   */
+  public synchronized long getThrottleCount() {
+    return throttles;
+  }
+
+  /**
+   * Takes tokens for the given number of messages, which might not be
+   * available yet.
+   *
+   * @return how long to wait before sending the messages, in milliseconds.
+   */
+  synchronized long reserve(int permits) {
+    update(ticker.nanoTime());
+    tokens -= permits;
+    return tokens >= 0 ? 0 : toMillis(-tokens / rate);
+  }
+
+  /**
+   * Takes tokens for the given number of messages, unless they would not be
+   * available before the given time.
+   *
+   * @return how long to wait before sending the messages, in milliseconds,
+   *         or {@literal -1} if that is longer than maxWaitMillis, in which
+   *         case no token is taken.
+   */
+  synchronized long tryReserve(int permits, long maxWaitMillis) {
+    update(ticker.nanoTime());
+    double left = tokens - permits;
+    long wait = left >= 0 ? 0 : toMillis(-left / rate);
+    if (wait > 0 && wait >= maxWaitMillis) {
+      return -1;
+    }
+    tokens = left;
+    return wait;
+  }
+
+  /**
+   * Decreases the rate after GCM returned a throttling error.
+   */
+  synchronized void onThrottled() {
+    long now = ticker.nanoTime();
+    update(now);
+    if (now - lastDecrease < DECREASE_INTERVAL_NANOS) {
+      return;
+    }
+    lastDecrease = now;
+    throttles++;
+    rate = Math.max(minRate, rate / 2);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Throttled by GCM, rate decreased to " + rate
+          + " messages per second");
+    }
+  }
+
+  /**
+   * Refills the bucket and grows the rate for the time elapsed since the
+   * last update.
+   */
+  private void update(long now) {
+    double seconds = (now - lastUpdate) / NANOS_PER_SECOND;
+    if (seconds <= 0) {
+      return;
+    }
+    lastUpdate = now;
+    tokens = Math.min(burst, tokens + seconds * rate);
+    rate = Math.min(maxRate, rate + seconds * recoveryPerSecond);
+  }
+
+  private static long toMillis(double seconds) {
+    return (long) Math.ceil(seconds * 1000);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "RateLimiter(rate=" + rate + ", maxRate=" + maxRate
+        + ", minRate=" + minRate + ", tokens=" + tokens + ")";
+  }
+}
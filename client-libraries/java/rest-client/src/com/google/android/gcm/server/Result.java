@@ -49,6 +49,7 @@ public final class Result implements Serializable {
   private final String messageId;
   private final String canonicalRegistrationId;
   private final String errorCode;
+  private final ErrorCode error;
   private final Integer success;
   private final Integer failure;
   private final List<String> failedRegistrationIds;
@@ -101,7 +102,10 @@ public final class Result implements Serializable {
   private Result(Builder builder) {
     canonicalRegistrationId = builder.canonicalRegistrationId;
     messageId = builder.messageId;
-    errorCode = builder.errorCode;
+    // known errors share the name of their code
+    error = ErrorCode.of(builder.errorCode);
+    errorCode = error == null || error == ErrorCode.UNKNOWN
+        ? builder.errorCode : error.getName();
     success = builder.success;
     failure = builder.failure;
     failedRegistrationIds = builder.failedRegistrationIds;
@@ -128,6 +132,13 @@ public final class Result implements Serializable {
     return errorCode;
   }
 
+  /**
+   * Gets the error code, if any, parsed with its retry semantics.
+   */
+  public ErrorCode getErrorCode() {
+    return error;
+  }
+
   public Integer getSuccess() {
     return success;
   }
@@ -0,0 +1,227 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel running the retries of asynchronous sends.
+ *
+ * <p>
+ * Scheduling a task is a lock-free enqueue, and each tick only looks at the
+ * tasks hashed to its bucket, so the cost does not grow with the number of
+ * pending retries the way a priority queue does. Delays are rounded up to the
+ * tick duration, which is fine for retries that wait for seconds.
+ *
+ * <p>
+ * Tasks run on the thread driving the wheel and must be short, they should
+ * just hand the real work to another executor. The wheel is driven either by
+ * its own daemon thread, started on the first {@link #schedule(Runnable, long)}
+ * and parked while there is nothing to run, or by calling
+ * {@link #runDueTasks()} (which is what tests do, with a virtual
+ * {@link Ticker}).
+ */
+final class RetryScheduler {
+
+  private static final Logger logger =
+      Logger.getLogger(RetryScheduler.class.getName());
+
+  /**
+   * Source of the current time, in nanoseconds.
+   */
+  interface Ticker {
+    long nanoTime();
+  }
+
+  static final Ticker SYSTEM_TICKER = new Ticker() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  /**
+   * A scheduled task.
+   */
+  private static final class Timeout {
+    final Runnable task;
+    final long deadline;
+
+    Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+  }
+
+  private final Ticker ticker;
+  private final ThreadFactory threadFactory;
+  private final long tickNanos;
+  private final List<List<Timeout>> wheel;
+  private final int mask;
+  private final long start;
+  // written by any thread, moved to the wheel by the thread driving it
+  private final ConcurrentLinkedQueue<Timeout> pending =
+      new ConcurrentLinkedQueue<Timeout>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final Object idle = new Object();
+  // last tick whose bucket was expired, guarded by this
+  private long tick;
+  private Thread worker;
+
+  /**
+   * Creates a wheel driven by {@link #runDueTasks()} only.
+   *
+   * @param tickMillis duration of a tick.
+   * @param ticksPerWheel number of buckets, rounded up to a power of two.
+   */
+  RetryScheduler(Ticker ticker, long tickMillis, int ticksPerWheel) {
+    this(ticker, tickMillis, ticksPerWheel, null);
+  }
+
+  /**
+   * Creates a wheel driven by a thread created with the given factory.
+   */
+  RetryScheduler(Ticker ticker, long tickMillis, int ticksPerWheel,
+      ThreadFactory threadFactory) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be positive");
+    }
+    if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 20) {
+      throw new IllegalArgumentException(
+          "ticksPerWheel must be between 1 and " + (1 << 20));
+    }
+    this.ticker = Sender.nonNull(ticker);
+    this.threadFactory = threadFactory;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    int buckets = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+    if (buckets == 0) {
+      buckets = 1;
+    }
+    wheel = new ArrayList<List<Timeout>>(buckets);
+    for (int i = 0; i < buckets; i++) {
+      wheel.add(new ArrayList<Timeout>());
+    }
+    mask = buckets - 1;
+    start = ticker.nanoTime();
+  }
+
+  /**
+   * Runs a task once the delay elapsed.
+   */
+  void schedule(Runnable task, long delayMillis) {
+    long deadline = ticker.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+    pending.add(new Timeout(Sender.nonNull(task), deadline));
+    if (size.getAndIncrement() == 0 && threadFactory != null) {
+      synchronized (idle) {
+        if (worker == null) {
+          worker = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+              work();
+            }
+          });
+          worker.start();
+        }
+        idle.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of tasks that did not run yet.
+   */
+  int size() {
+    return size.get();
+  }
+
+  /**
+   * Runs the tasks whose deadline is past.
+   *
+   * @return number of tasks that were run.
+   */
+  synchronized int runDueTasks() {
+    long now = ticker.nanoTime();
+    long target = (now - start) / tickNanos;
+    List<Timeout> due = new ArrayList<Timeout>();
+    for (Timeout timeout; (timeout = pending.poll()) != null; ) {
+      if (timeout.deadline - now <= 0) {
+        due.add(timeout);
+      } else {
+        // the first tick at or after the deadline
+        long deadlineTick = (timeout.deadline - start + tickNanos - 1)
+            / tickNanos;
+        wheel.get((int) (deadlineTick & mask)).add(timeout);
+      }
+    }
+    // buckets are only visited once, even if the wheel turned more than once
+    long last = Math.min(target, tick + wheel.size());
+    for (long t = tick + 1; t <= last; t++) {
+      Iterator<Timeout> bucket = wheel.get((int) (t & mask)).iterator();
+      while (bucket.hasNext()) {
+        Timeout timeout = bucket.next();
+        if (timeout.deadline - now <= 0) {
+          bucket.remove();
+          due.add(timeout);
+        }
+      }
+    }
+    tick = Math.max(tick, target);
+    for (Timeout timeout : due) {
+      size.decrementAndGet();
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Exception running scheduled task", e);
+      }
+    }
+    return due.size();
+  }
+
+  private void work() {
+    while (true) {
+      try {
+        synchronized (idle) {
+          while (size.get() == 0) {
+            idle.wait();
+          }
+        }
+        long nextTick;
+        synchronized (this) {
+          nextTick = start + (tick + 1) * tickNanos;
+        }
+        long sleep = nextTick - ticker.nanoTime();
+        if (sleep > 0) {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        }
+        runDueTasks();
+      } catch (InterruptedException e) {
+        // the thread is a daemon, it is only interrupted when the JVM exits
+        return;
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "Unexpected error in retry scheduler", t);
+      }
+    }
+  }
+}
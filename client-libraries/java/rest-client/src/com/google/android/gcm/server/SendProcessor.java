@@ -0,0 +1,417 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends the messages of a {@link Flow.Publisher} with
+ * {@link Sender#sendAsync(Message, String, int)}, and publishes their results
+ * in the same order.
+ *
+ * <p>
+ * At most {@link Builder#maxInFlight(int)} messages are requested from the
+ * upstream publisher and not yet delivered downstream, counting the ones
+ * being sent and the results waiting for demand, so the pipeline runs in
+ * constant memory whatever the speeds of the publisher and subscriber. When
+ * the {@link Sender} has a {@link RateLimiter}, no more messages are
+ * requested than it has tokens for, so messages wait in the publisher rather
+ * than in the retry timer.
+ *
+ * <p>
+ * A send that fails after its retries terminates the stream: the upstream
+ * subscription is cancelled and the exception, as thrown by
+ * {@link Sender#send(Message, String, int)}, is signalled downstream once the
+ * results before it were delivered. Errors of the messages themselves, such
+ * as {@link Constants#ERROR_NOT_REGISTERED}, are results like any other.
+ *
+ * <p>
+ * The processor can be subscribed to one publisher and by one subscriber.
+ * Example:
+ * <pre><code>
+ * SendProcessor processor = new SendProcessor.Builder(sender)
+ *    .maxInFlight(1000)
+ *    .build();
+ * publisher.subscribe(processor);
+ * processor.subscribe(resultSubscriber);
+ * </pre></code>
+ */
+public final class SendProcessor
+    implements Flow.Processor<SendProcessor.Item, Result> {
+
+  private final Sender sender;
+  private final int maxInFlight;
+  private final int retries;
+
+  // guarded by this
+  private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+  private Flow.Subscription upstream;
+  private Flow.Subscriber<? super Result> downstream;
+  private boolean subscribed;
+  // items requested from upstream and not received yet
+  private long requested;
+  // results requested by downstream and not delivered yet
+  private long demand;
+  private boolean upstreamDone;
+  private Throwable upstreamError;
+  private Throwable invalidRequest;
+  // a drain is scheduled for when the rate limiter has tokens again
+  private boolean throttled;
+  // downstream was terminated or cancelled
+  private boolean done;
+  private boolean emitting;
+  private boolean missed;
+
+  /**
+   * Message to be sent to one device, topic or group.
+   */
+  public static final class Item {
+
+    private final Message message;
+    private final PreparedMessage prepared;
+    private final String to;
+
+    public Item(Message message, String to) {
+      this.message = Sender.nonNull(message);
+      this.prepared = null;
+      this.to = Sender.nonNull(to);
+    }
+
+    public Item(PreparedMessage message, String to) {
+      this.message = null;
+      this.prepared = Sender.nonNull(message);
+      this.to = Sender.nonNull(to);
+    }
+
+    /**
+     * Gets the registration id, notification key or topic.
+     */
+    public String getTo() {
+      return to;
+    }
+
+    CompletableFuture<Result> send(Sender sender, int retries) {
+      return message != null ? sender.sendAsync(message, to, retries)
+          : sender.sendAsync(prepared, to, retries);
+    }
+
+    @Override
+    public String toString() {
+      return "Item(to=" + to + ", "
+          + (message != null ? message : prepared) + ")";
+    }
+  }
+
+  public static final class Builder {
+
+    // required parameters
+    private final Sender sender;
+
+    // optional parameters
+    private int maxInFlight = 256;
+    private int retries = 5;
+
+    public Builder(Sender sender) {
+      this.sender = Sender.nonNull(sender);
+    }
+
+    /**
+     * Sets the maximum number of messages requested and not yet delivered
+     * downstream (default value is {@literal 256}).
+     */
+    public Builder maxInFlight(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("maxInFlight must be positive");
+      }
+      maxInFlight = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of retries of each message in case of service
+     * unavailability (default value is {@literal 5}).
+     */
+    public Builder retries(int value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("retries cannot be negative");
+      }
+      retries = value;
+      return this;
+    }
+
+    public SendProcessor build() {
+      return new SendProcessor(this);
+    }
+  }
+
+  private SendProcessor(Builder builder) {
+    sender = builder.sender;
+    maxInFlight = builder.maxInFlight;
+    retries = builder.retries;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+    Sender.nonNull(subscriber);
+    boolean accepted;
+    synchronized (this) {
+      accepted = !subscribed;
+      subscribed = true;
+    }
+    if (!accepted) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(
+          new IllegalStateException("Processor already has a subscriber"));
+      return;
+    }
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        synchronized (SendProcessor.this) {
+          if (n <= 0) {
+            invalidRequest = new IllegalArgumentException(
+                "Requested " + n + " results, which is not positive");
+          } else {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+          }
+        }
+        drain();
+      }
+
+      @Override
+      public void cancel() {
+        Flow.Subscription subscription;
+        synchronized (SendProcessor.this) {
+          if (done) {
+            return;
+          }
+          done = true;
+          slots.clear();
+          subscription = upstream;
+        }
+        if (subscription != null) {
+          subscription.cancel();
+        }
+      }
+    });
+    synchronized (this) {
+      downstream = subscriber;
+    }
+    drain();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    Sender.nonNull(subscription);
+    boolean accepted;
+    synchronized (this) {
+      accepted = upstream == null && !done;
+      if (accepted) {
+        upstream = subscription;
+      }
+    }
+    if (!accepted) {
+      subscription.cancel();
+      return;
+    }
+    drain();
+  }
+
+  @Override
+  public void onNext(Item item) {
+    Sender.nonNull(item);
+    final Slot slot = new Slot();
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      if (requested > 0) {
+        requested--;
+      }
+      slots.addLast(slot);
+    }
+    CompletableFuture<Result> future;
+    try {
+      future = item.send(sender, retries);
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<Result>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete(new BiConsumer<Result, Throwable>() {
+      @Override
+      public void accept(Result result, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+          error = error.getCause();
+        }
+        synchronized (SendProcessor.this) {
+          slot.result = result;
+          slot.error = error;
+          slot.completed = true;
+        }
+        drain();
+      }
+    });
+  }
+
+  @Override
+  public void onError(Throwable error) {
+    Sender.nonNull(error);
+    synchronized (this) {
+      upstreamDone = true;
+      upstreamError = error;
+      requested = 0;
+    }
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    synchronized (this) {
+      upstreamDone = true;
+      requested = 0;
+    }
+    drain();
+  }
+
+  /**
+   * Gets the number of messages requested from upstream and not yet
+   * delivered downstream.
+   */
+  public synchronized int getInFlightCount() {
+    return slots.size() + (int) requested;
+  }
+
+  /**
+   * Delivers the results downstream and requests more items from upstream,
+   * as allowed by the demand, the limit of messages in flight and the rate
+   * limiter. Signals are made outside the lock by one thread at a time; the
+   * thread making them loops again if the state changed meanwhile.
+   */
+  private void drain() {
+    synchronized (this) {
+      if (emitting) {
+        missed = true;
+        return;
+      }
+      emitting = true;
+    }
+    while (true) {
+      Flow.Subscriber<? super Result> subscriber;
+      Flow.Subscription subscription;
+      List<Result> results = new ArrayList<Result>();
+      Throwable error = null;
+      boolean complete = false;
+      boolean cancel = false;
+      long request = 0;
+      long waitMillis = 0;
+      synchronized (this) {
+        subscriber = downstream;
+        subscription = upstream;
+        if (!done && subscriber != null) {
+          error = invalidRequest;
+          while (error == null && demand > 0 && !slots.isEmpty()
+              && slots.peekFirst().completed) {
+            Slot slot = slots.pollFirst();
+            if (slot.error != null) {
+              error = slot.error;
+            } else {
+              results.add(slot.result);
+              if (demand != Long.MAX_VALUE) {
+                demand--;
+              }
+            }
+          }
+          if (error == null && upstreamDone && slots.isEmpty()) {
+            error = upstreamError;
+            complete = error == null;
+          }
+          if (error != null || complete) {
+            done = true;
+            cancel = !upstreamDone;
+            slots.clear();
+          } else if (subscription != null && !upstreamDone && !throttled) {
+            request = maxInFlight - slots.size() - requested;
+            RateLimiter limiter = sender.getRateLimiter();
+            if (request > 0 && limiter != null) {
+              // the items requested and not received yet take tokens too
+              request = Math.min(request,
+                  limiter.getAvailablePermits() - requested);
+              if (request <= 0) {
+                waitMillis = Math.max(1, limiter.getWaitTime(requested + 1));
+                throttled = true;
+              }
+            }
+            requested += Math.max(request, 0);
+          }
+        }
+      }
+      for (Result result : results) {
+        subscriber.onNext(result);
+      }
+      if (cancel && subscription != null) {
+        subscription.cancel();
+      }
+      if (error != null) {
+        subscriber.onError(error);
+      } else if (complete) {
+        subscriber.onComplete();
+      } else if (request > 0) {
+        subscription.request(request);
+      } else if (waitMillis > 0) {
+        sender.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (SendProcessor.this) {
+              throttled = false;
+            }
+            drain();
+          }
+        }, waitMillis);
+      }
+      synchronized (this) {
+        if (!missed) {
+          emitting = false;
+          return;
+        }
+        missed = false;
+      }
+    }
+  }
+
+  /**
+   * Result of an item, in the order the items were received.
+   */
+  private static final class Slot {
+    // guarded by the processor
+    Result result;
+    Throwable error;
+    boolean completed;
+  }
+}
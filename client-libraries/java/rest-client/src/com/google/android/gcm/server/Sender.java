@@ -15,42 +15,15 @@
  */
 package com.google.android.gcm.server;
 
-import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
 import static com.google.android.gcm.server.Constants.JSON_ERROR;
 import static com.google.android.gcm.server.Constants.JSON_FAILURE;
 import static com.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
-import static com.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BADGE;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_CLICK_ACTION;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_COLOR;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_ICON;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_SOUND;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TAG;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
-import static com.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
-import static com.google.android.gcm.server.Constants.JSON_PAYLOAD;
-import static com.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
-import static com.google.android.gcm.server.Constants.JSON_TO;
-import static com.google.android.gcm.server.Constants.JSON_RESULTS;
 import static com.google.android.gcm.server.Constants.JSON_SUCCESS;
-import static com.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
-import static com.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
-import static com.google.android.gcm.server.Constants.PARAM_DRY_RUN;
-import static com.google.android.gcm.server.Constants.PARAM_PRIORITY;
-import static com.google.android.gcm.server.Constants.PARAM_CONTENT_AVAILABLE;
-import static com.google.android.gcm.server.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
-import static com.google.android.gcm.server.Constants.PARAM_TIME_TO_LIVE;
 import static com.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
 import static com.google.android.gcm.server.Constants.TOPIC_PREFIX;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -60,13 +33,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -86,17 +71,52 @@ public class Sender {
    */
   protected static final int MAX_BACKOFF_DELAY = 1024000;
 
+  private static final String HEADER_RETRY_AFTER = "Retry-After";
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  // shortest time assumed for an attempt, when checking a deadline
+  private static final long MIN_ATTEMPT_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(1);
+
   protected final Random random = new Random();
   protected static final Logger logger =
       Logger.getLogger(Sender.class.getName());
 
   private final String key;
 
-  private String endpoint;
+  private final EndpointSelector endpoints;
 
   private int connectTimeout;
   private int readTimeout;
-  
+
+  private volatile Executor executor;
+  private volatile Transport transport;
+  private volatile RetryScheduler retryScheduler;
+  private volatile RateLimiter rateLimiter;
+  private volatile CircuitBreaker circuitBreaker;
+  private volatile SenderMetrics metrics;
+  private volatile TokenFeedbackListener tokenFeedbackListener;
+  private volatile TokenRegistry tokenRegistry;
+  private volatile FlightRecorder flightRecorder;
+  private volatile int gzipThreshold = -1;
+
+  // whether a subclass overrides the public sendNoRetry methods, which the
+  // retry loops then call on each attempt
+  private static final ClassValue<Boolean> SEND_NO_RETRY_OVERRIDDEN =
+      new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+          for (Class<?> c = type; c != Sender.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+              if (method.getName().startsWith("sendNoRetry")
+                  && Modifier.isPublic(method.getModifiers())) {
+                return true;
+              }
+            }
+          }
+          return false;
+        }
+      };
+
   /**
    * Default constructor.
    *
@@ -113,12 +133,46 @@ public class Sender {
    * @param endpoint Endpoint to use when sending the message.
    */
   public Sender(String key, String endpoint) {
+    this(key, Collections.singletonList(nonNull(endpoint)));
+  }
+
+  /**
+   * Constructor of a sender that fails over between endpoints, such as
+   * {@link Constants#FCM_SEND_ENDPOINT} and
+   * {@link Constants#GCM_SEND_ENDPOINT}.
+   *
+   * <p>
+   * The latency and error rate of each endpoint are tracked, and each
+   * request is posted to the first endpoint that is about as healthy as the
+   * healthiest one. A request that fails with a connection error or a
+   * {@literal 5xx} status is posted right away to the next healthiest
+   * endpoint, before counting as a failed attempt.
+   *
+   * @param key FCM Server Key obtained through the Firebase Web Console.
+   * @param endpoints Endpoints to use when sending messages, in order of
+   *        preference.
+   */
+  public Sender(String key, List<String> endpoints) {
+    this(key, endpoints, RetryScheduler.SYSTEM_TICKER);
+  }
+
+  Sender(String key, List<String> endpoints, RetryScheduler.Ticker ticker) {
     this.key = nonNull(key);
-    this.endpoint = nonNull(endpoint);
+    this.endpoints = new EndpointSelector(endpoints, ticker);
   }
 
+  /**
+   * Gets the preferred endpoint.
+   */
   public String getEndpoint() {
-    return endpoint;
+    return endpoints.getUrls().get(0);
+  }
+
+  /**
+   * Gets the endpoints, in order of preference.
+   */
+  public List<String> getEndpoints() {
+    return endpoints.getUrls();
   }
 
   /**
@@ -147,8 +201,239 @@ public class Sender {
           throw new IllegalArgumentException("timeout can not be negative");
       }
       this.readTimeout = readTimeout;
-  } 
-  
+  }
+
+  final int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  final int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Sets the executor used to make the HTTP requests of asynchronous sends
+   * when the {@link Transport} itself blocks, as the default one does.
+   * <p>
+   * Default is a shared pool of daemon threads, bounded to four per
+   * processor (and at least 16): each request of the default
+   * {@link Transport} holds one of them until its response arrives, so only
+   * that many requests are in flight at once and the others wait in the
+   * queue of the pool. Set a larger executor, or an {@link Http2Transport},
+   * which does not hold threads while waiting, to send with more
+   * concurrency. Retries are never run on this executor while waiting for
+   * the back-off delay, they are scheduled on a shared timer instead.
+   *
+   * @see #sendAsync(Message, String, int)
+   * @see #sendAsync(Message, List, int)
+   */
+  public final void setExecutor(Executor executor) {
+    this.executor = nonNull(executor);
+  }
+
+  final Executor getExecutor() {
+    Executor current = executor;
+    return current != null ? current : SharedExecutors.io();
+  }
+
+  /**
+   * Sets the timer used to schedule retries of asynchronous sends, instead of
+   * the shared one.
+   */
+  final void setRetryScheduler(RetryScheduler retryScheduler) {
+    this.retryScheduler = nonNull(retryScheduler);
+  }
+
+  /**
+   * Sets the limiter of the number of messages sent per second, which is
+   * shared by all sends of this sender (and of any other sender it is set
+   * on), or {@literal null} to send as fast as possible.
+   * <p>
+   * Default is {@literal null}.
+   */
+  public final void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Gets the limiter of the number of messages sent per second, if any.
+   */
+  public final RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Sets the circuit breaker that fails requests right away while the
+   * endpoint is failing, or {@literal null} to always post them. When there
+   * are many endpoints, requests fail over to the ones whose circuit is
+   * closed.
+   * <p>
+   * Default is {@literal null}.
+   *
+   * @see CircuitOpenException
+   */
+  public final void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Gets the circuit breaker of the endpoints, if any.
+   */
+  public final CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Sets the listener notified of requests, results and retries, or
+   * {@literal null} to not measure anything.
+   * <p>
+   * Default is {@literal null}.
+   *
+   * @see MetricsRecorder
+   */
+  public final void setMetrics(SenderMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Gets the listener notified of requests, results and retries, if any.
+   */
+  public final SenderMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets the listener notified of the registration ids that should be
+   * replaced by their canonical id or removed, or {@literal null} to only
+   * report them in the results.
+   * <p>
+   * Default is {@literal null}.
+   */
+  public final void setTokenFeedbackListener(TokenFeedbackListener listener) {
+    this.tokenFeedbackListener = listener;
+  }
+
+  /**
+   * Gets the listener notified of the registration ids that should be
+   * replaced or removed, if any.
+   */
+  public final TokenFeedbackListener getTokenFeedbackListener() {
+    return tokenFeedbackListener;
+  }
+
+  /**
+   * Sets the registry used to replace stale registration ids by their
+   * canonical id before sending messages, and updated with the canonical ids
+   * returned by GCM, or {@literal null} to send messages to the registration
+   * ids as given.
+   * <p>
+   * Default is {@literal null}.
+   */
+  public final void setTokenRegistry(TokenRegistry registry) {
+    this.tokenRegistry = registry;
+  }
+
+  /**
+   * Gets the registry of canonical ids, if any.
+   */
+  public final TokenRegistry getTokenRegistry() {
+    return tokenRegistry;
+  }
+
+  /**
+   * Sets the recorder that keeps a sample of the requests with their
+   * responses, or {@literal null} to not record them.
+   * <p>
+   * Default is {@literal null}.
+   */
+  public final void setFlightRecorder(FlightRecorder recorder) {
+    this.flightRecorder = recorder;
+  }
+
+  /**
+   * Gets the recorder of the requests, if any.
+   */
+  public final FlightRecorder getFlightRecorder() {
+    return flightRecorder;
+  }
+
+  /**
+   * Sets the size (in bytes) from which request bodies are compressed with
+   * gzip, or {@literal -1} to not compress them. When compression is on,
+   * responses are requested with gzip as well.
+   * <p>
+   * A request to {@link Constants#MULTICAST_SIZE_LIMIT} devices is mostly
+   * registration ids, which look random: compressed, it takes about a
+   * quarter fewer bytes, for a few milliseconds of CPU time.
+   * <p>
+   * Default is {@literal -1}.
+   */
+  public final void setGzipThreshold(int bytes) {
+    if (bytes < -1) {
+      throw new IllegalArgumentException("threshold must be at least -1");
+    }
+    this.gzipThreshold = bytes;
+  }
+
+  /**
+   * Gets the size from which request bodies are compressed with gzip, or
+   * {@literal -1} if they are not compressed.
+   */
+  public final int getGzipThreshold() {
+    return gzipThreshold;
+  }
+
+  /**
+   * Sets the transport used to post requests to GCM.
+   * <p>
+   * Default is a transport based on {@link HttpURLConnection}, which uses
+   * {@link #getConnection(String)} and the timeouts set on this object.
+   *
+   * @see Http2Transport
+   */
+  public final void setTransport(Transport transport) {
+    this.transport = nonNull(transport);
+  }
+
+  /**
+   * Gets the transport used to post requests to GCM.
+   */
+  public final Transport getTransport() {
+    Transport current = transport;
+    if (current == null) {
+      // benign race: at worst a few equivalent instances are created
+      current = new UrlConnectionTransport(this);
+      transport = current;
+    }
+    return current;
+  }
+
+  /**
+   * Opens connections to the endpoints before traffic arrives, so the first
+   * messages do not pay for DNS, TCP and TLS setup.
+   * <p>
+   * Only transports that manage their own pool of connections, such as
+   * {@link Http2Transport}, can be warmed up; for the others this is a no-op.
+   *
+   * @param connections number of connections that should be ready on each
+   *        endpoint.
+   *
+   * @return number of connections that were warmed up.
+   *
+   * @throws IOException if a connection could not be opened.
+   */
+  public int prewarm(int connections) throws IOException {
+    if (connections < 0) {
+      throw new IllegalArgumentException("connections can not be negative");
+    }
+    Transport current = getTransport();
+    int warmed = 0;
+    for (String url : endpoints.getUrls()) {
+      warmed += current.prewarm(url, connections);
+    }
+    return warmed;
+  }
+
   /**
    * Sends a message to one device, retrying in case of unavailability.
    *
@@ -165,10 +450,55 @@ public class Sender {
    *
    * @throws IllegalArgumentException if to is {@literal null}.
    * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
+   * @throws CircuitOpenException if the circuit breaker of the endpoint is
+   *         open.
    * @throws IOException if message could not be sent.
    */
   public Result send(Message message, String to, int retries)
       throws IOException {
+    return send(new MessagePayload(message), to, retries, null);
+  }
+
+  /**
+   * Sends a prepared message to one device, retrying in case of
+   * unavailability. See {@link #send(Message, String, int)} for more info.
+   */
+  public Result send(PreparedMessage message, String to, int retries)
+      throws IOException {
+    return send(new PreparedPayload(message), to, retries, null);
+  }
+
+  /**
+   * Sends a message to one device, retrying in case of unavailability until
+   * the deadline.
+   *
+   * <p>
+   * The connect and read timeouts of each attempt are shortened to the time
+   * left before the deadline, and there is no retry once the back-off plus
+   * the duration of the previous attempt would go past it. See
+   * {@link #send(Message, String, int)} for more info.
+   *
+   * @param deadline deadline of the send, including all its attempts.
+   *
+   * @throws IllegalArgumentException if to or deadline is {@literal null}.
+   */
+  public Result send(Message message, String to, int retries,
+      Deadline deadline) throws IOException {
+    return send(new MessagePayload(message), to, retries, nonNull(deadline));
+  }
+
+  /**
+   * Sends a prepared message to one device, retrying in case of
+   * unavailability until the deadline. See
+   * {@link #send(Message, String, int, Deadline)} for more info.
+   */
+  public Result send(PreparedMessage message, String to, int retries,
+      Deadline deadline) throws IOException {
+    return send(new PreparedPayload(message), to, retries, nonNull(deadline));
+  }
+
+  private Result send(Payload message, String to, int retries,
+      Deadline deadline) throws IOException {
     int attempt = 0;
     Result result;
     int backoff = BACKOFF_INITIAL_DELAY;
@@ -179,13 +509,16 @@ public class Sender {
         logger.fine("Attempt #" + attempt + " to send message " +
             message + " to regIds " + to);
       }
-      result = sendNoRetry(message, to);
+      long remaining = deadline == null ? 0 : deadline.getRemainingNanos();
+      result = message.sendNoRetry(to, attempt, deadline);
       tryAgain = result == null && attempt <= retries;
       if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
+        long delay = getSleepTime(backoff);
+        tryAgain = canRetry(deadline, remaining, delay);
+        if (tryAgain) {
+          onRetry();
+          sleep(delay);
+          backoff = getNextBackoff(backoff);
         }
       }
     } while (tryAgain);
@@ -208,14 +541,51 @@ public class Sender {
    * @throws IllegalArgumentException if to is {@literal null}.
    */
   public Result sendNoRetry(Message message, String to) throws IOException {
-    nonNull(to);
-    Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-    messageToMap(message, jsonRequest);
-    jsonRequest.put(JSON_TO, to);
-    String responseBody = makeGcmHttpRequest(jsonRequest);
+    return sendNoRetry(message, to, 1, null);
+  }
+
+  /**
+   * Sends a prepared message without retrying in case of service
+   * unavailability. See {@link #sendNoRetry(Message, String)} for more info.
+   */
+  public Result sendNoRetry(PreparedMessage message, String to)
+      throws IOException {
+    return sendNoRetry(message, to, 1, null);
+  }
+
+  private Result sendNoRetry(Message message, String to, int attempt,
+      Deadline deadline) throws IOException {
+    String resolved = resolve(nonNull(to));
+    return sendNoRetry(MessageEncoder.encode(message, resolved), to, resolved,
+        attempt, deadline);
+  }
+
+  private Result sendNoRetry(PreparedMessage message, String to, int attempt,
+      Deadline deadline) throws IOException {
+    String resolved = resolve(nonNull(to));
+    return sendNoRetry(nonNull(message).encode(resolved), to, resolved,
+        attempt, deadline);
+  }
+
+  private Result sendNoRetry(byte[] body, String to, String resolved,
+      int attempt, Deadline deadline) throws IOException {
+    TransportResponse response =
+        makeGcmHttpRequest(body, 1, attempt, deadline);
+    if (response == null) {
+      return null;
+    }
+    String responseBody = readGcmHttpResponse(response);
     if (responseBody == null) {
       return null;
     }
+    return observe(to, resolved, parseResult(resolved, responseBody));
+  }
+
+  /**
+   * Parses the response of a message sent to one device, topic or group.
+   */
+  private Result parseResult(String to, String responseBody)
+      throws IOException {
     JSONParser parser = new JSONParser();
     JSONObject jsonResponse;
     try {
@@ -284,6 +654,10 @@ public class Sender {
    * case of service unavailability and hence could block the calling thread
    * for many seconds.
    *
+   * <p>
+   * When GCM answers with a {@literal Retry-After} header, the delay it asked
+   * for is used instead of the back-off.
+   *
    * @param message message to be sent.
    * @param regIds registration id of the devices that will receive
    *        the message.
@@ -294,109 +668,122 @@ public class Sender {
    * @throws IllegalArgumentException if registrationIds is {@literal null} or
    *         empty.
    * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws CircuitOpenException if the circuit breaker of the endpoint is
+   *         open before any registration id got a result; otherwise, the
+   *         ones that were not sent keep the error of their last attempt.
    * @throws IOException if message could not be sent.
    */
   public MulticastResult send(Message message, List<String> regIds, int retries)
       throws IOException {
+    return send(new MessagePayload(message), regIds, retries, null);
+  }
+
+  /**
+   * Sends a prepared message to many devices, retrying in case of
+   * unavailability. See {@link #send(Message, List, int)} for more info.
+   *
+   * <p>
+   * Unlike {@link #send(Message, List, int)}, the message is not serialized
+   * again on each attempt: only the registration ids that still need to be
+   * sent are.
+   */
+  public MulticastResult send(PreparedMessage message, List<String> regIds,
+      int retries) throws IOException {
+    return send(new PreparedPayload(message), regIds, retries, null);
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability
+   * until the deadline.
+   *
+   * <p>
+   * The connect and read timeouts of each attempt are shortened to the time
+   * left before the deadline, and there is no retry once the back-off plus
+   * the duration of the previous attempt would go past it; the registration
+   * ids that were not sent yet then keep the error of their last attempt, as
+   * when there are no retries left. See {@link #send(Message, List, int)} for
+   * more info.
+   *
+   * @param deadline deadline of the send, including all its attempts.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty, or deadline is {@literal null}.
+   * @throws IOException if no attempt got a response before the deadline.
+   */
+  public MulticastResult send(Message message, List<String> regIds,
+      int retries, Deadline deadline) throws IOException {
+    return send(new MessagePayload(message), regIds, retries,
+        nonNull(deadline));
+  }
+
+  /**
+   * Sends a prepared message to many devices, retrying in case of
+   * unavailability until the deadline. See
+   * {@link #send(Message, List, int, Deadline)} and
+   * {@link #send(PreparedMessage, List, int)} for more info.
+   */
+  public MulticastResult send(PreparedMessage message, List<String> regIds,
+      int retries, Deadline deadline) throws IOException {
+    return send(new PreparedPayload(message), regIds, retries,
+        nonNull(deadline));
+  }
+
+  private MulticastResult send(Payload message, List<String> regIds,
+      int retries, Deadline deadline) throws IOException {
     int attempt = 0;
-    MulticastResult multicastResult;
     int backoff = BACKOFF_INITIAL_DELAY;
-    // Map of results by registration id, it will be updated after each attempt
-    // to send the messages
-    Map<String, Result> results = new HashMap<String, Result>();
-    List<String> unsentRegIds = new ArrayList<String>(regIds);
+    MulticastAttempts attempts = new MulticastAttempts(regIds);
+    IOException lastError = null;
     boolean tryAgain;
-    List<Long> multicastIds = new ArrayList<Long>();
     do {
-      multicastResult = null;
+      MulticastResult multicastResult = null;
+      long retryAfter = -1;
       attempt++;
       if (logger.isLoggable(Level.FINE)) {
         logger.fine("Attempt #" + attempt + " to send message " +
-            message + " to regIds " + unsentRegIds);
+            message + " to regIds " + attempts.getUnsentRegIds());
       }
+      long remaining = deadline == null ? 0 : deadline.getRemainingNanos();
       try {
-        multicastResult = sendNoRetry(message, unsentRegIds);
+        multicastResult = message.sendNoRetry(attempts.getUnsentRegIds(),
+            attempt, deadline);
+      } catch (CircuitOpenException e) {
+        // retrying would fail the same way until the circuit closes
+        if (!attempts.hasResults()) {
+          throw e;
+        }
+        return attempts.build();
       } catch(IOException e) {
         // no need for WARNING since exception might be already logged
         logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
+        retryAfter = getRetryAfter(e);
+        lastError = e;
       }
       if (multicastResult != null) {
-        long multicastId = multicastResult.getMulticastId();
         logger.fine("multicast_id on attempt # " + attempt + ": " +
-            multicastId);
-        multicastIds.add(multicastId);
-        unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-        tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
+            multicastResult.getMulticastId());
+        attempts.update(multicastResult);
+        retryAfter = multicastResult.getRetryAfter();
+        tryAgain = attempts.hasUnsentRegIds() && attempt <= retries;
       } else {
         tryAgain = attempt <= retries;
       }
       if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
+        long delay = getRetryDelay(backoff, retryAfter);
+        tryAgain = canRetry(deadline, remaining, delay);
+        if (tryAgain) {
+          onRetry();
+          sleep(delay);
+          backoff = getNextBackoff(backoff);
         }
       }
     } while (tryAgain);
-    if (multicastIds.isEmpty()) {
+    if (!attempts.hasResults()) {
       // all JSON posts failed due to GCM unavailability
       throw new IOException("Could not post JSON requests to GCM after "
-          + attempt + " attempts");
-    }
-    // calculate summary
-    int success = 0, failure = 0 , canonicalIds = 0;
-    for (Result result : results.values()) {
-      if (result.getMessageId() != null) {
-        success++;
-        if (result.getCanonicalRegistrationId() != null) {
-          canonicalIds++;
-        }
-      } else {
-        failure++;
-      }
-    }
-    // build a new object with the overall result
-    long multicastId = multicastIds.remove(0);
-    MulticastResult.Builder builder = new MulticastResult.Builder(success,
-        failure, canonicalIds, multicastId).retryMulticastIds(multicastIds);
-    // add results, in the same order as the input
-    for (String regId : regIds) {
-      Result result = results.get(regId);
-      builder.addResult(result);
-    }
-    return builder.build();
-  }
-
-  /**
-   * Updates the status of the messages sent to devices and the list of devices
-   * that should be retried.
-   *
-   * @param unsentRegIds list of devices that are still pending an update.
-   * @param allResults map of status that will be updated.
-   * @param multicastResult result of the last multicast sent.
-   *
-   * @return updated version of devices that should be retried.
-   */
-  private List<String> updateStatus(List<String> unsentRegIds,
-      Map<String, Result> allResults, MulticastResult multicastResult) {
-    List<Result> results = multicastResult.getResults();
-    if (results.size() != unsentRegIds.size()) {
-      // should never happen, unless there is a flaw in the algorithm
-      throw new RuntimeException("Internal error: sizes do not match. " +
-          "currentResults: " + results + "; unsentRegIds: " + unsentRegIds);
-    }
-    List<String> newUnsentRegIds = new ArrayList<String>();
-    for (int i = 0; i < unsentRegIds.size(); i++) {
-      String regId = unsentRegIds.get(i);
-      Result result = results.get(i);
-      allResults.put(regId, result);
-      String error = result.getErrorCodeName();
-      if (error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
-          || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
-        newUnsentRegIds.add(regId);
-      }
+          + attempt + " attempts", lastError);
     }
-    return newUnsentRegIds;
+    return attempts.build();
   }
 
   /**
@@ -413,128 +800,941 @@ public class Sender {
    */
   public MulticastResult sendNoRetry(Message message,
       List<String> registrationIds) throws IOException {
+    return sendNoRetry(message, registrationIds, 1, null);
+  }
+
+  /**
+   * Sends a prepared message without retrying in case of service
+   * unavailability. See {@link #sendNoRetry(Message, List)} for more info.
+   */
+  public MulticastResult sendNoRetry(PreparedMessage message,
+      List<String> registrationIds) throws IOException {
+    return sendNoRetry(message, registrationIds, 1, null);
+  }
+
+  private MulticastResult sendNoRetry(Message message,
+      List<String> registrationIds, int attempt, Deadline deadline)
+      throws IOException {
     if (nonNull(registrationIds).isEmpty()) {
       throw new IllegalArgumentException("registrationIds cannot be empty");
     }
-    Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-    messageToMap(message, jsonRequest);
-    jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-    String responseBody = makeGcmHttpRequest(jsonRequest);
-    if (responseBody == null) {
-      return null;
-    }
-    JSONParser parser = new JSONParser();
-    JSONObject jsonResponse;
-    try {
-      jsonResponse = (JSONObject) parser.parse(responseBody);
-      int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-      int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-      int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-      long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-      MulticastResult.Builder builder = new MulticastResult.Builder(success,
-          failure, canonicalIds, multicastId);
-      @SuppressWarnings("unchecked")
-      List<Map<String, Object>> results =
-          (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
-      if (results != null) {
-        for (Map<String, Object> jsonResult : results) {
-          String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-          String canonicalRegId =
-              (String) jsonResult.get(TOKEN_CANONICAL_REG_ID);
-          String error = (String) jsonResult.get(JSON_ERROR);
-          Result result = new Result.Builder()
-              .messageId(messageId)
-              .canonicalRegistrationId(canonicalRegId)
-              .errorCode(error)
-              .build();
-          builder.addResult(result);
-        }
-      }
-      return builder.build();
-    } catch (ParseException e) {
-      throw newIoException(responseBody, e);
-    } catch (CustomParserException e) {
-      throw newIoException(responseBody, e);
-    }
+    List<String> resolved = resolve(registrationIds);
+    return sendNoRetry(MessageEncoder.encode(message, resolved),
+        registrationIds, resolved, attempt, deadline);
   }
 
-  private String makeGcmHttpRequest(Map<Object, Object> jsonRequest) throws InvalidRequestException {
-    String requestBody = JSONValue.toJSONString(jsonRequest);
-    logger.finest("JSON request: " + requestBody);
-    HttpURLConnection conn;
-    int status;
-    try {
-      conn = post(getEndpoint(), "application/json", requestBody);
-      status = conn.getResponseCode();
-    } catch (IOException e) {
-      logger.log(Level.FINE, "IOException posting to GCM", e);
-      return null;
-    }
-    String responseBody;
-    if (status != 200) {
-      try {
-        responseBody = getAndClose(conn.getErrorStream());
-        logger.finest("JSON error response: " + responseBody);
-      } catch (IOException e) {
-        // ignore the exception since it will thrown an InvalidRequestException
-        // anyways
-        responseBody = "N/A";
-        logger.log(Level.FINE, "Exception reading response: ", e);
-      }
-      throw new InvalidRequestException(status, responseBody);
+  private MulticastResult sendNoRetry(PreparedMessage message,
+      List<String> registrationIds, int attempt, Deadline deadline)
+      throws IOException {
+    if (nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
     }
-    try {
-      responseBody = getAndClose(conn.getInputStream());
-    } catch(IOException e) {
-      logger.log(Level.WARNING, "IOException reading response", e);
+    List<String> resolved = resolve(registrationIds);
+    return sendNoRetry(nonNull(message).encode(resolved), registrationIds,
+        resolved, attempt, deadline);
+  }
+
+  private MulticastResult sendNoRetry(byte[] body, List<String> regIds,
+      List<String> resolved, int attempt, Deadline deadline)
+      throws IOException {
+    TransportResponse response =
+        makeGcmHttpRequest(body, regIds.size(), attempt, deadline);
+    if (response == null) {
       return null;
     }
-    logger.finest("JSON response: " + responseBody);
-    return responseBody;
+    return observe(regIds, resolved, readMulticastResult(response));
   }
 
   /**
-   * Populate Map with message.
+   * Sends a message to one device asynchronously, retrying in case of
+   * unavailability.
    *
-   * @param message Message used to populate Map.
-   * @param mapRequest Map populated by Message.
-   */
-  private void messageToMap(Message message, Map<Object, Object> mapRequest) {
-    if (message == null || mapRequest == null) {
-      return;
-    }
-    setJsonField(mapRequest, PARAM_PRIORITY, message.getPriority());
-    setJsonField(mapRequest, PARAM_CONTENT_AVAILABLE, message.getContentAvailable());
-    setJsonField(mapRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-    setJsonField(mapRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-    setJsonField(mapRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-    setJsonField(mapRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
-    setJsonField(mapRequest, PARAM_DRY_RUN, message.isDryRun());
-    Map<String, String> payload = message.getData();
-    if (!payload.isEmpty()) {
-      mapRequest.put(JSON_PAYLOAD, payload);
-    }
-    if (message.getNotification() != null) {
-      Notification notification = message.getNotification();
-      Map<Object, Object> nMap = new HashMap<Object, Object>();
-      if (notification.getBadge() != null) {
-        setJsonField(nMap, JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
-      }
-      setJsonField(nMap, JSON_NOTIFICATION_BODY, notification.getBody());
-      setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
-      setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
-      setJsonField(nMap, JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
-      setJsonField(nMap, JSON_NOTIFICATION_COLOR, notification.getColor());
-      setJsonField(nMap, JSON_NOTIFICATION_ICON, notification.getIcon());
-      setJsonField(nMap, JSON_NOTIFICATION_SOUND, notification.getSound());
-      setJsonField(nMap, JSON_NOTIFICATION_TAG, notification.getTag());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE, notification.getTitle());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
-      setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
-      mapRequest.put(JSON_NOTIFICATION, nMap);
-    }
-  }
-
+   * <p>
+   * This is the non-blocking version of {@link #send(Message, String, int)}:
+   * requests are posted through {@link Transport#postAsync} and the
+   * exponential back-off between attempts is scheduled on a shared timer, so
+   * no thread is blocked while waiting to retry.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param to registration token, notification key, or topic where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future completed with the result of the request, or completed
+   *         exceptionally with the same exceptions thrown by
+   *         {@link #send(Message, String, int)}.
+   *
+   * @throws IllegalArgumentException if to is {@literal null}.
+   */
+  public CompletableFuture<Result> sendAsync(Message message, String to,
+      int retries) {
+    nonNull(to);
+    CompletableFuture<Result> future = new CompletableFuture<Result>();
+    sendAsync(new MessagePayload(message), to, retries, 1,
+        BACKOFF_INITIAL_DELAY, future);
+    return future;
+  }
+
+  /**
+   * Sends a prepared message to one device asynchronously, retrying in case
+   * of unavailability. See {@link #sendAsync(Message, String, int)} for more
+   * info.
+   */
+  public CompletableFuture<Result> sendAsync(PreparedMessage message,
+      String to, int retries) {
+    nonNull(to);
+    CompletableFuture<Result> future = new CompletableFuture<Result>();
+    sendAsync(new PreparedPayload(message), to, retries, 1,
+        BACKOFF_INITIAL_DELAY, future);
+    return future;
+  }
+
+  /**
+   * Sends a message to one device asynchronously, without retrying in case of
+   * service unavailability. See {@link #sendNoRetry(Message, String)} for more
+   * info.
+   *
+   * @return future completed with the result of the post, or with
+   *         {@literal null} if it failed but could be retried.
+   *
+   * @throws IllegalArgumentException if to is {@literal null}.
+   */
+  public CompletableFuture<Result> sendNoRetryAsync(Message message,
+      String to) {
+    return sendNoRetryAsync(message, to, 1);
+  }
+
+  /**
+   * Sends a prepared message to one device asynchronously, without retrying
+   * in case of service unavailability. See
+   * {@link #sendNoRetryAsync(Message, String)} for more info.
+   */
+  public CompletableFuture<Result> sendNoRetryAsync(PreparedMessage message,
+      String to) {
+    return sendNoRetryAsync(message, to, 1);
+  }
+
+  private CompletableFuture<Result> sendNoRetryAsync(Message message,
+      String to, int attempt) {
+    String resolved = resolve(nonNull(to));
+    return sendNoRetryAsync(MessageEncoder.encode(message, resolved), to,
+        resolved, attempt);
+  }
+
+  private CompletableFuture<Result> sendNoRetryAsync(PreparedMessage message,
+      String to, int attempt) {
+    String resolved = resolve(nonNull(to));
+    return sendNoRetryAsync(nonNull(message).encode(resolved), to, resolved,
+        attempt);
+  }
+
+  private CompletableFuture<Result> sendNoRetryAsync(byte[] body,
+      final String to, final String resolved, int attempt) {
+    final CompletableFuture<Result> future = new CompletableFuture<Result>();
+    makeGcmHttpRequestAsync(body, 1, attempt).whenComplete(
+        new BiConsumer<TransportResponse, Throwable>() {
+          @Override
+          public void accept(TransportResponse response, Throwable error) {
+            try {
+              if (error != null) {
+                future.completeExceptionally(error);
+              } else if (response == null) {
+                future.complete(null);
+              } else {
+                String responseBody = readGcmHttpResponse(response);
+                future.complete(responseBody == null ? null
+                    : observe(to, resolved,
+                        parseResult(resolved, responseBody)));
+              }
+            } catch (Throwable e) {
+              future.completeExceptionally(e);
+            }
+          }
+        });
+    return future;
+  }
+
+  private void sendAsync(final Payload message, final String to,
+      final int retries, final int attempt, final int backoff,
+      final CompletableFuture<Result> future) {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Attempt #" + attempt + " to send message " +
+          message + " to regIds " + to);
+    }
+    CompletableFuture<Result> attemptFuture =
+        message.sendNoRetryAsync(to, attempt);
+    attemptFuture.whenComplete(
+        new BiConsumer<Result, Throwable>() {
+          @Override
+          public void accept(Result result, Throwable error) {
+            if (error != null) {
+              future.completeExceptionally(unwrap(error));
+            } else if (result != null) {
+              future.complete(result);
+            } else if (attempt <= retries) {
+              onRetry();
+              schedule(future, new Runnable() {
+                @Override
+                public void run() {
+                  sendAsync(message, to, retries, attempt + 1,
+                      getNextBackoff(backoff), future);
+                }
+              }, getSleepTime(backoff));
+            } else {
+              future.completeExceptionally(new IOException(
+                  "Could not send message after " + attempt + " attempts"));
+            }
+          }
+        });
+  }
+
+  /**
+   * Sends a message to many devices asynchronously, retrying in case of
+   * unavailability.
+   *
+   * <p>
+   * This is the non-blocking version of {@link #send(Message, List, int)}:
+   * requests are posted through {@link Transport#postAsync} and the
+   * exponential back-off between attempts is scheduled on a shared timer, so
+   * no thread is blocked while waiting to retry. As with the blocking version,
+   * a {@literal Retry-After} header sent by GCM takes precedence over the
+   * back-off.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future completed with the combined result of all requests made,
+   *         or completed exceptionally with the same exceptions thrown by
+   *         {@link #send(Message, List, int)}.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries) {
+    if (nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    CompletableFuture<MulticastResult> future =
+        new CompletableFuture<MulticastResult>();
+    // copy the ids, as the caller might change the list while the message is
+    // still being sent
+    List<String> copy = Collections.unmodifiableList(
+        new ArrayList<String>(regIds));
+    sendAsync(new MessagePayload(message), new MulticastAttempts(copy),
+        retries, 1, BACKOFF_INITIAL_DELAY, future);
+    return future;
+  }
+
+  /**
+   * Sends a prepared message to many devices asynchronously, retrying in case
+   * of unavailability. See {@link #sendAsync(Message, List, int)} and
+   * {@link #send(PreparedMessage, List, int)} for more info.
+   */
+  public CompletableFuture<MulticastResult> sendAsync(PreparedMessage message,
+      List<String> regIds, int retries) {
+    if (nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    CompletableFuture<MulticastResult> future =
+        new CompletableFuture<MulticastResult>();
+    List<String> copy = Collections.unmodifiableList(
+        new ArrayList<String>(regIds));
+    sendAsync(new PreparedPayload(message), new MulticastAttempts(copy),
+        retries, 1, BACKOFF_INITIAL_DELAY, future);
+    return future;
+  }
+
+  /**
+   * Sends a message to many devices asynchronously, without retrying in case
+   * of service unavailability. See {@link #sendNoRetry(Message, List)} for
+   * more info.
+   *
+   * @return future completed with the multicast results if the message was
+   *         sent successfully, or with {@literal null} if it failed but could
+   *         be retried.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   */
+  public CompletableFuture<MulticastResult> sendNoRetryAsync(Message message,
+      List<String> registrationIds) {
+    return sendNoRetryAsync(message, registrationIds, 1);
+  }
+
+  /**
+   * Sends a prepared message to many devices asynchronously, without retrying
+   * in case of service unavailability. See
+   * {@link #sendNoRetryAsync(Message, List)} for more info.
+   */
+  public CompletableFuture<MulticastResult> sendNoRetryAsync(
+      PreparedMessage message, List<String> registrationIds) {
+    return sendNoRetryAsync(message, registrationIds, 1);
+  }
+
+  private CompletableFuture<MulticastResult> sendNoRetryAsync(Message message,
+      List<String> registrationIds, int attempt) {
+    if (nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    List<String> resolved = resolve(registrationIds);
+    return sendNoRetryAsync(MessageEncoder.encode(message, resolved),
+        registrationIds, resolved, attempt);
+  }
+
+  private CompletableFuture<MulticastResult> sendNoRetryAsync(
+      PreparedMessage message, List<String> registrationIds, int attempt) {
+    if (nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    List<String> resolved = resolve(registrationIds);
+    return sendNoRetryAsync(nonNull(message).encode(resolved),
+        registrationIds, resolved, attempt);
+  }
+
+  private CompletableFuture<MulticastResult> sendNoRetryAsync(byte[] body,
+      List<String> registrationIds, List<String> resolvedIds, int attempt) {
+    // the ids are kept to match the results for the token feedback and
+    // registry, so they are copied in case the caller changes the list
+    // before the response
+    final List<String> regIds = new ArrayList<String>(registrationIds);
+    final List<String> resolved = resolvedIds == registrationIds ? regIds
+        : resolvedIds;
+    final CompletableFuture<MulticastResult> future =
+        new CompletableFuture<MulticastResult>();
+    makeGcmHttpRequestAsync(body, regIds.size(), attempt).whenComplete(
+        new BiConsumer<TransportResponse, Throwable>() {
+          @Override
+          public void accept(TransportResponse response, Throwable error) {
+            try {
+              if (error != null) {
+                future.completeExceptionally(error);
+              } else if (response == null) {
+                future.complete(null);
+              } else {
+                future.complete(
+                    observe(regIds, resolved, readMulticastResult(response)));
+              }
+            } catch (Throwable e) {
+              future.completeExceptionally(e);
+            }
+          }
+        });
+    return future;
+  }
+
+  private void sendAsync(final Payload message,
+      final MulticastAttempts attempts, final int retries, final int attempt,
+      final int backoff, final CompletableFuture<MulticastResult> future) {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Attempt #" + attempt + " to send message " +
+          message + " to regIds " + attempts.getUnsentRegIds());
+    }
+    CompletableFuture<MulticastResult> attemptFuture =
+        message.sendNoRetryAsync(attempts.getUnsentRegIds(), attempt);
+    attemptFuture.whenComplete(
+        new BiConsumer<MulticastResult, Throwable>() {
+          @Override
+          public void accept(MulticastResult multicastResult, Throwable error) {
+            long retryAfter = -1;
+            if (error != null) {
+              error = unwrap(error);
+              if (!(error instanceof IOException)) {
+                future.completeExceptionally(error);
+                return;
+              }
+              if (error instanceof CircuitOpenException) {
+                // retrying would fail the same way until the circuit closes
+                if (attempts.hasResults()) {
+                  future.complete(attempts.build());
+                } else {
+                  future.completeExceptionally(error);
+                }
+                return;
+              }
+              // no need for WARNING since exception might be already logged
+              logger.log(Level.FINEST, "IOException on attempt " + attempt,
+                  error);
+              retryAfter = getRetryAfter(error);
+            }
+            try {
+              boolean tryAgain;
+              if (multicastResult != null) {
+                logger.fine("multicast_id on attempt # " + attempt + ": " +
+                    multicastResult.getMulticastId());
+                attempts.update(multicastResult);
+                retryAfter = multicastResult.getRetryAfter();
+                tryAgain = attempts.hasUnsentRegIds() && attempt <= retries;
+              } else {
+                tryAgain = attempt <= retries;
+              }
+              if (tryAgain) {
+                onRetry();
+                schedule(future, new Runnable() {
+                  @Override
+                  public void run() {
+                    sendAsync(message, attempts, retries, attempt + 1,
+                        getNextBackoff(backoff), future);
+                  }
+                }, getRetryDelay(backoff, retryAfter));
+              } else if (!attempts.hasResults()) {
+                // all JSON posts failed due to GCM unavailability
+                future.completeExceptionally(new IOException(
+                    "Could not post JSON requests to GCM after " + attempt +
+                    " attempts", error));
+              } else {
+                future.complete(attempts.build());
+              }
+            } catch (Throwable e) {
+              future.completeExceptionally(e);
+            }
+          }
+        });
+  }
+
+  /**
+   * What the retry loops send on each attempt.
+   *
+   * <p>
+   * When a subclass overrides the public {@code sendNoRetry} methods, sends
+   * without a deadline go through them, and their requests are recorded as
+   * first attempts by the {@link FlightRecorder}.
+   */
+  private abstract class Payload {
+
+    abstract Result sendNoRetry(String to, int attempt, Deadline deadline)
+        throws IOException;
+
+    abstract MulticastResult sendNoRetry(List<String> regIds, int attempt,
+        Deadline deadline) throws IOException;
+
+    abstract CompletableFuture<Result> sendNoRetryAsync(String to,
+        int attempt);
+
+    abstract CompletableFuture<MulticastResult> sendNoRetryAsync(
+        List<String> regIds, int attempt);
+  }
+
+  private boolean isSendNoRetryOverridden() {
+    return SEND_NO_RETRY_OVERRIDDEN.get(getClass());
+  }
+
+  /**
+   * A message that is serialized on each attempt.
+   */
+  private final class MessagePayload extends Payload {
+
+    private final Message message;
+
+    MessagePayload(Message message) {
+      this.message = message;
+    }
+
+    @Override
+    Result sendNoRetry(String to, int attempt, Deadline deadline)
+        throws IOException {
+      return deadline == null && isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetry(message, to)
+          : Sender.this.sendNoRetry(message, to, attempt, deadline);
+    }
+
+    @Override
+    MulticastResult sendNoRetry(List<String> regIds, int attempt,
+        Deadline deadline) throws IOException {
+      return deadline == null && isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetry(message, regIds)
+          : Sender.this.sendNoRetry(message, regIds, attempt, deadline);
+    }
+
+    @Override
+    CompletableFuture<Result> sendNoRetryAsync(String to, int attempt) {
+      return isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetryAsync(message, to)
+          : Sender.this.sendNoRetryAsync(message, to, attempt);
+    }
+
+    @Override
+    CompletableFuture<MulticastResult> sendNoRetryAsync(List<String> regIds,
+        int attempt) {
+      return isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetryAsync(message, regIds)
+          : Sender.this.sendNoRetryAsync(message, regIds, attempt);
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(message);
+    }
+  }
+
+  private final class PreparedPayload extends Payload {
+
+    private final PreparedMessage message;
+
+    PreparedPayload(PreparedMessage message) {
+      this.message = nonNull(message);
+    }
+
+    @Override
+    Result sendNoRetry(String to, int attempt, Deadline deadline)
+        throws IOException {
+      return deadline == null && isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetry(message, to)
+          : Sender.this.sendNoRetry(message, to, attempt, deadline);
+    }
+
+    @Override
+    MulticastResult sendNoRetry(List<String> regIds, int attempt,
+        Deadline deadline) throws IOException {
+      return deadline == null && isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetry(message, regIds)
+          : Sender.this.sendNoRetry(message, regIds, attempt, deadline);
+    }
+
+    @Override
+    CompletableFuture<Result> sendNoRetryAsync(String to, int attempt) {
+      return isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetryAsync(message, to)
+          : Sender.this.sendNoRetryAsync(message, to, attempt);
+    }
+
+    @Override
+    CompletableFuture<MulticastResult> sendNoRetryAsync(List<String> regIds,
+        int attempt) {
+      return isSendNoRetryOverridden()
+          ? Sender.this.sendNoRetryAsync(message, regIds)
+          : Sender.this.sendNoRetryAsync(message, regIds, attempt);
+    }
+
+    @Override
+    public String toString() {
+      return message.toString();
+    }
+  }
+
+  /**
+   * Schedules a retry on the shared timer, failing the future if the task was
+   * rejected. The timer only hands the task over to the executor, so its
+   * single thread never encodes or posts requests.
+   */
+  private void schedule(final CompletableFuture<?> future,
+      final Runnable task, long delayMillis) {
+    try {
+      schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            getExecutor().execute(task);
+          } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+          }
+        }
+      }, delayMillis);
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    return error;
+  }
+
+  /**
+   * Posts a request, once the rate limiter (if any) lets the given number of
+   * messages through, failing over between endpoints.
+   *
+   * @return the response, whose status is 200, or {@literal null} if the
+   *         request failed but could be retried.
+   *
+   * @throws InvalidRequestException if GCM didn't returned a 200 status.
+   */
+  private TransportResponse makeGcmHttpRequest(byte[] body, int messages,
+      int attempt, Deadline deadline) throws IOException {
+    RateLimiter limiter = rateLimiter;
+    if (limiter != null) {
+      long wait = deadline == null ? limiter.reserve(messages)
+          : limiter.tryReserve(messages, deadline.getRemainingMillis());
+      if (wait < 0) {
+        // the request could not be posted before the deadline, and its
+        // tokens are left to other requests
+        return null;
+      }
+      if (wait > 0) {
+        sleep(wait);
+      }
+    }
+    Failover failover = new Failover(attempt);
+    String url;
+    while ((url = endpoints.select(failover.tried)) != null) {
+      failover.tried.add(url);
+      if (deadline != null && deadline.isExpired()) {
+        return null;
+      }
+      CircuitBreaker.Permit permit;
+      try {
+        permit = acquireCircuit(url);
+      } catch (CircuitOpenException e) {
+        failover.circuitOpen = e;
+        continue;
+      }
+      failover.posted = true;
+      long start = endpoints.nanoTime();
+      // requests ending with an unexpected exception count as failed too, so
+      // a half-open circuit gets its probe back
+      boolean failed = true;
+      TransportResponse response;
+      try {
+        TransportRequest request =
+            newGcmHttpRequest(url, body, failover, deadline);
+        FlightRecorder.Recording recording =
+            startRecording(url, body, failover);
+        start = endpoints.nanoTime();
+        try {
+          response = Gzip.decoding(getPostTransport().post(request));
+        } catch (IOException e) {
+          if (recording != null) {
+            recording.failed(e);
+          }
+          logger.log(Level.FINE, "IOException posting to " + url, e);
+          continue;
+        }
+        if (recording != null) {
+          response = recording.responded(response);
+        }
+        failed = isServerError(response.getStatus());
+      } finally {
+        onPosted(url, start, permit, failed);
+      }
+      if (failed) {
+        failover.serverError = newInvalidRequestException(response);
+        continue;
+      }
+      checkGcmHttpStatus(response);
+      return response;
+    }
+    IOException error = failover.getError();
+    if (error != null) {
+      throw error;
+    }
+    return null;
+  }
+
+  /**
+   * Asynchronous version of
+   * {@link #makeGcmHttpRequest(byte[], int, int, Deadline)}: the future is
+   * completed with {@literal null} when the request could be retried.
+   * Requests held back by the rate limiter are delayed on the retry timer.
+   */
+  private CompletableFuture<TransportResponse> makeGcmHttpRequestAsync(
+      byte[] body, int messages, int attempt) {
+    final CompletableFuture<TransportResponse> future =
+        new CompletableFuture<TransportResponse>();
+    final Failover failover = new Failover(attempt);
+    RateLimiter limiter = rateLimiter;
+    long wait = limiter == null ? 0 : limiter.reserve(messages);
+    if (wait > 0) {
+      schedule(future, new Runnable() {
+        @Override
+        public void run() {
+          postAsync(body, failover, future);
+        }
+      }, wait);
+    } else {
+      postAsync(body, failover, future);
+    }
+    return future;
+  }
+
+  /**
+   * Posts a request to the healthiest endpoint it was not posted to yet,
+   * failing over to the next one when it fails.
+   */
+  private void postAsync(final byte[] body, final Failover failover,
+      final CompletableFuture<TransportResponse> future) {
+    final String url = endpoints.select(failover.tried);
+    if (url == null) {
+      IOException error = failover.getError();
+      if (error != null) {
+        future.completeExceptionally(error);
+      } else {
+        future.complete(null);
+      }
+      return;
+    }
+    failover.tried.add(url);
+    final CircuitBreaker.Permit permit;
+    try {
+      permit = acquireCircuit(url);
+    } catch (CircuitOpenException e) {
+      failover.circuitOpen = e;
+      postAsync(body, failover, future);
+      return;
+    }
+    failover.posted = true;
+    final FlightRecorder.Recording recording;
+    final long start;
+    CompletableFuture<TransportResponse> posted;
+    try {
+      TransportRequest request = newGcmHttpRequest(url, body, failover, null);
+      recording = startRecording(url, body, failover);
+      start = endpoints.nanoTime();
+      posted = getPostTransport().postAsync(request, getExecutor());
+    } catch (RuntimeException e) {
+      onPosted(url, endpoints.nanoTime(), permit, true);
+      future.completeExceptionally(e);
+      return;
+    }
+    posted.whenComplete(
+        new BiConsumer<TransportResponse, Throwable>() {
+          @Override
+          public void accept(TransportResponse response, Throwable error) {
+            // the permit is released once, as failed if an unexpected
+            // exception is thrown before
+            boolean released = false;
+            try {
+              if (error != null) {
+                released = true;
+                onPosted(url, start, permit, true);
+                error = unwrap(error);
+                if (recording != null) {
+                  recording.failed(error);
+                }
+                if (!(error instanceof IOException)) {
+                  future.completeExceptionally(error);
+                  return;
+                }
+                logger.log(Level.FINE, "IOException posting to " + url,
+                    error);
+                postAsync(body, failover, future);
+                return;
+              }
+              response = Gzip.decoding(response);
+              if (recording != null) {
+                response = recording.responded(response);
+              }
+              boolean failed = isServerError(response.getStatus());
+              released = true;
+              onPosted(url, start, permit, failed);
+              if (failed) {
+                failover.serverError = newInvalidRequestException(response);
+                postAsync(body, failover, future);
+              } else {
+                checkGcmHttpStatus(response);
+                future.complete(response);
+              }
+            } catch (Throwable e) {
+              if (!released) {
+                onPosted(url, start, permit, true);
+              }
+              future.completeExceptionally(e);
+            }
+          }
+        });
+  }
+
+  /**
+   * Endpoints a request was posted to, and how it failed on them.
+   */
+  private static final class Failover {
+    final int attempt;
+    final List<String> tried = new ArrayList<String>(2);
+    boolean posted;
+    CircuitOpenException circuitOpen;
+    InvalidRequestException serverError;
+    // body compressed for the first endpoint, posted to the others as well
+    byte[] compressed;
+
+    Failover(int attempt) {
+      this.attempt = attempt;
+    }
+
+    /**
+     * Gets the error to report once the request failed on all endpoints, or
+     * {@literal null} if it could be retried.
+     */
+    IOException getError() {
+      if (serverError != null) {
+        return serverError;
+      }
+      return posted ? null : circuitOpen;
+    }
+  }
+
+  /**
+   * Starts recording a request with the flight recorder, if any.
+   *
+   * @return the recording, or {@literal null} if the request is not recorded.
+   */
+  private FlightRecorder.Recording startRecording(String url, byte[] body,
+      Failover failover) {
+    FlightRecorder recorder = flightRecorder;
+    return recorder == null ? null
+        : recorder.start(url, body, failover.attempt);
+  }
+
+  /**
+   * Asks the circuit breaker, if any, to post a request to an endpoint.
+   *
+   * @return permit to release once the request completed, or {@literal null}
+   *         if there is no circuit breaker.
+   */
+  private CircuitBreaker.Permit acquireCircuit(String url)
+      throws CircuitOpenException {
+    CircuitBreaker breaker = circuitBreaker;
+    return breaker == null ? null : breaker.acquire(url, metrics);
+  }
+
+  /**
+   * Reports the outcome of a request to the circuit breaker, if any, and to
+   * the endpoint selector.
+   */
+  private void onPosted(String url, long start, CircuitBreaker.Permit permit,
+      boolean failed) {
+    endpoints.record(url, endpoints.nanoTime() - start, failed);
+    if (permit != null) {
+      permit.release(failed, metrics);
+    }
+  }
+
+  private static boolean isServerError(int status) {
+    return status >= 500 && status < 600;
+  }
+
+  /**
+   * Creates a request, whose timeouts are shortened to the time left before
+   * the deadline, if any, and whose body is compressed if it is above the
+   * gzip threshold.
+   */
+  private TransportRequest newGcmHttpRequest(String url, byte[] body,
+      Failover failover, Deadline deadline) {
+    int threshold = gzipThreshold;
+    boolean gzip = threshold >= 0 && body.length >= threshold;
+    if (gzip && failover.compressed == null) {
+      failover.compressed = Gzip.compress(body);
+    }
+    TransportRequest.Builder builder = new TransportRequest.Builder(url,
+        gzip ? failover.compressed : body)
+        .header("Content-Type", "application/json")
+        .header("Authorization", "key=" + key)
+        .connectTimeout(getTimeout(connectTimeout, deadline))
+        .readTimeout(getTimeout(readTimeout, deadline));
+    if (threshold >= 0) {
+      builder.header("Accept-Encoding", Gzip.ENCODING);
+    }
+    if (gzip) {
+      builder.header("Content-Encoding", Gzip.ENCODING);
+    }
+    return builder.build();
+  }
+
+  private static int getTimeout(int timeout, Deadline deadline) {
+    if (deadline == null) {
+      return timeout;
+    }
+    // 0 would mean no timeout
+    long remaining = Math.max(1, deadline.getRemainingMillis());
+    return timeout == 0 || timeout > remaining
+        ? (int) Math.min(remaining, Integer.MAX_VALUE) : timeout;
+  }
+
+  /**
+   * Checks whether there is time for another attempt before the deadline, if
+   * any, after the given delay, assuming it takes as long as the previous
+   * one.
+   *
+   * @param remaining time left before the previous attempt, in nanoseconds.
+   */
+  private static boolean canRetry(Deadline deadline, long remaining,
+      long delayMillis) {
+    if (deadline == null) {
+      return true;
+    }
+    long now = deadline.getRemainingNanos();
+    long attempt = Math.max(remaining - now, MIN_ATTEMPT_NANOS);
+    return TimeUnit.MILLISECONDS.toNanos(delayMillis) + attempt <= now;
+  }
+
+  private void checkGcmHttpStatus(TransportResponse response)
+      throws InvalidRequestException {
+    int status = response.getStatus();
+    if (status == HTTP_TOO_MANY_REQUESTS) {
+      RateLimiter limiter = rateLimiter;
+      if (limiter != null) {
+        limiter.onThrottled();
+      }
+    }
+    if (status != 200) {
+      throw newInvalidRequestException(response);
+    }
+  }
+
+  /**
+   * Creates the exception of a response whose status is not 200, reading its
+   * body.
+   */
+  private InvalidRequestException newInvalidRequestException(
+      TransportResponse response) {
+    String responseBody;
+    try {
+      responseBody = getAndClose(response.getBody());
+    } catch (IOException e) {
+      // ignore the exception since it will thrown an InvalidRequestException
+      // anyways
+      responseBody = "N/A";
+      logger.log(Level.FINE, "Exception reading response: ", e);
+    }
+    return new InvalidRequestException(response.getStatus(), responseBody,
+        getRetryAfter(response));
+  }
+
+  /**
+   * Reads the body of a successful response.
+   *
+   * @return the body, or {@literal null} if it could not be read.
+   */
+  private String readGcmHttpResponse(TransportResponse response) {
+    String responseBody;
+    try {
+      responseBody = getAndClose(response.getBody());
+    } catch(IOException e) {
+      logger.log(Level.WARNING, "IOException reading response", e);
+      return null;
+    }
+    return responseBody;
+  }
+
+  /**
+   * Parses the response of a message sent to many devices as it is read.
+   *
+   * @return multicast results, or {@literal null} if the response could not be
+   *         read.
+   *
+   * @throws IOException if the response could not be parsed.
+   */
+  private MulticastResult readMulticastResult(TransportResponse response)
+      throws IOException {
+    InputStream stream = null;
+    try {
+      stream = response.getBody();
+      return new MulticastResponseParser(stream).parse()
+          .retryAfter(getRetryAfter(response))
+          .build();
+    } catch (MulticastResponseParser.MalformedResponseException e) {
+      String msg = "Error parsing JSON response";
+      logger.log(Level.WARNING, msg, e);
+      throw new IOException(msg + ": " + e.getMessage(), e);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "IOException reading response", e);
+      return null;
+    } finally {
+      close(stream);
+    }
+  }
+
   private IOException newIoException(String responseBody, Exception e) {
     // log exception, as IOException constructor that takes a message and cause
     // is only available on Java 6
@@ -554,16 +1754,6 @@ public class Sender {
     }
   }
 
-  /**
-   * Sets a JSON field, but only if the value is not {@literal null}.
-   */
-  private void setJsonField(Map<Object, Object> json, String field,
-      Object value) {
-    if (value != null) {
-      json.put(field, value);
-    }
-  }
-
   private Number getNumber(Map<?, ?> json, String field) {
     Object value = json.get(field);
     if (value == null) {
@@ -586,7 +1776,10 @@ public class Sender {
    * Make an HTTP post to a given URL.
    *
    * @return HTTP response.
+   *
+   * @deprecated see {@link #post(String, String, String)}.
    */
+  @Deprecated
   protected HttpURLConnection post(String url, String body)
       throws IOException {
     return post(url, "application/x-www-form-urlencoded;charset=UTF-8", body);
@@ -606,7 +1799,14 @@ public class Sender {
    * @return the underlying connection.
    *
    * @throws IOException propagated from underlying methods.
+   *
+   * @deprecated messages are posted through the {@link Transport} of this
+   *             sender, so sending them does not call this method anymore,
+   *             and overriding it has no effect on them. To customize their
+   *             requests, override {@link #getConnection(String)} or set a
+   *             {@link Transport} with {@link #setTransport(Transport)}.
    */
+  @Deprecated
   protected HttpURLConnection post(String url, String contentType, String body)
       throws IOException {
     if (url == null || contentType == null || body == null) {
@@ -616,7 +1816,9 @@ public class Sender {
       logger.warning("URL does not use https: " + url);
     }
     logger.fine("Sending POST to " + url);
-    logger.finest("POST body: " + body);
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("POST body: " + body);
+    }
     byte[] bytes = body.getBytes(UTF8);
     HttpURLConnection conn = getConnection(url);
     conn.setDoOutput(true);
@@ -723,6 +1925,220 @@ public class Sender {
     return argument;
   }
 
+  /**
+   * Gets how long to wait before the next retry, adding jitter to the back-off.
+   */
+  int getSleepTime(int backoff) {
+    return backoff / 2 + random.nextInt(backoff);
+  }
+
+  /**
+   * Gets the back-off to be used after the current one, which doubles it up to
+   * {@link #MAX_BACKOFF_DELAY}.
+   */
+  static int getNextBackoff(int backoff) {
+    return 2 * backoff < MAX_BACKOFF_DELAY ? 2 * backoff : backoff;
+  }
+
+  /**
+   * Reports a result to the metrics and token feedback listener, if any, and
+   * slows down the rate limiter, if any, when GCM returned a throttling error.
+   */
+  private Result observe(String to, String resolved, Result result) {
+    if (result == null) {
+      return null;
+    }
+    TokenRegistry registry = tokenRegistry;
+    if (registry != null) {
+      register(registry, resolved, result);
+    }
+    TokenFeedbackListener feedbackListener = tokenFeedbackListener;
+    if (feedbackListener != null && !to.startsWith(TOPIC_PREFIX)) {
+      TokenFeedback feedback = TokenFeedback.of(to, result);
+      if (feedback != null) {
+        notifyTokenFeedback(feedbackListener,
+            Collections.singletonList(feedback));
+      }
+    }
+    SenderMetrics currentMetrics = metrics;
+    if (currentMetrics != null) {
+      currentMetrics.onResult(result);
+    }
+    RateLimiter limiter = rateLimiter;
+    if (limiter != null && isThrottlingError(result)) {
+      limiter.onThrottled();
+    }
+    return result;
+  }
+
+  private MulticastResult observe(List<String> regIds, List<String> resolved,
+      MulticastResult multicastResult) {
+    SenderMetrics currentMetrics = metrics;
+    RateLimiter limiter = rateLimiter;
+    TokenFeedbackListener feedbackListener = tokenFeedbackListener;
+    TokenRegistry registry = tokenRegistry;
+    if (multicastResult == null || (currentMetrics == null && limiter == null
+        && feedbackListener == null && registry == null)) {
+      return multicastResult;
+    }
+    List<Result> results = multicastResult.getResults();
+    if ((feedbackListener != null || registry != null)
+        && results.size() != regIds.size()) {
+      logger.warning("Expected " + regIds.size() + " results, got "
+          + results.size() + "; ignoring canonical ids");
+      feedbackListener = null;
+      registry = null;
+    }
+    boolean throttled = false;
+    List<TokenFeedback> feedbacks = null;
+    for (int i = 0; i < results.size(); i++) {
+      Result result = results.get(i);
+      if (currentMetrics != null) {
+        currentMetrics.onResult(result);
+      }
+      throttled |= isThrottlingError(result);
+      if (registry != null) {
+        register(registry, resolved.get(i), result);
+      }
+      if (feedbackListener != null) {
+        TokenFeedback feedback = TokenFeedback.of(regIds.get(i), result);
+        if (feedback != null) {
+          if (feedbacks == null) {
+            feedbacks = new ArrayList<TokenFeedback>();
+          }
+          feedbacks.add(feedback);
+        }
+      }
+    }
+    if (limiter != null && throttled) {
+      limiter.onThrottled();
+    }
+    if (feedbacks != null) {
+      notifyTokenFeedback(feedbackListener, feedbacks);
+    }
+    return multicastResult;
+  }
+
+  /**
+   * Adds the canonical id of a result, if any, to the registry.
+   */
+  private static void register(TokenRegistry registry, String to,
+      Result result) {
+    String canonicalId = result.getCanonicalRegistrationId();
+    if (canonicalId == null || to.startsWith(TOPIC_PREFIX)) {
+      return;
+    }
+    try {
+      registry.putCanonicalId(to, canonicalId);
+    } catch (IOException e) {
+      // the message was sent, so failing the send would only resend it
+      logger.log(Level.WARNING, "Could not add canonical id to the registry",
+          e);
+    }
+  }
+
+  /**
+   * Replaces a registration id by its canonical id, if the registry has one.
+   */
+  private String resolve(String to) {
+    TokenRegistry registry = tokenRegistry;
+    return registry == null || to.startsWith(TOPIC_PREFIX) ? to
+        : registry.resolve(to);
+  }
+
+  private List<String> resolve(List<String> regIds) {
+    TokenRegistry registry = tokenRegistry;
+    return registry == null ? regIds : registry.resolve(regIds);
+  }
+
+  private static void notifyTokenFeedback(TokenFeedbackListener listener,
+      List<TokenFeedback> feedback) {
+    try {
+      listener.onTokenFeedback(feedback);
+    } catch (RuntimeException e) {
+      // the message was sent, so failing the send would only resend it
+      logger.log(Level.WARNING, "Token feedback listener failed", e);
+    }
+  }
+
+  private void onRetry() {
+    SenderMetrics currentMetrics = metrics;
+    if (currentMetrics != null) {
+      currentMetrics.onRetry();
+    }
+  }
+
+  /**
+   * Gets the transport requests are posted to, which reports them to the
+   * metrics, if any.
+   */
+  private Transport getPostTransport() {
+    Transport current = getTransport();
+    SenderMetrics currentMetrics = metrics;
+    return currentMetrics == null ? current
+        : new MeteredTransport(current, currentMetrics);
+  }
+
+  private static boolean isThrottlingError(Result result) {
+    ErrorCode error = result.getErrorCode();
+    return error != null && error.isThrottling();
+  }
+
+  /**
+   * Gets the delay before the next attempt: the one asked by GCM if it sent a
+   * {@literal Retry-After} header, or the randomized back-off otherwise.
+   */
+  long getRetryDelay(int backoff, long retryAfter) {
+    return retryAfter >= 0 ? retryAfter : getSleepTime(backoff);
+  }
+
+  private static long getRetryAfter(Throwable error) {
+    return error instanceof InvalidRequestException
+        ? ((InvalidRequestException) error).getRetryAfter() : -1;
+  }
+
+  private static long getRetryAfter(TransportResponse response) {
+    return parseRetryAfter(response.getHeader(HEADER_RETRY_AFTER),
+        System.currentTimeMillis());
+  }
+
+  /**
+   * Parses a {@literal Retry-After} header, which is either a number of
+   * seconds or an HTTP date.
+   *
+   * @return the delay in milliseconds, or {@literal -1} if the value is
+   *         {@literal null} or invalid.
+   */
+  static long parseRetryAfter(String value, long nowMillis) {
+    if (value == null) {
+      return -1;
+    }
+    value = value.trim();
+    try {
+      long seconds = Long.parseLong(value);
+      return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+    } catch (NumberFormatException e) {
+      // not a number of seconds, try a date
+    }
+    try {
+      long date = ZonedDateTime.parse(value,
+          DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+      return Math.max(date - nowMillis, 0);
+    } catch (DateTimeParseException e) {
+      logger.fine("Ignoring invalid Retry-After header: " + value);
+      return -1;
+    }
+  }
+
+  /**
+   * Runs a task after the given delay on the retry timer.
+   */
+  void schedule(Runnable task, long delayMillis) {
+    RetryScheduler current = retryScheduler;
+    (current != null ? current : SharedExecutors.timer())
+        .schedule(task, delayMillis);
+  }
+
   void sleep(long millis) {
     try {
       Thread.sleep(millis);
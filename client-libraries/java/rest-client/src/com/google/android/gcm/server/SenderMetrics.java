@@ -0,0 +1,76 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Listener notified by a {@link Sender} of what happens to its requests, set
+ * through {@link Sender#setMetrics(SenderMetrics)}.
+ *
+ * <p>
+ * {@link MetricsRecorder} keeps counters and latency histograms that can be
+ * exported; other implementations can forward the events to an existing
+ * metrics library. When no listener is set, the sender does not measure
+ * anything.
+ *
+ * <p>
+ * Implementations must be thread-safe and fast, as they are called on the
+ * threads sending the messages. All methods do nothing by default.
+ */
+public interface SenderMetrics {
+
+  /**
+   * Called once the response of an HTTP request was read (or closed), or once
+   * the request failed.
+   *
+   * @param status HTTP status of the response, or {@literal 0} if no response
+   *        was received.
+   * @param latencyNanos time from the request being posted to its response
+   *        being read, in nanoseconds.
+   * @param bytesSent size of the request body.
+   * @param bytesReceived number of bytes of the response body that were read.
+   */
+  default void onRequest(int status, long latencyNanos, long bytesSent,
+      long bytesReceived) {
+  }
+
+  /**
+   * Called for each message result parsed from a successful response.
+   */
+  default void onResult(Result result) {
+  }
+
+  /**
+   * Called when a send is about to be retried after a failed attempt.
+   */
+  default void onRetry() {
+  }
+
+  /**
+   * Called when the circuit of an endpoint changes state.
+   *
+   * @see Sender#setCircuitBreaker(CircuitBreaker)
+   */
+  default void onCircuitStateChange(String endpoint, CircuitBreaker.State from,
+      CircuitBreaker.State to) {
+  }
+
+  /**
+   * Called when a request was not posted because the circuit of its endpoint
+   * is open.
+   */
+  default void onCircuitRejected(String endpoint) {
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executors shared by all {@link Sender} instances of the JVM.
+ *
+ * <p>
+ * Threads are daemons and created lazily, so applications that only use the
+ * blocking API never start them.
+ */
+final class SharedExecutors {
+
+  private static final Logger logger =
+      Logger.getLogger(SharedExecutors.class.getName());
+
+  // requests of the default transport hold their thread until the response
+  // arrives; past this many, requests wait in the queue of the pool instead
+  // of starting more threads
+  static final int IO_THREADS =
+      Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+  static final long RETRY_TICK_MILLIS = 10;
+  // a turn of the wheel covers about 40s, longer back-offs go round again
+  private static final int RETRY_WHEEL_SIZE = 4096;
+  // Thread.isVirtual(), or null before Java 21
+  private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+  private SharedExecutors() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Gets the executor used to run requests of asynchronous sends when the
+   * {@link Sender} was not given one, which has at most
+   * {@link #IO_THREADS} threads.
+   */
+  static ExecutorService io() {
+    return IoHolder.IO;
+  }
+
+  /**
+   * Gets the timing wheel used to schedule retries, which ticks every
+   * {@value #RETRY_TICK_MILLIS}ms.
+   *
+   * <p>
+   * Tasks run on the timer thread must be short, they should just hand the
+   * real work to another executor.
+   */
+  static RetryScheduler timer() {
+    return TimerHolder.TIMER;
+  }
+
+  /**
+   * Gets an executor that runs each task on a new virtual thread, named with
+   * the given prefix.
+   *
+   * <p>
+   * The library is built for Java 11, so virtual threads are looked up
+   * reflectively.
+   *
+   * @return the executor, or {@literal null} if the JVM does not have virtual
+   *         threads (before Java 21).
+   */
+  static ExecutorService newVirtualThreadExecutor(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, prefix + "-", 1L);
+      ThreadFactory factory =
+          (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      Method newExecutor = Executors.class.getMethod(
+          "newThreadPerTaskExecutor", ThreadFactory.class);
+      return (ExecutorService) newExecutor.invoke(null, factory);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (ReflectiveOperationException e) {
+      logger.log(Level.WARNING, "Could not create virtual threads", e);
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether a thread is virtual, in which case thread locals are not
+   * worth caching anything in: the thread runs one task and there may be
+   * hundreds of thousands of them.
+   */
+  static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (boolean) IS_VIRTUAL.invokeExact(thread);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle findIsVirtual() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(Thread.class,
+          "isVirtual", MethodType.methodType(boolean.class));
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  static ThreadFactory newThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable,
+            prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static final class IoHolder {
+    static final ExecutorService IO = newIoExecutor();
+
+    private static ExecutorService newIoExecutor() {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS,
+          IO_THREADS, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          newThreadFactory("gcm-sender-io"));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+
+  private static final class TimerHolder {
+    static final RetryScheduler TIMER = new RetryScheduler(
+        RetryScheduler.SYSTEM_TICKER, RETRY_TICK_MILLIS, RETRY_WHEEL_SIZE,
+        newThreadFactory("gcm-sender-timer"));
+  }
+}
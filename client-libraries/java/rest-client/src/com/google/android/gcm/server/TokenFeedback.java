@@ -0,0 +1,103 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Change to make to a stored registration id, as reported by GCM in the
+ * result of a message sent to it.
+ *
+ * <p>
+ * The registration id should either be replaced, in which case
+ * {@link #getCanonicalRegistrationId()} returns its replacement, or removed,
+ * in which case {@link #getErrorCodeName()} returns the reason:
+ * {@link Constants#ERROR_NOT_REGISTERED} or
+ * {@link Constants#ERROR_INVALID_REGISTRATION}.
+ *
+ * @see TokenFeedbackListener
+ */
+public final class TokenFeedback {
+
+  private final String registrationId;
+  private final String canonicalRegistrationId;
+  private final String errorCode;
+
+  private TokenFeedback(String registrationId, String canonicalRegistrationId,
+      String errorCode) {
+    this.registrationId = registrationId;
+    this.canonicalRegistrationId = canonicalRegistrationId;
+    this.errorCode = errorCode;
+  }
+
+  /**
+   * Gets the feedback of a message sent to a registration id, or
+   * {@literal null} if it should be kept as is.
+   */
+  static TokenFeedback of(String registrationId, Result result) {
+    String canonicalRegId = result.getCanonicalRegistrationId();
+    if (canonicalRegId != null && !canonicalRegId.equals(registrationId)) {
+      return new TokenFeedback(registrationId, canonicalRegId, null);
+    }
+    ErrorCode error = result.getErrorCode();
+    if (error != null && error.shouldRemoveRegistrationId()) {
+      return new TokenFeedback(registrationId, null, error.getName());
+    }
+    return null;
+  }
+
+  /**
+   * Gets the registration id the message was sent to.
+   */
+  public String getRegistrationId() {
+    return registrationId;
+  }
+
+  /**
+   * Gets the registration id that should replace it, or {@literal null} if it
+   * should be removed.
+   */
+  public String getCanonicalRegistrationId() {
+    return canonicalRegistrationId;
+  }
+
+  /**
+   * Gets the reason why it should be removed, or {@literal null} if it should
+   * be replaced.
+   */
+  public String getErrorCodeName() {
+    return errorCode;
+  }
+
+  /**
+   * Checks whether the registration id should be removed.
+   */
+  public boolean isRemoved() {
+    return errorCode != null;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("[ registrationId=")
+        .append(registrationId);
+    if (canonicalRegistrationId != null) {
+      builder.append(" canonicalRegistrationId=")
+          .append(canonicalRegistrationId);
+    }
+    if (errorCode != null) {
+      builder.append(" errorCode=").append(errorCode);
+    }
+    return builder.append(" ]").toString();
+  }
+}
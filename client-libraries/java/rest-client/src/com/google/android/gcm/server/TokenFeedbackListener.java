@@ -0,0 +1,47 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.List;
+
+/**
+ * Listener notified by a {@link Sender} of the registration ids that should be
+ * replaced or removed, set through
+ * {@link Sender#setTokenFeedbackListener(TokenFeedbackListener)}.
+ *
+ * <p>
+ * The listener is called once per response that has feedback, as soon as it
+ * is parsed and before the send completes, with the feedback of all the
+ * registration ids of the request; a multicast request therefore yields one
+ * batch of up to {@link Constants#MULTICAST_SIZE_LIMIT} changes, which can be
+ * applied in a single database update. Messages sent to one device each can
+ * be grouped in multicast requests with a {@link BatchingSender}.
+ *
+ * <p>
+ * Implementations must be thread-safe, as they are called on the threads
+ * sending the messages. An exception thrown by the listener is logged, and
+ * does not fail the send.
+ */
+public interface TokenFeedbackListener {
+
+  /**
+   * Called with the feedback of the registration ids of a response, in the
+   * order they were sent.
+   *
+   * @param feedback non-empty list of changes, which the listener can keep.
+   */
+  void onTokenFeedback(List<TokenFeedback> feedback);
+}
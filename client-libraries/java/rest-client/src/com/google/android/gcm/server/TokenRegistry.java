@@ -0,0 +1,692 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the canonical registration id of stale registration ids,
+ * stored outside of the Java heap in memory-mapped files.
+ *
+ * <p>
+ * When set on a {@link Sender} through
+ * {@link Sender#setTokenRegistry(TokenRegistry)}, registration ids are
+ * replaced by their canonical id before being sent, and the canonical ids
+ * returned by GCM are added to the registry. Results are still reported for
+ * the registration ids given by the caller, in the same order.
+ *
+ * <p>
+ * Each registration id is stored once, as UTF-8 bytes in a data file along
+ * with the position of its canonical id in that file, so many ids replaced
+ * by the same canonical id share its bytes; a hash table of positions in an
+ * index file finds them. A registration id of 150 characters takes about
+ * 180 bytes, none of them on the heap, where a
+ * {@code HashMap<String, String>} takes more than twice as much. The files
+ * are in the page cache, so a registry opened again after the process died
+ * has all its registration ids right away; {@link #force()} also makes
+ * them survive the machine crashing. The index is rebuilt from the data file
+ * when it is missing or out of date.
+ *
+ * <p>
+ * The registry is thread-safe; lookups run concurrently with each other.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ * TokenRegistry registry = new TokenRegistry.Builder(new File("tokens"))
+ *    .expectedTokens(10000000)
+ *    .build();
+ * sender.setTokenRegistry(registry);
+ * </pre></code>
+ */
+public final class TokenRegistry implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(TokenRegistry.class.getName());
+
+  // "GCMT"
+  static final int MAGIC = 0x47434d54;
+  static final int VERSION = 1;
+  static final String DATA_FILE = "tokens.dat";
+  static final String INDEX_FILE = "tokens.idx";
+  static final int MAX_TOKEN_LENGTH = 4096;
+
+  // magic, version and size in use for the data file; magic, version,
+  // number of slots, number of tokens and size of the data file it indexes
+  // for the index file
+  private static final int HEADER_SIZE = 32;
+  // position of the canonical id, hash and length, followed by the bytes
+  private static final int RECORD_HEADER_SIZE = 14;
+  private static final long NO_CANONICAL_ID = 0;
+  // written where the rest of a chunk of the data file is not used
+  private static final long END_OF_CHUNK = -1;
+  private static final int MIN_SLOTS = 1024;
+  private static final int INITIAL_DATA_SIZE = 64 * 1024;
+  // bound on the canonical ids followed, in case they form a cycle
+  private static final int MAX_HOPS = 16;
+  // slots keep the position in the low 40 bits and part of the hash above
+  private static final int POSITION_BITS = 40;
+  private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+  private final File directory;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // guarded by the lock
+  private final MappedFile data;
+  private MappedFile index;
+  private long slots;
+  private long count;
+  private long dataSize;
+  private boolean closed;
+
+  public static final class Builder {
+
+    // required parameters
+    private final File directory;
+
+    // optional parameters
+    private long expectedTokens;
+    private int chunkSize = 64 * 1024 * 1024;
+
+    /**
+     * Creates a builder.
+     *
+     * @param directory directory of the files, which is created if needed.
+     *        It must not be used by another registry at the same time.
+     */
+    public Builder(File directory) {
+      this.directory = Sender.nonNull(directory);
+    }
+
+    /**
+     * Sets the number of registration ids the index is sized for when it is
+     * created (default value is {@literal 0}); it grows when needed, but
+     * growing takes a pause proportional to its size.
+     */
+    public Builder expectedTokens(long value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("expectedTokens cannot be negative");
+      }
+      expectedTokens = value;
+      return this;
+    }
+
+    /**
+     * Sets the size of the regions the files are mapped in, which must be a
+     * power of two of at least {@literal 4096} bytes (default value is
+     * {@literal 64MiB}).
+     */
+    Builder chunkSize(int value) {
+      if (value < 4096 || Integer.bitCount(value) != 1) {
+        throw new IllegalArgumentException(
+            "chunkSize must be a power of two of at least 4096");
+      }
+      chunkSize = value;
+      return this;
+    }
+
+    /**
+     * Opens the registry, rebuilding its index if needed.
+     *
+     * @throws IOException if the files could not be read or created.
+     */
+    public TokenRegistry build() throws IOException {
+      return new TokenRegistry(this);
+    }
+  }
+
+  private TokenRegistry(Builder builder) throws IOException {
+    directory = builder.directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    int chunkShift = Integer.numberOfTrailingZeros(builder.chunkSize);
+    File dataFile = new File(directory, DATA_FILE);
+    boolean created = !dataFile.exists() || dataFile.length() == 0;
+    data = new MappedFile(dataFile,
+        created ? INITIAL_DATA_SIZE : dataFile.length(), chunkShift);
+    try {
+      if (created) {
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putLong(8, HEADER_SIZE);
+      } else {
+        checkHeader(dataFile, data);
+      }
+      dataSize = data.getLong(8);
+      if (dataSize < HEADER_SIZE || dataSize > data.size) {
+        throw new IOException(dataFile + " is corrupted");
+      }
+      if (!openIndex(chunkShift)) {
+        long expected = Math.max(builder.expectedTokens, 1);
+        rebuildIndex(getSlotCount(expected), chunkShift);
+      }
+    } catch (IOException e) {
+      data.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the most recent canonical id of a registration id.
+   *
+   * @return the canonical id, or {@literal null} if the registration id is
+   *         not stale, as far as the registry knows.
+   *
+   * @throws IllegalArgumentException if token is {@literal null}.
+   * @throws IllegalStateException if the registry is closed.
+   */
+  public String getCanonicalId(String token) {
+    byte[] bytes = Sender.nonNull(token).getBytes(StandardCharsets.UTF_8);
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      long record = find(bytes, hash(token));
+      return record == 0 ? null : canonicalId(record);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the registration id a message should be sent to: the most recent
+   * canonical id of a registration id, or the registration id itself.
+   *
+   * @see #getCanonicalId(String)
+   */
+  public String resolve(String token) {
+    String canonicalId = getCanonicalId(token);
+    return canonicalId == null ? token : canonicalId;
+  }
+
+  /**
+   * Resolves many registration ids at once.
+   *
+   * @return a new list where the stale registration ids are replaced by their
+   *         canonical id, or the same list if none of them is stale.
+   *
+   * @see #resolve(String)
+   */
+  public List<String> resolve(List<String> tokens) {
+    List<String> resolved = null;
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      for (int i = 0; i < tokens.size(); i++) {
+        String token = tokens.get(i);
+        long record = find(token.getBytes(StandardCharsets.UTF_8),
+            hash(token));
+        String canonicalId = record == 0 ? null : canonicalId(record);
+        if (canonicalId != null) {
+          if (resolved == null) {
+            resolved = new ArrayList<String>(tokens);
+          }
+          resolved.set(i, canonicalId);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return resolved == null ? tokens : resolved;
+  }
+
+  /**
+   * Records the canonical id of a registration id, as returned by
+   * {@link Result#getCanonicalRegistrationId()}. Registration ids that were
+   * replaced by the stale one are replaced by its canonical id too.
+   *
+   * @throws IllegalArgumentException if a registration id is {@literal null}
+   *         or longer than {@literal 4096} bytes.
+   * @throws IllegalStateException if the registry is closed.
+   * @throws IOException if the files could not be grown.
+   */
+  public void putCanonicalId(String token, String canonicalId)
+      throws IOException {
+    byte[] tokenBytes = encode(token);
+    byte[] canonicalBytes = encode(canonicalId);
+    if (token.equals(canonicalId)) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      long record = intern(tokenBytes, hash(token));
+      long canonicalRecord = intern(canonicalBytes, hash(canonicalId));
+      if (resolveRecord(canonicalRecord) == record) {
+        // the canonical id used to be replaced by the token, which is now
+        // the stale one
+        data.putLong(canonicalRecord, NO_CANONICAL_ID);
+      }
+      data.putLong(record, canonicalRecord);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the number of registration ids stored, including canonical ids.
+   */
+  public long size() {
+    lock.readLock().lock();
+    try {
+      return count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the registry to the storage device.
+   */
+  public void force() {
+    lock.writeLock().lock();
+    try {
+      if (!closed) {
+        data.force();
+        index.force();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Closes the files; the registry cannot be used afterwards.
+   */
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      if (!closed) {
+        closed = true;
+        data.close();
+        index.close();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("registry is closed");
+    }
+  }
+
+  /**
+   * Follows the canonical ids of a record and decodes the last one.
+   */
+  private String canonicalId(long record) {
+    long canonicalRecord = resolveRecord(record);
+    if (canonicalRecord == record) {
+      return null;
+    }
+    byte[] bytes = new byte[data.getShort(canonicalRecord + 12)];
+    data.get(canonicalRecord + RECORD_HEADER_SIZE, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private long resolveRecord(long record) {
+    for (int i = 0; i < MAX_HOPS; i++) {
+      long next = data.getLong(record);
+      if (next == NO_CANONICAL_ID) {
+        break;
+      }
+      record = next;
+    }
+    return record;
+  }
+
+  /**
+   * Gets the position of the record of a registration id in the data file,
+   * or {@literal 0} if it is not stored.
+   */
+  private long find(byte[] token, int hash) {
+    long fragment = (hash >>> 8) & 0xffffffL;
+    long mask = slots - 1;
+    for (long i = hash & mask;; i = (i + 1) & mask) {
+      long slot = index.getLong(slotPosition(i));
+      if (slot == 0) {
+        return 0;
+      }
+      long record = slot & POSITION_MASK;
+      if ((slot >>> POSITION_BITS) == fragment && matches(record, token)) {
+        return record;
+      }
+    }
+  }
+
+  private boolean matches(long record, byte[] token) {
+    if (data.getShort(record + 12) != token.length) {
+      return false;
+    }
+    long position = record + RECORD_HEADER_SIZE;
+    for (int i = 0; i < token.length; i++) {
+      if (data.getByte(position + i) != token[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the position of the record of a registration id, appending it to
+   * the data file if it is not stored yet.
+   */
+  private long intern(byte[] token, int hash) throws IOException {
+    long record = find(token, hash);
+    if (record != 0) {
+      return record;
+    }
+    if (2 * (count + 1) > slots) {
+      rebuildIndex(2 * slots, index.chunkShift);
+    }
+    int length = RECORD_HEADER_SIZE + token.length;
+    record = dataSize;
+    long remaining = data.chunkSize() - (record & data.chunkMask());
+    if (remaining < length) {
+      // records do not span chunks
+      if (remaining >= RECORD_HEADER_SIZE) {
+        data.ensureSize(record + 8);
+        data.putLong(record, END_OF_CHUNK);
+      }
+      record += remaining;
+    }
+    data.ensureSize(record + length);
+    data.putLong(record, NO_CANONICAL_ID);
+    data.putInt(record + 8, hash);
+    data.putShort(record + 12, (short) token.length);
+    data.put(record + RECORD_HEADER_SIZE, token);
+    dataSize = record + length;
+    data.putLong(8, dataSize);
+    insert(record, hash);
+    count++;
+    index.putLong(16, count);
+    index.putLong(24, dataSize);
+    return record;
+  }
+
+  private void insert(long record, int hash) {
+    long mask = slots - 1;
+    long i = hash & mask;
+    while (index.getLong(slotPosition(i)) != 0) {
+      i = (i + 1) & mask;
+    }
+    index.putLong(slotPosition(i),
+        ((hash >>> 8) & 0xffffffL) << POSITION_BITS | record);
+  }
+
+  /**
+   * Opens the index file, if it exists and indexes the whole data file.
+   */
+  private boolean openIndex(int chunkShift) throws IOException {
+    File file = new File(directory, INDEX_FILE);
+    if (!file.exists()) {
+      return false;
+    }
+    MappedFile existing = new MappedFile(file, file.length(), chunkShift);
+    try {
+      checkHeader(file, existing);
+      long existingSlots = existing.getLong(8);
+      if (existing.getLong(24) != dataSize
+          || Long.bitCount(existingSlots) != 1
+          || existing.size != slotPosition(existingSlots)) {
+        logger.info("Index " + file + " is out of date");
+        existing.close();
+        return false;
+      }
+      index = existing;
+      slots = existingSlots;
+      count = existing.getLong(16);
+      return true;
+    } catch (IOException e) {
+      logger.info("Index " + file + " cannot be used: " + e.getMessage());
+      existing.close();
+      return false;
+    }
+  }
+
+  /**
+   * Writes a new index file with the given number of slots, from the records
+   * of the data file, and replaces the current one with it.
+   */
+  private void rebuildIndex(long newSlots, int chunkShift) throws IOException {
+    File file = new File(directory, INDEX_FILE);
+    File temporary = new File(directory, INDEX_FILE + ".tmp");
+    if (temporary.exists() && !temporary.delete()) {
+      throw new IOException("Could not delete " + temporary);
+    }
+    MappedFile previous = index;
+    long previousSlots = slots;
+    long previousCount = count;
+    index = new MappedFile(temporary, slotPosition(newSlots), chunkShift);
+    slots = newSlots;
+    count = 0;
+    try {
+      index.putInt(0, MAGIC);
+      index.putInt(4, VERSION);
+      index.putLong(8, slots);
+      long position = HEADER_SIZE;
+      while (position < dataSize) {
+        long remaining = data.chunkSize() - (position & data.chunkMask());
+        if (remaining < RECORD_HEADER_SIZE
+            || data.getLong(position) == END_OF_CHUNK) {
+          position += remaining;
+          continue;
+        }
+        if (2 * (count + 1) > slots) {
+          // more registration ids than expected, start again with more slots
+          index.close();
+          index = previous;
+          slots = previousSlots;
+          count = previousCount;
+          rebuildIndex(2 * newSlots, chunkShift);
+          return;
+        }
+        insert(position, data.getInt(position + 8));
+        count++;
+        position += RECORD_HEADER_SIZE + data.getShort(position + 12);
+      }
+      index.putLong(16, count);
+      index.putLong(24, dataSize);
+      index.force();
+    } catch (IOException e) {
+      index.close();
+      index = previous;
+      slots = previousSlots;
+      count = previousCount;
+      throw e;
+    }
+    if (previous != null) {
+      previous.close();
+    }
+    if (!temporary.renameTo(file)
+        && !(file.delete() && temporary.renameTo(file))) {
+      throw new IOException("Could not rename " + temporary + " to " + file);
+    }
+    logger.fine("Indexed " + count + " registration ids in " + slots
+        + " slots");
+  }
+
+  private static void checkHeader(File file, MappedFile mapped)
+      throws IOException {
+    if (mapped.size < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a token registry file");
+    }
+    int version = mapped.getInt(4);
+    if (version != VERSION) {
+      throw new IOException(file + " has unsupported version " + version);
+    }
+  }
+
+  private static byte[] encode(String token) {
+    byte[] bytes = Sender.nonNull(token).getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_TOKEN_LENGTH) {
+      throw new IllegalArgumentException("registration id is longer than "
+          + MAX_TOKEN_LENGTH + " bytes");
+    }
+    return bytes;
+  }
+
+  private static int hash(String token) {
+    // spread the bits, as the low ones pick the slot
+    int h = token.hashCode() * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  private static long getSlotCount(long expectedTokens) {
+    long slots = MIN_SLOTS;
+    while (slots < 2 * expectedTokens) {
+      slots *= 2;
+    }
+    return slots;
+  }
+
+  private static long slotPosition(long slot) {
+    return HEADER_SIZE + 8 * slot;
+  }
+
+  /**
+   * File mapped in chunks, as a mapping cannot be larger than 2GiB; the last
+   * chunk is remapped when the file grows.
+   */
+  private static final class MappedFile {
+    final int chunkShift;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> chunks =
+        new ArrayList<MappedByteBuffer>();
+    long size;
+
+    MappedFile(File file, long size, int chunkShift) throws IOException {
+      this.chunkShift = chunkShift;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+      try {
+        map(size);
+      } catch (IOException e) {
+        raf.close();
+        throw e;
+      }
+    }
+
+    long chunkSize() {
+      return 1L << chunkShift;
+    }
+
+    long chunkMask() {
+      return chunkSize() - 1;
+    }
+
+    /**
+     * Grows the file so it has at least the given size, doubling it up to a
+     * chunk at a time.
+     */
+    void ensureSize(long minimum) throws IOException {
+      if (minimum > size) {
+        map(Math.max(minimum, size + Math.min(size, chunkSize())));
+      }
+    }
+
+    private void map(long newSize) throws IOException {
+      int first = chunks.isEmpty() ? 0 : chunks.size() - 1;
+      while (chunks.size() > first) {
+        chunks.remove(chunks.size() - 1);
+      }
+      for (long start = (long) first << chunkShift; start < newSize;
+          start += chunkSize()) {
+        chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, start,
+            Math.min(chunkSize(), newSize - start)));
+      }
+      size = newSize;
+    }
+
+    private MappedByteBuffer chunk(long position) {
+      return chunks.get((int) (position >>> chunkShift));
+    }
+
+    private int offset(long position) {
+      return (int) (position & chunkMask());
+    }
+
+    byte getByte(long position) {
+      return chunk(position).get(offset(position));
+    }
+
+    short getShort(long position) {
+      return chunk(position).getShort(offset(position));
+    }
+
+    int getInt(long position) {
+      return chunk(position).getInt(offset(position));
+    }
+
+    long getLong(long position) {
+      return chunk(position).getLong(offset(position));
+    }
+
+    void get(long position, byte[] dst) {
+      MappedByteBuffer chunk = chunk(position);
+      int offset = offset(position);
+      for (int i = 0; i < dst.length; i++) {
+        dst[i] = chunk.get(offset + i);
+      }
+    }
+
+    void putShort(long position, short value) {
+      chunk(position).putShort(offset(position), value);
+    }
+
+    void putInt(long position, int value) {
+      chunk(position).putInt(offset(position), value);
+    }
+
+    void putLong(long position, long value) {
+      chunk(position).putLong(offset(position), value);
+    }
+
+    void put(long position, byte[] src) {
+      MappedByteBuffer chunk = chunk(position);
+      int offset = offset(position);
+      for (int i = 0; i < src.length; i++) {
+        chunk.put(offset + i, src[i]);
+      }
+    }
+
+    void force() {
+      for (MappedByteBuffer chunk : chunks) {
+        chunk.force();
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.fine("Could not close registry file: " + e);
+      }
+    }
+  }
+}
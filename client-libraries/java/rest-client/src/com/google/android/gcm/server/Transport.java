@@ -0,0 +1,101 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * HTTP transport used by {@link Sender} to post requests to GCM.
+ *
+ * <p>
+ * By default a {@link Sender} uses {@link java.net.HttpURLConnection}, which
+ * makes one request at a time per socket. A different implementation, such as
+ * {@link Http2Transport}, can be set through
+ * {@link Sender#setTransport(Transport)}.
+ *
+ * <p>
+ * Implementations must be thread-safe.
+ */
+public interface Transport {
+
+  /**
+   * Makes an HTTP POST request, blocking until the response status is known.
+   *
+   * @param request request to be posted.
+   *
+   * @return the response, whose body must be read or closed by the caller.
+   *
+   * @throws IOException if the request could not be made.
+   */
+  TransportResponse post(TransportRequest request) throws IOException;
+
+  /**
+   * Makes an HTTP POST request without blocking the calling thread.
+   *
+   * <p>
+   * The default implementation runs {@link #post(TransportRequest)} on the
+   * given executor; implementations backed by a non-blocking client should
+   * override it.
+   *
+   * @param request request to be posted.
+   * @param executor executor that can be used to run blocking work.
+   *
+   * @return future completed with the response, or completed exceptionally
+   *         with an {@link IOException} if the request could not be made.
+   */
+  default CompletableFuture<TransportResponse> postAsync(
+      final TransportRequest request, Executor executor) {
+    final CompletableFuture<TransportResponse> future =
+        new CompletableFuture<TransportResponse>();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.complete(post(request));
+          } catch (Throwable e) {
+            future.completeExceptionally(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Opens connections to an endpoint before traffic arrives, so the first
+   * requests do not pay for connection setup.
+   *
+   * <p>
+   * The default implementation does nothing, as transports without a managed
+   * pool of connections have nothing to warm up.
+   *
+   * @param url endpoint requests will be posted to.
+   * @param connections number of connections that should be ready.
+   *
+   * @return number of connections that were warmed up.
+   *
+   * @throws IOException if a connection could not be opened.
+   */
+  default int prewarm(String url, int connections) throws IOException {
+    return 0;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP POST request made by a {@link Transport}.
+ *
+ * <p>
+ * Instances of this class are immutable and should be created using a
+ * {@link Builder}.
+ */
+public final class TransportRequest {
+
+  private final String url;
+  private final Map<String, String> headers;
+  private final byte[] body;
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  public static final class Builder {
+
+    private final Map<String, String> headers =
+        new LinkedHashMap<String, String>();
+
+    // required parameters
+    private final String url;
+    private final byte[] body;
+
+    // optional parameters
+    private int connectTimeout;
+    private int readTimeout;
+
+    /**
+     * Creates a builder for a request.
+     *
+     * @param url endpoint to post the request.
+     * @param body body of the request, which is not copied and must not be
+     *        changed afterwards.
+     */
+    public Builder(String url, byte[] body) {
+      this.url = Sender.nonNull(url);
+      this.body = Sender.nonNull(body);
+    }
+
+    /**
+     * Adds a request header.
+     */
+    public Builder header(String name, String value) {
+      headers.put(Sender.nonNull(name), Sender.nonNull(value));
+      return this;
+    }
+
+    /**
+     * Sets the connect timeout (in milliseconds), 0 means no timeout.
+     */
+    public Builder connectTimeout(int value) {
+      connectTimeout = value;
+      return this;
+    }
+
+    /**
+     * Sets the read timeout (in milliseconds), 0 means no timeout.
+     */
+    public Builder readTimeout(int value) {
+      readTimeout = value;
+      return this;
+    }
+
+    public TransportRequest build() {
+      return new TransportRequest(this);
+    }
+  }
+
+  private TransportRequest(Builder builder) {
+    url = builder.url;
+    headers = Collections.unmodifiableMap(
+        new LinkedHashMap<String, String>(builder.headers));
+    body = builder.body;
+    connectTimeout = builder.connectTimeout;
+    readTimeout = builder.readTimeout;
+  }
+
+  /**
+   * Gets the endpoint the request is posted to.
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Gets the request headers, which are immutable.
+   */
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * Gets the body of the request, which must not be changed.
+   */
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * Gets the connect timeout (in milliseconds), 0 means no timeout.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Gets the read timeout (in milliseconds), 0 means no timeout.
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  @Override
+  public String toString() {
+    return "TransportRequest(url=" + url + ", bodyLength=" + body.length + ")";
+  }
+
+}
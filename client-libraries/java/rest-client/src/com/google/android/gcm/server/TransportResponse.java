@@ -0,0 +1,45 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * HTTP response returned by a {@link Transport}.
+ */
+public interface TransportResponse {
+
+  /**
+   * Gets the HTTP status code.
+   */
+  int getStatus();
+
+  /**
+   * Gets the value of a response header, or {@literal null} if it was not
+   * present. Header names are case-insensitive.
+   */
+  String getHeader(String name);
+
+  /**
+   * Gets the response body, which is the error body when the status is not
+   * 200. Might return {@literal null} if there is no body.
+   *
+   * @throws IOException if the body could not be read.
+   */
+  InputStream getBody() throws IOException;
+
+}
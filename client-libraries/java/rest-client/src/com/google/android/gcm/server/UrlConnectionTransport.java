@@ -0,0 +1,113 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Default {@link Transport}, based on {@link HttpURLConnection}.
+ *
+ * <p>
+ * Connections are obtained through {@link Sender#getConnection(String)}, so
+ * subclasses can still customize them, including their timeouts, which are
+ * only shortened when the deadline of a send leaves less time.
+ */
+final class UrlConnectionTransport implements Transport {
+
+  private static final Logger logger =
+      Logger.getLogger(UrlConnectionTransport.class.getName());
+
+  private final Sender sender;
+
+  UrlConnectionTransport(Sender sender) {
+    this.sender = sender;
+  }
+
+  @Override
+  public TransportResponse post(TransportRequest request) throws IOException {
+    String url = request.getUrl();
+    if (!url.startsWith("https://")) {
+      logger.warning("URL does not use https: " + url);
+    }
+    logger.fine("Sending POST to " + url);
+    byte[] body = request.getBody();
+    HttpURLConnection conn = sender.getConnection(url);
+    // the timeouts of the request only differ from the ones of the Sender
+    // when a deadline shortened them, otherwise getConnection() set them
+    if (request.getConnectTimeout() != sender.getConnectTimeout()) {
+      conn.setConnectTimeout(
+          shortest(conn.getConnectTimeout(), request.getConnectTimeout()));
+    }
+    if (request.getReadTimeout() != sender.getReadTimeout()) {
+      conn.setReadTimeout(
+          shortest(conn.getReadTimeout(), request.getReadTimeout()));
+    }
+    conn.setDoOutput(true);
+    conn.setUseCaches(false);
+    conn.setFixedLengthStreamingMode(body.length);
+    conn.setRequestMethod("POST");
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      conn.setRequestProperty(header.getKey(), header.getValue());
+    }
+    OutputStream out = conn.getOutputStream();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+    return new UrlConnectionResponse(conn, conn.getResponseCode());
+  }
+
+  // 0 is an infinite timeout
+  private static int shortest(int timeout, int other) {
+    return timeout == 0 || other == 0 ? Math.max(timeout, other)
+        : Math.min(timeout, other);
+  }
+
+  private static final class UrlConnectionResponse
+      implements TransportResponse {
+
+    private final HttpURLConnection conn;
+    private final int status;
+
+    UrlConnectionResponse(HttpURLConnection conn, int status) {
+      this.conn = conn;
+      this.status = status;
+    }
+
+    @Override
+    public int getStatus() {
+      return status;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return conn.getHeaderField(name);
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      // the returned connection should not be disconnected, otherwise it
+      // would kill persistent connections made using Keep-Alive
+      return status == 200 ? conn.getInputStream() : conn.getErrorStream();
+    }
+  }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of the messages of an {@link OutboundQueue}, stored in
+ * memory-mapped segment files.
+ *
+ * <p>
+ * Each segment starts with a magic number and a version, followed by
+ * records made of their length, the CRC32 of their content and the content
+ * itself. There are three kinds of records: the serialized form of a
+ * message, written once per segment that has entries for it; an entry,
+ * which is a recipient of one of these messages; and the acknowledgment of
+ * an entry, which can be in a later segment than the entry. The files are
+ * created with their full size, so the record after the last one has a
+ * length of {@literal 0}; a record that was partially written when the
+ * process died fails its CRC check and ends the segment.
+ *
+ * <p>
+ * Writes go to the page cache and survive the process dying;
+ * {@link #force()} also makes them survive the machine crashing.
+ *
+ * <p>
+ * Segments are deleted once all their entries and the ones of older
+ * segments are acknowledged, so acknowledgments never outlive a segment that
+ * still has entries they refer to. When the oldest segment has few entries
+ * left, they are copied to the active segment so it can be deleted.
+ */
+final class WriteAheadLog implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(WriteAheadLog.class.getName());
+
+  // "GCMQ"
+  static final int MAGIC = 0x47434d51;
+  static final int VERSION = 1;
+  static final int MIN_SEGMENT_SIZE = 4096;
+
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  // length and CRC
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final byte TYPE_MESSAGE = 1;
+  private static final byte TYPE_ENTRY = 2;
+  private static final byte TYPE_ACK = 3;
+  private static final int ACK_SIZE = RECORD_HEADER_SIZE + 1 + 8;
+  // the oldest segment is compacted when this fraction of entries is left
+  private static final int COMPACTION_RATIO = 16;
+  private static final Pattern SEGMENT_NAME =
+      Pattern.compile("segment-([0-9a-f]{16})\\.log");
+
+  /**
+   * A recipient of a message, which is pending until acknowledged.
+   */
+  static final class Entry {
+    final long id;
+    final PreparedMessage message;
+    final String to;
+    // guarded by the log
+    Segment segment;
+
+    Entry(long id, PreparedMessage message, String to) {
+      this.id = id;
+      this.message = message;
+      this.to = to;
+    }
+  }
+
+  private static final class Segment {
+    final long sequence;
+    final File file;
+    // pending entries whose record is in this segment
+    final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    // messages written to this segment, while it is the active one
+    final Map<PreparedMessage, Integer> messages =
+        new HashMap<PreparedMessage, Integer>();
+    int entries;
+    // null once sealed
+    MappedByteBuffer buffer;
+
+    Segment(long sequence, File file) {
+      this.sequence = sequence;
+      this.file = file;
+    }
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  // oldest first, the last one is the active segment
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  private final List<Entry> recovered;
+  private final CRC32 crc = new CRC32();
+  private long nextId = 1;
+  private boolean compacting;
+  private boolean closed;
+
+  /**
+   * Opens the log, reading the entries of existing segments and starting a
+   * new segment.
+   *
+   * @throws IOException if a segment could not be read or created.
+   */
+  WriteAheadLog(File directory, int segmentSize) throws IOException {
+    if (segmentSize < MIN_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("segmentSize must be at least "
+          + MIN_SEGMENT_SIZE);
+    }
+    this.directory = Sender.nonNull(directory);
+    this.segmentSize = segmentSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+    synchronized (this) {
+      for (File file : listSegments()) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        matcher.matches();
+        Segment segment = new Segment(Long.parseLong(matcher.group(1), 16),
+            file);
+        read(segment, pending);
+        segments.addLast(segment);
+      }
+      // compacted entries were copied after newer ones
+      List<Entry> entries = new ArrayList<Entry>(pending.values());
+      Collections.sort(entries, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+          return Long.compare(e1.id, e2.id);
+        }
+      });
+      recovered = Collections.unmodifiableList(entries);
+      roll();
+    }
+  }
+
+  /**
+   * Gets the entries that were pending when the log was opened, in the order
+   * they were appended.
+   */
+  List<Entry> getRecovered() {
+    return recovered;
+  }
+
+  /**
+   * Appends an entry.
+   *
+   * @throws IllegalArgumentException if the message does not fit in a
+   *         segment.
+   * @throws IllegalStateException if the log is closed.
+   */
+  synchronized Entry append(PreparedMessage message, String to)
+      throws IOException {
+    checkOpen();
+    Entry entry = new Entry(nextId++, Sender.nonNull(message),
+        Sender.nonNull(to));
+    write(entry);
+    return entry;
+  }
+
+  /**
+   * Acknowledges an entry, which is not recovered when the log is opened
+   * again. Entries that were already acknowledged, or acknowledged after the
+   * log is closed, are ignored.
+   */
+  synchronized void ack(Entry entry) throws IOException {
+    if (closed || entry.segment.pending.remove(entry.id) == null) {
+      return;
+    }
+    if (ACK_SIZE > active().buffer.remaining()) {
+      roll();
+    }
+    ByteBuffer buffer = active().buffer;
+    int start = beginRecord(buffer);
+    buffer.put(TYPE_ACK);
+    buffer.putLong(entry.id);
+    endRecord(buffer, start);
+    deleteFinished();
+  }
+
+  /**
+   * Gets the number of entries not acknowledged yet.
+   */
+  synchronized int getPendingCount() {
+    int count = 0;
+    for (Segment segment : segments) {
+      count += segment.pending.size();
+    }
+    return count;
+  }
+
+  /**
+   * Gets the number of segment files.
+   */
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Copies the pending entries of all segments but the active one to the
+   * active one, and deletes them.
+   */
+  synchronized void compact() throws IOException {
+    checkOpen();
+    long active = active().sequence;
+    while (segments.peekFirst().sequence < active) {
+      compactOldest();
+    }
+  }
+
+  /**
+   * Writes the active segment to the storage device.
+   */
+  synchronized void force() {
+    if (!closed) {
+      active().buffer.force();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      seal(active());
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("log is closed");
+    }
+  }
+
+  private Segment active() {
+    return segments.peekLast();
+  }
+
+  private void write(Entry entry) throws IOException {
+    byte[] to = entry.to.getBytes(StandardCharsets.UTF_8);
+    int entrySize = RECORD_HEADER_SIZE + 1 + 8 + 4 + 4 + to.length;
+    if (entrySize + messageSize(entry.message)
+        > segmentSize - SEGMENT_HEADER_SIZE) {
+      throw new IllegalArgumentException("message does not fit in a "
+          + segmentSize + " bytes segment");
+    }
+    Segment active;
+    Integer ref;
+    while (true) {
+      active = active();
+      ref = active.messages.get(entry.message);
+      int needed = entrySize;
+      if (ref == null) {
+        needed += messageSize(entry.message);
+      }
+      if (needed <= active.buffer.remaining()) {
+        break;
+      }
+      roll();
+    }
+    ByteBuffer buffer = active.buffer;
+    if (ref == null) {
+      ref = active.messages.size();
+      active.messages.put(entry.message, ref);
+      int start = beginRecord(buffer);
+      buffer.put(TYPE_MESSAGE);
+      buffer.putInt(ref);
+      for (byte[] template : entry.message.getTemplates()) {
+        buffer.putInt(template.length);
+        buffer.put(template);
+      }
+      endRecord(buffer, start);
+    }
+    int start = beginRecord(buffer);
+    buffer.put(TYPE_ENTRY);
+    buffer.putLong(entry.id);
+    buffer.putInt(ref);
+    buffer.putInt(to.length);
+    buffer.put(to);
+    endRecord(buffer, start);
+    entry.segment = active;
+    active.pending.put(entry.id, entry);
+    active.entries++;
+  }
+
+  private static int messageSize(PreparedMessage message) {
+    int size = RECORD_HEADER_SIZE + 1 + 4;
+    for (byte[] template : message.getTemplates()) {
+      size += 4 + template.length;
+    }
+    return size;
+  }
+
+  private static int beginRecord(ByteBuffer buffer) {
+    int start = buffer.position();
+    buffer.position(start + RECORD_HEADER_SIZE);
+    return start;
+  }
+
+  /**
+   * Writes the header of a record; the length is written last, so a record
+   * is only visible once complete.
+   */
+  private void endRecord(ByteBuffer buffer, int start) {
+    int end = buffer.position();
+    ByteBuffer content = buffer.duplicate();
+    content.position(start + RECORD_HEADER_SIZE).limit(end);
+    crc.reset();
+    crc.update(content);
+    buffer.putInt(start + 4, (int) crc.getValue());
+    buffer.putInt(start, end - start - RECORD_HEADER_SIZE);
+  }
+
+  /**
+   * Reads the records of a segment, adding its entries to the pending ones
+   * and removing the acknowledged ones.
+   */
+  private void read(Segment segment, Map<Long, Entry> pending)
+      throws IOException {
+    ByteBuffer buffer;
+    RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      file.close();
+    }
+    if (buffer.remaining() < SEGMENT_HEADER_SIZE
+        || buffer.getInt() != MAGIC) {
+      throw new IOException(segment.file + " is not a write-ahead log segment");
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException(segment.file + " has unsupported version "
+          + version);
+    }
+    Map<Integer, PreparedMessage> messages =
+        new HashMap<Integer, PreparedMessage>();
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int start = buffer.position();
+      int length = buffer.getInt();
+      if (length == 0) {
+        break;
+      }
+      int checksum = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        logger.warning("Truncated record in " + segment.file + " at "
+            + start);
+        break;
+      }
+      ByteBuffer content = buffer.slice();
+      content.limit(length);
+      crc.reset();
+      crc.update(content.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        logger.warning("Corrupted record in " + segment.file + " at "
+            + start);
+        break;
+      }
+      buffer.position(buffer.position() + length);
+      byte type = content.get();
+      if (type == TYPE_MESSAGE) {
+        int ref = content.getInt();
+        byte[][] templates = new byte[4][];
+        for (int i = 0; i < templates.length; i++) {
+          templates[i] = new byte[content.getInt()];
+          content.get(templates[i]);
+        }
+        messages.put(ref, PreparedMessage.restore(templates));
+      } else if (type == TYPE_ENTRY) {
+        long id = content.getLong();
+        PreparedMessage message = messages.get(content.getInt());
+        byte[] to = new byte[content.getInt()];
+        content.get(to);
+        nextId = Math.max(nextId, id + 1);
+        if (message == null) {
+          logger.warning("Entry " + id + " in " + segment.file
+              + " refers to an unknown message");
+          continue;
+        }
+        Entry entry = new Entry(id, message,
+            new String(to, StandardCharsets.UTF_8));
+        entry.segment = segment;
+        segment.pending.put(id, entry);
+        segment.entries++;
+        // a compacted entry replaces its previous copy
+        Entry previous = pending.put(id, entry);
+        if (previous != null) {
+          previous.segment.pending.remove(id);
+        }
+      } else if (type == TYPE_ACK) {
+        long id = content.getLong();
+        nextId = Math.max(nextId, id + 1);
+        Entry entry = pending.remove(id);
+        if (entry != null) {
+          entry.segment.pending.remove(id);
+        }
+      } else {
+        logger.warning("Unknown record type " + type + " in " + segment.file
+            + " at " + start);
+        break;
+      }
+    }
+  }
+
+  private File[] listSegments() throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Could not list " + directory);
+    }
+    List<File> matching = new ArrayList<File>();
+    for (File file : files) {
+      if (SEGMENT_NAME.matcher(file.getName()).matches()) {
+        matching.add(file);
+      }
+    }
+    File[] sorted = matching.toArray(new File[matching.size()]);
+    // the sequence is zero-padded, so names sort like sequences
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Seals the active segment and starts a new one.
+   */
+  private void roll() throws IOException {
+    Segment previous = active();
+    long sequence = 1;
+    if (previous != null) {
+      seal(previous);
+      sequence = previous.sequence + 1;
+    }
+    File file = new File(directory,
+        String.format("segment-%016x.log", sequence));
+    Segment segment = new Segment(sequence, file);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(segmentSize);
+      segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          segmentSize);
+    } finally {
+      raf.close();
+    }
+    segment.buffer.putInt(MAGIC);
+    segment.buffer.putInt(VERSION);
+    segments.addLast(segment);
+    deleteFinished();
+    Segment oldest = segments.peekFirst();
+    if (!compacting && oldest != segment
+        && oldest.pending.size() * COMPACTION_RATIO <= oldest.entries) {
+      compactOldest();
+    }
+  }
+
+  private static void seal(Segment segment) {
+    if (segment.buffer != null) {
+      segment.buffer.force();
+      segment.buffer = null;
+      segment.messages.clear();
+    }
+  }
+
+  /**
+   * Copies the pending entries of the oldest segment to the active segment,
+   * and deletes it.
+   */
+  private void compactOldest() throws IOException {
+    Segment oldest = segments.peekFirst();
+    compacting = true;
+    try {
+      for (Entry entry : new ArrayList<Entry>(oldest.pending.values())) {
+        write(entry);
+      }
+    } finally {
+      compacting = false;
+    }
+    oldest.pending.clear();
+    // the copies must be durable before the originals are deleted
+    active().buffer.force();
+    deleteFinished();
+  }
+
+  /**
+   * Deletes the oldest segments while they have no pending entries.
+   */
+  private void deleteFinished() {
+    while (segments.size() > 1 && segments.peekFirst().pending.isEmpty()) {
+      Segment segment = segments.removeFirst();
+      if (!segment.file.delete()) {
+        logger.warning("Could not delete " + segment.file);
+      }
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+public class BatchingSenderTest {
+
+  private final Message message = new Message.Builder()
+      .addData("k", "v").build();
+  private FcmStubServer server;
+  private Sender sender;
+
+  @Before
+  public void startServer() throws Exception {
+    server = new FcmStubServer.Builder()
+        .tokenError("8", Constants.ERROR_NOT_REGISTERED)
+        .canonicalId("15", "16")
+        .build();
+    server.start();
+    sender = new Sender("4815162342", server.getEndpoint());
+  }
+
+  @After
+  public void stopServer() {
+    server.close();
+  }
+
+  @Test
+  public void testSendAsync_fullBatch() throws Exception {
+    BatchingSender batching = new BatchingSender.Builder(sender)
+        .lingerMillis(60000)
+        .maxBatchSize(3)
+        .build();
+    CompletableFuture<Result> first = batching.sendAsync(message, "4", 1);
+    CompletableFuture<Result> second = batching.sendAsync(
+        new Message.Builder().addData("k", "v").build(), "8", 1);
+    assertEquals(2, batching.getPendingCount());
+    assertFalse(first.isDone());
+    CompletableFuture<Result> third = batching.sendAsync(message, "15", 1);
+    assertEquals(0, batching.getPendingCount());
+    assertNotNull(first.get().getMessageId());
+    assertNull(first.get().getErrorCodeName());
+    assertEquals(Constants.ERROR_NOT_REGISTERED,
+        second.get().getErrorCodeName());
+    assertEquals("16", third.get().getCanonicalRegistrationId());
+    assertEquals(1, server.getRequestCount());
+    assertEquals(3, server.getMessageCount());
+  }
+
+  @Test
+  public void testSendAsync_linger() throws Exception {
+    BatchingSender batching = new BatchingSender.Builder(sender)
+        .lingerMillis(20)
+        .build();
+    CompletableFuture<Result> first = batching.sendAsync(message, "4", 1);
+    CompletableFuture<Result> second = batching.sendAsync(message, "42", 1);
+    assertNotNull(first.get().getMessageId());
+    assertNotNull(second.get().getMessageId());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test
+  public void testSend_concurrent() throws Exception {
+    final BatchingSender batching = new BatchingSender.Builder(sender)
+        .lingerMillis(50)
+        .build();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Result> results = new ArrayList<Result>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 20; i++) {
+      final String regId = "device-" + i;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            Result result = batching.send(message, regId, 1);
+            synchronized (results) {
+              results.add(result);
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(20, results.size());
+    assertEquals(20, server.getMessageCount());
+    assertTrue(server.getRequestCount() < 20);
+  }
+
+  @Test
+  public void testFlush_differentMessages() throws Exception {
+    BatchingSender batching = new BatchingSender.Builder(sender)
+        .lingerMillis(60000)
+        .build();
+    CompletableFuture<Result> first = batching.sendAsync(message, "4", 1);
+    CompletableFuture<Result> other = batching.sendAsync(
+        new Message.Builder().addData("k", "other").build(), "4", 1);
+    CompletableFuture<Result> moreRetries =
+        batching.sendAsync(message, "42", 2);
+    batching.flush();
+    first.get();
+    other.get();
+    moreRetries.get();
+    assertEquals(3, server.getRequestCount());
+  }
+
+  @Test
+  public void testSendAsync_topic() throws Exception {
+    BatchingSender batching = new BatchingSender.Builder(sender)
+        .lingerMillis(60000)
+        .build();
+    Result result = batching.sendAsync(message, "/topics/news", 1).get();
+    assertNotNull(result.getMessageId());
+    assertEquals(0, batching.getPendingCount());
+  }
+
+  @Test
+  public void testSendAsync_failure() throws Exception {
+    BatchingSender batching = new BatchingSender.Builder(sender)
+        .lingerMillis(60000)
+        .build();
+    server.failNextRequests(1);
+    CompletableFuture<Result> first = batching.sendAsync(message, "4", 0);
+    CompletableFuture<Result> second = batching.sendAsync(message, "42", 0);
+    batching.flush();
+    assertFailed(first);
+    assertFailed(second);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendAsync_nullTo() {
+    new BatchingSender.Builder(sender).build().sendAsync(message, null, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_batchTooBig() {
+    new BatchingSender.Builder(sender)
+        .maxBatchSize(Constants.MULTICAST_SIZE_LIMIT + 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_negativeLinger() {
+    new BatchingSender.Builder(sender).lingerMillis(-1);
+  }
+
+  private static void assertFailed(CompletableFuture<Result> future)
+      throws InterruptedException {
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}
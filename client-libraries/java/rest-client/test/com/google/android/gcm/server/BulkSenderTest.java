@@ -0,0 +1,197 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BulkSenderTest {
+
+  private final Message message = new Message.Builder().build();
+
+  @Test
+  public void testSendAsync() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.fixed(10))
+        .build();
+    server.start();
+    try {
+      BulkSender bulk = new BulkSender.Builder(
+          new Sender("4815162342", server.getEndpoint()))
+          .maxConcurrency(8)
+          .build();
+      List<CompletableFuture<Result>> futures =
+          new ArrayList<CompletableFuture<Result>>();
+      for (int i = 0; i < 50; i++) {
+        futures.add(bulk.sendAsync(message, "token-" + i, 0));
+      }
+      futures.add(bulk.sendNoRetryAsync(new PreparedMessage(message), "4"));
+      for (CompletableFuture<Result> future : futures) {
+        assertNotNull(future.get().getMessageId());
+      }
+      MulticastResult multicast =
+          bulk.sendAsync(message, Arrays.asList("8", "15"), 0).get();
+      assertEquals(2, multicast.getSuccess());
+      assertEquals(52, server.getRequestCount());
+      assertEquals(0, bulk.getInFlightCount());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testSendAsync_error() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .apiKey("4815162342")
+        .build();
+    server.start();
+    try {
+      BulkSender bulk = new BulkSender.Builder(
+          new Sender("42", server.getEndpoint())).build();
+      bulk.sendAsync(message, "4", 0).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      InvalidRequestException cause = (InvalidRequestException) e.getCause();
+      assertEquals(401, cause.getHttpStatusCode());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testMaxConcurrency() throws Exception {
+    final CountDownLatch respond = new CountDownLatch(1);
+    final AtomicInteger posts = new AtomicInteger();
+    Sender sender = new Sender("4815162342");
+    sender.setTransport(new Transport() {
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        posts.incrementAndGet();
+        try {
+          respond.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return new TransportResponse() {
+          @Override
+          public int getStatus() {
+            return 200;
+          }
+
+          @Override
+          public String getHeader(String name) {
+            return null;
+          }
+
+          @Override
+          public InputStream getBody() {
+            return new ByteArrayInputStream("{\"message_id\":\"0:42\"}"
+                .getBytes(StandardCharsets.UTF_8));
+          }
+        };
+      }
+    });
+    final BulkSender bulk = new BulkSender.Builder(sender)
+        .maxConcurrency(2)
+        .build();
+    assertEquals(2, bulk.getMaxConcurrency());
+    bulk.sendAsync(message, "4", 0);
+    bulk.sendAsync(message, "8", 0);
+    final CountDownLatch submitted = new CountDownLatch(1);
+    Thread third = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        bulk.sendAsync(message, "15", 0);
+        submitted.countDown();
+      }
+    });
+    third.start();
+    // the third send waits for a permit
+    assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(2, bulk.getInFlightCount());
+    assertEquals(2, posts.get());
+    respond.countDown();
+    assertTrue(submitted.await(10, TimeUnit.SECONDS));
+    third.join();
+  }
+
+  @Test
+  public void testSendAsync_interrupted() throws Exception {
+    Sender sender = new Sender("4815162342");
+    final CountDownLatch respond = new CountDownLatch(1);
+    sender.setTransport(new Transport() {
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        try {
+          respond.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new IllegalStateException("not sent");
+      }
+    });
+    BulkSender bulk = new BulkSender.Builder(sender)
+        .maxConcurrency(1)
+        .build();
+    try {
+      bulk.sendAsync(message, "4", 0);
+      Thread.currentThread().interrupt();
+      CompletableFuture<Result> future = bulk.sendAsync(message, "8", 0);
+      assertTrue(Thread.interrupted());
+      assertTrue(future.isCompletedExceptionally());
+      assertEquals(1, bulk.getInFlightCount());
+    } finally {
+      respond.countDown();
+    }
+  }
+
+  @Test
+  public void testDefaults() {
+    Sender sender = new Sender("4815162342");
+    BulkSender platform = new BulkSender.Builder(sender)
+        .virtualThreads(false)
+        .build();
+    assertFalse(platform.isVirtual());
+    assertEquals(BulkSender.DEFAULT_MAX_PLATFORM_CONCURRENCY,
+        platform.getMaxConcurrency());
+    BulkSender bulk = new BulkSender.Builder(sender).build();
+    assertEquals(bulk.isVirtual() ? BulkSender.DEFAULT_MAX_CONCURRENCY
+        : BulkSender.DEFAULT_MAX_PLATFORM_CONCURRENCY,
+        bulk.getMaxConcurrency());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxConcurrency_invalid() {
+    new BulkSender.Builder(new Sender("4815162342")).maxConcurrency(0);
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+public class CircuitBreakerTest {
+
+  private static final String ENDPOINT = "https://fcm.example.com/send";
+
+  private final VirtualClock clock = new VirtualClock();
+  private final MetricsRecorder metrics = new MetricsRecorder();
+  private final CircuitBreaker breaker = new CircuitBreaker.Builder()
+      .failureRateThreshold(0.5)
+      .slowCallMillis(1000)
+      .slowCallRateThreshold(0.5)
+      .minimumRequests(4)
+      .windowMillis(10000)
+      .openMillis(30000)
+      .halfOpenRequests(2)
+      .ticker(clock)
+      .build();
+
+  @Test
+  public void testOpen_failureRate() throws Exception {
+    request(false);
+    request(true);
+    request(false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+    request(true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+    assertEquals(Long.valueOf(1),
+        metrics.snapshot().getCircuitTransitionCounts().get("OPEN"));
+    try {
+      breaker.acquire(ENDPOINT, metrics);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      assertEquals(ENDPOINT, e.getEndpoint());
+      assertEquals(30001, e.getRetryAfterMillis());
+    }
+    assertEquals(1, metrics.snapshot().getCircuitRejections());
+    // other endpoints are not affected
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("other"));
+    breaker.acquire("other", metrics).release(false, metrics);
+  }
+
+  @Test
+  public void testOpen_slowCalls() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      CircuitBreaker.Permit permit = breaker.acquire(ENDPOINT, metrics);
+      clock.advance(i % 2 == 0 ? 1000 : 10);
+      permit.release(false, metrics);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+  }
+
+  @Test
+  public void testWindow_oldRequestsExpire() throws Exception {
+    request(true);
+    request(true);
+    request(true);
+    clock.advance(10000);
+    request(true);
+    request(false);
+    request(false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+  }
+
+  @Test
+  public void testHalfOpen_probesClose() throws Exception {
+    open();
+    clock.advance(30000);
+    CircuitBreaker.Permit first = breaker.acquire(ENDPOINT, metrics);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+    CircuitBreaker.Permit second = breaker.acquire(ENDPOINT, metrics);
+    try {
+      breaker.acquire(ENDPOINT, metrics);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      assertEquals(0, e.getRetryAfterMillis());
+    }
+    first.release(false, metrics);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+    second.release(false, metrics);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+    assertEquals(Long.valueOf(1),
+        metrics.snapshot().getCircuitTransitionCounts().get("CLOSED"));
+    // the window starts empty
+    request(true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+  }
+
+  @Test
+  public void testHalfOpen_probeFails() throws Exception {
+    open();
+    clock.advance(30000);
+    CircuitBreaker.Permit probe = breaker.acquire(ENDPOINT, metrics);
+    probe.release(true, metrics);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+    assertEquals(Long.valueOf(2),
+        metrics.snapshot().getCircuitTransitionCounts().get("OPEN"));
+  }
+
+  @Test
+  public void testRelease_previousState() throws Exception {
+    CircuitBreaker.Permit late = breaker.acquire(ENDPOINT, metrics);
+    open();
+    clock.advance(30000);
+    CircuitBreaker.Permit probe = breaker.acquire(ENDPOINT, metrics);
+    // a request that started before the circuit opened is not a probe
+    late.release(true, metrics);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+    probe.release(false, metrics);
+  }
+
+  @Test
+  public void testSender() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .unavailableRate(1)
+        .build();
+    server.start();
+    try {
+      Sender sender = new Sender("4815162342", server.getEndpoint()) {
+        @Override
+        void sleep(long millis) {
+        }
+      };
+      sender.setMetrics(metrics);
+      sender.setCircuitBreaker(breaker);
+      Message message = new Message.Builder().build();
+      try {
+        sender.send(message, Arrays.asList("4", "8"), 10);
+        fail("Should have thrown CircuitOpenException");
+      } catch (CircuitOpenException e) {
+        assertEquals(server.getEndpoint(), e.getEndpoint());
+      }
+      // the circuit opened after the 4th attempt
+      assertEquals(4, server.getRequestCount());
+      try {
+        sender.sendAsync(message, "4", 10).get();
+        fail("Should have thrown CircuitOpenException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof CircuitOpenException);
+      }
+      assertEquals(4, server.getRequestCount());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testSender_partialResults() throws Exception {
+    final FcmStubServer server = new FcmStubServer.Builder()
+        .tokenError("8", Constants.ERROR_UNAVAILABLE)
+        .build();
+    server.start();
+    try {
+      Sender sender = new Sender("4815162342", server.getEndpoint()) {
+        boolean failed;
+
+        @Override
+        void sleep(long millis) {
+          // the retries of the registration id that was unavailable fail
+          if (!failed) {
+            server.failNextRequests(3);
+            failed = true;
+          }
+        }
+      };
+      sender.setCircuitBreaker(breaker);
+      MulticastResult result = sender.send(new Message.Builder().build(),
+          Arrays.asList("4", "8"), 10);
+      assertEquals(4, server.getRequestCount());
+      assertNotNull(result.getResults().get(0).getMessageId());
+      assertEquals(Constants.ERROR_UNAVAILABLE,
+          result.getResults().get(1).getErrorCodeName());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testSender_probeThrows() throws Exception {
+    Sender sender = new Sender("4815162342", ENDPOINT);
+    sender.setCircuitBreaker(breaker);
+    sender.setMetrics(metrics);
+    sender.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    sender.setTransport(new Transport() {
+      int posts;
+
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        if (posts++ == 0) {
+          throw new IllegalStateException("bug in the transport");
+        }
+        // then fails while the response is read
+        return new TransportResponse() {
+          @Override
+          public int getStatus() {
+            return 200;
+          }
+
+          @Override
+          public String getHeader(String name) {
+            throw new IllegalStateException("bug in the response");
+          }
+
+          @Override
+          public InputStream getBody() {
+            return null;
+          }
+        };
+      }
+    });
+    Message message = new Message.Builder().build();
+    open();
+    clock.advance(30000);
+    try {
+      sender.send(message, "4", 0);
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // the probe was released as failed instead of holding the circuit
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+    clock.advance(30000);
+    try {
+      sender.sendAsync(message, "4", 0).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+    assertEquals(Long.valueOf(3),
+        metrics.snapshot().getCircuitTransitionCounts().get("OPEN"));
+  }
+
+  private void open() throws CircuitOpenException {
+    for (int i = 0; i < 4; i++) {
+      request(true);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+  }
+
+  private void request(boolean failed) throws CircuitOpenException {
+    breaker.acquire(ENDPOINT, metrics).release(failed, metrics);
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class DeadlineTest {
+
+  private final VirtualClock clock = new VirtualClock();
+  private final Message message = new Message.Builder().build();
+  private FcmStubServer server;
+
+  @After
+  public void stopServer() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testRemaining() {
+    Deadline deadline = Deadline.after(10, TimeUnit.SECONDS, clock);
+    assertEquals(10000, deadline.getRemainingMillis());
+    clock.advance(4000);
+    assertEquals(6000, deadline.getRemainingMillis());
+    assertFalse(deadline.isExpired());
+    clock.advance(8000);
+    assertEquals(0, deadline.getRemainingMillis());
+    assertEquals(TimeUnit.SECONDS.toNanos(-2), deadline.getRemainingNanos());
+    assertTrue(deadline.isExpired());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAfter_negative() {
+    Deadline.after(-1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testSend_stopsRetrying() throws Exception {
+    server = new FcmStubServer.Builder().unavailableRate(1).build();
+    server.start();
+    Deadline deadline = Deadline.after(10, TimeUnit.SECONDS, clock);
+    try {
+      newSender().send(message, Arrays.asList("4"), 10, deadline);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    // after 1s, 2s and 4s of back-off, 8s do not fit in the 3s left
+    assertEquals(4, server.getRequestCount());
+    assertEquals(3000, deadline.getRemainingMillis());
+  }
+
+  @Test
+  public void testSend_partialResult() throws Exception {
+    server = new FcmStubServer.Builder()
+        .tokenError("8", Constants.ERROR_UNAVAILABLE)
+        .build();
+    server.start();
+    Deadline deadline = Deadline.after(10, TimeUnit.SECONDS, clock);
+    MulticastResult result =
+        newSender().send(message, Arrays.asList("4", "8"), 10, deadline);
+    assertEquals(4, server.getRequestCount());
+    assertNotNull(result.getResults().get(0).getMessageId());
+    assertEquals(Constants.ERROR_UNAVAILABLE,
+        result.getResults().get(1).getErrorCodeName());
+    assertFalse(deadline.isExpired());
+  }
+
+  @Test
+  public void testSend_timeoutsShrink() throws Exception {
+    server = new FcmStubServer.Builder().unavailableRate(1).build();
+    server.start();
+    Sender sender = newSender();
+    sender.setReadTimeout(5000);
+    final Transport transport = sender.getTransport();
+    final List<Integer> readTimeouts = new ArrayList<Integer>();
+    final List<Integer> connectTimeouts = new ArrayList<Integer>();
+    sender.setTransport(new Transport() {
+      @Override
+      public TransportResponse post(TransportRequest request)
+          throws IOException {
+        readTimeouts.add(request.getReadTimeout());
+        connectTimeouts.add(request.getConnectTimeout());
+        return transport.post(request);
+      }
+    });
+    try {
+      sender.send(message, Arrays.asList("4", "8"), 10,
+          Deadline.after(10, TimeUnit.SECONDS, clock));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    // the configured read timeout is kept while it fits, and the lack of
+    // connect timeout is bounded by the deadline
+    assertEquals(Arrays.asList(5000, 5000, 5000, 3000), readTimeouts);
+    assertEquals(Arrays.asList(10000, 9000, 7000, 3000), connectTimeouts);
+  }
+
+  @Test
+  public void testSend_slowServer() throws Exception {
+    server = new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.fixed(5000))
+        .build();
+    server.start();
+    assertReturnsByDeadline(new Sender("4815162342", server.getEndpoint()));
+  }
+
+  @Test
+  public void testSend_slowServerHttp2() throws Exception {
+    server = new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.fixed(5000))
+        .build();
+    server.start();
+    Sender sender = new Sender("4815162342", server.getEndpoint());
+    sender.setTransport(new Http2Transport.Builder().build());
+    assertReturnsByDeadline(sender);
+  }
+
+  @Test
+  public void testSend_connectionTimeoutsKept() throws Exception {
+    server = new FcmStubServer.Builder().build();
+    server.start();
+    final List<HttpURLConnection> connections =
+        new ArrayList<HttpURLConnection>();
+    Sender sender = new Sender("4815162342", server.getEndpoint()) {
+      @Override
+      protected HttpURLConnection getConnection(String url)
+          throws IOException {
+        HttpURLConnection conn = super.getConnection(url);
+        conn.setReadTimeout(42000);
+        connections.add(conn);
+        return conn;
+      }
+    };
+    sender.send(message, "4", 0);
+    assertEquals(0, connections.get(0).getConnectTimeout());
+    assertEquals(42000, connections.get(0).getReadTimeout());
+    // only a deadline shortens them
+    sender.send(message, "4", 0, Deadline.after(10, TimeUnit.SECONDS, clock));
+    assertEquals(10000, connections.get(1).getConnectTimeout());
+    assertEquals(10000, connections.get(1).getReadTimeout());
+    sender.send(message, "4", 0, Deadline.after(60, TimeUnit.SECONDS, clock));
+    assertEquals(42000, connections.get(2).getReadTimeout());
+  }
+
+  @Test
+  public void testSend_rateLimitedPastDeadline() throws Exception {
+    server = new FcmStubServer.Builder().build();
+    server.start();
+    RateLimiter limiter = new RateLimiter.Builder(1)
+        .ticker(clock)
+        .build();
+    Sender sender = newSender();
+    sender.setRateLimiter(limiter);
+    // the next message can only be sent in 10s
+    limiter.reserve(11);
+    long start = clock.nanoTime();
+    try {
+      sender.send(message, Arrays.asList("4"), 3,
+          Deadline.after(5, TimeUnit.SECONDS, clock));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, server.getRequestCount());
+    // the attempts did not take tokens from other sends
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - start);
+    assertEquals(10000 - elapsed, limiter.getWaitTime());
+  }
+
+  @Test
+  public void testSend_expired() throws Exception {
+    server = new FcmStubServer.Builder().build();
+    server.start();
+    Deadline deadline = Deadline.after(0, TimeUnit.SECONDS, clock);
+    try {
+      newSender().send(message, Arrays.asList("4"), 10, deadline);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, server.getRequestCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_nullDeadline() throws Exception {
+    new Sender("4815162342").send(message, "4", 1, null);
+  }
+
+  /**
+   * Sends with a deadline shorter than the latency of the server, whose
+   * attempts must time out by the deadline.
+   */
+  private void assertReturnsByDeadline(Sender sender) {
+    // the configured timeouts alone would wait for the response
+    sender.setReadTimeout(10000);
+    long start = System.nanoTime();
+    try {
+      sender.send(message, Arrays.asList("4", "8"), 10,
+          Deadline.after(500, TimeUnit.MILLISECONDS));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    // well before the response, with room for a loaded machine
+    assertTrue("returned after " + elapsed + "ms", elapsed < 4000);
+  }
+
+  /**
+   * Creates a sender whose back-off has no jitter and moves the clock of the
+   * deadlines.
+   */
+  private Sender newSender() {
+    return new Sender("4815162342", server.getEndpoint()) {
+      @Override
+      int getSleepTime(int backoff) {
+        return backoff;
+      }
+
+      @Override
+      void sleep(long millis) {
+        clock.advance(millis);
+      }
+    };
+  }
+}
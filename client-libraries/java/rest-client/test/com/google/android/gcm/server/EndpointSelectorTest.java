@@ -0,0 +1,195 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class EndpointSelectorTest {
+
+  private static final String FCM = Constants.FCM_SEND_ENDPOINT;
+  private static final String GCM = Constants.GCM_SEND_ENDPOINT;
+  private static final List<String> NONE = Collections.<String>emptyList();
+
+  private final VirtualClock clock = new VirtualClock();
+  private final EndpointSelector selector =
+      new EndpointSelector(Arrays.asList(FCM, GCM), clock);
+
+  @Test
+  public void testSelect_preferred() {
+    assertEquals(FCM, selector.select(NONE));
+    record(FCM, 50, false);
+    // never used, so it is not known to be healthier
+    assertEquals(FCM, selector.select(NONE));
+    record(GCM, 45, false);
+    // not enough faster to move traffic
+    assertEquals(FCM, selector.select(NONE));
+    record(GCM, 10, false);
+    assertEquals(GCM, selector.select(NONE));
+  }
+
+  @Test
+  public void testSelect_errors() {
+    record(FCM, 50, false);
+    record(GCM, 100, false);
+    assertEquals(FCM, selector.select(NONE));
+    record(FCM, 1, true);
+    assertEquals(GCM, selector.select(NONE));
+  }
+
+  @Test
+  public void testSelect_idleEndpointProbed() {
+    record(FCM, 50, true);
+    record(GCM, 50, false);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(GCM, selector.select(NONE));
+      clock.advance(1000);
+      record(GCM, 50, false);
+    }
+    // the failure is forgotten after about a minute
+    clock.advance(40000);
+    record(GCM, 50, false);
+    assertEquals(GCM, selector.select(NONE));
+    clock.advance(15000);
+    record(GCM, 50, false);
+    assertEquals(FCM, selector.select(NONE));
+  }
+
+  @Test
+  public void testSelect_equalLatencies() {
+    record(GCM, 50, false);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(FCM, selector.select(NONE));
+      record(FCM, 50, false);
+      // the idle endpoint does not get cheaper
+      clock.advance(1000);
+    }
+  }
+
+  @Test
+  public void testSelect_excluded() {
+    assertEquals(GCM, selector.select(Collections.singletonList(FCM)));
+    assertNull(selector.select(Arrays.asList(FCM, GCM)));
+  }
+
+  @Test
+  public void testGetUrls_duplicates() {
+    assertEquals(Arrays.asList(FCM, GCM),
+        new EndpointSelector(Arrays.asList(FCM, GCM, FCM), clock).getUrls());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_empty() {
+    new EndpointSelector(NONE, clock);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_nullUrl() {
+    new EndpointSelector(Arrays.asList(FCM, null), clock);
+  }
+
+  @Test
+  public void testSender_failover() throws Exception {
+    FcmStubServer down = new FcmStubServer.Builder()
+        .unavailableRate(1)
+        .build();
+    FcmStubServer up = new FcmStubServer.Builder().build();
+    down.start();
+    up.start();
+    try {
+      Sender sender = new Sender("4815162342",
+          Arrays.asList(down.getEndpoint(), up.getEndpoint()));
+      assertEquals(down.getEndpoint(), sender.getEndpoint());
+      Message message = new Message.Builder().build();
+      assertNotNull(sender.send(message, "4", 0).getMessageId());
+      assertEquals(1, down.getRequestCount());
+      assertEquals(1, up.getRequestCount());
+      // the failing endpoint is avoided
+      assertNotNull(sender.sendAsync(message, Arrays.asList("4", "8"), 0)
+          .get().getResults().get(0).getMessageId());
+      assertEquals(1, down.getRequestCount());
+      assertEquals(2, up.getRequestCount());
+    } finally {
+      down.close();
+      up.close();
+    }
+  }
+
+  @Test
+  public void testSender_staysOnPreferred() throws Exception {
+    FcmStubServer primary = new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.fixed(5))
+        .build();
+    FcmStubServer secondary = new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.fixed(5))
+        .build();
+    primary.start();
+    secondary.start();
+    try {
+      Sender sender = new Sender("4815162342",
+          Arrays.asList(primary.getEndpoint(), secondary.getEndpoint()));
+      Message message = new Message.Builder().build();
+      for (int i = 0; i < 100; i++) {
+        assertNotNull(sender.send(message, "4", 0).getMessageId());
+      }
+      assertEquals(100, primary.getRequestCount());
+      assertEquals(0, secondary.getRequestCount());
+    } finally {
+      primary.close();
+      secondary.close();
+    }
+  }
+
+  @Test
+  public void testSender_allEndpointsFail() throws Exception {
+    FcmStubServer first = new FcmStubServer.Builder()
+        .unavailableRate(1)
+        .build();
+    FcmStubServer second = new FcmStubServer.Builder()
+        .unavailableRate(1)
+        .build();
+    first.start();
+    second.start();
+    try {
+      Sender sender = new Sender("4815162342",
+          Arrays.asList(first.getEndpoint(), second.getEndpoint()));
+      try {
+        sender.send(new Message.Builder().build(), "4", 0);
+        fail("Should have thrown InvalidRequestException");
+      } catch (InvalidRequestException e) {
+        assertEquals(503, e.getHttpStatusCode());
+      }
+      assertEquals(1, first.getRequestCount());
+      assertEquals(1, second.getRequestCount());
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  private void record(String url, long millis, boolean failed) {
+    selector.record(url, TimeUnit.MILLISECONDS.toNanos(millis), failed);
+  }
+}
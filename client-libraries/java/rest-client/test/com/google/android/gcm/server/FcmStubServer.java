@@ -0,0 +1,688 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
+import static com.google.android.gcm.server.Constants.JSON_ERROR;
+import static com.google.android.gcm.server.Constants.JSON_FAILURE;
+import static com.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
+import static com.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
+import static com.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
+import static com.google.android.gcm.server.Constants.JSON_RESULTS;
+import static com.google.android.gcm.server.Constants.JSON_SUCCESS;
+import static com.google.android.gcm.server.Constants.JSON_TO;
+import static com.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
+import static com.google.android.gcm.server.Constants.TOPIC_PREFIX;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process HTTP server implementing the {@code /fcm/send} contract, to
+ * test {@link Sender} (and load-test it) without the real endpoint.
+ *
+ * <p>
+ * The server returns the responses the real service does for messages sent
+ * to a device, to many devices, to a topic or to a device group, and can
+ * inject faults: responses delayed by a {@link Latency}, {@literal 503}
+ * responses with a {@code Retry-After} header, per-token errors and
+ * canonical ids. Random faults use {@link ThreadLocalRandom}, so only their
+ * rate is reproducible; faults set for a given token always happen. Requests
+ * and responses can be compressed with gzip.
+ *
+ * <p>
+ * Delayed responses are written by a scheduler, not by the thread that read
+ * the request, so slow responses do not limit the request rate. Example:
+ * <pre><code>
+ * FcmStubServer server = new FcmStubServer.Builder()
+ *    .latency(FcmStubServer.Latency.uniform(5, 50))
+ *    .unavailableRate(0.01)
+ *    .errorRate(Constants.ERROR_NOT_REGISTERED, 0.05)
+ *    .build();
+ * server.start();
+ * Sender sender = new Sender("key", server.getEndpoint());
+ * ...
+ * server.close();
+ * </pre></code>
+ *
+ * <p>
+ * This class is part of the test sources, which are packaged by the
+ * {@code test-jar} target of the build.
+ */
+public final class FcmStubServer implements Closeable {
+
+  private static final Logger logger =
+      Logger.getLogger(FcmStubServer.class.getName());
+
+  static final String PATH = "/fcm/send";
+
+  /**
+   * Distribution of the time taken to respond.
+   */
+  public interface Latency {
+
+    /**
+     * Gets the delay of the next response, in milliseconds.
+     */
+    long nextMillis();
+
+    /**
+     * Responds right away.
+     */
+    static Latency none() {
+      return fixed(0);
+    }
+
+    /**
+     * Responds after a constant delay.
+     */
+    static Latency fixed(final long millis) {
+      if (millis < 0) {
+        throw new IllegalArgumentException("millis cannot be negative");
+      }
+      return new Latency() {
+        @Override
+        public long nextMillis() {
+          return millis;
+        }
+      };
+    }
+
+    /**
+     * Responds after a delay uniformly distributed between two values.
+     */
+    static Latency uniform(final long minMillis, final long maxMillis) {
+      if (minMillis < 0 || maxMillis < minMillis) {
+        throw new IllegalArgumentException(
+            "expected 0 <= minMillis <= maxMillis");
+      }
+      return new Latency() {
+        @Override
+        public long nextMillis() {
+          return ThreadLocalRandom.current().nextLong(minMillis, maxMillis + 1);
+        }
+      };
+    }
+
+    /**
+     * Responds after a delay following a log-normal distribution, which has
+     * the long tail of real network latencies.
+     *
+     * @param medianMillis half of the responses take less than this.
+     * @param p99Millis 99% of the responses take less than this.
+     */
+    static Latency logNormal(long medianMillis, long p99Millis) {
+      if (medianMillis <= 0 || p99Millis < medianMillis) {
+        throw new IllegalArgumentException(
+            "expected 0 < medianMillis <= p99Millis");
+      }
+      final double mu = Math.log(medianMillis);
+      // 2.326 is the 99th percentile of the standard normal distribution
+      final double sigma = (Math.log(p99Millis) - mu) / 2.326;
+      return new Latency() {
+        @Override
+        public long nextMillis() {
+          double gaussian = ThreadLocalRandom.current().nextGaussian();
+          return Math.round(Math.exp(mu + sigma * gaussian));
+        }
+      };
+    }
+  }
+
+  private final String apiKey;
+  private final Latency latency;
+  private final double unavailableRate;
+  private final int retryAfterSeconds;
+  private final Map<String, Double> errorRates;
+  private final double canonicalIdRate;
+  private final Map<String, String> tokenErrors;
+  private final Map<String, String> canonicalIds;
+  private final Map<String, List<String>> groups;
+  private final int threads;
+  private final AtomicInteger unavailableRequests = new AtomicInteger();
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder messages = new LongAdder();
+  private final LongAdder unavailableResponses = new LongAdder();
+  private final LongAdder receivedBytes = new LongAdder();
+  private final Object lock = new Object();
+  private HttpServer server;
+  private ExecutorService executor;
+  private ScheduledExecutorService scheduler;
+
+  public static final class Builder {
+
+    // optional parameters
+    private String apiKey;
+    private Latency latency = Latency.none();
+    private double unavailableRate;
+    private int retryAfterSeconds = -1;
+    private final Map<String, Double> errorRates =
+        new LinkedHashMap<String, Double>();
+    private double canonicalIdRate;
+    private final Map<String, String> tokenErrors =
+        new ConcurrentHashMap<String, String>();
+    private final Map<String, String> canonicalIds =
+        new ConcurrentHashMap<String, String>();
+    private final Map<String, List<String>> groups =
+        new ConcurrentHashMap<String, List<String>>();
+    private int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * Sets the only API key accepted; requests with another key get a
+     * {@literal 401} response (by default, any key is accepted).
+     */
+    public Builder apiKey(String value) {
+      apiKey = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Sets the time taken to respond (default is no delay).
+     */
+    public Builder latency(Latency value) {
+      latency = Sender.nonNull(value);
+      return this;
+    }
+
+    /**
+     * Sets the ratio of requests that get a {@literal 503} response (default
+     * is {@literal 0}).
+     */
+    public Builder unavailableRate(double value) {
+      unavailableRate = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Sets the {@code Retry-After} header of {@literal 503} responses and of
+     * responses with {@code Unavailable} errors (by default there is none).
+     */
+    public Builder retryAfter(int seconds) {
+      if (seconds < 0) {
+        throw new IllegalArgumentException("seconds cannot be negative");
+      }
+      retryAfterSeconds = seconds;
+      return this;
+    }
+
+    /**
+     * Sets the ratio of tokens that get the given error, for instance
+     * {@link Constants#ERROR_UNAVAILABLE} or
+     * {@link Constants#ERROR_NOT_REGISTERED}.
+     */
+    public Builder errorRate(String error, double rate) {
+      errorRates.put(Sender.nonNull(error), checkRate(rate));
+      double total = 0;
+      for (double value : errorRates.values()) {
+        total += value;
+      }
+      if (total > 1) {
+        throw new IllegalArgumentException("error rates add up to " + total);
+      }
+      return this;
+    }
+
+    /**
+     * Sets the ratio of successful results that have a canonical id (default
+     * is {@literal 0}).
+     */
+    public Builder canonicalIdRate(double value) {
+      canonicalIdRate = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Always returns an error for a token.
+     */
+    public Builder tokenError(String token, String error) {
+      tokenErrors.put(Sender.nonNull(token), Sender.nonNull(error));
+      return this;
+    }
+
+    /**
+     * Always returns a canonical id for a token.
+     */
+    public Builder canonicalId(String token, String canonicalId) {
+      canonicalIds.put(Sender.nonNull(token), Sender.nonNull(canonicalId));
+      return this;
+    }
+
+    /**
+     * Defines a device group, so messages sent to its notification key get
+     * a device group response.
+     */
+    public Builder group(String notificationKey, List<String> tokens) {
+      groups.put(Sender.nonNull(notificationKey),
+          Collections.unmodifiableList(
+              new ArrayList<String>(Sender.nonNull(tokens))));
+      return this;
+    }
+
+    /**
+     * Sets the number of threads reading requests (default is twice the
+     * number of processors).
+     */
+    public Builder threads(int value) {
+      if (value < 1) {
+        throw new IllegalArgumentException("threads must be positive");
+      }
+      threads = value;
+      return this;
+    }
+
+    public FcmStubServer build() {
+      return new FcmStubServer(this);
+    }
+
+    private static double checkRate(double value) {
+      if (!(value >= 0 && value <= 1)) {
+        throw new IllegalArgumentException("rate must be between 0 and 1");
+      }
+      return value;
+    }
+  }
+
+  private FcmStubServer(Builder builder) {
+    apiKey = builder.apiKey;
+    latency = builder.latency;
+    unavailableRate = builder.unavailableRate;
+    retryAfterSeconds = builder.retryAfterSeconds;
+    errorRates = new LinkedHashMap<String, Double>(builder.errorRates);
+    canonicalIdRate = builder.canonicalIdRate;
+    tokenErrors = builder.tokenErrors;
+    canonicalIds = builder.canonicalIds;
+    groups = builder.groups;
+    threads = builder.threads;
+  }
+
+  /**
+   * Starts listening on an ephemeral port of the loopback interface.
+   */
+  public void start() throws IOException {
+    synchronized (lock) {
+      if (server != null) {
+        throw new IllegalStateException("already started");
+      }
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+      server.createContext(PATH, new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          FcmStubServer.this.handle(exchange);
+        }
+      });
+      executor = Executors.newFixedThreadPool(threads, daemon("fcm-stub"));
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+          daemon("fcm-stub-latency"));
+      server.setExecutor(executor);
+      server.start();
+    }
+  }
+
+  /**
+   * Stops the server; requests being processed are dropped.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      if (server == null) {
+        return;
+      }
+      server.stop(0);
+      scheduler.shutdownNow();
+      executor.shutdownNow();
+      server = null;
+    }
+  }
+
+  /**
+   * Gets the URL to pass to {@link Sender#Sender(String, String)}.
+   */
+  public String getEndpoint() {
+    synchronized (lock) {
+      if (server == null) {
+        throw new IllegalStateException("not started");
+      }
+      return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+  }
+
+  /**
+   * Makes the next requests get a {@literal 503} response, in addition to
+   * the ones set by {@link Builder#unavailableRate(double)}.
+   */
+  public void failNextRequests(int count) {
+    if (count < 0) {
+      throw new IllegalArgumentException("count cannot be negative");
+    }
+    unavailableRequests.addAndGet(count);
+  }
+
+  /**
+   * Gets the number of requests received.
+   */
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /**
+   * Gets the number of tokens, topics or groups messages were sent to, not
+   * counting the requests that got a {@literal 503} response.
+   */
+  public long getMessageCount() {
+    return messages.sum();
+  }
+
+  /**
+   * Gets the number of {@literal 503} responses.
+   */
+  public long getUnavailableCount() {
+    return unavailableResponses.sum();
+  }
+
+  /**
+   * Gets the number of bytes of the request bodies received, as they were
+   * sent, that is compressed if they were.
+   */
+  public long getReceivedBytes() {
+    return receivedBytes.sum();
+  }
+
+  private void handle(HttpExchange exchange) {
+    try {
+      requests.increment();
+      byte[] body = read(exchange.getRequestBody());
+      receivedBytes.add(body.length);
+      if ("gzip".equalsIgnoreCase(
+          exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        body = read(new GZIPInputStream(new ByteArrayInputStream(body)));
+      }
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "text/plain", "Method not allowed");
+        return;
+      }
+      String authorization =
+          exchange.getRequestHeaders().getFirst("Authorization");
+      if (authorization == null || !authorization.startsWith("key=")
+          || (apiKey != null && !authorization.equals("key=" + apiKey))) {
+        respond(exchange, 401, "text/html", "<HTML><BODY>Unauthorized"
+            + "</BODY></HTML>");
+        return;
+      }
+      if (isUnavailable()) {
+        unavailableResponses.increment();
+        respond(exchange, 503, "text/plain", "Service Unavailable");
+        return;
+      }
+      JSONObject request;
+      try {
+        request = (JSONObject) new JSONParser().parse(
+            new String(body, StandardCharsets.UTF_8));
+      } catch (ParseException e) {
+        respond(exchange, 400, "text/plain", "JSON_PARSING_ERROR: " + e);
+        return;
+      } catch (ClassCastException e) {
+        respond(exchange, 400, "text/plain", "JSON_PARSING_ERROR: expected"
+            + " an object");
+        return;
+      }
+      Object to = request.get(JSON_TO);
+      Object registrationIds = request.get(JSON_REGISTRATION_IDS);
+      if (registrationIds instanceof JSONArray) {
+        JSONArray ids = (JSONArray) registrationIds;
+        if (ids.isEmpty() || ids.size() > Constants.MULTICAST_SIZE_LIMIT) {
+          respond(exchange, 400, "text/plain", "Number of messages on bulk ("
+              + ids.size() + ") exceeds maximum allowed ("
+              + Constants.MULTICAST_SIZE_LIMIT + ")");
+          return;
+        }
+        List<String> tokens = new ArrayList<String>(ids.size());
+        for (Object id : ids) {
+          tokens.add(String.valueOf(id));
+        }
+        respond(exchange, 200, "application/json", multicast(tokens));
+      } else if (to instanceof String) {
+        String target = (String) to;
+        List<String> group = groups.get(target);
+        String response;
+        if (target.startsWith(TOPIC_PREFIX)) {
+          response = topic();
+        } else if (group != null) {
+          response = group(group);
+        } else {
+          response = multicast(Collections.singletonList(target));
+        }
+        respond(exchange, 200, "application/json", response);
+      } else {
+        respond(exchange, 400, "text/plain",
+            "Missing \"registration_ids\" or \"to\" field");
+      }
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Could not read request", e);
+      exchange.close();
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Could not handle request", e);
+      exchange.close();
+    }
+  }
+
+  private boolean isUnavailable() {
+    while (true) {
+      int count = unavailableRequests.get();
+      if (count == 0) {
+        break;
+      }
+      if (unavailableRequests.compareAndSet(count, count - 1)) {
+        return true;
+      }
+    }
+    return unavailableRate > 0
+        && ThreadLocalRandom.current().nextDouble() < unavailableRate;
+  }
+
+  @SuppressWarnings("unchecked")
+  private String multicast(List<String> tokens) {
+    messages.add(tokens.size());
+    int success = 0, failure = 0, canonical = 0;
+    JSONArray results = new JSONArray();
+    for (String token : tokens) {
+      JSONObject result = new JSONObject();
+      String error = errorFor(token);
+      if (error != null) {
+        failure++;
+        result.put(JSON_ERROR, error);
+      } else {
+        success++;
+        result.put(JSON_MESSAGE_ID, "0:" + nextId.getAndIncrement()
+            + "%921c249a40c1af35");
+        String canonicalId = canonicalIdFor(token);
+        if (canonicalId != null) {
+          canonical++;
+          result.put(TOKEN_CANONICAL_REG_ID, canonicalId);
+        }
+      }
+      results.add(result);
+    }
+    JSONObject response = new JSONObject();
+    response.put(JSON_MULTICAST_ID, nextId.getAndIncrement());
+    response.put(JSON_SUCCESS, success);
+    response.put(JSON_FAILURE, failure);
+    response.put(JSON_CANONICAL_IDS, canonical);
+    response.put(JSON_RESULTS, results);
+    return response.toJSONString();
+  }
+
+  private String topic() {
+    messages.increment();
+    String error = errorFor(null);
+    if (error != null) {
+      return "{\"" + JSON_ERROR + "\":" + JSONValue.toJSONString(error) + "}";
+    }
+    return "{\"" + JSON_MESSAGE_ID + "\":" + nextId.getAndIncrement() + "}";
+  }
+
+  @SuppressWarnings("unchecked")
+  private String group(List<String> tokens) {
+    messages.increment();
+    JSONArray failed = new JSONArray();
+    for (String token : tokens) {
+      if (errorFor(token) != null) {
+        failed.add(token);
+      }
+    }
+    JSONObject response = new JSONObject();
+    response.put(JSON_SUCCESS, tokens.size() - failed.size());
+    response.put(JSON_FAILURE, failed.size());
+    if (!failed.isEmpty()) {
+      response.put("failed_registration_ids", failed);
+    }
+    return response.toJSONString();
+  }
+
+  private String errorFor(String token) {
+    if (token != null) {
+      String error = tokenErrors.get(token);
+      if (error != null) {
+        return error;
+      }
+    }
+    if (errorRates.isEmpty()) {
+      return null;
+    }
+    double random = ThreadLocalRandom.current().nextDouble();
+    for (Map.Entry<String, Double> entry : errorRates.entrySet()) {
+      random -= entry.getValue();
+      if (random < 0) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  private String canonicalIdFor(String token) {
+    String canonicalId = canonicalIds.get(token);
+    if (canonicalId == null && canonicalIdRate > 0
+        && ThreadLocalRandom.current().nextDouble() < canonicalIdRate) {
+      canonicalId = "canonical-" + token;
+    }
+    return canonicalId;
+  }
+
+  private void respond(final HttpExchange exchange, final int status,
+      String contentType, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type",
+        contentType + "; charset=UTF-8");
+    String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (accepted != null && accepted.contains("gzip")) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream out = new GZIPOutputStream(compressed);
+      out.write(bytes);
+      out.close();
+      bytes = compressed.toByteArray();
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    final byte[] written = bytes;
+    if (retryAfterSeconds >= 0 && (status == 503 || (status == 200
+        && body.contains("\"" + Constants.ERROR_UNAVAILABLE + "\"")))) {
+      exchange.getResponseHeaders().set("Retry-After",
+          Integer.toString(retryAfterSeconds));
+    }
+    long delay = latency.nextMillis();
+    Runnable write = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          exchange.sendResponseHeaders(status, written.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(written);
+          out.close();
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Could not write response", e);
+          exchange.close();
+        }
+      }
+    };
+    if (delay <= 0) {
+      write.run();
+    } else {
+      try {
+        scheduler.schedule(write, delay, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        // the server is being closed
+        exchange.close();
+      }
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int count; (count = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, count);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static ThreadFactory daemon(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable,
+            name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class FcmStubServerTest {
+
+  private final Message message = new Message.Builder()
+      .addData("k", "v").build();
+  private FcmStubServer server;
+
+  @After
+  public void stopServer() {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    Result result = start(new FcmStubServer.Builder())
+        .sendNoRetry(message, "4815162342");
+    assertNotNull(result.getMessageId());
+    assertNull(result.getErrorCodeName());
+    assertEquals(1, server.getRequestCount());
+    assertEquals(1, server.getMessageCount());
+  }
+
+  @Test
+  public void testSend_multicast() throws Exception {
+    Sender sender = start(new FcmStubServer.Builder()
+        .tokenError("8", Constants.ERROR_NOT_REGISTERED)
+        .canonicalId("15", "16"));
+    MulticastResult result =
+        sender.sendNoRetry(message, Arrays.asList("4", "8", "15"));
+    assertEquals(2, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertEquals(1, result.getCanonicalIds());
+    List<Result> results = result.getResults();
+    assertNotNull(results.get(0).getMessageId());
+    assertEquals(Constants.ERROR_NOT_REGISTERED,
+        results.get(1).getErrorCodeName());
+    assertEquals("16", results.get(2).getCanonicalRegistrationId());
+    assertEquals(3, server.getMessageCount());
+  }
+
+  @Test
+  public void testSend_topic() throws Exception {
+    Result result = start(new FcmStubServer.Builder())
+        .sendNoRetry(message, "/topics/news");
+    Long.parseLong(result.getMessageId());
+  }
+
+  @Test
+  public void testSend_group() throws Exception {
+    Result result = start(new FcmStubServer.Builder()
+        .group("APA91bGroup", Arrays.asList("4", "8", "15"))
+        .tokenError("8", Constants.ERROR_UNAVAILABLE))
+        .sendNoRetry(message, "APA91bGroup");
+    assertEquals(Integer.valueOf(2), result.getSuccess());
+    assertEquals(Integer.valueOf(1), result.getFailure());
+    assertEquals(Arrays.asList("8"), result.getFailedRegistrationIds());
+  }
+
+  @Test
+  public void testErrorRate() throws Exception {
+    MulticastResult result = start(new FcmStubServer.Builder()
+        .errorRate(Constants.ERROR_UNAVAILABLE, 1))
+        .sendNoRetry(message, Arrays.asList("4", "8"));
+    assertEquals(2, result.getFailure());
+    assertEquals(Constants.ERROR_UNAVAILABLE,
+        result.getResults().get(1).getErrorCodeName());
+  }
+
+  @Test
+  public void testCanonicalIdRate() throws Exception {
+    MulticastResult result = start(new FcmStubServer.Builder()
+        .canonicalIdRate(1))
+        .sendNoRetry(message, Arrays.asList("4", "8"));
+    assertEquals(2, result.getCanonicalIds());
+    assertEquals("canonical-8",
+        result.getResults().get(1).getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testUnavailable() throws Exception {
+    Sender sender = start(new FcmStubServer.Builder().retryAfter(7));
+    server.failNextRequests(1);
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4"));
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(503, e.getHttpStatusCode());
+      assertEquals(7000, e.getRetryAfter());
+    }
+    assertEquals(1, server.getUnavailableCount());
+    assertEquals(0, server.getMessageCount());
+  }
+
+  @Test
+  public void testUnavailable_retried() throws Exception {
+    server = new FcmStubServer.Builder().build();
+    server.start();
+    Sender sender = new Sender("4815162342", server.getEndpoint()) {
+      @Override
+      void sleep(long millis) {
+      }
+    };
+    server.failNextRequests(2);
+    MulticastResult result = sender.send(message, Arrays.asList("4"), 2);
+    assertEquals(1, result.getSuccess());
+    assertEquals(3, server.getRequestCount());
+  }
+
+  @Test
+  public void testUnauthorized() throws Exception {
+    server = new FcmStubServer.Builder().apiKey("42").build();
+    server.start();
+    try {
+      new Sender("4815162342", server.getEndpoint())
+          .sendNoRetry(message, "4");
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(401, e.getHttpStatusCode());
+    }
+    assertNotNull(new Sender("42", server.getEndpoint())
+        .sendNoRetry(message, "4").getMessageId());
+  }
+
+  @Test
+  public void testLatency() throws Exception {
+    Sender sender = start(new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.fixed(100)));
+    long start = System.nanoTime();
+    sender.sendNoRetry(message, "4");
+    assertTrue(System.nanoTime() - start >= 100000000L);
+  }
+
+  @Test
+  public void testLatency_concurrent() throws Exception {
+    Sender sender = start(new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.uniform(10, 20))
+        .threads(2));
+    List<CompletableFuture<MulticastResult>> futures =
+        new ArrayList<CompletableFuture<MulticastResult>>();
+    for (int i = 0; i < 100; i++) {
+      futures.add(sender.sendNoRetryAsync(message, Arrays.asList("" + i)));
+    }
+    for (CompletableFuture<MulticastResult> future : futures) {
+      assertEquals(1, future.get().getSuccess());
+    }
+    assertEquals(100, server.getRequestCount());
+  }
+
+  @Test
+  public void testLatency_logNormal() {
+    FcmStubServer.Latency latency = FcmStubServer.Latency.logNormal(10, 100);
+    int below = 0;
+    for (int i = 0; i < 10000; i++) {
+      long value = latency.nextMillis();
+      assertTrue(value >= 0);
+      if (value <= 10) {
+        below++;
+      }
+    }
+    assertTrue("" + below, below > 4000 && below < 6000);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_errorRatesAboveOne() {
+    new FcmStubServer.Builder()
+        .errorRate(Constants.ERROR_UNAVAILABLE, 0.6)
+        .errorRate(Constants.ERROR_NOT_REGISTERED, 0.6);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidRate() {
+    new FcmStubServer.Builder().unavailableRate(1.5);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGetEndpoint_notStarted() {
+    new FcmStubServer.Builder().build().getEndpoint();
+  }
+
+  private Sender start(FcmStubServer.Builder builder) throws Exception {
+    server = builder.build();
+    server.start();
+    return new Sender("4815162342", server.getEndpoint());
+  }
+}
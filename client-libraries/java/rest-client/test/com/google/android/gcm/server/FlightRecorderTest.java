@@ -0,0 +1,173 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class FlightRecorderTest {
+
+  private static final String TOKEN = "APA91bHun4MxP5egoKMwt2KZFBaFUH";
+
+  private final VirtualClock clock = new VirtualClock();
+
+  @Test
+  public void testRedact() {
+    FlightRecorder recorder = new FlightRecorder.Builder().build();
+    assertEquals("{\"registration_ids\":[\"APA91bHu...\",\"4\"],"
+        + "\"data\":\"...\",\"notification\":\"...\",\"priority\":\"high\"}",
+        recorder.redact("{\"registration_ids\":[\"" + TOKEN + "\",\"4\"],"
+            + "\"data\":{\"k\":\"}\",\"n\":[1,{}]},"
+            + "\"notification\":{\"title\":\"t\"},\"priority\":\"high\"}"));
+    assertEquals("{\"to\": \"/topics/news\", \"data\" : \"...\"}",
+        recorder.redact(
+            "{\"to\": \"/topics/news\", \"data\" : {\"to\":\"x\"}}"));
+    assertEquals("{\"results\":[{\"message_id\":\"1:08\","
+        + "\"registration_id\":\"APA91bHu...\"}]}",
+        recorder.redact("{\"results\":[{\"message_id\":\"1:08\","
+            + "\"registration_id\":\"" + TOKEN + "\"}]}"));
+  }
+
+  @Test
+  public void testRedact_truncated() {
+    FlightRecorder recorder = new FlightRecorder.Builder()
+        .maxBodyLength(10)
+        .build();
+    assertEquals("{\"to\":\"APA...",
+        recorder.redact("{\"to\":\"" + TOKEN + "\",\"data\":{}}"));
+    // malformed bodies are copied as they are
+    assertEquals("{\"to\":", recorder.redact("{\"to\":"));
+  }
+
+  @Test
+  public void testGetEntries_wrapped() {
+    FlightRecorder recorder = new FlightRecorder.Builder()
+        .capacity(3)
+        .sampleRate(1)
+        .ticker(clock)
+        .build();
+    assertEquals(4, recorder.getCapacity());
+    for (int i = 1; i <= 6; i++) {
+      FlightRecorder.Recording recording = recorder.start("https://fcm",
+          "{}".getBytes(StandardCharsets.UTF_8), i);
+      clock.advance(i);
+      recording.failed(new IOException("timeout"));
+    }
+    List<FlightRecorder.Entry> entries = recorder.getEntries();
+    assertEquals(4, entries.size());
+    for (int i = 0; i < 4; i++) {
+      FlightRecorder.Entry entry = entries.get(i);
+      assertEquals(i + 2, entry.getSequence());
+      assertEquals(i + 3, entry.getAttempt());
+      assertEquals(i + 3, entry.getLatencyMillis());
+      assertEquals(0, entry.getStatus());
+      assertNull(entry.getResponse());
+      assertEquals("java.io.IOException: timeout", entry.getError());
+    }
+  }
+
+  @Test
+  public void testStart_notSampled() {
+    FlightRecorder recorder = new FlightRecorder.Builder()
+        .sampleRate(0)
+        .build();
+    assertNull(recorder.start("https://fcm", new byte[0], 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSampleRate_invalid() {
+    new FlightRecorder.Builder().sampleRate(1.5);
+  }
+
+  @Test
+  public void testSender() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .tokenError(TOKEN, Constants.ERROR_UNAVAILABLE)
+        .build();
+    server.start();
+    try {
+      Sender sender = new Sender("4815162342", server.getEndpoint()) {
+        @Override
+        void sleep(long millis) {
+        }
+      };
+      FlightRecorder recorder = new FlightRecorder.Builder()
+          .sampleRate(1)
+          .build();
+      sender.setFlightRecorder(recorder);
+      Message message = new Message.Builder().addData("secret", "42").build();
+      sender.send(message, Arrays.asList("4", TOKEN), 1);
+      sender.sendAsync(message, "8", 0).get();
+
+      List<FlightRecorder.Entry> entries = recorder.getEntries();
+      assertEquals(3, entries.size());
+      FlightRecorder.Entry first = entries.get(0);
+      assertEquals(1, first.getAttempt());
+      assertEquals(server.getEndpoint(), first.getEndpoint());
+      assertEquals(200, first.getStatus());
+      assertTrue(first.getRequest().contains("\"APA91bHu...\""));
+      assertFalse(first.getRequest().contains("secret"));
+      assertTrue(first.getResponse().contains(Constants.ERROR_UNAVAILABLE));
+      assertEquals(2, entries.get(1).getAttempt());
+      assertEquals(1, entries.get(2).getAttempt());
+      assertTrue(entries.get(2).getResponse().contains("message_id"));
+      StringBuilder dump = new StringBuilder();
+      recorder.dump(dump);
+      assertEquals(3, dump.toString().split("\n").length);
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testSenderAsync_retriesRecorded() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .tokenError(TOKEN, Constants.ERROR_UNAVAILABLE)
+        .build();
+    server.start();
+    try {
+      Sender sender = new Sender("4815162342", server.getEndpoint()) {
+        @Override
+        void schedule(Runnable task, long delayMillis) {
+          task.run();
+        }
+      };
+      FlightRecorder recorder = new FlightRecorder.Builder()
+          .sampleRate(1)
+          .build();
+      sender.setFlightRecorder(recorder);
+      Message message = new Message.Builder().build();
+      sender.sendAsync(message, Arrays.asList("4", TOKEN), 2).get();
+
+      List<FlightRecorder.Entry> entries = recorder.getEntries();
+      assertEquals(3, entries.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals(i + 1, entries.get(i).getAttempt());
+      }
+    } finally {
+      server.close();
+    }
+  }
+}
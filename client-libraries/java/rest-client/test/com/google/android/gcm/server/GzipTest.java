@@ -0,0 +1,161 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipTest {
+
+  @Test
+  public void testCompress() throws IOException {
+    byte[] json = MessageEncoder.encode(new Message.Builder()
+        .addData("title", "Breaking news").build(), regIds(1000));
+    byte[] compressed = Gzip.compress(json);
+    // the ids are random, only their alphabet and the JSON compress
+    assertTrue(compressed.length < json.length * 0.8);
+    assertArrayEquals(json, decompress(compressed));
+    // again with the pooled deflater
+    assertArrayEquals(json, decompress(Gzip.compress(json)));
+  }
+
+  @Test
+  public void testCompress_incompressible() throws IOException {
+    byte[] random = new byte[100000];
+    new Random(42).nextBytes(random);
+    // the output buffer has to grow
+    assertArrayEquals(random, decompress(Gzip.compress(random)));
+    assertArrayEquals(new byte[0], decompress(Gzip.compress(new byte[0])));
+  }
+
+  @Test
+  public void testDecoding() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(body);
+    out.write("{}".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    TransportResponse response = Gzip.decoding(
+        response("GZIP", body.toByteArray()));
+    assertEquals(200, response.getStatus());
+    assertEquals("{}", new String(decompressed(response.getBody()),
+        StandardCharsets.UTF_8));
+    TransportResponse plain = response(null, new byte[0]);
+    assertSame(plain, Gzip.decoding(plain));
+  }
+
+  @Test
+  public void testSender() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .tokenError("15", Constants.ERROR_NOT_REGISTERED)
+        .build();
+    server.start();
+    try {
+      Sender sender = new Sender("4815162342", server.getEndpoint());
+      sender.setGzipThreshold(1024);
+      Message message = new Message.Builder().build();
+      List<String> regIds = regIds(1000);
+      regIds.set(15, "15");
+      MulticastResult result = sender.send(message, regIds, 0);
+      assertEquals(999, result.getSuccess());
+      assertEquals(ErrorCode.NOT_REGISTERED,
+          result.getResults().get(15).getErrorCode());
+      long compressed = server.getReceivedBytes();
+      assertTrue(compressed
+          < MessageEncoder.encode(message, regIds).length * 0.8);
+      // small requests are not compressed, but their responses are
+      assertEquals(ErrorCode.NOT_REGISTERED,
+          sender.sendAsync(message, "15", 0).get().getErrorCode());
+      assertEquals(MessageEncoder.encode(message, "15").length,
+          server.getReceivedBytes() - compressed);
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetGzipThreshold_invalid() {
+    new Sender("4815162342").setGzipThreshold(-2);
+  }
+
+  /**
+   * Creates registration ids made of random base64url characters, as the
+   * real ones seem to be.
+   */
+  private static List<String> regIds(int count) {
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+        + "0123456789-_";
+    List<String> regIds = new ArrayList<String>(count);
+    Random random = new Random(42);
+    for (int i = 0; i < count; i++) {
+      StringBuilder regId = new StringBuilder();
+      for (int j = 0; j < 152; j++) {
+        regId.append(j == 11 ? ":APA91b"
+            : alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      regIds.add(regId.toString());
+    }
+    return regIds;
+  }
+
+  private static byte[] decompress(byte[] data) throws IOException {
+    return decompressed(new GZIPInputStream(new ByteArrayInputStream(data)));
+  }
+
+  private static byte[] decompressed(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int count; (count = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, count);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static TransportResponse response(final String encoding,
+      final byte[] body) {
+    return new TransportResponse() {
+      @Override
+      public int getStatus() {
+        return 200;
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return name.equals("Content-Encoding") ? encoding : null;
+      }
+
+      @Override
+      public InputStream getBody() {
+        return new ByteArrayInputStream(body);
+      }
+    };
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.net.http.HttpClient;
+
+public class Http2ConnectionPoolTest {
+
+  private long now;
+  private int created;
+
+  private final Http2ConnectionPool.Ticker ticker =
+      new Http2ConnectionPool.Ticker() {
+        @Override
+        public long nanoTime() {
+          return now;
+        }
+      };
+
+  private final Http2ConnectionPool.ClientFactory factory =
+      new Http2ConnectionPool.ClientFactory() {
+        @Override
+        public HttpClient newClient() {
+          created++;
+          return HttpClient.newHttpClient();
+        }
+      };
+
+  // 2 connections, 2 streams each, 100ns idle timeout
+  private final Http2ConnectionPool pool =
+      new Http2ConnectionPool(factory, ticker, 2, 2, 100);
+
+  @Test
+  public void testAcquire_reusesConnection() {
+    Http2ConnectionPool.Connection first = pool.acquire();
+    pool.release(first, true);
+    Http2ConnectionPool.Connection second = pool.acquire();
+    assertSame(first, second);
+    assertEquals(1, created);
+    assertEquals(1, pool.getMisses());
+    assertEquals(1, pool.getHits());
+  }
+
+  @Test
+  public void testAcquire_opensConnectionWhenStreamsAreBusy() {
+    Http2ConnectionPool.Connection first = pool.acquire();
+    assertSame(first, pool.acquire());
+    Http2ConnectionPool.Connection third = pool.acquire();
+    assertNotSame(first, third);
+    assertEquals(2, pool.getOpenConnections());
+    // pool is full, so the least loaded connection is shared
+    assertSame(third, pool.acquire());
+    assertEquals(2, pool.getOpenConnections());
+    assertEquals(2, third.getInFlight());
+  }
+
+  @Test
+  public void testAcquire_failedRequestDoesNotWarm() {
+    Http2ConnectionPool.Connection connection = pool.acquire();
+    pool.release(connection, false);
+    assertFalse(connection.isWarm());
+    pool.acquire();
+    assertEquals(2, pool.getMisses());
+  }
+
+  @Test
+  public void testEvictIdle() {
+    Http2ConnectionPool.Connection busy = pool.acquire();
+    pool.acquire();
+    Http2ConnectionPool.Connection idle = pool.acquire();
+    pool.release(idle, true);
+    now += 101;
+    pool.evictIdle();
+    assertEquals(1, pool.getOpenConnections());
+    assertEquals(1, pool.getEvictions());
+    pool.release(busy, true);
+    assertSame(busy, pool.acquire());
+  }
+
+  @Test
+  public void testAcquire_evictsIdleConnection() {
+    Http2ConnectionPool.Connection connection = pool.acquire();
+    pool.release(connection, true);
+    now += 101;
+    assertNotSame(connection, pool.acquire());
+    assertEquals(1, pool.getOpenConnections());
+    assertEquals(2, pool.getMisses());
+  }
+
+  @Test
+  public void testGrow() {
+    assertEquals(2, pool.grow(5).size());
+    assertEquals(2, pool.getOpenConnections());
+    assertTrue(pool.grow(1).isEmpty());
+    Http2ConnectionPool.Connection connection = pool.acquire();
+    assertFalse(connection.isWarm());
+    pool.markWarm(connection);
+    assertTrue(connection.isWarm());
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class Http2TransportTest {
+
+  private final Http2Transport transport =
+      new Http2Transport.Builder().maxConnections(2).build();
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private String endpoint;
+
+  // last request received by the server
+  private volatile String requestBody;
+  private volatile String requestAuthorization;
+
+  // response the server returns
+  private volatile int responseStatus = 200;
+  private volatile String responseBody = "{}";
+  private volatile String retryAfter;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/fcm/send", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requestBody = read(exchange.getRequestBody());
+        requestAuthorization =
+            exchange.getRequestHeaders().getFirst("Authorization");
+        if (retryAfter != null) {
+          exchange.getResponseHeaders().add("Retry-After", retryAfter);
+        }
+        byte[] bytes = responseBody.getBytes("UTF-8");
+        exchange.sendResponseHeaders(responseStatus, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+      }
+    });
+    serverExecutor = Executors.newFixedThreadPool(4);
+    server.setExecutor(serverExecutor);
+    server.start();
+    endpoint = "http://localhost:" + server.getAddress().getPort() +
+        "/fcm/send";
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    responseBody = "resp";
+    TransportRequest request = new TransportRequest.Builder(endpoint,
+        "マルチバイト文字".getBytes("UTF-8"))
+        .header("Content-Type", "application/json")
+        .header("Authorization", "key=42")
+        .build();
+    TransportResponse response = transport.post(request);
+    assertEquals(200, response.getStatus());
+    assertEquals("resp", read(response.getBody()));
+    assertEquals("マルチバイト文字", requestBody);
+    assertEquals("key=42", requestAuthorization);
+  }
+
+  @Test
+  public void testPost_error() throws Exception {
+    responseStatus = 503;
+    responseBody = "Unavailable";
+    retryAfter = "10";
+    TransportResponse response = transport.post(
+        new TransportRequest.Builder(endpoint, new byte[0]).build());
+    assertEquals(503, response.getStatus());
+    assertEquals("10", response.getHeader("retry-after"));
+    assertNull(response.getHeader("X-Not-There"));
+    assertEquals("Unavailable", read(response.getBody()));
+  }
+
+  @Test
+  public void testGetTimeout() {
+    assertEquals(0, Http2Transport.getTimeout(timeouts(0, 0)));
+    assertEquals(3000, Http2Transport.getTimeout(timeouts(0, 3000)));
+    assertEquals(5000, Http2Transport.getTimeout(timeouts(5000, 3000)));
+    assertEquals(3000, Http2Transport.getTimeout(timeouts(1000, 3000)));
+    // the connection setup is bounded by the client's connect timeout
+    assertEquals(0, Http2Transport.getTimeout(timeouts(5000, 0)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testPost_connectionRefused() throws Exception {
+    server.stop(0);
+    transport.post(new TransportRequest.Builder(endpoint, new byte[0]).build());
+  }
+
+  @Test
+  public void testPostAsync_concurrent() throws Exception {
+    responseBody = "ok";
+    List<CompletableFuture<TransportResponse>> futures =
+        new ArrayList<CompletableFuture<TransportResponse>>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(transport.postAsync(new TransportRequest.Builder(endpoint,
+          ("" + i).getBytes("UTF-8")).build(), SharedExecutors.io()));
+    }
+    for (CompletableFuture<TransportResponse> future : futures) {
+      TransportResponse response = future.get();
+      assertEquals(200, response.getStatus());
+      assertEquals("ok", read(response.getBody()));
+    }
+  }
+
+  @Test
+  public void testSender() throws Exception {
+    responseBody = "{\"multicast_id\": 108, \"success\": 1, \"failure\": 1,"
+        + " \"canonical_ids\": 0, \"results\": [{\"message_id\": \"16\"},"
+        + " {\"error\": \"NotRegistered\"}]}";
+    Sender sender = new Sender("4815162342", endpoint);
+    sender.setTransport(transport);
+    Message message = new Message.Builder().addData("k", "v").build();
+    MulticastResult result =
+        sender.sendAsync(message, Arrays.asList("4", "8"), 0).get();
+    assertEquals(108, result.getMulticastId());
+    assertEquals("16", result.getResults().get(0).getMessageId());
+    assertEquals("NotRegistered",
+        result.getResults().get(1).getErrorCodeName());
+    assertEquals("key=4815162342", requestAuthorization);
+  }
+
+  @Test
+  public void testPrewarm() throws Exception {
+    Sender sender = new Sender("4815162342", endpoint);
+    sender.setTransport(transport);
+    assertEquals(2, sender.prewarm(5));
+    assertEquals(2, transport.getOpenConnections());
+    assertEquals(0, sender.prewarm(1));
+    transport.post(new TransportRequest.Builder(endpoint, new byte[0]).build())
+        .getBody().close();
+    assertEquals(1, transport.getPoolHits());
+    assertEquals(0, transport.getPoolMisses());
+  }
+
+  @Test
+  public void testPrewarm_endpoints() throws Exception {
+    FcmStubServer primary = new FcmStubServer.Builder().build();
+    FcmStubServer secondary = new FcmStubServer.Builder().build();
+    primary.start();
+    secondary.start();
+    try {
+      Sender sender = new Sender("4815162342", Arrays.asList(
+          primary.getEndpoint(), secondary.getEndpoint()));
+      sender.setTransport(transport);
+      // each endpoint gets its own connections
+      assertEquals(4, sender.prewarm(2));
+      assertEquals(2, transport.getOpenConnections(primary.getEndpoint()));
+      assertEquals(2, transport.getOpenConnections(secondary.getEndpoint()));
+      assertEquals(2, primary.getRequestCount());
+      assertEquals(2, secondary.getRequestCount());
+      transport.post(new TransportRequest.Builder(secondary.getEndpoint(),
+          new byte[0]).build()).getBody().close();
+      assertEquals(1, transport.getPoolHits());
+      assertEquals(0, transport.getPoolMisses());
+    } finally {
+      primary.close();
+      secondary.close();
+    }
+  }
+
+  @Test
+  public void testPrewarm_defaultTransport() throws Exception {
+    assertEquals(0, new Sender("4815162342", endpoint).prewarm(5));
+  }
+
+  @Test
+  public void testPoolMiss() throws Exception {
+    transport.post(new TransportRequest.Builder(endpoint, new byte[0]).build())
+        .getBody().close();
+    transport.post(new TransportRequest.Builder(endpoint, new byte[0]).build())
+        .getBody().close();
+    assertEquals(1, transport.getOpenConnections());
+    assertEquals(1, transport.getPoolMisses());
+    assertEquals(1, transport.getPoolHits());
+  }
+
+  @Test
+  public void testPost_connectionHeldUntilBodyRead() throws Exception {
+    Http2Transport transport = new Http2Transport.Builder()
+        .maxConnections(2)
+        .maxStreamsPerConnection(1)
+        .build();
+    TransportRequest request =
+        new TransportRequest.Builder(endpoint, new byte[0]).build();
+    TransportResponse unread = transport.post(request);
+    // the first connection still carries the unread body
+    transport.post(request).getBody().close();
+    assertEquals(2, transport.getPoolMisses());
+    assertEquals("{}", read(unread.getBody()));
+    transport.post(request).getBody().close();
+    transport.post(request).getBody().close();
+    assertEquals(2, transport.getOpenConnections());
+    assertEquals(2, transport.getPoolMisses());
+    assertEquals(2, transport.getPoolHits());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_noConnections() {
+    new Http2Transport.Builder().maxConnections(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_noStreams() {
+    new Http2Transport.Builder().maxStreamsPerConnection(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_negativeTimeout() {
+    new Http2Transport.Builder().connectTimeout(-1);
+  }
+
+  private static String read(InputStream stream) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int count;
+    while ((count = stream.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    stream.close();
+    return new String(out.toByteArray(), "UTF-8");
+  }
+
+  private TransportRequest timeouts(int connectTimeout, int readTimeout) {
+    return new TransportRequest.Builder(endpoint, new byte[0])
+        .connectTimeout(connectTimeout)
+        .readTimeout(readTimeout)
+        .build();
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void testSnapshot_empty() {
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMin());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0, snapshot.getMean(), 0);
+    assertEquals(0, snapshot.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testSnapshot_smallValuesAreExact() {
+    for (int i = 1; i <= 20; i++) {
+      histogram.record(i);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(20, snapshot.getCount());
+    assertEquals(1, snapshot.getMin());
+    assertEquals(20, snapshot.getMax());
+    assertEquals(10.5, snapshot.getMean(), 0);
+    assertEquals(10, snapshot.getValueAtPercentile(50));
+    assertEquals(19, snapshot.getValueAtPercentile(95));
+    assertEquals(20, snapshot.getValueAtPercentile(100));
+    assertEquals(1, snapshot.getValueAtPercentile(0));
+  }
+
+  @Test
+  public void testSnapshot_percentilesWithinError() {
+    // 1ms to 1000ms, in nanoseconds
+    for (long ms = 1; ms <= 1000; ms++) {
+      histogram.record(ms * 1000000);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertWithinError(500000000, snapshot.getValueAtPercentile(50));
+    assertWithinError(990000000, snapshot.getValueAtPercentile(99));
+    assertEquals(1000000000, snapshot.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testRecord_negativeAndHuge() {
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(0, snapshot.getMin());
+    assertEquals(Long.MAX_VALUE, snapshot.getMax());
+    assertEquals(Long.MAX_VALUE, snapshot.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testIndex_bucketsAreContiguous() {
+    long previous = -1;
+    for (int i = 0; i <= LatencyHistogram.index(Long.MAX_VALUE); i++) {
+      long highest = LatencyHistogram.highestValue(i);
+      assertEquals(i, LatencyHistogram.index(previous + 1));
+      assertEquals(i, LatencyHistogram.index(highest));
+      previous = highest;
+    }
+    assertEquals(Long.MAX_VALUE, previous);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGetValueAtPercentile_invalid() {
+    histogram.snapshot().getValueAtPercentile(101);
+  }
+
+  private static void assertWithinError(long expected, long actual) {
+    assertTrue(expected + " vs " + actual,
+        Math.abs(actual - expected) <= expected / 32);
+  }
+}
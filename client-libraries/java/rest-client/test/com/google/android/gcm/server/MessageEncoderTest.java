@@ -0,0 +1,186 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MessageEncoderTest {
+
+  @Test
+  public void testEncode_emptyMessage() throws Exception {
+    Message message = new Message.Builder().build();
+    assertEncodedLikeJsonSimple(message, "4815162342");
+    assertEquals("{\"to\":\"4815162342\"}",
+        new String(MessageEncoder.encode(message, "4815162342"), "UTF-8"));
+  }
+
+  @Test
+  public void testEncode_nullMessage() throws Exception {
+    assertEncodedLikeJsonSimple(null, "4815162342");
+  }
+
+  @Test
+  public void testEncode_allFields() throws Exception {
+    Message message = newFullMessage();
+    assertEncodedLikeJsonSimple(message, "/topics/news");
+    assertEncodedLikeJsonSimple(message, Arrays.asList("4", "8", "15"));
+  }
+
+  @Test
+  public void testEncode_partialNotification() throws Exception {
+    Message message = new Message.Builder()
+        .timeToLive(0)
+        .notification(new Notification.Builder("icon").badge(7).build())
+        .build();
+    assertEncodedLikeJsonSimple(message, "16");
+    assertEncodedLikeJsonSimple(message, Arrays.asList("23", "42"));
+  }
+
+  @Test
+  public void testEncode_manyRegistrationIds() throws Exception {
+    List<String> regIds = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      regIds.add("APA91bH" + i + "-token_with/slash");
+    }
+    assertEncodedLikeJsonSimple(newFullMessage(), regIds);
+  }
+
+  @Test
+  public void testEncode_escaping() throws Exception {
+    StringBuilder allChars = new StringBuilder();
+    for (char ch = 0; ch < 0x3000; ch++) {
+      allChars.append(ch);
+    }
+    // supplementary character and unpaired surrogates
+    allChars.append("😀 \uD83D \uDE00\uD83D");
+    String value = allChars.toString();
+    Message message = new Message.Builder()
+        .collapseKey(value)
+        .addData(value, value)
+        .notification(new Notification.Builder(value)
+            .bodyLocArgs(Arrays.asList(value, "\"quoted\"")).build())
+        .build();
+    assertEncodedLikeJsonSimple(message, value);
+    assertEncodedLikeJsonSimple(message, Arrays.asList(value, "マルチバイト"));
+  }
+
+  private static Message newFullMessage() {
+    return new Message.Builder()
+        .collapseKey("collapseKey")
+        .delayWhileIdle(true)
+        .dryRun(true)
+        .restrictedPackageName("package.name")
+        .priority(Message.Priority.HIGH)
+        .contentAvailable(true)
+        .timeToLive(108)
+        .addData("k1", "v1")
+        .addData("k2", "v2")
+        .addData("k3", null)
+        .notification(new Notification.Builder("icon")
+            .title("title")
+            .body("body")
+            .badge(1)
+            .tag("tag")
+            .color("#ff0000")
+            .clickAction("OPEN")
+            .bodyLocKey("bodyKey")
+            .bodyLocArgs(Arrays.asList("b1", "b2"))
+            .titleLocKey("titleKey")
+            .titleLocArgs(Arrays.asList("t1"))
+            .build())
+        .build();
+  }
+
+  private static void assertEncodedLikeJsonSimple(Message message, String to)
+      throws Exception {
+    Map<Object, Object> request = toMap(message);
+    request.put(Constants.JSON_TO, to);
+    assertArrayEquals(JSONValue.toJSONString(request).getBytes("UTF-8"),
+        MessageEncoder.encode(message, to));
+  }
+
+  private static void assertEncodedLikeJsonSimple(Message message,
+      List<String> regIds) throws Exception {
+    Map<Object, Object> request = toMap(message);
+    request.put(Constants.JSON_REGISTRATION_IDS, regIds);
+    assertArrayEquals(JSONValue.toJSONString(request).getBytes("UTF-8"),
+        MessageEncoder.encode(message, regIds));
+  }
+
+  /**
+   * Builds the request map the way {@link Sender} used to before requests
+   * were streamed.
+   */
+  private static Map<Object, Object> toMap(Message message) {
+    Map<Object, Object> map = new HashMap<Object, Object>();
+    if (message == null) {
+      return map;
+    }
+    put(map, Constants.PARAM_PRIORITY, message.getPriority());
+    put(map, Constants.PARAM_CONTENT_AVAILABLE, message.getContentAvailable());
+    put(map, Constants.PARAM_TIME_TO_LIVE, message.getTimeToLive());
+    put(map, Constants.PARAM_COLLAPSE_KEY, message.getCollapseKey());
+    put(map, Constants.PARAM_RESTRICTED_PACKAGE_NAME,
+        message.getRestrictedPackageName());
+    put(map, Constants.PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+    put(map, Constants.PARAM_DRY_RUN, message.isDryRun());
+    if (!message.getData().isEmpty()) {
+      map.put(Constants.JSON_PAYLOAD, message.getData());
+    }
+    Notification notification = message.getNotification();
+    if (notification != null) {
+      Map<Object, Object> nMap = new HashMap<Object, Object>();
+      if (notification.getBadge() != null) {
+        put(nMap, Constants.JSON_NOTIFICATION_BADGE,
+            notification.getBadge().toString());
+      }
+      put(nMap, Constants.JSON_NOTIFICATION_BODY, notification.getBody());
+      put(nMap, Constants.JSON_NOTIFICATION_BODY_LOC_ARGS,
+          notification.getBodyLocArgs());
+      put(nMap, Constants.JSON_NOTIFICATION_BODY_LOC_KEY,
+          notification.getBodyLocKey());
+      put(nMap, Constants.JSON_NOTIFICATION_CLICK_ACTION,
+          notification.getClickAction());
+      put(nMap, Constants.JSON_NOTIFICATION_COLOR, notification.getColor());
+      put(nMap, Constants.JSON_NOTIFICATION_ICON, notification.getIcon());
+      put(nMap, Constants.JSON_NOTIFICATION_SOUND, notification.getSound());
+      put(nMap, Constants.JSON_NOTIFICATION_TAG, notification.getTag());
+      put(nMap, Constants.JSON_NOTIFICATION_TITLE, notification.getTitle());
+      put(nMap, Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS,
+          notification.getTitleLocArgs());
+      put(nMap, Constants.JSON_NOTIFICATION_TITLE_LOC_KEY,
+          notification.getTitleLocKey());
+      map.put(Constants.JSON_NOTIFICATION, nMap);
+    }
+    return map;
+  }
+
+  private static void put(Map<Object, Object> map, String key, Object value) {
+    if (value != null) {
+      map.put(key, value);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class MetricsRecorderTest {
+
+  private final MetricsRecorder recorder = new MetricsRecorder();
+
+  @Test
+  public void testSnapshot() {
+    recorder.onRequest(200, 1000, 100, 50);
+    recorder.onRequest(200, 3000, 100, 70);
+    recorder.onRequest(503, 2000, 100, 0);
+    recorder.onRequest(0, 500, 100, 0);
+    recorder.onResult(new Result.Builder().messageId("1").build());
+    recorder.onResult(new Result.Builder().messageId("2")
+        .canonicalRegistrationId("42").build());
+    recorder.onResult(new Result.Builder().errorCode("Unavailable").build());
+    recorder.onResult(new Result.Builder().errorCode("Unavailable").build());
+    recorder.onRetry();
+    MetricsRecorder.Snapshot snapshot = recorder.snapshot();
+    assertEquals(4, snapshot.getRequests());
+    assertEquals(2, snapshot.getStatusCounts().get(200).longValue());
+    assertEquals(1, snapshot.getStatusCounts().get(503).longValue());
+    assertEquals(1, snapshot.getStatusCounts().get(0).longValue());
+    assertEquals(400, snapshot.getBytesSent());
+    assertEquals(120, snapshot.getBytesReceived());
+    assertEquals(4, snapshot.getLatency().getCount());
+    assertEquals(3000, snapshot.getLatency().getMax());
+    assertEquals(4, snapshot.getResults());
+    assertEquals(2, snapshot.getSuccesses());
+    assertEquals(1, snapshot.getCanonicalIds());
+    assertEquals(0.25, snapshot.getCanonicalIdRate(), 0);
+    assertEquals(2, snapshot.getErrorCounts().get("Unavailable").longValue());
+    assertEquals(1, snapshot.getRetries());
+    assertTrue(snapshot.toString().contains("Unavailable=2"));
+  }
+
+  @Test
+  public void testSnapshot_circuitTransitions() {
+    recorder.onCircuitStateChange("https://a", CircuitBreaker.State.CLOSED,
+        CircuitBreaker.State.OPEN);
+    recorder.onCircuitStateChange("https://a", CircuitBreaker.State.OPEN,
+        CircuitBreaker.State.HALF_OPEN);
+    recorder.onCircuitStateChange("https://b", CircuitBreaker.State.CLOSED,
+        CircuitBreaker.State.OPEN);
+    MetricsRecorder.Snapshot snapshot = recorder.snapshot();
+    assertEquals(2,
+        snapshot.getCircuitTransitionCounts().get("OPEN").longValue());
+    assertEquals(1,
+        snapshot.getCircuitTransitionCounts().get("HALF_OPEN").longValue());
+    Map<String, Map<String, Long>> byEndpoint =
+        snapshot.getCircuitTransitionCountsByEndpoint();
+    assertEquals(2, byEndpoint.size());
+    assertEquals(1, byEndpoint.get("https://a").get("OPEN").longValue());
+    assertEquals(1, byEndpoint.get("https://a").get("HALF_OPEN").longValue());
+    assertEquals(1, byEndpoint.get("https://b").get("OPEN").longValue());
+    assertNull(byEndpoint.get("https://b").get("HALF_OPEN"));
+    assertTrue(snapshot.toString().contains("https://b={OPEN=1}"));
+  }
+
+  @Test
+  public void testSnapshot_isACopy() {
+    MetricsRecorder.Snapshot snapshot = recorder.snapshot();
+    recorder.onRetry();
+    recorder.onRequest(200, 1, 1, 1);
+    assertEquals(0, snapshot.getRetries());
+    assertEquals(0, snapshot.getRequests());
+    assertTrue(snapshot.getStatusCounts().isEmpty());
+    assertEquals(0, snapshot.getCanonicalIdRate(), 0);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSnapshot_unmodifiable() {
+    recorder.onResult(new Result.Builder().errorCode("NotRegistered").build());
+    recorder.snapshot().getErrorCounts().clear();
+  }
+}
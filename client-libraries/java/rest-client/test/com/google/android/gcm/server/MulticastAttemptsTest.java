@@ -0,0 +1,104 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class MulticastAttemptsTest {
+
+  private final Result unavailable = new Result.Builder()
+      .errorCode(Constants.ERROR_UNAVAILABLE).build();
+  private final Result notRegistered = new Result.Builder()
+      .errorCode(Constants.ERROR_NOT_REGISTERED).build();
+
+  @Test
+  public void testUpdate() {
+    MulticastAttempts attempts =
+        new MulticastAttempts(Arrays.asList("4", "8", "15", "16"));
+    assertFalse(attempts.hasResults());
+    List<String> first = attempts.getUnsentRegIds();
+    assertEquals(Arrays.asList("4", "8", "15", "16"), first);
+    attempts.update(multicast(1, sent("4"), unavailable, notRegistered,
+        unavailable));
+    assertTrue(attempts.hasResults());
+    assertEquals(Arrays.asList("8", "16"), attempts.getUnsentRegIds());
+    // earlier views are not changed
+    assertEquals(Arrays.asList("4", "8", "15", "16"), first);
+    attempts.update(multicast(2, sent("8"), unavailable));
+    assertEquals(Arrays.asList("16"), attempts.getUnsentRegIds());
+    attempts.update(multicast(3, sent("16")));
+    assertFalse(attempts.hasUnsentRegIds());
+
+    MulticastResult result = attempts.build();
+    assertEquals(1, result.getMulticastId());
+    assertEquals(Arrays.asList(2L, 3L), result.getRetryMulticastIds());
+    assertEquals(3, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    List<Result> results = result.getResults();
+    assertEquals("id-4", results.get(0).getMessageId());
+    assertEquals("id-8", results.get(1).getMessageId());
+    assertEquals(Constants.ERROR_NOT_REGISTERED,
+        results.get(2).getErrorCodeName());
+    assertEquals("id-16", results.get(3).getMessageId());
+  }
+
+  @Test
+  public void testUpdate_duplicates() {
+    MulticastAttempts attempts =
+        new MulticastAttempts(new LinkedList<String>(
+            Arrays.asList("4", "8", "4")));
+    attempts.update(multicast(1, unavailable, sent("8"), notRegistered));
+    // each position keeps its own result
+    assertEquals(Arrays.asList("4"), attempts.getUnsentRegIds());
+    attempts.update(multicast(2, sent("4")));
+    MulticastResult result = attempts.build();
+    assertEquals(3, result.getTotal());
+    assertEquals(2, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertEquals("id-4", result.getResults().get(0).getMessageId());
+    assertNull(result.getResults().get(2).getMessageId());
+    assertEquals(Constants.ERROR_NOT_REGISTERED,
+        result.getResults().get(2).getErrorCodeName());
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testUpdate_sizeMismatch() {
+    new MulticastAttempts(Arrays.asList("4", "8"))
+        .update(multicast(1, sent("4")));
+  }
+
+  private static Result sent(String regId) {
+    return new Result.Builder().messageId("id-" + regId).build();
+  }
+
+  private static MulticastResult multicast(long id, Result... results) {
+    MulticastResult.Builder builder =
+        new MulticastResult.Builder(0, 0, 0, id);
+    for (Result result : results) {
+      builder.addResult(result);
+    }
+    return builder.build();
+  }
+}
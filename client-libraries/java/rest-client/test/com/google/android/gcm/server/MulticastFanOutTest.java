@@ -0,0 +1,253 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class MulticastFanOutTest {
+
+  private final Message message = new Message.Builder().build();
+
+  /**
+   * Sender that records each chunk and keeps its future pending until
+   * {@link #complete(int)} is called, or completes it right away when
+   * {@code inline} is set.
+   */
+  private static class ChunkSender extends Sender {
+
+    final List<PreparedMessage> messages = new ArrayList<PreparedMessage>();
+    final List<List<String>> chunks = new ArrayList<List<String>>();
+    final List<CompletableFuture<MulticastResult>> futures =
+        new ArrayList<CompletableFuture<MulticastResult>>();
+    boolean inline;
+    int failChunk = -1;
+    int maxInFlight;
+    int inFlight;
+
+    ChunkSender() {
+      super("4815162342");
+    }
+
+    @Override
+    public synchronized CompletableFuture<MulticastResult> sendAsync(
+        PreparedMessage message, List<String> regIds, int retries) {
+      messages.add(message);
+      chunks.add(new ArrayList<String>(regIds));
+      CompletableFuture<MulticastResult> future =
+          new CompletableFuture<MulticastResult>();
+      futures.add(future);
+      maxInFlight = Math.max(maxInFlight, ++inFlight);
+      if (inline) {
+        complete(chunks.size() - 1);
+      }
+      return future;
+    }
+
+    synchronized void complete(int chunk) {
+      inFlight--;
+      if (chunk == failChunk) {
+        futures.get(chunk).completeExceptionally(new IOException("chunk"));
+        return;
+      }
+      List<String> regIds = chunks.get(chunk);
+      MulticastResult.Builder builder =
+          new MulticastResult.Builder(regIds.size(), 0, 1, 100 + chunk)
+          .retryMulticastIds(Arrays.asList(200L + chunk));
+      for (String regId : regIds) {
+        builder.addResult(new Result.Builder().messageId(regId).build());
+      }
+      futures.get(chunk).complete(builder.build());
+    }
+  }
+
+  @Test
+  public void testSend_mergesInInputOrder() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    MulticastFanOut fanOut = new MulticastFanOut.Builder(sender)
+        .chunkSize(3).parallelism(2).build();
+    List<String> regIds = regIds(8);
+    CompletableFuture<MulticastResult> future =
+        fanOut.sendAsync(message, regIds, 0);
+    assertEquals(2, sender.chunks.size());
+    // complete out of order
+    sender.complete(1);
+    assertEquals(3, sender.chunks.size());
+    sender.complete(2);
+    assertFalse(future.isDone());
+    sender.complete(0);
+    MulticastResult result = future.get();
+    assertEquals(Arrays.asList("0", "1", "2"), sender.chunks.get(0));
+    assertEquals(Arrays.asList("6", "7"), sender.chunks.get(2));
+    assertEquals(8, result.getSuccess());
+    assertEquals(0, result.getFailure());
+    assertEquals(3, result.getCanonicalIds());
+    assertEquals(100, result.getMulticastId());
+    assertEquals(Arrays.asList(200L, 101L, 201L, 102L, 202L),
+        result.getRetryMulticastIds());
+    List<Result> results = result.getResults();
+    assertEquals(8, results.size());
+    for (int i = 0; i < 8; i++) {
+      assertEquals("" + i, results.get(i).getMessageId());
+    }
+    assertEquals(2, sender.maxInFlight);
+  }
+
+  @Test
+  public void testSend_defaultChunkSize() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    sender.inline = true;
+    MulticastResult result = new MulticastFanOut.Builder(sender).build()
+        .send(message, regIds(2500), 0);
+    assertEquals(3, sender.chunks.size());
+    assertEquals(Constants.MULTICAST_SIZE_LIMIT, sender.chunks.get(0).size());
+    assertEquals(500, sender.chunks.get(2).size());
+    assertEquals(2500, result.getResults().size());
+    assertEquals("2499", result.getResults().get(2499).getMessageId());
+  }
+
+  @Test
+  public void testSend_preparesMessageOnce() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    sender.inline = true;
+    new MulticastFanOut.Builder(sender).chunkSize(2).build()
+        .send(message, regIds(5), 0);
+    assertEquals(3, sender.messages.size());
+    assertSame(message, sender.messages.get(0).getMessage());
+    assertSame(sender.messages.get(0), sender.messages.get(1));
+    assertSame(sender.messages.get(0), sender.messages.get(2));
+  }
+
+  @Test
+  public void testSend_manyChunksCompletedInline() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    sender.inline = true;
+    MulticastResult result = new MulticastFanOut.Builder(sender)
+        .chunkSize(1).parallelism(4).build()
+        .send(message, regIds(20000), 0);
+    assertEquals(20000, sender.chunks.size());
+    assertEquals(20000, result.getSuccess());
+  }
+
+  @Test
+  public void testSend_chunkFails() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    sender.failChunk = 0;
+    MulticastFanOut fanOut = new MulticastFanOut.Builder(sender)
+        .chunkSize(1).parallelism(1).build();
+    CompletableFuture<MulticastResult> future =
+        fanOut.sendAsync(message, regIds(3), 0);
+    sender.complete(0);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    // remaining chunks are not sent
+    assertEquals(1, sender.chunks.size());
+  }
+
+  @Test
+  public void testSend_chunkFailsBlocking() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    sender.inline = true;
+    sender.failChunk = 1;
+    try {
+      new MulticastFanOut.Builder(sender).chunkSize(1).build()
+          .send(message, regIds(3), 0);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertEquals("chunk", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSend_copiesRegIds() throws Exception {
+    ChunkSender sender = new ChunkSender();
+    List<String> regIds = regIds(2);
+    CompletableFuture<MulticastResult> future =
+        new MulticastFanOut.Builder(sender).chunkSize(1).parallelism(1).build()
+        .sendAsync(message, regIds, 0);
+    regIds.clear();
+    sender.complete(0);
+    sender.complete(1);
+    assertEquals("1", future.get().getResults().get(1).getMessageId());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_emptyRegIds() throws Exception {
+    new MulticastFanOut.Builder(new ChunkSender()).build()
+        .sendAsync(message, Collections.<String>emptyList(), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_nullRegIds() throws Exception {
+    new MulticastFanOut.Builder(new ChunkSender()).build()
+        .sendAsync(message, null, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_nullMessage() throws Exception {
+    new MulticastFanOut.Builder(new ChunkSender()).build()
+        .sendAsync(null, regIds(1), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_nullSender() {
+    new MulticastFanOut.Builder(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_chunkTooBig() {
+    new MulticastFanOut.Builder(new ChunkSender())
+        .chunkSize(Constants.MULTICAST_SIZE_LIMIT + 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_noParallelism() {
+    new MulticastFanOut.Builder(new ChunkSender()).parallelism(0);
+  }
+
+  @Test
+  public void testBuilder_returnsSameBuilder() {
+    MulticastFanOut.Builder builder =
+        new MulticastFanOut.Builder(new ChunkSender());
+    assertSame(builder, builder.chunkSize(10));
+    assertSame(builder, builder.parallelism(10));
+  }
+
+  private static List<String> regIds(int count) {
+    List<String> regIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      regIds.add("" + i);
+    }
+    return regIds;
+  }
+}
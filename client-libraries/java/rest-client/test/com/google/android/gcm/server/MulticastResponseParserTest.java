@@ -0,0 +1,209 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public class MulticastResponseParserTest {
+
+  @Test
+  public void testParse() throws Exception {
+    MulticastResult result = parse("{"
+        + "  'multicast_id': 108,"
+        + "  'success': 2,"
+        + "  'failure': 1,"
+        + "  'canonical_ids': 1,"
+        + "  'results': ["
+        + "    {'message_id': '0:16'},"
+        + "    {'error': 'Unavailable'},"
+        + "    {'message_id': '0:23', 'registration_id': '42'}"
+        + "  ]"
+        + "}");
+    assertEquals(108, result.getMulticastId());
+    assertEquals(2, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertEquals(1, result.getCanonicalIds());
+    List<Result> results = result.getResults();
+    assertEquals(3, results.size());
+    assertEquals("0:16", results.get(0).getMessageId());
+    assertNull(results.get(0).getErrorCodeName());
+    assertEquals("Unavailable", results.get(1).getErrorCodeName());
+    assertNull(results.get(1).getMessageId());
+    assertEquals("0:23", results.get(2).getMessageId());
+    assertEquals("42", results.get(2).getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testParse_fieldsInAnyOrder() throws Exception {
+    MulticastResult result = parse("{'results': [{'message_id': '4'}],"
+        + " 'canonical_ids': 0, 'failure': 0, 'success': 1,"
+        + " 'multicast_id': 8070450532247928832}");
+    assertEquals(8070450532247928832L, result.getMulticastId());
+    assertEquals("4", result.getResults().get(0).getMessageId());
+  }
+
+  @Test
+  public void testParse_noResults() throws Exception {
+    MulticastResult result = parse("{'multicast_id': 1, 'success': 0,"
+        + " 'failure': 0, 'canonical_ids': 0}");
+    assertTrue(result.getResults().isEmpty());
+    result = parse("{'multicast_id': 1, 'success': 0,"
+        + " 'failure': 0, 'canonical_ids': 0, 'results': null}");
+    assertTrue(result.getResults().isEmpty());
+  }
+
+  @Test
+  public void testParse_skipsUnknownFields() throws Exception {
+    MulticastResult result = parse("{"
+        + "  'multicast_id': 108, 'success': 1, 'failure': 0,"
+        + "  'canonical_ids': 0,"
+        + "  'extra': {'a': [1, -2.5e3, true, false, null, {}], 'b': 'x\\\"}'},"
+        + "  'results': [{'message_id': '16', 'ttl': 42, 'more': ['\\\\']}]"
+        + "}");
+    assertEquals(1, result.getResults().size());
+    assertEquals("16", result.getResults().get(0).getMessageId());
+  }
+
+  @Test
+  public void testParse_lenientCommas() throws Exception {
+    // json-simple, used before, accepted these
+    MulticastResult result = parse("{'multicast_id': 108, 'success': 1"
+        + " 'failure': 0,, 'canonical_ids': 0,"
+        + " 'results': [{'message_id': '16'}, ]}");
+    assertEquals(1, result.getSuccess());
+    assertEquals(1, result.getResults().size());
+  }
+
+  @Test
+  public void testParse_escapesAndUnicode() throws Exception {
+    MulticastResult result = parse("{'multicast_id': 1, 'success': 1,"
+        + " 'failure': 0, 'canonical_ids': 0, 'results': [{'message_id':"
+        + " 'a\\/b\\n\\t\\u00e9\\uD83D\\uDE00 マルチ😀'}]}");
+    assertEquals("a/b\n\té😀 マルチ😀",
+        result.getResults().get(0).getMessageId());
+  }
+
+  @Test
+  public void testParse_byteByByte() throws Exception {
+    StringBuilder json = new StringBuilder("{'multicast_id': 108,"
+        + " 'success': 500, 'failure': 0, 'canonical_ids': 0, 'results': [");
+    for (int i = 0; i < 500; i++) {
+      json.append("{'message_id': '0:").append(i).append("マルチ'},");
+    }
+    json.append("]}");
+    final InputStream in = new ByteArrayInputStream(
+        json.toString().replace('\'', '"').getBytes("UTF-8"));
+    InputStream slow = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return in.read(b, off, Math.min(len, 1));
+      }
+    };
+    MulticastResult result = MulticastResponseParser.parse(slow);
+    assertEquals(500, result.getResults().size());
+    assertEquals("0:499マルチ", result.getResults().get(499).getMessageId());
+  }
+
+  @Test
+  public void testParse_missingField() throws Exception {
+    assertMalformed("{'multicast_id': 1, 'success': 1, 'failure': 0}",
+        "Missing field: canonical_ids");
+    assertMalformed("{'multicast_id': 1, 'success': null, 'failure': 0,"
+        + " 'canonical_ids': 0}", "Missing field: success");
+  }
+
+  @Test
+  public void testParse_notANumber() throws Exception {
+    assertMalformed("{'multicast_id': 1, 'success': '1', 'failure': 0,"
+        + " 'canonical_ids': 0}", "Field success does not contain a number");
+  }
+
+  @Test
+  public void testParse_notAString() throws Exception {
+    assertMalformed("{'multicast_id': 1, 'success': 1, 'failure': 0,"
+        + " 'canonical_ids': 0, 'results': [{'message_id': 16}]}",
+        "Field message_id does not contain a string");
+  }
+
+  @Test
+  public void testParse_invalidJson() throws Exception {
+    assertMalformed("", "Expected '{'");
+    assertMalformed("[]", "Expected '{'");
+    assertMalformed("{'multicast_id': 1", "Unexpected end of response");
+    assertMalformed("{'multicast_id': 1, 'x': 'abc", "Unexpected end");
+    assertMalformed("{'x': tru}", "Expected true");
+    assertMalformed("{'x': }", "Unexpected character '}'");
+    assertMalformed("{'multicast_id': 1, 'success': 1, 'failure': 0,"
+        + " 'canonical_ids': 0} {}", "Unexpected data after the response");
+  }
+
+  @Test
+  public void testParse_nullStream() throws Exception {
+    try {
+      MulticastResponseParser.parse(null);
+      fail("Should have thrown MalformedResponseException");
+    } catch (MulticastResponseParser.MalformedResponseException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParse_readError() throws Exception {
+    InputStream failing = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("connection reset");
+      }
+    };
+    try {
+      MulticastResponseParser.parse(failing);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertFalse(e instanceof MulticastResponseParser.MalformedResponseException);
+    }
+  }
+
+  private static MulticastResult parse(String json) throws IOException {
+    return MulticastResponseParser.parse(new ByteArrayInputStream(
+        json.replace('\'', '"').getBytes("UTF-8")));
+  }
+
+  private static void assertMalformed(String json, String message)
+      throws IOException {
+    try {
+      parse(json);
+      fail("Should have thrown MalformedResponseException");
+    } catch (MulticastResponseParser.MalformedResponseException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+    }
+  }
+}
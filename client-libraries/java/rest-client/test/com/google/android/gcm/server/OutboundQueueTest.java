@@ -0,0 +1,246 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class OutboundQueueTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Message message = new Message.Builder()
+      .addData("k", "v").build();
+  private FcmStubServer server;
+
+  @Before
+  public void startServer() throws Exception {
+    server = new FcmStubServer.Builder()
+        .tokenError("8", Constants.ERROR_NOT_REGISTERED)
+        .build();
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.close();
+  }
+
+  @Test
+  public void testEnqueue() throws Exception {
+    RecordingListener listener = new RecordingListener(3);
+    OutboundQueue queue = newQueue(listener);
+    long first = queue.enqueue(message, "4");
+    long second = queue.enqueue(message, "8");
+    long third = queue.enqueue(message, "/topics/news");
+    listener.await();
+    assertNotNull(listener.results.get(first).getMessageId());
+    assertEquals(Constants.ERROR_NOT_REGISTERED,
+        listener.results.get(second).getErrorCodeName());
+    assertNotNull(listener.results.get(third).getMessageId());
+    assertEquals(0, queue.getPendingCount());
+    // the two messages to devices were sent together
+    assertEquals(2, server.getRequestCount());
+    queue.close();
+  }
+
+  @Test
+  public void testRecover() throws Exception {
+    // messages logged by a process that died before sending them
+    WriteAheadLog log = new WriteAheadLog(folder.getRoot(), 1024 * 1024);
+    PreparedMessage prepared = new PreparedMessage(message);
+    long first = log.append(prepared, "4").id;
+    long second = log.append(prepared, "15").id;
+    log.close();
+    RecordingListener listener = new RecordingListener(2);
+    OutboundQueue queue = newQueue(listener);
+    listener.await();
+    assertNotNull(listener.results.get(first).getMessageId());
+    assertNotNull(listener.results.get(second).getMessageId());
+    assertEquals(0, queue.getPendingCount());
+    queue.close();
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    server.close();
+    server = new FcmStubServer.Builder().apiKey("other").build();
+    server.start();
+    RecordingListener listener = new RecordingListener(1);
+    OutboundQueue queue = new OutboundQueue.Builder(
+        new Sender("4815162342", server.getEndpoint()), folder.getRoot())
+        .retries(0)
+        .listener(listener)
+        .build();
+    long id = queue.enqueue(message, "4");
+    listener.await();
+    assertEquals(401, ((InvalidRequestException) listener.failures.get(id)
+        .getCause()).getHttpStatusCode());
+    assertEquals(0, queue.getPendingCount());
+    queue.close();
+  }
+
+  @Test
+  public void testUnavailable_keptInLog() throws Exception {
+    server.failNextRequests(1);
+    final CountDownLatch attempted = new CountDownLatch(1);
+    final Sender sender = new Sender("4815162342", server.getEndpoint()) {
+      @Override
+      void schedule(Runnable task, long delayMillis) {
+        if (delayMillis == OutboundQueue.REDELIVERY_DELAY_MILLIS) {
+          attempted.countDown();
+        } else {
+          super.schedule(task, delayMillis);
+        }
+      }
+    };
+    OutboundQueue queue = new OutboundQueue.Builder(sender, folder.getRoot())
+        .retries(0)
+        .lingerMillis(0)
+        .build();
+    queue.enqueue(message, "4");
+    assertTrue(attempted.await(10, TimeUnit.SECONDS));
+    assertEquals(1, queue.getPendingCount());
+    queue.close();
+  }
+
+  @Test
+  public void testUnavailableResult_keptInLog() throws Exception {
+    server.close();
+    server = new FcmStubServer.Builder()
+        .tokenError("16", Constants.ERROR_UNAVAILABLE)
+        .build();
+    server.start();
+    final CountDownLatch attempted = new CountDownLatch(1);
+    Sender sender = new Sender("4815162342", server.getEndpoint()) {
+      @Override
+      void schedule(Runnable task, long delayMillis) {
+        if (delayMillis == OutboundQueue.REDELIVERY_DELAY_MILLIS) {
+          attempted.countDown();
+        } else {
+          super.schedule(task, delayMillis);
+        }
+      }
+    };
+    RecordingListener listener = new RecordingListener(1);
+    OutboundQueue queue = new OutboundQueue.Builder(sender, folder.getRoot())
+        .retries(0)
+        .listener(listener)
+        .build();
+    long sent = queue.enqueue(message, "4");
+    queue.enqueue(message, "16");
+    listener.await();
+    assertTrue(attempted.await(10, TimeUnit.SECONDS));
+    // the message left unavailable is sent again later
+    assertEquals(1, listener.results.size());
+    assertNotNull(listener.results.get(sent).getMessageId());
+    assertEquals(1, queue.getPendingCount());
+    queue.close();
+  }
+
+  @Test
+  public void testRedelivery_timerRejected() throws Exception {
+    server.failNextRequests(1);
+    Sender sender = new Sender("4815162342", server.getEndpoint()) {
+      @Override
+      void schedule(Runnable task, long delayMillis) {
+        if (delayMillis == OutboundQueue.REDELIVERY_DELAY_MILLIS) {
+          throw new RejectedExecutionException("timer shut down");
+        }
+        super.schedule(task, delayMillis);
+      }
+    };
+    RecordingListener listener = new RecordingListener(1);
+    OutboundQueue queue = new OutboundQueue.Builder(sender, folder.getRoot())
+        .retries(0)
+        .lingerMillis(0)
+        .listener(listener)
+        .build();
+    long id = queue.enqueue(message, "4");
+    // sent again right away rather than dropped
+    listener.await();
+    assertNotNull(listener.results.get(id).getMessageId());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(0, queue.getPendingCount());
+    queue.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testEnqueue_closed() throws Exception {
+    OutboundQueue queue = newQueue(new RecordingListener(0));
+    queue.close();
+    queue.enqueue(message, "4");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_segmentTooSmall() {
+    new OutboundQueue.Builder(new Sender("4815162342"), folder.getRoot())
+        .segmentSize(1024);
+  }
+
+  private OutboundQueue newQueue(OutboundQueue.Listener listener)
+      throws Exception {
+    return new OutboundQueue.Builder(
+        new Sender("4815162342", server.getEndpoint()), folder.getRoot())
+        .segmentSize(1024 * 1024)
+        .lingerMillis(20)
+        .listener(listener)
+        .build();
+  }
+
+  private static final class RecordingListener
+      implements OutboundQueue.Listener {
+
+    final Map<Long, Result> results = new ConcurrentHashMap<Long, Result>();
+    final Map<Long, Throwable> failures =
+        new ConcurrentHashMap<Long, Throwable>();
+    private final CountDownLatch latch;
+
+    RecordingListener(int expected) {
+      latch = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void onResult(long id, String to, Result result) {
+      results.put(id, result);
+      latch.countDown();
+    }
+
+    @Override
+    public void onFailure(long id, String to, Throwable error) {
+      failures.put(id, error);
+      latch.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PreparedMessageTest {
+
+  @Test
+  public void testEncode_emptyMessage() throws Exception {
+    assertEncodedLikeMessage(new Message.Builder().build());
+  }
+
+  @Test
+  public void testEncode_allFields() throws Exception {
+    assertEncodedLikeMessage(new Message.Builder()
+        .collapseKey("collapseKey")
+        .delayWhileIdle(true)
+        .dryRun(true)
+        .restrictedPackageName("package.name")
+        .priority(Message.Priority.NORMAL)
+        .contentAvailable(false)
+        .timeToLive(108)
+        .addData("k1", "v1")
+        .addData("\"k2\"", "v2/ ")
+        .notification(new Notification.Builder("icon")
+            .title("title")
+            .body("マルチバイト")
+            .badge(1)
+            .bodyLocArgs(Arrays.asList("b1", "b2"))
+            .build())
+        .build());
+  }
+
+  @Test
+  public void testEncode_snapshot() throws Exception {
+    Message.Builder builder = new Message.Builder().addData("k1", "v1");
+    Message message = builder.build();
+    byte[] expected = MessageEncoder.encode(message, "4815162342");
+    PreparedMessage prepared = new PreparedMessage(message);
+    builder.addData("k2", "v2");
+    assertArrayEquals(expected, prepared.encode("4815162342"));
+  }
+
+  @Test
+  public void testEncode_reusedManyTimes() throws Exception {
+    Message message = new Message.Builder().collapseKey("news").build();
+    PreparedMessage prepared = new PreparedMessage(message);
+    List<String> regIds = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      regIds.add("APA91bH" + i);
+      assertArrayEquals(MessageEncoder.encode(message, regIds),
+          prepared.encode(regIds));
+    }
+  }
+
+  @Test
+  public void testGetMessage() {
+    Message message = new Message.Builder().build();
+    assertSame(message, new PreparedMessage(message).getMessage());
+  }
+
+  @Test
+  public void testEquals() {
+    PreparedMessage prepared = new PreparedMessage(
+        new Message.Builder().addData("k1", "v1").timeToLive(60).build());
+    PreparedMessage same = new PreparedMessage(
+        new Message.Builder().timeToLive(60).addData("k1", "v1").build());
+    assertEquals(prepared, same);
+    assertEquals(prepared.hashCode(), same.hashCode());
+    assertFalse(prepared.equals(new PreparedMessage(
+        new Message.Builder().addData("k1", "v2").timeToLive(60).build())));
+    assertFalse(prepared.equals(null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_null() {
+    new PreparedMessage(null);
+  }
+
+  private static void assertEncodedLikeMessage(Message message)
+      throws Exception {
+    PreparedMessage prepared = new PreparedMessage(message);
+    for (String to : Arrays.asList("4815162342", "/topics/news", "")) {
+      assertArrayEquals(MessageEncoder.encode(message, to),
+          prepared.encode(to));
+    }
+    List<List<String>> regIdLists = Arrays.asList(
+        Collections.singletonList("4"), Arrays.asList("8", "15", "16"));
+    for (List<String> regIds : regIdLists) {
+      assertArrayEquals(MessageEncoder.encode(message, regIds),
+          prepared.encode(regIds));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+  private static final double DELTA = 1e-9;
+
+  private final VirtualClock clock = new VirtualClock();
+
+  // 100 messages per second, bursts of 100, 10 more per second after throttling
+  private final RateLimiter limiter = new RateLimiter.Builder(100)
+      .minRate(20)
+      .ticker(clock)
+      .build();
+
+  @Test
+  public void testReserve_burstThenRate() {
+    assertEquals(0, limiter.reserve(100));
+    assertEquals(0, limiter.getWaitTime());
+    assertEquals(500, limiter.reserve(50));
+    assertEquals(500, limiter.getWaitTime());
+    assertEquals(510, limiter.reserve(1));
+    clock.advance(510);
+    assertEquals(0, limiter.getWaitTime());
+    assertEquals(10, limiter.reserve(1));
+  }
+
+  @Test
+  public void testReserve_burstIsCapped() {
+    clock.advance(60000);
+    assertEquals(0, limiter.reserve(100));
+    assertEquals(10, limiter.reserve(1));
+  }
+
+  @Test
+  public void testTryReserve() {
+    assertEquals(0, limiter.tryReserve(100, 0));
+    assertEquals(-1, limiter.tryReserve(50, 500));
+    // nothing was taken
+    assertEquals(0, limiter.getWaitTime());
+    assertEquals(500, limiter.tryReserve(50, 501));
+    assertEquals(500, limiter.getWaitTime());
+  }
+
+  @Test
+  public void testOnThrottled_halvesRateOncePerSecond() {
+    limiter.onThrottled();
+    assertEquals(50, limiter.getRate(), DELTA);
+    // same burst of errors
+    limiter.onThrottled();
+    clock.advance(999);
+    limiter.onThrottled();
+    assertEquals(1, limiter.getThrottleCount());
+    // 10 messages per second more for 0.999s
+    assertEquals(59.99, limiter.getRate(), DELTA);
+    clock.advance(1);
+    limiter.onThrottled();
+    assertEquals(30, limiter.getRate(), DELTA);
+    assertEquals(2, limiter.getThrottleCount());
+  }
+
+  @Test
+  public void testOnThrottled_minRate() {
+    for (int i = 0; i < 10; i++) {
+      limiter.onThrottled();
+      clock.advance(1000);
+    }
+    // 20 + 10 for the last second
+    assertEquals(30, limiter.getRate(), DELTA);
+  }
+
+  @Test
+  public void testOnThrottled_slowsDownQueue() {
+    limiter.reserve(150);
+    assertEquals(500, limiter.getWaitTime());
+    limiter.onThrottled();
+    assertEquals(1000, limiter.getWaitTime());
+  }
+
+  @Test
+  public void testRate_recoversUpToMax() {
+    limiter.onThrottled();
+    clock.advance(2000);
+    assertEquals(70, limiter.getRate(), DELTA);
+    clock.advance(60000);
+    assertEquals(100, limiter.getRate(), DELTA);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidMaxRate() {
+    new RateLimiter.Builder(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_minRateAboveMax() {
+    new RateLimiter.Builder(10).minRate(11);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidBurst() {
+    new RateLimiter.Builder(10).burst(0.5);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidRecovery() {
+    new RateLimiter.Builder(10).recoveryPerSecond(-1);
+  }
+}
@@ -16,7 +16,9 @@
 package com.google.android.gcm.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -31,6 +33,7 @@ public class ResultTest {
     Result result = new Result.Builder().build();
     assertNull(result.getMessageId());
     assertNull(result.getErrorCodeName());
+    assertNull(result.getErrorCode());
     assertNull(result.getCanonicalRegistrationId());
   }
 
@@ -43,10 +46,39 @@ public class ResultTest {
       .build();
     assertEquals("42", result.getMessageId());
     assertEquals("D'OH!", result.getErrorCodeName());
+    assertEquals(ErrorCode.UNKNOWN, result.getErrorCode());
     assertEquals("108", result.getCanonicalRegistrationId());
     String toString = result.toString();
     assertTrue(toString.contains("messageId=42"));
     assertTrue(toString.contains("errorCode=D'OH!"));
     assertTrue(toString.contains("canonicalRegistrationId=108"));
   }
+
+  @Test
+  public void testErrorCode() {
+    Result result = new Result.Builder()
+        .errorCode(new String(Constants.ERROR_UNAVAILABLE))
+        .build();
+    assertEquals(ErrorCode.UNAVAILABLE, result.getErrorCode());
+    // the name is shared by all the results with that error
+    assertSame(Constants.ERROR_UNAVAILABLE, result.getErrorCodeName());
+    assertTrue(result.getErrorCode().isRetriable());
+    assertFalse(result.getErrorCode().shouldRemoveRegistrationId());
+  }
+
+  @Test
+  public void testErrorCode_semantics() {
+    for (ErrorCode code : ErrorCode.values()) {
+      if (code != ErrorCode.UNKNOWN) {
+        assertSame(code, ErrorCode.of(code.getName()));
+      }
+    }
+    assertTrue(ErrorCode.INTERNAL_SERVER_ERROR.isRetriable());
+    assertTrue(ErrorCode.DEVICE_MESSAGE_RATE_EXCEEDED.isThrottling());
+    assertFalse(ErrorCode.DEVICE_MESSAGE_RATE_EXCEEDED.isRetriable());
+    assertTrue(ErrorCode.NOT_REGISTERED.shouldRemoveRegistrationId());
+    assertTrue(ErrorCode.INVALID_REGISTRATION.shouldRemoveRegistrationId());
+    assertFalse(ErrorCode.UNKNOWN.isRetriable());
+    assertNull(ErrorCode.of(null));
+  }
 }
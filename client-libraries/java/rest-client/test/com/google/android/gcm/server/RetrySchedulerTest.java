@@ -0,0 +1,162 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RetrySchedulerTest {
+
+  private final VirtualClock clock = new VirtualClock();
+  // 8 buckets of 10ms: a turn of the wheel is 80ms
+  private final RetryScheduler scheduler = new RetryScheduler(clock, 10, 8);
+  private final List<String> ran = new ArrayList<String>();
+
+  @Test
+  public void testRunDueTasks_onlyAfterDelay() {
+    scheduler.schedule(task("a"), 25);
+    scheduler.schedule(task("b"), 40);
+    assertEquals(0, scheduler.runDueTasks());
+    clock.advance(24);
+    assertEquals(0, scheduler.runDueTasks());
+    // rounded up to the next tick
+    clock.advance(1);
+    assertEquals(0, scheduler.runDueTasks());
+    clock.advance(5);
+    assertEquals(1, scheduler.runDueTasks());
+    assertEquals(Arrays.asList("a"), ran);
+    clock.advance(10);
+    assertEquals(1, scheduler.runDueTasks());
+    assertEquals(Arrays.asList("a", "b"), ran);
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void testRunDueTasks_noDelay() {
+    scheduler.schedule(task("a"), 0);
+    scheduler.schedule(task("b"), -5);
+    assertEquals(2, scheduler.runDueTasks());
+  }
+
+  @Test
+  public void testRunDueTasks_longerThanWheel() {
+    scheduler.schedule(task("a"), 1000);
+    for (int i = 0; i < 99; i++) {
+      clock.advance(10);
+      assertEquals(0, scheduler.runDueTasks());
+    }
+    clock.advance(10);
+    assertEquals(1, scheduler.runDueTasks());
+  }
+
+  @Test
+  public void testRunDueTasks_afterManyTurns() {
+    scheduler.schedule(task("a"), 30);
+    scheduler.schedule(task("b"), 75);
+    scheduler.schedule(task("c"), 500);
+    clock.advance(400);
+    assertEquals(2, scheduler.runDueTasks());
+    assertEquals(1, scheduler.size());
+    clock.advance(100);
+    assertEquals(1, scheduler.runDueTasks());
+  }
+
+  @Test
+  public void testRunDueTasks_taskSchedulesAnother() {
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        ran.add("a");
+        scheduler.schedule(task("b"), 10);
+      }
+    }, 10);
+    clock.advance(10);
+    assertEquals(1, scheduler.runDueTasks());
+    assertEquals(1, scheduler.size());
+    clock.advance(10);
+    assertEquals(1, scheduler.runDueTasks());
+    assertEquals(Arrays.asList("a", "b"), ran);
+  }
+
+  @Test
+  public void testRunDueTasks_exceptionDoesNotStopOthers() {
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("D'OH!");
+      }
+    }, 10);
+    scheduler.schedule(task("b"), 10);
+    clock.advance(10);
+    assertEquals(2, scheduler.runDueTasks());
+    assertEquals(Arrays.asList("b"), ran);
+  }
+
+  @Test
+  public void testSchedule_workerThread() throws Exception {
+    RetryScheduler real = new RetryScheduler(RetryScheduler.SYSTEM_TICKER, 1,
+        16, SharedExecutors.newThreadFactory("retry-scheduler-test"));
+    CountDownLatch first = new CountDownLatch(1);
+    real.schedule(countDown(first), 5);
+    assertTrue(first.await(5, TimeUnit.SECONDS));
+    // the worker parks once idle and wakes up for new tasks
+    Thread.sleep(20);
+    CountDownLatch second = new CountDownLatch(1);
+    real.schedule(countDown(second), 5);
+    assertTrue(second.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidTick() {
+    new RetryScheduler(clock, 0, 8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidWheel() {
+    new RetryScheduler(clock, 10, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSchedule_null() {
+    scheduler.schedule(null, 10);
+  }
+
+  private static Runnable countDown(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    };
+  }
+
+  private Runnable task(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+}
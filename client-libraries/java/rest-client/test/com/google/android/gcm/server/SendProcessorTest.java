@@ -0,0 +1,359 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SendProcessorTest {
+
+  private static final String SENT = "{\"multicast_id\":1,\"success\":1,"
+      + "\"failure\":0,\"canonical_ids\":0,"
+      + "\"results\":[{\"message_id\":\"0:42\"}]}";
+
+  // runs the sends on the thread of the clock, so they take their tokens
+  // before it is advanced
+  private static final Executor INLINE = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private final Message message = new Message.Builder().build();
+
+  @Test
+  public void testResultsInOrder() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .latency(FcmStubServer.Latency.uniform(0, 20))
+        .tokenError("15", Constants.ERROR_NOT_REGISTERED)
+        .build();
+    server.start();
+    try {
+      SendProcessor processor = new SendProcessor.Builder(
+          new Sender("4815162342", server.getEndpoint()))
+          .maxInFlight(4)
+          .build();
+      ItemPublisher publisher = new ItemPublisher(20);
+      publisher.subscribe(processor);
+      ResultSubscriber subscriber = new ResultSubscriber(1);
+      processor.subscribe(subscriber);
+      assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+      assertNull(subscriber.error);
+      assertEquals(20, subscriber.results.size());
+      for (int i = 0; i < 20; i++) {
+        Result result = subscriber.results.get(i);
+        if (i == 15) {
+          assertEquals(ErrorCode.NOT_REGISTERED, result.getErrorCode());
+        } else {
+          assertEquals(null, result.getErrorCode());
+        }
+      }
+      assertTrue(publisher.maxOutstanding <= 4);
+      assertEquals(0, processor.getInFlightCount());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    final CountDownLatch respond = new CountDownLatch(1);
+    Sender sender = new Sender("4815162342");
+    sender.setTransport(new Transport() {
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        try {
+          respond.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return response(SENT);
+      }
+    });
+    SendProcessor processor = new SendProcessor.Builder(sender)
+        .maxInFlight(3)
+        .build();
+    ItemPublisher publisher = new ItemPublisher(10);
+    publisher.subscribe(processor);
+    ResultSubscriber subscriber = new ResultSubscriber(0);
+    processor.subscribe(subscriber);
+    // nothing is requested beyond the limit while the sends are blocked
+    assertEquals(3, publisher.requested.get());
+    assertEquals(3, processor.getInFlightCount());
+    respond.countDown();
+    // nor while the results wait for the subscriber
+    Thread.sleep(100);
+    assertEquals(3, publisher.requested.get());
+    assertTrue(subscriber.results.isEmpty());
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+    assertEquals(10, subscriber.results.size());
+  }
+
+  @Test
+  public void testSendError() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .apiKey("4815162342")
+        .build();
+    server.start();
+    try {
+      SendProcessor processor = new SendProcessor.Builder(
+          new Sender("42", server.getEndpoint()))
+          .maxInFlight(4)
+          .build();
+      ItemPublisher publisher = new ItemPublisher(1000);
+      publisher.subscribe(processor);
+      ResultSubscriber subscriber = new ResultSubscriber(1);
+      processor.subscribe(subscriber);
+      assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+      assertTrue(subscriber.results.isEmpty());
+      assertEquals(401,
+          ((InvalidRequestException) subscriber.error).getHttpStatusCode());
+      assertTrue(publisher.cancelled.get());
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testRateLimited() throws Exception {
+    VirtualClock clock = new VirtualClock();
+    RetryScheduler scheduler = new RetryScheduler(clock, 10, 8);
+    RateLimiter limiter = new RateLimiter.Builder(1)
+        .ticker(clock)
+        .build();
+    Sender sender = new Sender("4815162342");
+    sender.setRetryScheduler(scheduler);
+    sender.setRateLimiter(limiter);
+    sender.setExecutor(INLINE);
+    sender.setTransport(new Transport() {
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        return response(SENT);
+      }
+    });
+    // two messages ahead of their tokens
+    limiter.reserve(3);
+    SendProcessor processor = new SendProcessor.Builder(sender)
+        .maxInFlight(2)
+        .build();
+    ItemPublisher publisher = new ItemPublisher(2);
+    publisher.subscribe(processor);
+    ResultSubscriber subscriber = new ResultSubscriber(1);
+    processor.subscribe(subscriber);
+    assertEquals(0, publisher.requested.get());
+    clock.advance(2000);
+    scheduler.runDueTasks();
+    assertEquals(0, publisher.requested.get());
+    // one message per token
+    clock.advance(1000);
+    scheduler.runDueTasks();
+    assertEquals(1, publisher.requested.get());
+    clock.advance(1000);
+    scheduler.runDueTasks();
+    assertEquals(2, publisher.requested.get());
+    assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+    assertEquals(2, subscriber.results.size());
+  }
+
+  @Test
+  public void testRateLimited_requestCapped() throws Exception {
+    VirtualClock clock = new VirtualClock();
+    RetryScheduler scheduler = new RetryScheduler(clock, 10, 8);
+    RateLimiter limiter = new RateLimiter.Builder(1)
+        .burst(10)
+        .ticker(clock)
+        .build();
+    Sender sender = new Sender("4815162342");
+    sender.setRetryScheduler(scheduler);
+    sender.setRateLimiter(limiter);
+    sender.setExecutor(INLINE);
+    sender.setTransport(new Transport() {
+      @Override
+      public TransportResponse post(TransportRequest request) {
+        return response(SENT);
+      }
+    });
+    // one token left
+    limiter.reserve(9);
+    SendProcessor processor = new SendProcessor.Builder(sender)
+        .maxInFlight(5)
+        .build();
+    ItemPublisher publisher = new ItemPublisher(3);
+    publisher.subscribe(processor);
+    ResultSubscriber subscriber = new ResultSubscriber(1);
+    processor.subscribe(subscriber);
+    assertEquals(1, publisher.requested.get());
+    clock.advance(2000);
+    scheduler.runDueTasks();
+    assertEquals(3, publisher.requested.get());
+    assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+    assertEquals(3, subscriber.results.size());
+    assertEquals(0, limiter.getWaitTime());
+  }
+
+  @Test
+  public void testSubscribe_twice() {
+    SendProcessor processor =
+        new SendProcessor.Builder(new Sender("4815162342")).build();
+    processor.subscribe(new ResultSubscriber(1));
+    ResultSubscriber second = new ResultSubscriber(1);
+    processor.subscribe(second);
+    assertTrue(second.error instanceof IllegalStateException);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxInFlight_invalid() {
+    new SendProcessor.Builder(new Sender("4815162342")).maxInFlight(0);
+  }
+
+  private static TransportResponse response(final String body) {
+    return new TransportResponse() {
+      @Override
+      public int getStatus() {
+        return 200;
+      }
+
+      @Override
+      public String getHeader(String name) {
+        return null;
+      }
+
+      @Override
+      public InputStream getBody() {
+        return new ByteArrayInputStream(
+            body.getBytes(StandardCharsets.UTF_8));
+      }
+    };
+  }
+
+  /**
+   * Publishes items to the registration ids "0", "1"... as they are
+   * requested, keeping track of the demand.
+   */
+  private final class ItemPublisher
+      implements Flow.Publisher<SendProcessor.Item> {
+    final int count;
+    final AtomicLong requested = new AtomicLong();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    volatile long maxOutstanding;
+    // guarded by this
+    int published;
+    long outstanding;
+    boolean completed;
+
+    ItemPublisher(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public void subscribe(
+        final Flow.Subscriber<? super SendProcessor.Item> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+          requested.addAndGet(n);
+          List<SendProcessor.Item> items =
+              new ArrayList<SendProcessor.Item>();
+          boolean complete;
+          synchronized (ItemPublisher.this) {
+            if (completed) {
+              return;
+            }
+            outstanding += n;
+            maxOutstanding = Math.max(maxOutstanding, outstanding);
+            while (outstanding > 0 && published < count) {
+              items.add(new SendProcessor.Item(message,
+                  String.valueOf(published++)));
+              outstanding--;
+            }
+            complete = published == count;
+            completed = complete;
+          }
+          for (SendProcessor.Item item : items) {
+            subscriber.onNext(item);
+          }
+          if (complete) {
+            subscriber.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+          cancelled.set(true);
+        }
+      });
+    }
+  }
+
+  private static final class ResultSubscriber
+      implements Flow.Subscriber<Result> {
+    final long initialRequest;
+    final List<Result> results = new CopyOnWriteArrayList<Result>();
+    final CountDownLatch finished = new CountDownLatch(1);
+    volatile Flow.Subscription subscription;
+    volatile Throwable error;
+
+    ResultSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      if (initialRequest > 0) {
+        subscription.request(initialRequest);
+      }
+    }
+
+    @Override
+    public void onNext(Result result) {
+      results.add(result);
+      // asks for the next result only after this one is handled
+      if (initialRequest == 1) {
+        subscription.request(1);
+      }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      this.error = error;
+      finished.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      finished.countDown();
+    }
+  }
+}
@@ -15,19 +15,27 @@
  */
 package com.google.android.gcm.server;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -41,17 +49,23 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SenderTest {
@@ -203,6 +217,159 @@ public class SenderTest {
     }
   }
 
+  @Test
+  public void testSendAsync_noRetryOk() throws Exception {
+    doNotSleep();
+    runAsyncInline();
+    doReturn(completed(result)).when(sender).sendNoRetryAsync(message, regId);
+    assertEquals(result, sender.sendAsync(message, regId, 0).get());
+    verify(sender, never()).schedule(any(Runnable.class), anyLong());
+  }
+
+  @Test
+  public void testSendAsync_retryOk() throws Exception {
+    doNotSleep();
+    runAsyncInline();
+    doReturn(completed(null)) // fails 1st time
+        .doReturn(completed(null)) // fails 2nd time
+        .doReturn(completed(result)) // succeeds 3rd time
+        .when(sender).sendNoRetryAsync(message, regId);
+    assertEquals(result, sender.sendAsync(message, regId, 2).get());
+    verify(sender, times(3)).sendNoRetryAsync(message, regId);
+    verify(sender, times(2)).schedule(any(Runnable.class), anyLong());
+  }
+
+  @Test
+  public void testSendAsync_retryFails() throws Exception {
+    doNotSleep();
+    runAsyncInline();
+    doReturn(completed(null)).when(sender).sendNoRetryAsync(message, regId);
+    try {
+      sender.sendAsync(message, regId, 2).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains("3"));
+    }
+    verify(sender, times(3)).sendNoRetryAsync(message, regId);
+  }
+
+  @Test
+  public void testSendAsync_exception() throws Exception {
+    runAsyncInline();
+    IOException exception = new IOException();
+    CompletableFuture<Result> failed = new CompletableFuture<Result>();
+    failed.completeExceptionally(exception);
+    doReturn(failed).when(sender).sendNoRetryAsync(message, regId);
+    try {
+      sender.sendAsync(message, regId, 2).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(exception, e.getCause());
+    }
+    verify(sender, times(1)).sendNoRetryAsync(message, regId);
+  }
+
+  @Test
+  public void testSendAsync_retryExponentialBackoff() throws Exception {
+    ArgumentCaptor<Long> capturedDelay = ArgumentCaptor.forClass(Long.class);
+    doNotSleep();
+    runAsyncInline();
+    doReturn(completed(null)).when(sender).sendNoRetryAsync(message, regId);
+    try {
+      sender.sendAsync(message, regId, retries).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    verify(sender, times(retries + 1)).sendNoRetryAsync(message, regId);
+    verify(sender, times(retries)).schedule(any(Runnable.class),
+        capturedDelay.capture());
+    long backoffRange = Sender.BACKOFF_INITIAL_DELAY;
+    for (long value : capturedDelay.getAllValues()) {
+      assertTrue(value >= backoffRange / 2);
+      assertTrue(value <= backoffRange * 3 / 2);
+      if (2 * backoffRange < Sender.MAX_BACKOFF_DELAY) {
+        backoffRange *= 2;
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendAsync_noRegistrationId() throws Exception {
+    sender.sendAsync(message, (String) null, 1);
+  }
+
+  @Test
+  public void testSendNoRetryAsync_ok() throws Exception {
+    runAsyncInline();
+    String json = replaceQuotes("\n"
+        + "{"
+        + "  'multicast_id': 108,"
+        + "  'success': 1,"
+        + "  'failure': 0,"
+        + "  'canonical_ids': 1,"
+        + "  'results': ["
+        + "    {'message_id': '23', 'registration_id': '42'}"
+        + "  ]"
+        + "}");
+    setResponseExpectations(200, json);
+    Result result = sender.sendNoRetryAsync(message, regId).get();
+    assertResult(result, "23", null, "42");
+  }
+
+  @Test
+  public void testSendNoRetryAsync_ioException_post() throws Exception {
+    runAsyncInline();
+    when(mockedConn.getOutputStream()).thenThrow(new IOException());
+    doReturn(mockedConn).when(sender).getConnection(anyString());
+    assertNull(sender.sendNoRetryAsync(message, regId).get());
+  }
+
+  @Test
+  public void testSendNoRetryAsync_serviceUnavailable() throws Exception {
+    runAsyncInline();
+    setResponseExpectations(503, "");
+    try {
+      sender.sendNoRetryAsync(message, regId).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(503,
+          ((InvalidRequestException) e.getCause()).getHttpStatusCode());
+    }
+  }
+
+  @Test
+  public void testSendNoRetryAsync_defaultExecutor() throws Exception {
+    setResponseExpectations(200, "{'message_id': 42}".replace('\'', '"'));
+    assertEquals("42", sender.sendNoRetryAsync(message, topic).get()
+        .getMessageId());
+  }
+
+  @Test
+  public void testSetTransport() throws Exception {
+    Transport transport = mock(Transport.class);
+    TransportResponse response = mock(TransportResponse.class);
+    when(response.getStatus()).thenReturn(200);
+    when(response.getBody()).thenReturn(
+        new ByteArrayInputStream("{\"message_id\": 42}".getBytes()));
+    ArgumentCaptor<TransportRequest> request =
+        ArgumentCaptor.forClass(TransportRequest.class);
+    when(transport.post(request.capture())).thenReturn(response);
+    sender.setTransport(transport);
+    assertEquals("42", sender.sendNoRetry(message, topic).getMessageId());
+    assertEquals(Constants.FCM_SEND_ENDPOINT, request.getValue().getUrl());
+    assertEquals("key=" + authKey,
+        request.getValue().getHeaders().get("Authorization"));
+    assertEquals("application/json",
+        request.getValue().getHeaders().get("Content-Type"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetTransport_null() {
+    sender.setTransport(null);
+  }
+
   @Test
   public void testSendNoRetry_ok() throws Exception {
     String json = replaceQuotes("\n"
@@ -626,6 +793,281 @@ public class SenderTest {
     verify(sender, times(5)).sendNoRetry(eq(message), anyListOf(String.class));
   }
 
+  @Test()
+  public void testSendAsync_json_secondAttemptOk() throws Exception {
+    doNotSleep();
+    runAsyncInline();
+    Result unaivalableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    Result okResult =
+        new Result.Builder().messageId("42").build();
+    MulticastResult mockedResult1 = new MulticastResult.Builder(0, 0, 0, 100)
+        .addResult(okResult).addResult(unaivalableResult).build();
+    MulticastResult mockedResult2 = new MulticastResult.Builder(0, 0, 0, 200)
+        .addResult(okResult).build();
+    doReturn(completed(mockedResult1)).when(sender).sendNoRetryAsync(message,
+        Arrays.asList("4", "8"));
+    doReturn(completed(mockedResult2)).when(sender).sendNoRetryAsync(message,
+        Arrays.asList("8"));
+    MulticastResult actualResult =
+        sender.sendAsync(message, Arrays.asList("4", "8"), 10).get();
+    assertEquals(2, actualResult.getTotal());
+    assertEquals(2, actualResult.getSuccess());
+    assertEquals(100, actualResult.getMulticastId());
+    assertEquals(Arrays.asList(200L), actualResult.getRetryMulticastIds());
+    assertResult(actualResult.getResults().get(0), "42", null, null);
+    assertResult(actualResult.getResults().get(1), "42", null, null);
+    verify(sender, times(1)).schedule(any(Runnable.class), anyLong());
+  }
+
+  @Test()
+  public void testSendAsync_json_allAttemptsFail() throws Exception {
+    doNotSleep();
+    runAsyncInline();
+    List<String> regIds = Arrays.asList("108");
+    CompletableFuture<MulticastResult> failed =
+        new CompletableFuture<MulticastResult>();
+    failed.completeExceptionally(new IOException());
+    doReturn(failed).when(sender).sendNoRetryAsync(message, regIds);
+    try {
+      sender.sendAsync(message, regIds, 2).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains("3"));
+    }
+    verify(sender, times(3)).sendNoRetryAsync(message, regIds);
+  }
+
+  @Test()
+  public void testSend_json_retryAfter_serviceUnavailable() throws Exception {
+    doNothing().when(sender).sleep(anyLong());
+    setResponseExpectations(503, "");
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("120");
+    try {
+      sender.send(message, Arrays.asList("108"), 1);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("2"));
+    }
+    verify(sender).sleep(120000L);
+  }
+
+  @Test()
+  public void testSendNoRetry_json_retryAfter() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 0,"
+        + " 'failure': 1, 'canonical_ids': 0,"
+        + " 'results': [{'error': 'Unavailable'}]}");
+    setResponseExpectations(200, json);
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("7");
+    MulticastResult multicastResult =
+        sender.sendNoRetry(message, Arrays.asList("108"));
+    assertEquals(7000, multicastResult.getRetryAfter());
+  }
+
+  @Test()
+  public void testSendAsync_json_retryAfter_virtualClock() throws Exception {
+    VirtualClock clock = new VirtualClock();
+    RetryScheduler scheduler = new RetryScheduler(clock, 10, 64);
+    sender.setRetryScheduler(scheduler);
+    sender.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    List<String> regIds = Arrays.asList("108");
+    MulticastResult unavailable = new MulticastResult.Builder(0, 1, 0, 100)
+        .addResult(new Result.Builder().errorCode("Unavailable").build())
+        .retryAfter(30000)
+        .build();
+    MulticastResult ok = new MulticastResult.Builder(1, 0, 0, 200)
+        .addResult(new Result.Builder().messageId("42").build())
+        .build();
+    doReturn(completed(unavailable)).doReturn(completed(ok))
+        .when(sender).sendNoRetryAsync(message, regIds);
+    CompletableFuture<MulticastResult> future =
+        sender.sendAsync(message, regIds, 1);
+    assertEquals(1, scheduler.size());
+    clock.advance(29990);
+    assertEquals(0, scheduler.runDueTasks());
+    assertFalse(future.isDone());
+    clock.advance(10);
+    assertEquals(1, scheduler.runDueTasks());
+    assertResult(future.get().getResults().get(0), "42", null, null);
+    verify(sender, times(2)).sendNoRetryAsync(message, regIds);
+  }
+
+  @Test()
+  public void testSendAsync_retryRunsOnExecutor() throws Exception {
+    VirtualClock clock = new VirtualClock();
+    RetryScheduler scheduler = new RetryScheduler(clock, 10, 64);
+    sender.setRetryScheduler(scheduler);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    sender.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    doReturn(completed(null)).doReturn(completed(result))
+        .when(sender).sendNoRetryAsync(message, regId);
+    CompletableFuture<Result> future = sender.sendAsync(message, regId, 1);
+    clock.advance(60000);
+    assertEquals(1, scheduler.runDueTasks());
+    // the timer only handed the retry over to the executor
+    verify(sender, times(1)).sendNoRetryAsync(message, regId);
+    assertEquals(1, tasks.size());
+    tasks.get(0).run();
+    assertSame(result, future.get());
+    verify(sender, times(2)).sendNoRetryAsync(message, regId);
+  }
+
+  @Test()
+  public void testSendNoRetry_json_quotaExceeded_slowsDown() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1,"
+        + " 'failure': 2, 'canonical_ids': 0, 'results': ["
+        + " {'message_id': '16'}, {'error': 'QuotaExceeded'},"
+        + " {'error': 'DeviceMessageRateExceeded'}]}");
+    setResponseExpectations(200, json);
+    RateLimiter limiter = new RateLimiter.Builder(100)
+        .ticker(new VirtualClock()).build();
+    sender.setRateLimiter(limiter);
+    sender.sendNoRetry(message, Arrays.asList("4", "8", "15"));
+    assertEquals(1, limiter.getThrottleCount());
+    assertEquals(50, limiter.getRate(), 0);
+  }
+
+  @Test()
+  public void testSendNoRetry_tooManyRequests_slowsDown() throws Exception {
+    setResponseExpectations(429, "");
+    RateLimiter limiter = new RateLimiter.Builder(100)
+        .ticker(new VirtualClock()).build();
+    sender.setRateLimiter(limiter);
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(429, e.getHttpStatusCode());
+    }
+    assertEquals(1, limiter.getThrottleCount());
+  }
+
+  @Test()
+  public void testSendNoRetry_rateLimited_waits() throws Exception {
+    doNothing().when(sender).sleep(anyLong());
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1,"
+        + " 'failure': 0, 'canonical_ids': 0, 'results': []}");
+    setResponseExpectations(200, json);
+    sender.setRateLimiter(new RateLimiter.Builder(10).burst(2)
+        .ticker(new VirtualClock()).build());
+    sender.sendNoRetry(message, Arrays.asList("4", "8"));
+    verify(sender, never()).sleep(anyLong());
+    setResponseExpectations(200, json);
+    sender.sendNoRetry(message, Arrays.asList("15"));
+    verify(sender).sleep(100L);
+  }
+
+  @Test()
+  public void testSendNoRetryAsync_rateLimited_scheduled() throws Exception {
+    runAsyncInline();
+    setResponseExpectations(200, "{}");
+    sender.setRateLimiter(new RateLimiter.Builder(10).burst(1)
+        .ticker(new VirtualClock()).build());
+    sender.sendNoRetryAsync(message, Arrays.asList("4", "8"));
+    verify(sender).schedule(any(Runnable.class), eq(100L));
+  }
+
+  @Test()
+  public void testSendNoRetry_json_metrics() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 2,"
+        + " 'failure': 1, 'canonical_ids': 1, 'results': ["
+        + " {'message_id': '16'}, {'error': 'DOH!'},"
+        + " {'message_id': '23', 'registration_id': '42'}]}");
+    setResponseExpectations(200, json);
+    MetricsRecorder metrics = new MetricsRecorder();
+    sender.setMetrics(metrics);
+    sender.sendNoRetry(message, Arrays.asList("4", "8", "15"));
+    MetricsRecorder.Snapshot snapshot = metrics.snapshot();
+    assertEquals(1, snapshot.getRequests());
+    assertEquals(1, snapshot.getStatusCounts().get(200).longValue());
+    assertEquals(outputStream.size(), snapshot.getBytesSent());
+    assertEquals(json.length(), snapshot.getBytesReceived());
+    assertEquals(1, snapshot.getLatency().getCount());
+    assertEquals(3, snapshot.getResults());
+    assertEquals(2, snapshot.getSuccesses());
+    assertEquals(1, snapshot.getCanonicalIds());
+    assertEquals(1, snapshot.getErrorCounts().get("DOH!").longValue());
+  }
+
+  @Test()
+  public void testSendNoRetry_metrics_errorStatus() throws Exception {
+    setResponseExpectations(503, "try later");
+    MetricsRecorder metrics = new MetricsRecorder();
+    sender.setMetrics(metrics);
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      // expected
+    }
+    MetricsRecorder.Snapshot snapshot = metrics.snapshot();
+    assertEquals(1, snapshot.getStatusCounts().get(503).longValue());
+    assertEquals("try later".length(), snapshot.getBytesReceived());
+    assertEquals(0, snapshot.getResults());
+  }
+
+  @Test()
+  public void testSend_metrics_retries() throws Exception {
+    doNothing().when(sender).sleep(anyLong());
+    MetricsRecorder metrics = new MetricsRecorder();
+    sender.setMetrics(metrics);
+    doReturn(null).doReturn(null).doReturn(result)
+        .when(sender).sendNoRetry(message, regId);
+    sender.send(message, regId, 2);
+    assertEquals(2, metrics.snapshot().getRetries());
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    long now = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+    assertEquals(120000, Sender.parseRetryAfter("120", now));
+    assertEquals(0, Sender.parseRetryAfter(" 0 ", now));
+    assertEquals(60000, Sender.parseRetryAfter(
+        "Sun, 06 Nov 1994 08:50:37 GMT", now));
+    assertEquals(0, Sender.parseRetryAfter(
+        "Sun, 06 Nov 1994 08:00:00 GMT", now));
+    assertEquals(-1, Sender.parseRetryAfter(null, now));
+    assertEquals(-1, Sender.parseRetryAfter("-1", now));
+    assertEquals(-1, Sender.parseRetryAfter("soon", now));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendAsync_json_emptyRegIds() throws Exception {
+    sender.sendAsync(message, Collections.<String>emptyList(), 1);
+  }
+
+  @Test()
+  public void testSendNoRetryAsync_json_ok() throws Exception {
+    runAsyncInline();
+    String json = replaceQuotes("\n"
+        + "{"
+        + "  'multicast_id': 108,"
+        + "  'success': 1,"
+        + "  'failure': 0,"
+        + "  'canonical_ids': 0,"
+        + "  'results': ["
+        + "    {'message_id': '16'}"
+        + "  ]"
+        + "}");
+    setResponseExpectations(200, json);
+    MulticastResult multicastResult =
+        sender.sendNoRetryAsync(message, Arrays.asList("108")).get();
+    assertEquals(108, multicastResult.getMulticastId());
+    assertResult(multicastResult.getResults().get(0), "16", null, null);
+    assertRequestJsonBody("108");
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testSendNoRetry_json_nullRegIds() throws Exception {
     sender.sendNoRetry(message, (List<String>) null);
@@ -693,6 +1135,18 @@ public class SenderTest {
     assertNull(multicastResult);
   }
 
+  @Test
+  public void testSendNoRetry_json_invalidJson() throws Exception {
+    setResponseExpectations(200, "{'multicast_id': 108, 'success'"
+        .replace('\'', '"'));
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4", "8", "15"));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Error parsing JSON response"));
+    }
+  }
+
   @Test()
   public void testSendNoRetry_json_ok() throws Exception {
     String json = replaceQuotes("\n"
@@ -725,6 +1179,71 @@ public class SenderTest {
     assertRequestJsonBody("4", "8", "15");
   }
 
+  @Test()
+  public void testSendNoRetry_prepared_ok() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1,"
+        + " 'failure': 0, 'canonical_ids': 0,"
+        + " 'results': [{'message_id': '4815162342'}]}");
+    setResponseExpectations(200, json);
+    Result result = sender.sendNoRetry(new PreparedMessage(message), regId);
+    assertResult(result, "4815162342", null, null);
+    assertArrayEquals(MessageEncoder.encode(message, regId),
+        outputStream.toByteArray());
+  }
+
+  @Test()
+  public void testSendNoRetry_json_prepared_ok() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 2,"
+        + " 'failure': 0, 'canonical_ids': 0,"
+        + " 'results': [{'message_id': '16'}, {'message_id': '23'}]}");
+    setResponseExpectations(200, json);
+    MulticastResult multicastResult = sender.sendNoRetry(
+        new PreparedMessage(message), Arrays.asList("4", "8"));
+    assertEquals(108, multicastResult.getMulticastId());
+    assertResult(multicastResult.getResults().get(1), "23", null, null);
+    assertRequestJsonBody("4", "8");
+  }
+
+  @Test()
+  public void testSend_json_prepared_secondAttemptOk() throws Exception {
+    doNothing().when(sender).sleep(anyInt());
+    PreparedMessage prepared = new PreparedMessage(message);
+    Result unavailableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    Result okResult = new Result.Builder().messageId("42").build();
+    MulticastResult mockedResult1 = new MulticastResult.Builder(0, 0, 0, 100)
+        .addResult(okResult).addResult(unavailableResult).build();
+    MulticastResult mockedResult2 = new MulticastResult.Builder(0, 0, 0, 200)
+        .addResult(okResult).build();
+    doReturn(mockedResult1).when(sender).sendNoRetry(prepared,
+        Arrays.asList("4", "8"));
+    doReturn(mockedResult2).when(sender).sendNoRetry(prepared,
+        Arrays.asList("8"));
+    MulticastResult actualResult =
+        sender.send(prepared, Arrays.asList("4", "8"), 10);
+    assertEquals(2, actualResult.getSuccess());
+    assertEquals(100, actualResult.getMulticastId());
+    assertEquals(Arrays.asList(200L), actualResult.getRetryMulticastIds());
+    verify(sender, never()).sendNoRetry(eq(message), anyListOf(String.class));
+  }
+
+  @Test()
+  public void testSendAsync_prepared_retryOk() throws Exception {
+    doNotSleep();
+    runAsyncInline();
+    PreparedMessage prepared = new PreparedMessage(message);
+    Result okResult = new Result.Builder().messageId("42").build();
+    doReturn(completed(null)).doReturn(completed(okResult))
+        .when(sender).sendNoRetryAsync(prepared, regId);
+    assertSame(okResult, sender.sendAsync(prepared, regId, 1).get());
+    verify(sender, times(2)).sendNoRetryAsync(prepared, regId);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendNoRetry_prepared_nullRegId() throws Exception {
+    sender.sendNoRetry(new PreparedMessage(message), (String) null);
+  }
+
   // replace ' by ", otherwise JSON strins would need to escape double-quotes
   private String replaceQuotes(String json) {
     return json.replaceAll("'", "\"");
@@ -737,14 +1256,15 @@ public class SenderTest {
     assertEquals(canonicalRegistrationId, result.getCanonicalRegistrationId());
   }
 
+  @SuppressWarnings("deprecation")
   private void assertRequestJsonBody(String...expectedRegIds) throws Exception {
-    ArgumentCaptor<String> capturedBody = ArgumentCaptor.forClass(String.class);
-    verify(sender).post(
-        eq(Constants.FCM_SEND_ENDPOINT),
-        eq("application/json"),
-        capturedBody.capture());
+    // JSON requests go through the transport, not the deprecated post()
+    verify(sender, never()).post(anyString(), anyString(), anyString());
+    verify(sender).getConnection(Constants.FCM_SEND_ENDPOINT);
+    verify(mockedConn).setRequestProperty("Content-Type", "application/json");
+    verify(mockedConn).setRequestProperty("Authorization", "key=" + authKey);
     // parse body
-    String body = capturedBody.getValue();
+    String body = new String(outputStream.toByteArray(), "UTF-8");
     JSONObject json = (JSONObject) jsonParser.parse(body);
     assertEquals(ttl, ((Long) json.get("time_to_live")).intValue());
     assertEquals(collapseKey, json.get("collapse_key"));
@@ -918,6 +1438,29 @@ public class SenderTest {
     doReturn(mockedConn).when(sender).getConnection(anyString());
   }
 
+  /**
+   * Makes asynchronous sends run on the calling thread and retry immediately.
+   */
+  private void runAsyncInline() {
+    sender.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        ((Runnable) invocation.getArguments()[0]).run();
+        return null;
+      }
+    }).when(sender).schedule(any(Runnable.class), anyLong());
+  }
+
+  private static <T> CompletableFuture<T> completed(T value) {
+    return CompletableFuture.completedFuture(value);
+  }
+
   private void doNotSleep() {
     doThrow(new AssertionError("Thou should not sleep!")).when(sender)
         .sleep(anyInt());
@@ -0,0 +1,160 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class TokenFeedbackTest {
+
+  private final Message message = new Message.Builder()
+      .addData("k", "v").build();
+  private final RecordingListener listener = new RecordingListener();
+  private FcmStubServer server;
+  private Sender sender;
+
+  @Before
+  public void startServer() throws Exception {
+    server = new FcmStubServer.Builder()
+        .tokenError("8", Constants.ERROR_NOT_REGISTERED)
+        .tokenError("23", Constants.ERROR_INVALID_REGISTRATION)
+        .tokenError("42", Constants.ERROR_MESSAGE_TOO_BIG)
+        .canonicalId("15", "16")
+        .build();
+    server.start();
+    sender = new Sender("4815162342", server.getEndpoint());
+    sender.setTokenFeedbackListener(listener);
+  }
+
+  @After
+  public void stopServer() {
+    server.close();
+  }
+
+  @Test
+  public void testOf_canonicalId() {
+    TokenFeedback feedback = TokenFeedback.of("4", new Result.Builder()
+        .messageId("m").canonicalRegistrationId("5").build());
+    assertEquals("4", feedback.getRegistrationId());
+    assertEquals("5", feedback.getCanonicalRegistrationId());
+    assertNull(feedback.getErrorCodeName());
+    assertFalse(feedback.isRemoved());
+  }
+
+  @Test
+  public void testOf_notRegistered() {
+    TokenFeedback feedback = TokenFeedback.of("4", new Result.Builder()
+        .errorCode(Constants.ERROR_NOT_REGISTERED).build());
+    assertEquals("4", feedback.getRegistrationId());
+    assertNull(feedback.getCanonicalRegistrationId());
+    assertEquals(Constants.ERROR_NOT_REGISTERED, feedback.getErrorCodeName());
+    assertTrue(feedback.isRemoved());
+  }
+
+  @Test
+  public void testOf_nothingToChange() {
+    assertNull(TokenFeedback.of("4",
+        new Result.Builder().messageId("m").build()));
+    assertNull(TokenFeedback.of("4", new Result.Builder()
+        .messageId("m").canonicalRegistrationId("4").build()));
+    assertNull(TokenFeedback.of("4", new Result.Builder()
+        .errorCode(Constants.ERROR_UNAVAILABLE).build()));
+  }
+
+  @Test
+  public void testSend_multicast() throws Exception {
+    sender.send(message, Arrays.asList("4", "8", "15", "23", "42"), 0);
+    assertEquals(1, listener.batches.size());
+    List<TokenFeedback> batch = listener.batches.get(0);
+    assertEquals(3, batch.size());
+    assertEquals("8", batch.get(0).getRegistrationId());
+    assertEquals(Constants.ERROR_NOT_REGISTERED,
+        batch.get(0).getErrorCodeName());
+    assertEquals("15", batch.get(1).getRegistrationId());
+    assertEquals("16", batch.get(1).getCanonicalRegistrationId());
+    assertEquals("23", batch.get(2).getRegistrationId());
+    assertEquals(Constants.ERROR_INVALID_REGISTRATION,
+        batch.get(2).getErrorCodeName());
+  }
+
+  @Test
+  public void testSend_multicastNothingToChange() throws Exception {
+    sender.send(message, Arrays.asList("4", "42"), 0);
+    assertTrue(listener.batches.isEmpty());
+  }
+
+  @Test
+  public void testSendAsync_multicast() throws Exception {
+    sender.sendAsync(new PreparedMessage(message), Arrays.asList("4", "15"), 0)
+        .get();
+    assertEquals(1, listener.batches.size());
+    assertEquals("16",
+        listener.batches.get(0).get(0).getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testSend_single() throws Exception {
+    sender.send(message, "8", 0);
+    sender.sendAsync(message, "15", 0).get();
+    sender.send(message, "4", 0);
+    assertEquals(2, listener.batches.size());
+    assertEquals("8", listener.batches.get(0).get(0).getRegistrationId());
+    assertEquals("16",
+        listener.batches.get(1).get(0).getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testSend_topic() throws Exception {
+    sender.send(message, "/topics/news", 0);
+    assertTrue(listener.batches.isEmpty());
+  }
+
+  @Test
+  public void testSend_listenerFails() throws Exception {
+    sender.setTokenFeedbackListener(new TokenFeedbackListener() {
+      @Override
+      public void onTokenFeedback(List<TokenFeedback> feedback) {
+        throw new IllegalStateException("database is down");
+      }
+    });
+    MulticastResult result = sender.send(message, Arrays.asList("4", "8"), 0);
+    assertNotNull(result.getResults().get(0).getMessageId());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  private static final class RecordingListener
+      implements TokenFeedbackListener {
+
+    final List<List<TokenFeedback>> batches =
+        new CopyOnWriteArrayList<List<TokenFeedback>>();
+
+    @Override
+    public void onTokenFeedback(List<TokenFeedback> feedback) {
+      batches.add(feedback);
+    }
+  }
+}
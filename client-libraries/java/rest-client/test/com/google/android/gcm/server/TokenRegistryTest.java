@@ -0,0 +1,246 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class TokenRegistryTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPutCanonicalId() throws Exception {
+    TokenRegistry registry = newRegistry();
+    assertNull(registry.getCanonicalId("4"));
+    assertEquals("4", registry.resolve("4"));
+    registry.putCanonicalId("4", "8");
+    assertEquals("8", registry.getCanonicalId("4"));
+    assertEquals("8", registry.resolve("4"));
+    assertNull(registry.getCanonicalId("8"));
+    assertEquals(2, registry.size());
+    registry.close();
+  }
+
+  @Test
+  public void testPutCanonicalId_deduplicated() throws Exception {
+    TokenRegistry registry = newRegistry();
+    registry.putCanonicalId("4", "42");
+    registry.putCanonicalId("8", "42");
+    registry.putCanonicalId("15", "42");
+    registry.putCanonicalId("4", "42");
+    assertEquals(4, registry.size());
+    assertEquals("42", registry.getCanonicalId("15"));
+    registry.close();
+  }
+
+  @Test
+  public void testPutCanonicalId_chain() throws Exception {
+    TokenRegistry registry = newRegistry();
+    registry.putCanonicalId("4", "8");
+    registry.putCanonicalId("8", "15");
+    assertEquals("15", registry.getCanonicalId("4"));
+    assertEquals("15", registry.getCanonicalId("8"));
+    // the canonical id went back to an older one
+    registry.putCanonicalId("15", "4");
+    assertNull(registry.getCanonicalId("4"));
+    assertEquals("4", registry.getCanonicalId("8"));
+    assertEquals("4", registry.getCanonicalId("15"));
+    registry.close();
+  }
+
+  @Test
+  public void testPutCanonicalId_same() throws Exception {
+    TokenRegistry registry = newRegistry();
+    registry.putCanonicalId("4", "4");
+    assertEquals(0, registry.size());
+    registry.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPutCanonicalId_tooLong() throws Exception {
+    char[] token = new char[TokenRegistry.MAX_TOKEN_LENGTH + 1];
+    Arrays.fill(token, 'x');
+    TokenRegistry registry = newRegistry();
+    try {
+      registry.putCanonicalId(new String(token), "4");
+    } finally {
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testResolve_list() throws Exception {
+    TokenRegistry registry = newRegistry();
+    List<String> regIds = Arrays.asList("4", "8", "15");
+    assertSame(regIds, registry.resolve(regIds));
+    registry.putCanonicalId("8", "16");
+    assertEquals(Arrays.asList("4", "16", "15"), registry.resolve(regIds));
+    assertEquals(Arrays.asList("4", "8", "15"), regIds);
+    registry.close();
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    TokenRegistry registry = newRegistry();
+    registry.putCanonicalId("4", "マルチ");
+    registry.close();
+    registry = newRegistry();
+    assertEquals("マルチ", registry.getCanonicalId("4"));
+    assertEquals(2, registry.size());
+    registry.close();
+  }
+
+  @Test
+  public void testReopen_indexRebuilt() throws Exception {
+    TokenRegistry registry = newRegistry();
+    putMany(registry, 100);
+    registry.close();
+    assertTrue(new File(folder.getRoot(), TokenRegistry.INDEX_FILE).delete());
+    registry = newRegistry();
+    assertEquals(200, registry.size());
+    assertEquals("APA91b-new-99", registry.getCanonicalId("APA91b-99"));
+    registry.close();
+  }
+
+  @Test
+  public void testReopen_indexOutOfDate() throws Exception {
+    File index = new File(folder.getRoot(), TokenRegistry.INDEX_FILE);
+    TokenRegistry registry = newRegistry();
+    registry.putCanonicalId("4", "8");
+    registry.close();
+    File copy = folder.newFile();
+    copy(index, copy);
+    registry = newRegistry();
+    registry.putCanonicalId("15", "16");
+    registry.close();
+    // as if the process died before the index was written
+    copy(copy, index);
+    registry = newRegistry();
+    assertEquals("16", registry.getCanonicalId("15"));
+    assertEquals(4, registry.size());
+    registry.close();
+  }
+
+  @Test
+  public void testGrow() throws Exception {
+    // small chunks, so records skip the end of chunks
+    TokenRegistry registry = new TokenRegistry.Builder(folder.getRoot())
+        .chunkSize(4096)
+        .build();
+    putMany(registry, 5000);
+    assertEquals(10000, registry.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals("APA91b-new-" + i, registry.getCanonicalId("APA91b-" + i));
+    }
+    registry.close();
+    registry = new TokenRegistry.Builder(folder.getRoot())
+        .chunkSize(4096)
+        .build();
+    assertEquals("APA91b-new-4999", registry.getCanonicalId("APA91b-4999"));
+    registry.close();
+    assertTrue(new File(folder.getRoot(), TokenRegistry.INDEX_FILE).delete());
+    // the index is rebuilt larger than expected
+    registry = new TokenRegistry.Builder(folder.getRoot())
+        .chunkSize(4096)
+        .build();
+    assertEquals(10000, registry.size());
+    assertEquals("APA91b-new-0", registry.getCanonicalId("APA91b-0"));
+    registry.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGetCanonicalId_closed() throws Exception {
+    TokenRegistry registry = newRegistry();
+    registry.close();
+    registry.getCanonicalId("4");
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpen_notARegistry() throws Exception {
+    File file = new File(folder.getRoot(), TokenRegistry.DATA_FILE);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.writeBytes("not a registry, but long enough to have a header");
+    raf.close();
+    newRegistry();
+  }
+
+  @Test
+  public void testSender() throws Exception {
+    FcmStubServer server = new FcmStubServer.Builder()
+        .canonicalId("15", "16")
+        .build();
+    server.start();
+    TokenRegistry registry = newRegistry();
+    try {
+      Sender sender = new Sender("4815162342", server.getEndpoint());
+      sender.setTokenRegistry(registry);
+      Message message = new Message.Builder().build();
+      MulticastResult result =
+          sender.send(message, Arrays.asList("4", "15"), 0);
+      assertEquals("16",
+          result.getResults().get(1).getCanonicalRegistrationId());
+      assertEquals("16", registry.getCanonicalId("15"));
+      // sent to the canonical id, which the server does not replace
+      result = sender.send(message, Arrays.asList("4", "15"), 0);
+      assertNull(result.getResults().get(1).getCanonicalRegistrationId());
+      assertNull(sender.send(message, "15", 0).getCanonicalRegistrationId());
+      assertNull(sender.sendAsync(message, "15", 0).get()
+          .getCanonicalRegistrationId());
+    } finally {
+      registry.close();
+      server.close();
+    }
+  }
+
+  private TokenRegistry newRegistry() throws IOException {
+    return new TokenRegistry.Builder(folder.getRoot()).build();
+  }
+
+  private static void putMany(TokenRegistry registry, int count)
+      throws IOException {
+    for (int i = 0; i < count; i++) {
+      registry.putCanonicalId("APA91b-" + i, "APA91b-new-" + i);
+    }
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(from, "r");
+    RandomAccessFile out = new RandomAccessFile(to, "rw");
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readFully(bytes);
+      out.setLength(0);
+      out.write(bytes);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+}
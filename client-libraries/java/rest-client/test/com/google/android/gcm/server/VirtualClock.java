@@ -0,0 +1,37 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock that only moves when told to, so timers can be tested without
+ * waiting.
+ */
+final class VirtualClock implements RetryScheduler.Ticker {
+
+  // not starting at 0 catches code that assumes it does
+  private long now = TimeUnit.DAYS.toNanos(42);
+
+  @Override
+  public synchronized long nanoTime() {
+    return now;
+  }
+
+  synchronized void advance(long millis) {
+    now += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
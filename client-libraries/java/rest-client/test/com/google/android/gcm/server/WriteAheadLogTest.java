@@ -0,0 +1,234 @@
+/*
+ * Copyright Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteAheadLogTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final PreparedMessage news = new PreparedMessage(
+      new Message.Builder().collapseKey("news").addData("k", "v").build());
+  private final PreparedMessage sports = new PreparedMessage(
+      new Message.Builder().collapseKey("sports").build());
+
+  @Test
+  public void testRecover() throws Exception {
+    File directory = folder.getRoot();
+    WriteAheadLog log = new WriteAheadLog(directory, 4096);
+    WriteAheadLog.Entry first = log.append(news, "4");
+    WriteAheadLog.Entry second = log.append(sports, "8");
+    WriteAheadLog.Entry third = log.append(news, "マルチ");
+    log.ack(second);
+    assertEquals(2, log.getPendingCount());
+    log.close();
+
+    log = new WriteAheadLog(directory, 4096);
+    List<WriteAheadLog.Entry> recovered = log.getRecovered();
+    assertEquals(2, recovered.size());
+    assertEquals(first.id, recovered.get(0).id);
+    assertEquals("4", recovered.get(0).to);
+    assertEquals(news, recovered.get(0).message);
+    assertNull(recovered.get(0).message.getMessage());
+    assertArrayEquals(news.encode("4"), recovered.get(0).message.encode("4"));
+    assertEquals(third.id, recovered.get(1).id);
+    assertEquals("マルチ", recovered.get(1).to);
+    assertEquals(2, log.getPendingCount());
+    // ids are not reused
+    assertTrue(log.append(news, "15").id > third.id);
+    log.close();
+  }
+
+  @Test
+  public void testRecover_ackedInLaterSegment() throws Exception {
+    File directory = folder.getRoot();
+    WriteAheadLog log = new WriteAheadLog(directory, 4096);
+    List<WriteAheadLog.Entry> entries = appendUntilRolled(log);
+    for (WriteAheadLog.Entry entry : entries) {
+      if (entry.id % 2 == 0) {
+        log.ack(entry);
+      }
+    }
+    int pending = log.getPendingCount();
+    log.close();
+    log = new WriteAheadLog(directory, 4096);
+    assertEquals(pending, log.getRecovered().size());
+    for (WriteAheadLog.Entry entry : log.getRecovered()) {
+      assertEquals(1, entry.id % 2);
+    }
+    log.close();
+  }
+
+  @Test
+  public void testRecover_tornRecord() throws Exception {
+    File directory = folder.getRoot();
+    WriteAheadLog log = new WriteAheadLog(directory, 4096);
+    log.append(news, "4");
+    log.append(news, "8");
+    log.close();
+    // corrupt the last byte of the second entry
+    File segment = directory.listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      long position = 0;
+      for (long i = file.length() - 1; i >= 0; i--) {
+        file.seek(i);
+        if (file.read() != 0) {
+          position = i;
+          break;
+        }
+      }
+      file.seek(position);
+      file.write('9');
+    } finally {
+      file.close();
+    }
+    log = new WriteAheadLog(directory, 4096);
+    assertEquals(1, log.getRecovered().size());
+    assertEquals("4", log.getRecovered().get(0).to);
+    log.close();
+  }
+
+  @Test
+  public void testDeleteFinishedSegments() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(folder.getRoot(), 4096);
+    List<WriteAheadLog.Entry> entries = appendUntilRolled(log);
+    assertEquals(2, log.getSegmentCount());
+    for (WriteAheadLog.Entry entry : entries) {
+      log.ack(entry);
+    }
+    assertEquals(1, log.getSegmentCount());
+    assertEquals(1, folder.getRoot().listFiles().length);
+    log.close();
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    File directory = folder.getRoot();
+    WriteAheadLog log = new WriteAheadLog(directory, 4096);
+    List<WriteAheadLog.Entry> entries = appendUntilRolled(log);
+    WriteAheadLog.Entry kept = entries.get(0);
+    for (WriteAheadLog.Entry entry : entries.subList(1, entries.size() / 2)) {
+      log.ack(entry);
+    }
+    assertEquals(2, log.getSegmentCount());
+    log.compact();
+    assertEquals(1, log.getSegmentCount());
+    int pending = log.getPendingCount();
+    log.close();
+    log = new WriteAheadLog(directory, 4096);
+    assertEquals(pending, log.getRecovered().size());
+    assertEquals(kept.id, log.getRecovered().get(0).id);
+    log.close();
+  }
+
+  @Test
+  public void testAutomaticCompaction() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(folder.getRoot(), 4096);
+    File first = folder.getRoot().listFiles()[0];
+    List<WriteAheadLog.Entry> entries = appendUntilRolled(log);
+    // only the first entry is left in the first segment when the log rolls
+    for (WriteAheadLog.Entry entry : entries.subList(1, entries.size())) {
+      log.ack(entry);
+    }
+    // the entry left is copied to the next segment when the log rolls again
+    for (int i = 0; first.exists(); i++) {
+      assertTrue(i < 1000);
+      log.append(news, "APA91b" + i);
+    }
+    assertEquals(2, log.getSegmentCount());
+    int pending = log.getPendingCount();
+    log.close();
+    log = new WriteAheadLog(folder.getRoot(), 4096);
+    assertEquals(pending, log.getRecovered().size());
+    assertEquals(entries.get(0).id, log.getRecovered().get(0).id);
+    log.close();
+  }
+
+  @Test
+  public void testAck_twice() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(folder.getRoot(), 4096);
+    WriteAheadLog.Entry entry = log.append(news, "4");
+    log.ack(entry);
+    log.ack(entry);
+    assertEquals(0, log.getPendingCount());
+    log.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testAppend_closed() throws Exception {
+    WriteAheadLog log = new WriteAheadLog(folder.getRoot(), 4096);
+    log.close();
+    log.append(news, "4");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAppend_tooBig() throws Exception {
+    StringBuilder data = new StringBuilder();
+    for (int i = 0; i < 4096; i++) {
+      data.append('x');
+    }
+    WriteAheadLog log = new WriteAheadLog(folder.getRoot(), 4096);
+    try {
+      log.append(new PreparedMessage(new Message.Builder()
+          .addData("k", data.toString()).build()), "4");
+    } finally {
+      log.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpen_notASegment() throws Exception {
+    File file = new File(folder.getRoot(), "segment-0000000000000001.log");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.writeBytes("not a segment");
+    raf.close();
+    new WriteAheadLog(folder.getRoot(), 4096);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOpen_segmentTooSmall() throws Exception {
+    new WriteAheadLog(folder.getRoot(), 1024);
+  }
+
+  /**
+   * Appends entries until the log has started a new segment.
+   */
+  private List<WriteAheadLog.Entry> appendUntilRolled(WriteAheadLog log)
+      throws IOException {
+    int segments = log.getSegmentCount();
+    List<WriteAheadLog.Entry> entries = new ArrayList<WriteAheadLog.Entry>();
+    for (int i = 0; log.getSegmentCount() == segments; i++) {
+      entries.add(log.append(i % 2 == 0 ? news : sports, "APA91b" + i));
+    }
+    return entries;
+  }
+}